@@ -0,0 +1,215 @@
+package fri.util.database.jpa.commons;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <code>DbSession</code> decorator that buffers deletes, skips redundant saves,
+ * and flushes its delegate after a configurable number of writes.
+ * <p/>
+ * When the delegate is an <code>EvictingDbSession</code>, an entity that it returned from <code>save()</code>
+ * as the same instance is remembered until the next flush. Further saves of it are skipped
+ * as long as the delegate <code>contains()</code> it, because its state is written on flush anyway.
+ * Other delegates get every save. Call <code>clear()</code> when the delegate's persistence context gets cleared.
+ * Deletes are passed to the delegate on the next call that is not a skipped save,
+ * in the order they were issued.
+ * Before queries and update statements, pending writes are flushed, so that they see them.
+ * <p/>
+ * Mind that the JDBC batch size is a setting of the JPA provider, e.g. <code>hibernate.jdbc.batch_size</code>,
+ * and should be the same as the batch size of this session. Call <code>flush()</code> before committing.
+ * Not thread-safe, like the sessions it wraps.
+ */
+public class BatchingDbSession implements PreparingDbSession, EvictingDbSession, LimitingDbSession
+{
+	/** The default number of writes after which the delegate gets flushed. */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	private final DbSession delegate;
+	private final int batchSize;
+	private final Set<Object> managedEntities = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+	private final List<Object> pendingDeletes = new ArrayList<Object>();	// in issue order
+	private final Set<Object> pendingDeleteSet = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+	private int writeCount;
+	private int coalescedWriteCount;
+
+	public BatchingDbSession(DbSession delegate) {
+		this(delegate, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param delegate the session that performs all database work.
+	 * @param batchSize the number of writes after which the delegate gets flushed.
+	 */
+	public BatchingDbSession(DbSession delegate, int batchSize) {
+		if (delegate == null)
+			throw new IllegalArgumentException("Need a session to delegate to!");
+
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive: "+batchSize);
+
+		this.delegate = delegate;
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public Object get(Class<?> entityClass, Serializable id) {
+		applyPendingDeletes();
+		return delegate.get(entityClass, id);
+	}
+
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters) {
+		flushPendingWrites();
+		return delegate.queryList(queryText, parameters);
+	}
+
+	/** Passes the limit to the delegate when it is a <code>LimitingDbSession</code>, else cuts its results. */
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters, int maximumResults) {
+		flushPendingWrites();
+		if (delegate instanceof LimitingDbSession)
+			return ((LimitingDbSession) delegate).queryList(queryText, parameters, maximumResults);
+		final List<?> result = delegate.queryList(queryText, parameters);
+		return (result.size() > maximumResults) ? result.subList(0, maximumResults) : result;
+	}
+
+	@Override
+	public int queryCount(String queryText, Object[] parameters) {
+		flushPendingWrites();
+		return delegate.queryCount(queryText, parameters);
+	}
+
+	/** Skips the save when given entity was saved since the last flush and is still managed by the delegate, else passes it on. */
+	@Override
+	public Object save(Object node) {
+		if (managedEntities.contains(node) && ((EvictingDbSession) delegate).contains(node))	{
+			coalescedWriteCount++;
+			return node;
+		}
+
+		managedEntities.remove(node);
+		applyPendingDeletes();
+		final Object saved = delegate.save(node);
+		if (saved == node && delegate instanceof EvictingDbSession)
+			managedEntities.add(node);
+
+		written();
+		return saved;
+	}
+
+	@Override
+	public void refresh(Object node) {
+		applyPendingDeletes();
+		delegate.refresh(node);
+	}
+
+	/** Buffers the delete of given entity until the next call that needs it. */
+	@Override
+	public void delete(Object node) {
+		managedEntities.remove(node);
+		if (pendingDeleteSet.add(node) == false)	{
+			coalescedWriteCount++;
+			return;
+		}
+		pendingDeletes.add(node);
+		written();
+	}
+
+	@Override
+	public void executeUpdate(String statement, Object[] parameters) {
+		flushPendingWrites();
+		delegate.executeUpdate(statement, parameters);
+	}
+
+	/** Passes pending deletes to the delegate and flushes it. Saves are not skipped until entities are saved again. */
+	@Override
+	public void flush() {
+		applyPendingDeletes();
+		delegate.flush();
+		writeCount = 0;
+		managedEntities.clear();
+	}
+
+	/**
+	 * Forgets saved entities and pending deletes, to be called when the delegate's persistence context
+	 * was cleared, which discards its unflushed changes, too.
+	 * Clears the delegate when it is an <code>EvictingDbSession</code>.
+	 */
+	@Override
+	public void clear()	{
+		managedEntities.clear();
+		pendingDeletes.clear();
+		pendingDeleteSet.clear();
+		writeCount = 0;
+		if (delegate instanceof EvictingDbSession)
+			((EvictingDbSession) delegate).clear();
+	}
+
+	/** Passes given statement to the delegate when it is a <code>PreparingDbSession</code>. */
+	@Override
+	public void prepare(String queryText) {
+		if (delegate instanceof PreparingDbSession)
+			((PreparingDbSession) delegate).prepare(queryText);
+	}
+
+	/** Forgets given entity, also its pending delete, and passes it to the delegate when it is an <code>EvictingDbSession</code>. */
+	@Override
+	public void evict(Object entity) {
+		managedEntities.remove(entity);
+		if (pendingDeleteSet.remove(entity))
+			pendingDeletes.remove(indexOfPendingDelete(entity));
+		if (delegate instanceof EvictingDbSession)
+			((EvictingDbSession) delegate).evict(entity);
+	}
+
+	/** @return true when the delegate is an <code>EvictingDbSession</code> containing given entity. */
+	@Override
+	public boolean contains(Object entity) {
+		return (delegate instanceof EvictingDbSession) && ((EvictingDbSession) delegate).contains(entity);
+	}
+
+	/** @return the number of saves and deletes that were skipped because they were redundant. */
+	public int getCoalescedWriteCount()	{
+		return coalescedWriteCount;
+	}
+
+	/** @return the wrapped session. */
+	public DbSession getDelegate()	{
+		return delegate;
+	}
+
+
+	private void written()	{
+		writeCount++;
+		if (writeCount >= batchSize)
+			flush();
+	}
+
+	private void flushPendingWrites()	{
+		if (writeCount > 0)
+			flush();
+	}
+
+	private void applyPendingDeletes()	{
+		if (pendingDeletes.size() <= 0)
+			return;
+
+		final List<Object> deletes = new ArrayList<Object>(pendingDeletes);
+		pendingDeletes.clear();	// avoid applying them again when delegate fails
+		pendingDeleteSet.clear();
+		for (Object node : deletes)
+			delegate.delete(node);
+	}
+
+	private int indexOfPendingDelete(Object node)	{
+		for (int i = 0; i < pendingDeletes.size(); i++)
+			if (pendingDeletes.get(i) == node)
+				return i;
+		throw new IllegalStateException("Pending delete not found: "+node);
+	}
+
+}
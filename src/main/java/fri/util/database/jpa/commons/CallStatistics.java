@@ -0,0 +1,126 @@
+package fri.util.database.jpa.commons;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histogram of one DAO operation or one statement shape.
+ * The histogram has buckets of powers of two microseconds: bucket 0 counts calls below
+ * one microsecond, bucket <i>i</i> calls from 2<sup>i-1</sup> to below 2<sup>i</sup> microseconds,
+ * the last bucket all slower calls.
+ * <p/>
+ * Thread-safe and lock-free. Counters are updated independently, thus a reader
+ * concurrent to writers may see a call counted in one counter but not yet in another.
+ */
+public final class CallStatistics
+{
+	/** The number of latency buckets, the last starting at about 4 seconds. */
+	public static final int BUCKET_COUNT = 24;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong statements = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+	/** @return the exclusive upper bound of given latency bucket in microseconds, Long.MAX_VALUE for the last one. */
+	public static long getBucketUpperBoundMicros(int bucket)	{
+		return (bucket >= BUCKET_COUNT - 1) ? Long.MAX_VALUE : 1L << bucket;
+	}
+
+	/** Counts one call with given latency, session calls and returned rows. */
+	public void record(long nanos, long statementCount, long rowCount)	{
+		calls.incrementAndGet();
+		statements.addAndGet(statementCount);
+		rows.addAndGet(rowCount);
+		totalNanos.addAndGet(nanos);
+		latencyBuckets.incrementAndGet(bucket(nanos));
+
+		long max = maxNanos.get();
+		while (nanos > max && maxNanos.compareAndSet(max, nanos) == false)
+			max = maxNanos.get();
+	}
+
+	/** Counts one call that failed with given latency and session calls, in all counters and the failure count. */
+	public void recordFailure(long nanos, long statementCount)	{
+		failures.incrementAndGet();
+		record(nanos, statementCount, 0);
+	}
+
+	/** @return the number of calls, including failed ones. */
+	public long getCallCount()	{
+		return calls.get();
+	}
+
+	/** @return the number of calls that threw an exception. */
+	public long getFailureCount()	{
+		return failures.get();
+	}
+
+	/** @return the number of session calls, for statement shapes the same as the call count. */
+	public long getStatementCount()	{
+		return statements.get();
+	}
+
+	/** @return the number of rows returned by queries. */
+	public long getRowCount()	{
+		return rows.get();
+	}
+
+	public long getTotalNanos()	{
+		return totalNanos.get();
+	}
+
+	public long getMaxNanos()	{
+		return maxNanos.get();
+	}
+
+	/** @return a copy of the latency histogram, see <code>getBucketUpperBoundMicros()</code>. */
+	public long [] getLatencyHistogram()	{
+		final long [] histogram = new long[BUCKET_COUNT];
+		for (int i = 0; i < histogram.length; i++)
+			histogram[i] = latencyBuckets.get(i);
+		return histogram;
+	}
+
+	/**
+	 * @param percent the percentage of calls, e.g. 99.
+	 * @return the upper bound in microseconds of the bucket where given percentage of calls is reached, 0 when no calls.
+	 */
+	public long getPercentileMicros(double percent)	{
+		final long [] histogram = getLatencyHistogram();
+		long count = 0;
+		for (long bucketCount : histogram)
+			count += bucketCount;
+
+		final double limit = count * percent / 100;
+		long sum = 0;
+		for (int i = 0; i < histogram.length; i++)	{
+			sum += histogram[i];
+			if (sum > 0 && sum >= limit)
+				return getBucketUpperBoundMicros(i);
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		final long callCount = getCallCount();
+		return "calls="+callCount+
+				", failures="+getFailureCount()+
+				", statements="+getStatementCount()+
+				", rows="+getRowCount()+
+				", avgMicros="+(callCount > 0 ? getTotalNanos() / callCount / 1000 : 0)+
+				", p99Micros<"+getPercentileMicros(99)+
+				", maxMicros="+getMaxNanos() / 1000;
+	}
+
+
+	private static int bucket(long nanos)	{
+		final long micros = nanos / 1000;
+		return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+	}
+
+}
@@ -0,0 +1,102 @@
+package fri.util.database.jpa.commons;
+
+/**
+ * The DAO operation the calling thread currently performs, e.g. "getChildren",
+ * for session decorators that attribute their work to the DAO call that caused it.
+ * Use it like this:
+ * <pre>
+ *  DbOperation operation = DbOperation.begin("getChildren");
+ *  try	{
+ *      ... call the session ...
+ *  }
+ *  finally	{
+ *      operation.end();
+ *  }
+ * </pre>
+ * Operations begun within an operation belong to the outer one,
+ * thus a DAO call implemented by other DAO calls counts as one operation.
+ * Not thread-safe, an operation is used by the thread that began it.
+ */
+public final class DbOperation
+{
+	private static final ThreadLocal<DbOperation> current = new ThreadLocal<DbOperation>();
+
+	private final String name;
+	private final long startNanos = System.nanoTime();
+	private int depth = 1;
+	private long statementCount;
+	private long rowCount;
+
+	/** @return a new operation with given name, or the operation the calling thread already performs. */
+	public static DbOperation begin(String name)	{
+		if (name == null)
+			throw new IllegalArgumentException("Need an operation name!");
+
+		final DbOperation outer = current.get();
+		if (outer != null)	{
+			outer.depth++;
+			return outer;
+		}
+
+		final DbOperation operation = new DbOperation(name);
+		current.set(operation);
+		return operation;
+	}
+
+	/** @return the operation the calling thread performs, or null when none. */
+	public static DbOperation current()	{
+		return current.get();
+	}
+
+
+	private DbOperation(String name)	{
+		this.name = name;
+	}
+
+	public String getName()	{
+		return name;
+	}
+
+	/** @return the nanoseconds since this operation began. */
+	public long getElapsedNanos()	{
+		return System.nanoTime() - startNanos;
+	}
+
+	/** @return the number of session calls made within this operation. */
+	public long getStatementCount()	{
+		return statementCount;
+	}
+
+	/** @return the number of rows returned by queries within this operation. */
+	public long getRowCount()	{
+		return rowCount;
+	}
+
+	/** Counts one session call that returned given number of rows. */
+	public void executed(long rows)	{
+		statementCount++;
+		rowCount += rows;
+	}
+
+	/**
+	 * Ends this operation, or one nested begin of it.
+	 * @return true when the operation ended, false when it continues in an outer begin.
+	 */
+	public boolean end()	{
+		if (current.get() != this)
+			throw new IllegalStateException("Operation is not the one of this thread: "+this);
+
+		depth--;
+		if (depth > 0)
+			return false;
+
+		current.remove();
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"[name="+name+"]";
+	}
+
+}
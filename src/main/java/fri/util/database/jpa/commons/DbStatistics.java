@@ -0,0 +1,161 @@
+package fri.util.database.jpa.commons;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Collects call statistics per DAO operation and per statement shape, written by
+ * <code>InstrumentedDbSession</code> and <code>InstrumentedTreeDao</code>.
+ * The shape of a statement is its JPQL text, which contains no parameter values,
+ * or the session method and entity class name for other calls, e.g. "save TreePathImpl".
+ * Parameter numbers are removed from shapes and "in" parameter lists are collapsed, e.g. "in (?1, ?2)"
+ * is counted as "in (?...)", so that statements differing only in list length share one shape.
+ * Beyond a maximum number of shapes, statements are counted as <code>OTHER_STATEMENTS</code>,
+ * as generated statements like uniqueness checks still have many shapes.
+ * <p/>
+ * To expose the statistics via JMX, register it as standard MBean:
+ * <pre>
+ *  ManagementFactory.getPlatformMBeanServer().registerMBean(
+ *      statistics, new ObjectName("fri.util.database.jpa:type=DbStatistics,name=tree"));
+ * </pre>
+ * Thread-safe and lock-free, one instance can be shared by all sessions and DAOs.
+ */
+public class DbStatistics implements DbStatisticsMBean
+{
+	/** The default maximum number of statement shapes. */
+	public static final int DEFAULT_MAX_STATEMENT_SHAPES = 1000;
+	
+	/** The shape counting all statements beyond the maximum number of shapes. */
+	public static final String OTHER_STATEMENTS = "(other statements)";
+	
+	private static final Pattern PARAMETER_NUMBER = Pattern.compile("\\?\\d+");
+	private static final Pattern PARAMETER_LIST = Pattern.compile("(?i)\\bin\\s*\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+	
+	private final ConcurrentMap<String,CallStatistics> operations = new ConcurrentHashMap<String,CallStatistics>();
+	private final ConcurrentMap<String,CallStatistics> statements = new ConcurrentHashMap<String,CallStatistics>();
+	private final int maxStatementShapes;
+
+	public DbStatistics() {
+		this(DEFAULT_MAX_STATEMENT_SHAPES);
+	}
+
+	/** @param maxStatementShapes the number of shapes after which further ones are counted as <code>OTHER_STATEMENTS</code>, which is an additional entry. */
+	public DbStatistics(int maxStatementShapes) {
+		if (maxStatementShapes <= 0)
+			throw new IllegalArgumentException("Maximum number of statement shapes must be positive: "+maxStatementShapes);
+
+		this.maxStatementShapes = maxStatementShapes;
+	}
+
+	/** Counts one call of given DAO operation. */
+	public void recordOperation(String operation, long nanos, long statementCount, long rowCount)	{
+		statistics(operations, operation).record(nanos, statementCount, rowCount);
+	}
+
+	/** Counts one call of given DAO operation that threw an exception. */
+	public void recordFailedOperation(String operation, long nanos, long statementCount)	{
+		statistics(operations, operation).recordFailure(nanos, statementCount);
+	}
+
+	/** Counts one execution of given statement. */
+	public void recordStatement(String statement, long nanos, long rowCount)	{
+		statistics(statements, shapeKey(statement)).record(nanos, 1, rowCount);
+	}
+
+	/** Counts one execution of given statement that threw an exception. */
+	public void recordFailedStatement(String statement, long nanos)	{
+		statistics(statements, shapeKey(statement)).recordFailure(nanos, 1);
+	}
+
+	/** @return the statistics of given DAO operation, null when never called. */
+	public CallStatistics getOperation(String operation)	{
+		return operations.get(operation);
+	}
+
+	/** @return the statistics of the shape of given statement, null when never executed. */
+	public CallStatistics getStatement(String statement)	{
+		return statements.get(shape(statement));
+	}
+
+	/** @return given statement without parameter numbers, and with "in" parameter lists of any length collapsed to "in (?...)". */
+	public static String shape(String statement)	{
+		if (statement.indexOf('?') < 0)
+			return statement;
+		
+		final String unnumbered = PARAMETER_NUMBER.matcher(statement).replaceAll("?");
+		return PARAMETER_LIST.matcher(unnumbered).replaceAll("in (?...)");
+	}
+
+	/** @return the statistics of all DAO operations, sorted by name. */
+	public Map<String,CallStatistics> getOperations()	{
+		return Collections.unmodifiableMap(new TreeMap<String,CallStatistics>(operations));
+	}
+
+	/** @return the statistics of all statement shapes, sorted by text. */
+	public Map<String,CallStatistics> getStatements()	{
+		return Collections.unmodifiableMap(new TreeMap<String,CallStatistics>(statements));
+	}
+
+	@Override
+	public String [] getOperationSummaries() {
+		return summaries(getOperations());
+	}
+
+	@Override
+	public String [] getStatementSummaries() {
+		return summaries(getStatements());
+	}
+
+	@Override
+	public long getTotalStatementCount() {
+		long count = 0;
+		for (CallStatistics statistics : statements.values())
+			count += statistics.getCallCount();
+		return count;
+	}
+
+	@Override
+	public long getOperationCallCount(String operation) {
+		final CallStatistics statistics = operations.get(operation);
+		return (statistics != null) ? statistics.getCallCount() : 0;
+	}
+
+	/** Forgets all counters. Calls running concurrently may be counted in the discarded ones. */
+	@Override
+	public void reset() {
+		operations.clear();
+		statements.clear();
+	}
+
+
+	/** Concurrent first executions of new shapes can exceed the maximum slightly. */
+	private String shapeKey(String statement)	{
+		final String shape = shape(statement);
+		return (statements.size() < maxStatementShapes || statements.containsKey(shape)) ? shape : OTHER_STATEMENTS;
+	}
+
+	private CallStatistics statistics(ConcurrentMap<String,CallStatistics> map, String key)	{
+		CallStatistics statistics = map.get(key);
+		if (statistics == null)	{
+			statistics = new CallStatistics();
+			final CallStatistics concurrent = map.putIfAbsent(key, statistics);
+			if (concurrent != null)
+				statistics = concurrent;
+		}
+		return statistics;
+	}
+
+	private String [] summaries(Map<String,CallStatistics> map)	{
+		final List<String> summaries = new ArrayList<String>(map.size());
+		for (Map.Entry<String,CallStatistics> entry : map.entrySet())
+			summaries.add(entry.getKey()+": "+entry.getValue());
+		return summaries.toArray(new String[summaries.size()]);
+	}
+
+}
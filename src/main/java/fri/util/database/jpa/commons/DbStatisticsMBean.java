@@ -0,0 +1,23 @@
+package fri.util.database.jpa.commons;
+
+/**
+ * JMX management interface of <code>DbStatistics</code>.
+ */
+public interface DbStatisticsMBean
+{
+	/** @return one line per DAO operation, with its name and counters. */
+	String [] getOperationSummaries();
+
+	/** @return one line per statement shape, with its text and counters. */
+	String [] getStatementSummaries();
+
+	/** @return the number of session calls of all statement shapes. */
+	long getTotalStatementCount();
+
+	/** @return the call count of given DAO operation, 0 when never called. */
+	long getOperationCallCount(String operation);
+
+	/** Forgets all counters. */
+	void reset();
+
+}
@@ -0,0 +1,31 @@
+package fri.util.database.jpa.commons;
+
+/**
+ * Optionally implemented by <code>DbSession</code> implementations that hold entity instances,
+ * like a persistence context. DAOs call <code>evict()</code> for instances whose rows
+ * they deleted by <code>executeUpdate()</code>, so that the session does not write them again,
+ * or <code>clear()</code> when they do not know these instances.
+ * Decorators call <code>contains()</code> to find out whether the session writes an instance on flush.
+ */
+public interface EvictingDbSession extends DbSession
+{
+	/**
+	 * Lets the session forget given entity, without writing or deleting it.
+	 * Does nothing when the session does not hold it.
+	 * @param entity the instance to forget.
+	 */
+	void evict(Object entity);
+
+	/**
+	 * Lets the session forget all entities it holds, without writing or deleting them.
+	 * Entities read before are detached then. Call <code>flush()</code> before to keep pending changes.
+	 */
+	void clear();
+
+	/**
+	 * @param entity the instance to look for.
+	 * @return true when the session holds given instance, and thus writes its changes on flush.
+	 */
+	boolean contains(Object entity);
+
+}
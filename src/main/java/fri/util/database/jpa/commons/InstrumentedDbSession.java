@@ -0,0 +1,212 @@
+package fri.util.database.jpa.commons;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * <code>DbSession</code> decorator that measures every call into <code>DbStatistics</code>,
+ * per statement shape, and counts it for the <code>DbOperation</code> of the calling thread, if any.
+ * Returned rows are counted for queries and <code>get()</code>, not for updates,
+ * because <code>executeUpdate()</code> does not return the number of affected rows.
+ * Calls that throw an exception are counted as failures, with their latency.
+ */
+public class InstrumentedDbSession implements PreparingDbSession, EvictingDbSession, LimitingDbSession
+{
+	private final DbSession delegate;
+	private final DbStatistics statistics;
+
+	/**
+	 * @param delegate the session that performs all database work.
+	 * @param statistics receives the measurements, can be shared by many sessions.
+	 */
+	public InstrumentedDbSession(DbSession delegate, DbStatistics statistics) {
+		if (delegate == null || statistics == null)
+			throw new IllegalArgumentException("Need a session to delegate to and statistics!");
+
+		this.delegate = delegate;
+		this.statistics = statistics;
+	}
+
+	@Override
+	public Object get(Class<?> entityClass, Serializable id) {
+		final long start = System.nanoTime();
+		final String shape = "get "+entityClass.getSimpleName();
+		final Object entity;
+		try	{
+			entity = delegate.get(entityClass, id);
+		}
+		catch (RuntimeException e)	{
+			throw failed(shape, start, e);
+		}
+		executed(shape, start, entity != null ? 1 : 0);
+		return entity;
+	}
+
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters) {
+		final long start = System.nanoTime();
+		final List<?> result;
+		try	{
+			result = delegate.queryList(queryText, parameters);
+		}
+		catch (RuntimeException e)	{
+			throw failed(queryText, start, e);
+		}
+		executed(queryText, start, result.size());
+		return result;
+	}
+
+	/** Passes the limit to the delegate when it is a <code>LimitingDbSession</code>, else cuts its results. */
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters, int maximumResults) {
+		final long start = System.nanoTime();
+		List<?> result;
+		try	{
+			result = (delegate instanceof LimitingDbSession)
+				? ((LimitingDbSession) delegate).queryList(queryText, parameters, maximumResults)
+				: delegate.queryList(queryText, parameters);
+		}
+		catch (RuntimeException e)	{
+			throw failed(queryText, start, e);
+		}
+		if (result.size() > maximumResults)
+			result = result.subList(0, maximumResults);
+		executed(queryText, start, result.size());
+		return result;
+	}
+
+	@Override
+	public int queryCount(String queryText, Object[] parameters) {
+		final long start = System.nanoTime();
+		final int count;
+		try	{
+			count = delegate.queryCount(queryText, parameters);
+		}
+		catch (RuntimeException e)	{
+			throw failed(queryText, start, e);
+		}
+		executed(queryText, start, 1);
+		return count;
+	}
+
+	@Override
+	public Object save(Object node) {
+		final long start = System.nanoTime();
+		final String shape = "save "+node.getClass().getSimpleName();
+		final Object saved;
+		try	{
+			saved = delegate.save(node);
+		}
+		catch (RuntimeException e)	{
+			throw failed(shape, start, e);
+		}
+		executed(shape, start, 0);
+		return saved;
+	}
+
+	@Override
+	public void refresh(Object node) {
+		final long start = System.nanoTime();
+		final String shape = "refresh "+node.getClass().getSimpleName();
+		try	{
+			delegate.refresh(node);
+		}
+		catch (RuntimeException e)	{
+			throw failed(shape, start, e);
+		}
+		executed(shape, start, 1);
+	}
+
+	@Override
+	public void delete(Object node) {
+		final long start = System.nanoTime();
+		final String shape = "delete "+node.getClass().getSimpleName();
+		try	{
+			delegate.delete(node);
+		}
+		catch (RuntimeException e)	{
+			throw failed(shape, start, e);
+		}
+		executed(shape, start, 0);
+	}
+
+	@Override
+	public void executeUpdate(String statement, Object[] parameters) {
+		final long start = System.nanoTime();
+		try	{
+			delegate.executeUpdate(statement, parameters);
+		}
+		catch (RuntimeException e)	{
+			throw failed(statement, start, e);
+		}
+		executed(statement, start, 0);
+	}
+
+	@Override
+	public void flush() {
+		final long start = System.nanoTime();
+		try	{
+			delegate.flush();
+		}
+		catch (RuntimeException e)	{
+			throw failed("flush", start, e);
+		}
+		executed("flush", start, 0);
+	}
+
+	/** Passes given statement to the delegate when it is a <code>PreparingDbSession</code>, without measuring. */
+	@Override
+	public void prepare(String queryText) {
+		if (delegate instanceof PreparingDbSession)
+			((PreparingDbSession) delegate).prepare(queryText);
+	}
+
+	/** Passes given entity to the delegate when it is an <code>EvictingDbSession</code>, without measuring. */
+	@Override
+	public void evict(Object entity) {
+		if (delegate instanceof EvictingDbSession)
+			((EvictingDbSession) delegate).evict(entity);
+	}
+
+	/** Clears the delegate when it is an <code>EvictingDbSession</code>, without measuring. */
+	@Override
+	public void clear() {
+		if (delegate instanceof EvictingDbSession)
+			((EvictingDbSession) delegate).clear();
+	}
+
+	/** @return false when the delegate is not an <code>EvictingDbSession</code>, else what it returns. */
+	@Override
+	public boolean contains(Object entity) {
+		return (delegate instanceof EvictingDbSession) && ((EvictingDbSession) delegate).contains(entity);
+	}
+
+	public DbStatistics getStatistics()	{
+		return statistics;
+	}
+
+	/** @return the wrapped session. */
+	public DbSession getDelegate()	{
+		return delegate;
+	}
+
+
+	private void executed(String shape, long start, long rows)	{
+		statistics.recordStatement(shape, System.nanoTime() - start, rows);
+
+		final DbOperation operation = DbOperation.current();
+		if (operation != null)
+			operation.executed(rows);
+	}
+
+	private RuntimeException failed(String shape, long start, RuntimeException e)	{
+		statistics.recordFailedStatement(shape, System.nanoTime() - start);
+
+		final DbOperation operation = DbOperation.current();
+		if (operation != null)
+			operation.executed(0);
+		
+		return e;
+	}
+
+}
@@ -0,0 +1,20 @@
+package fri.util.database.jpa.commons;
+
+import java.util.List;
+
+/**
+ * Optionally implemented by <code>DbSession</code> implementations that can limit the number of rows a query reads.
+ * DAOs call it where they work in chunks and need only the first results of a query, like bulk purges.
+ */
+public interface LimitingDbSession extends DbSession
+{
+	/**
+	 * Executes a query and returns at most given number of results.
+	 * @param queryText the JPQL text for the query.
+	 * @param parameters the positional parameters for "?" place-holders in query text.
+	 * @param maximumResults the maximum number of results to read, must be positive.
+	 * @return the first results of the query.
+	 */
+	List<?> queryList(String queryText, Object [] parameters, int maximumResults);
+
+}
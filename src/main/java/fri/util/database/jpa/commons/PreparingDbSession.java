@@ -0,0 +1,18 @@
+package fri.util.database.jpa.commons;
+
+/**
+ * Optionally implemented by <code>DbSession</code> implementations that can prepare statements
+ * for repeated execution, e.g. by translating or parsing their text just once.
+ * DAOs call <code>prepare()</code> once for every statement they register,
+ * and then pass the identical text to the query and update methods.
+ */
+public interface PreparingDbSession extends DbSession
+{
+	/**
+	 * Prepares given statement for repeated execution by <code>queryList()</code>,
+	 * <code>queryCount()</code> or <code>executeUpdate()</code> with the same text.
+	 * @param queryText the JPQL text of the statement, with numbered positional parameters.
+	 */
+	void prepare(String queryText);
+	
+}
@@ -0,0 +1,226 @@
+package fri.util.database.jpa.commons;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <code>DbSession</code> that sends the reads of read-only DAO operations to a replica session,
+ * and everything else to the primary session. The operation of the calling thread is the
+ * outermost <code>DbOperation</code>, which <code>InstrumentedTreeDao</code> begins for every DAO call,
+ * and for calls of the views and change iterators it returns. Reads outside of any operation go to the primary,
+ * thus a DAO that is not wrapped reads everything from the primary.
+ * <pre>
+ *  RoutingDbSession session = new RoutingDbSession(primarySession, replicaSession, true);
+ *  TreeDao&lt;NestedSetsTreeNode&gt; dao = InstrumentedTreeDao.instrument(
+ *      new NestedSetsTreeDao(NestedSetsTreePojo.class, session),
+ *      null);
+ * </pre>
+ * A replica lags behind the primary, thus reads following a write could miss it.
+ * With <code>pinAfterWrite</code>, the first write pins all further reads of this session to the primary,
+ * so that a session used for one request or transaction reads its own writes.
+ * <p/>
+ * Entities read from the replica are not managed by the primary session. Sessions that merge
+ * on <code>save()</code> accept them, and <code>refresh()</code> goes to the session holding them,
+ * but nested-sets DAOs then refresh nodes passed to write operations from the lagging replica.
+ * Call <code>pin()</code> before reading nodes that will be written.
+ * Not thread-safe, like the sessions it wraps.
+ */
+public class RoutingDbSession implements PreparingDbSession, EvictingDbSession, LimitingDbSession
+{
+	/** The names of the read-only methods of <code>TreeDao</code> and <code>TemporalTreeDao</code>, and of their views and change iterators. */
+	public static final Set<String> READ_ONLY_OPERATIONS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(new String [] {
+			"isPersistent",
+			"find",
+			"isRoot",
+			"size",
+			"getRoots",
+			"getTree",
+			"getTreeCacheable",
+			"findSubTree",
+			"findDirectChildren",
+			"isLeaf",
+			"getChildCount",
+			"getChildren",
+			"getRoot",
+			"getParent",
+			"getPath",
+			"getLevel",
+			"isEqualToOrChildOf",
+			"isChildOf",
+			"findRemoved",
+			"getAllRoots",
+			"getFullTreeCacheable",
+			"findValidDirectChildren",
+			"asOf",
+			"getChanges",
+		})));
+
+	private final DbSession primary;
+	private final DbSession replica;
+	private final boolean pinAfterWrite;
+	private final Set<String> readOnlyOperations;
+	private boolean pinned;
+
+	/** Routes the reads of <code>READ_ONLY_OPERATIONS</code> to replica, until the first write. */
+	public RoutingDbSession(DbSession primary, DbSession replica) {
+		this(primary, replica, true);
+	}
+
+	/** Routes the reads of <code>READ_ONLY_OPERATIONS</code> to replica. */
+	public RoutingDbSession(DbSession primary, DbSession replica, boolean pinAfterWrite) {
+		this(primary, replica, pinAfterWrite, READ_ONLY_OPERATIONS);
+	}
+
+	/**
+	 * @param primary the session for writes and for reads of all other operations.
+	 * @param replica the session for reads of read-only operations.
+	 * @param pinAfterWrite when true, all reads go to primary after the first write.
+	 * @param readOnlyOperations the names of the operations whose reads go to replica.
+	 */
+	public RoutingDbSession(DbSession primary, DbSession replica, boolean pinAfterWrite, Set<String> readOnlyOperations) {
+		if (primary == null || replica == null || readOnlyOperations == null)
+			throw new IllegalArgumentException("Need primary and replica sessions, and read-only operation names!");
+
+		this.primary = primary;
+		this.replica = replica;
+		this.pinAfterWrite = pinAfterWrite;
+		this.readOnlyOperations = readOnlyOperations;
+	}
+
+	@Override
+	public Object get(Class<?> entityClass, Serializable id) {
+		return readSession().get(entityClass, id);
+	}
+
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters) {
+		return readSession().queryList(queryText, parameters);
+	}
+
+	/** Passes the limit to the reading session when it is a <code>LimitingDbSession</code>, else cuts its results. */
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters, int maximumResults) {
+		final DbSession readSession = readSession();
+		if (readSession instanceof LimitingDbSession)
+			return ((LimitingDbSession) readSession).queryList(queryText, parameters, maximumResults);
+		final List<?> result = readSession.queryList(queryText, parameters);
+		return (result.size() > maximumResults) ? result.subList(0, maximumResults) : result;
+	}
+
+	@Override
+	public int queryCount(String queryText, Object[] parameters) {
+		return readSession().queryCount(queryText, parameters);
+	}
+
+	@Override
+	public Object save(Object node) {
+		return writeSession().save(node);
+	}
+
+	/** Refreshes from the session holding given entity, else from the session that reads for the current operation. */
+	@Override
+	public void refresh(Object node) {
+		if (holds(primary, node))
+			primary.refresh(node);
+		else if (holds(replica, node))
+			replica.refresh(node);
+		else
+			readSession().refresh(node);
+	}
+
+	@Override
+	public void delete(Object node) {
+		writeSession().delete(node);
+	}
+
+	@Override
+	public void executeUpdate(String statement, Object[] parameters) {
+		writeSession().executeUpdate(statement, parameters);
+	}
+
+	/** Flushes the primary session, the replica is not written. */
+	@Override
+	public void flush() {
+		primary.flush();
+	}
+
+	/** Passes given statement to both sessions, where they are a <code>PreparingDbSession</code>. */
+	@Override
+	public void prepare(String queryText) {
+		if (primary instanceof PreparingDbSession)
+			((PreparingDbSession) primary).prepare(queryText);
+		if (replica instanceof PreparingDbSession)
+			((PreparingDbSession) replica).prepare(queryText);
+	}
+
+	/** Passes given entity to both sessions, where they are an <code>EvictingDbSession</code>. */
+	@Override
+	public void evict(Object entity) {
+		if (primary instanceof EvictingDbSession)
+			((EvictingDbSession) primary).evict(entity);
+		if (replica instanceof EvictingDbSession)
+			((EvictingDbSession) replica).evict(entity);
+	}
+
+	/** Clears both sessions, where they are an <code>EvictingDbSession</code>. */
+	@Override
+	public void clear() {
+		if (primary instanceof EvictingDbSession)
+			((EvictingDbSession) primary).clear();
+		if (replica instanceof EvictingDbSession)
+			((EvictingDbSession) replica).clear();
+	}
+
+	/** @return true when the primary session, which does all writes, is an <code>EvictingDbSession</code> holding given entity. */
+	@Override
+	public boolean contains(Object entity) {
+		return holds(primary, entity);
+	}
+
+	/** Sends all further reads to primary. */
+	public void pin()	{
+		pinned = true;
+	}
+
+	/** Lets reads of read-only operations go to replica again, e.g. when the replica caught up. */
+	public void unpin()	{
+		pinned = false;
+	}
+
+	/** @return true when all reads go to primary. */
+	public boolean isPinned()	{
+		return pinned;
+	}
+
+	public DbSession getPrimary()	{
+		return primary;
+	}
+
+	public DbSession getReplica()	{
+		return replica;
+	}
+
+
+	private DbSession readSession()	{
+		if (pinned)
+			return primary;
+
+		final DbOperation operation = DbOperation.current();
+		return (operation != null && readOnlyOperations.contains(operation.getName())) ? replica : primary;
+	}
+
+	private boolean holds(DbSession session, Object entity)	{
+		return (session instanceof EvictingDbSession) && ((EvictingDbSession) session).contains(entity);
+	}
+
+	private DbSession writeSession()	{
+		if (pinAfterWrite)
+			pinned = true;
+		return primary;
+	}
+
+}
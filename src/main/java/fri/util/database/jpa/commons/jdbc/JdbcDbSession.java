@@ -0,0 +1,551 @@
+package fri.util.database.jpa.commons.jdbc;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import fri.util.database.jpa.commons.EvictingDbSession;
+import fri.util.database.jpa.commons.LimitingDbSession;
+
+/**
+ * <code>DbSession</code> implementation on plain JDBC, without ORM.
+ * Translates the JPQL of the DAOs to SQL by <code>JdbcMappings</code>,
+ * reuses prepared statements, and executes consecutive inserts into the same table as JDBC batch.
+ * <p/>
+ * Like a JPA persistence context, the session holds one instance per database row,
+ * and queries return that instance without overwriting its state.
+ * Unlike JPA, there is no merge: <code>save()</code> inserts instances the session does not hold,
+ * and updates the columns of held instances that changed since read or written. Changes of held instances
+ * that were not passed to <code>save()</code> are written on <code>flush()</code>, not before queries.
+ * Like JPA, <code>executeUpdate()</code> does not change held instances, but as only changed columns
+ * are written, saving a held instance does not overwrite the columns a bulk statement changed.
+ * <p/>
+ * The session works on one connection, with auto-commit off, until <code>commit()</code>
+ * or <code>rollback()</code> followed by <code>close()</code>. Not thread-safe.
+ */
+public class JdbcDbSession implements EvictingDbSession, LimitingDbSession
+{
+	/** The default maximum number of inserts per JDBC batch. */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	private final DataSource dataSource;
+	private final JdbcMappings mappings;
+	private final int batchSize;
+	private Connection connection;
+	private final Map<String,PreparedStatement> preparedStatements = new HashMap<String,PreparedStatement>();
+	private final Map<List<Object>,Object> entities = new HashMap<List<Object>,Object>();	// key = mapping and id values
+	private final Map<Object,Object[]> snapshots = new IdentityHashMap<Object,Object[]>();	// column values as last read or written
+	private PreparedStatement pendingInsert;
+	private int pendingInsertCount;
+
+	public JdbcDbSession(DataSource dataSource, JdbcMappings mappings) {
+		this(dataSource, mappings, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param dataSource provides the connection of this session.
+	 * @param mappings the mappings of all entities the DAOs use.
+	 * @param batchSize the maximum number of inserts sent in one JDBC batch.
+	 */
+	public JdbcDbSession(DataSource dataSource, JdbcMappings mappings, int batchSize) {
+		if (dataSource == null || mappings == null)
+			throw new IllegalArgumentException("Need a data source and entity mappings!");
+
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive: "+batchSize);
+
+		this.dataSource = dataSource;
+		this.mappings = mappings;
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public Object get(Class<?> entityClass, Serializable id) {
+		if (id == null)
+			return null;
+
+		final JdbcMapping mapping = mappings.getMapping(entityClass);
+		final List<Object> key = entityKey(mapping, new Object [] { id });
+		final Object entity = entities.get(key);
+		if (entity != null)
+			return entity;
+
+		final Object [] row = selectRow(mapping, new Object [] { id });
+		return (row != null) ? toEntity(mapping, row, 0) : null;
+	}
+
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters) {
+		return queryList(queryText, parameters, 0);
+	}
+
+	/** Limits the rows of the prepared statement, zero means no limit. */
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters, int maximumResults) {
+		final JdbcStatement statement = mappings.translate(queryText);
+		final List<Object[]> rows;
+		try	{
+			final PreparedStatement preparedStatement = prepare(statement.sql);
+			bind(preparedStatement, statement, parameters);
+			preparedStatement.setMaxRows(maximumResults);
+			try	{
+				rows = readRows(preparedStatement.executeQuery(), statement.getColumnCount());
+			}
+			finally	{
+				if (maximumResults > 0)
+					preparedStatement.setMaxRows(0);	// the statement is reused
+			}
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Query failed: "+statement.sql, e);
+		}
+
+		final List<Object> result = new ArrayList<Object>(rows.size());
+		for (Object [] row : rows)
+			result.add(toResult(statement, row));
+		return result;
+	}
+
+	@Override
+	public int queryCount(String queryText, Object[] parameters) {
+		final List<?> result = queryList(queryText, parameters);
+		return ((Number) result.get(0)).intValue();
+	}
+
+	/**
+	 * Inserts given entity when this session does not hold it, else updates its changed columns.
+	 * An instance that is not held, but has the key of a held one, is copied into the held one.
+	 * @return the instance held by this session.
+	 */
+	@Override
+	public Object save(Object node) {
+		final JdbcMapping mapping = mappings.getMapping(node.getClass());
+		if (snapshots.containsKey(node))	{
+			updateIfChanged(mapping, node);
+			return node;
+		}
+
+		final Object [] keyValues = keyValues(mapping, node);
+		final Object held = (keyValues != null) ? entities.get(entityKey(mapping, keyValues)) : null;
+		if (held != null)	{
+			for (JdbcMapping.Property property : mapping.getProperties())
+				property.set(held, property.get(node));
+			updateIfChanged(mapping, held);
+			return held;
+		}
+
+		insert(mapping, node);
+		return node;
+	}
+
+	/** Re-reads the columns of given entity, discarding its changes. */
+	@Override
+	public void refresh(Object node) {
+		final JdbcMapping mapping = mappings.getMapping(node.getClass());
+		final Object [] snapshot = snapshots.get(node);
+		final Object [] keyValues = (snapshot != null) ? idValues(mapping, snapshot) : keyValues(mapping, node);
+		final Object [] row = (keyValues != null) ? selectRow(mapping, keyValues) : null;
+		if (row == null)
+			throw new IllegalArgumentException("Entity to refresh does not exist: "+node);
+
+		setProperties(mapping, node, row, 0);
+		snapshots.put(node, row);
+	}
+
+	@Override
+	public void delete(Object node) {
+		final JdbcMapping mapping = mappings.getMapping(node.getClass());
+		final Object [] snapshot = snapshots.remove(node);
+		final Object [] keyValues = (snapshot != null) ? idValues(mapping, snapshot) : keyValues(mapping, node);
+		if (keyValues == null)
+			throw new IllegalArgumentException("Entity to delete is not persistent: "+node);
+
+		final Object held = entities.remove(entityKey(mapping, keyValues));
+		if (held != null && held != node)
+			snapshots.remove(held);
+
+		final StringBuilder sql = new StringBuilder("delete from "+mapping.getTableName());
+		appendKeyCondition(mapping, sql);
+		execute(sql.toString(), keyValues);
+	}
+
+	@Override
+	public void executeUpdate(String statement, Object[] parameters) {
+		final JdbcStatement translated = mappings.translate(statement);
+		try	{
+			final PreparedStatement preparedStatement = prepare(translated.sql);
+			bind(preparedStatement, translated, parameters);
+			preparedStatement.executeUpdate();
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Update failed: "+translated.sql, e);
+		}
+	}
+
+	/** Forgets given entity, so that its changes are not written, and queries read a new instance for its row. */
+	@Override
+	public void evict(Object entity) {
+		final Object [] snapshot = snapshots.remove(entity);
+		if (snapshot != null)	{
+			final JdbcMapping mapping = mappings.getMapping(entity.getClass());
+			entities.remove(entityKey(mapping, idValues(mapping, snapshot)));
+		}
+	}
+
+	/** Forgets all entities, so that their changes are not written. Pending inserts are still executed. */
+	@Override
+	public void clear() {
+		snapshots.clear();
+		entities.clear();
+	}
+
+	@Override
+	public boolean contains(Object entity) {
+		return snapshots.containsKey(entity);
+	}
+
+	/** Sends pending inserts and writes changed columns of all held entities. */
+	@Override
+	public void flush() {
+		executePendingInserts();
+		for (Map.Entry<Object,Object[]> entry : new ArrayList<Map.Entry<Object,Object[]>>(snapshots.entrySet()))
+			updateIfChanged(mappings.getMapping(entry.getKey().getClass()), entry.getKey());
+	}
+
+	/** Flushes and commits the transaction. */
+	public void commit()	{
+		flush();
+		try	{
+			connection().commit();
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Commit failed", e);
+		}
+	}
+
+	/** Rolls back the transaction and forgets all held entities, as their state is unknown now. */
+	public void rollback()	{
+		pendingInsert = null;
+		pendingInsertCount = 0;
+		entities.clear();
+		snapshots.clear();
+		try	{
+			connection().rollback();
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Rollback failed", e);
+		}
+	}
+
+	/** Closes statements and connection. Does not commit. */
+	public void close()	{
+		entities.clear();
+		snapshots.clear();
+		pendingInsert = null;
+		try	{
+			for (PreparedStatement preparedStatement : preparedStatements.values())
+				preparedStatement.close();
+			preparedStatements.clear();
+
+			if (connection != null)
+				connection.close();
+			connection = null;
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Close failed", e);
+		}
+	}
+
+
+	private void insert(JdbcMapping mapping, Object entity)	{
+		final boolean databaseGeneratedId = (mapping.isGeneratedId() && mapping.getSingleIdProperty().get(entity) == null);
+
+		final List<JdbcMapping.Property> properties = databaseGeneratedId
+				? mapping.getProperties().subList(1, mapping.getProperties().size())
+				: mapping.getProperties();
+		final StringBuilder sql = new StringBuilder("insert into "+mapping.getTableName()+" (");
+		for (int i = 0; i < properties.size(); i++)
+			sql.append(i > 0 ? ", " : "").append(properties.get(i).column);
+		sql.append(") values (");
+		for (int i = 0; i < properties.size(); i++)
+			sql.append(i > 0 ? ", ?" : "?");
+		sql.append(")");
+
+		final Object [] values = columnValues(mapping, entity);
+		final Object [] insertedValues = databaseGeneratedId ? Arrays.copyOfRange(values, 1, values.length) : values;
+		try	{
+			if (databaseGeneratedId)	{
+				final PreparedStatement preparedStatement = prepare(sql.toString(), true);
+				bind(preparedStatement, insertedValues);
+				preparedStatement.executeUpdate();
+				final ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
+				try	{
+					generatedKeys.next();
+					mapping.getSingleIdProperty().set(entity, generatedKeys.getObject(1));
+				}
+				finally	{
+					generatedKeys.close();
+				}
+			}
+			else	{
+				final PreparedStatement preparedStatement = preparedStatements.get(sql.toString());
+				if (preparedStatement == null || preparedStatement != pendingInsert)
+					executePendingInserts();
+
+				pendingInsert = prepare(sql.toString(), false);
+				bind(pendingInsert, insertedValues);
+				pendingInsert.addBatch();
+				pendingInsertCount++;
+				if (pendingInsertCount >= batchSize)
+					executePendingInserts();
+			}
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Insert failed: "+sql, e);
+		}
+
+		final Object [] snapshot = values.clone();	// as inserted, but with generated id
+		if (databaseGeneratedId)
+			snapshot[0] = mapping.getSingleIdProperty().get(entity);
+		entities.put(entityKey(mapping, idValues(mapping, snapshot)), entity);
+		snapshots.put(entity, snapshot);
+
+		updateIfChanged(mapping, entity);	// a reference to itself was inserted as null
+	}
+
+	private void updateIfChanged(JdbcMapping mapping, Object entity)	{
+		final Object [] snapshot = snapshots.get(entity);
+		final Object [] values = columnValues(mapping, entity);
+		if (Arrays.equals(snapshot, values))
+			return;
+
+		final List<JdbcMapping.Property> properties = mapping.getProperties();
+		final int idCount = mapping.getIdProperties().size();
+		final StringBuilder sql = new StringBuilder("update "+mapping.getTableName()+" set ");
+		final List<Object> parameters = new ArrayList<Object>();
+		for (int i = idCount; i < properties.size(); i++)	{
+			if (equal(snapshot[i], values[i]))
+				continue;	// could have been changed by a bulk statement meanwhile
+			
+			sql.append(parameters.size() > 0 ? ", " : "").append(properties.get(i).column).append(" = ?");
+			parameters.add(values[i]);
+		}
+		
+		if (parameters.size() > 0)	{
+			appendKeyCondition(mapping, sql);
+			parameters.addAll(Arrays.asList(idValues(mapping, snapshot)));	// the key as it is in database
+			execute(sql.toString(), parameters.toArray());
+		}
+		snapshots.put(entity, values);
+	}
+
+	private static boolean equal(Object value1, Object value2)	{
+		return (value1 == null) ? (value2 == null) : value1.equals(value2);
+	}
+
+	private Object [] selectRow(JdbcMapping mapping, Object [] keyValues)	{
+		final StringBuilder sql = new StringBuilder("select ");
+		final List<JdbcMapping.Property> properties = mapping.getProperties();
+		for (int i = 0; i < properties.size(); i++)
+			sql.append(i > 0 ? ", " : "").append(properties.get(i).column);
+		sql.append(" from "+mapping.getTableName());
+		appendKeyCondition(mapping, sql);
+
+		try	{
+			final PreparedStatement preparedStatement = prepare(sql.toString());
+			bind(preparedStatement, keyValues);
+			final List<Object[]> rows = readRows(preparedStatement.executeQuery(), properties.size());
+			return (rows.size() > 0) ? rows.get(0) : null;
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Query failed: "+sql, e);
+		}
+	}
+
+	private void execute(String sql, Object [] parameters)	{
+		try	{
+			final PreparedStatement preparedStatement = prepare(sql);
+			bind(preparedStatement, parameters);
+			preparedStatement.executeUpdate();
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Statement failed: "+sql, e);
+		}
+	}
+
+	private void executePendingInserts()	{
+		if (pendingInsert == null)
+			return;
+
+		final PreparedStatement batch = pendingInsert;
+		pendingInsert = null;
+		pendingInsertCount = 0;
+		try	{
+			batch.executeBatch();
+		}
+		catch (SQLException e)	{
+			throw new RuntimeException("Batch insert failed", e);
+		}
+	}
+
+	/** @return the prepared statement for given SQL, after sending pending inserts. */
+	private PreparedStatement prepare(String sql) throws SQLException	{
+		executePendingInserts();
+		return prepare(sql, false);
+	}
+
+	private PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException	{
+		final String key = returnGeneratedKeys ? "keys:"+sql : sql;
+		PreparedStatement preparedStatement = preparedStatements.get(key);
+		if (preparedStatement == null)	{
+			preparedStatement = returnGeneratedKeys
+					? connection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+					: connection().prepareStatement(sql);
+			preparedStatements.put(key, preparedStatement);
+		}
+		return preparedStatement;
+	}
+
+	private Connection connection() throws SQLException	{
+		if (connection == null)	{
+			connection = dataSource.getConnection();
+			connection.setAutoCommit(false);
+		}
+		return connection;
+	}
+
+	private void bind(PreparedStatement preparedStatement, JdbcStatement statement, Object [] parameters) throws SQLException	{
+		final Object [] values = new Object[statement.parameterNumbers.length];
+		for (int i = 0; i < values.length; i++)
+			values[i] = parameters[statement.parameterNumbers[i] - 1];
+		bind(preparedStatement, values);
+	}
+
+	private void bind(PreparedStatement preparedStatement, Object [] values) throws SQLException	{
+		for (int i = 0; i < values.length; i++)	{
+			Object value = values[i];
+			final JdbcMapping mapping = (value != null) ? mappings.findMapping(value.getClass()) : null;
+			if (mapping != null)	// entity parameter
+				value = mapping.getSingleIdProperty().get(value);
+			else if (value instanceof Date && value instanceof Timestamp == false)
+				value = new Timestamp(((Date) value).getTime());
+
+			preparedStatement.setObject(i + 1, value);
+		}
+	}
+
+	private List<Object[]> readRows(ResultSet resultSet, int columnCount) throws SQLException	{
+		final List<Object[]> rows = new ArrayList<Object[]>();
+		try	{
+			while (resultSet.next())	{
+				final Object [] row = new Object[columnCount];
+				for (int i = 0; i < columnCount; i++)
+					row[i] = resultSet.getObject(i + 1);
+				rows.add(row);
+			}
+		}
+		finally	{
+			resultSet.close();
+		}
+		return rows;
+	}
+
+	private Object toResult(JdbcStatement statement, Object [] row)	{
+		final Object [] items = new Object[statement.resultItems.size()];
+		int column = 0;
+		for (int i = 0; i < items.length; i++)	{
+			final JdbcStatement.ResultItem item = statement.resultItems.get(i);
+			if (item.type == JdbcStatement.ResultType.ENTITY)
+				items[i] = toEntity(item.mapping, row, column);
+			else if (item.type == JdbcStatement.ResultType.REFERENCE)
+				items[i] = get(item.mapping.getEntityClass(), (Serializable) row[column]);
+			else
+				items[i] = row[column];
+			column += item.columnCount;
+		}
+		return (items.length == 1) ? items[0] : items;
+	}
+
+	/** @return the held instance for given row, or a new instance holding the row's values. */
+	private Object toEntity(JdbcMapping mapping, Object [] row, int start)	{
+		final int columnCount = mapping.getProperties().size();
+		final Object [] values = (start == 0 && row.length == columnCount) ? row : Arrays.copyOfRange(row, start, start + columnCount);
+		final List<Object> key = entityKey(mapping, idValues(mapping, values));
+		Object entity = entities.get(key);
+		if (entity != null)
+			return entity;
+
+		entity = mapping.newInstance();
+		entities.put(key, entity);	// before resolving references, they could point to this entity
+		snapshots.put(entity, values);
+		setProperties(mapping, entity, values, 0);
+		return entity;
+	}
+
+	private void setProperties(JdbcMapping mapping, Object entity, Object [] values, int start)	{
+		final List<JdbcMapping.Property> properties = mapping.getProperties();
+		for (int i = 0; i < properties.size(); i++)	{
+			final JdbcMapping.Property property = properties.get(i);
+			final Object value = values[start + i];
+			if (property.targetClass != null)
+				property.set(entity, get(property.targetClass, (Serializable) value));
+			else
+				property.set(entity, value);
+		}
+	}
+
+	/** @return the column values of given entity, references as id of the referenced entity. */
+	private Object [] columnValues(JdbcMapping mapping, Object entity)	{
+		final List<JdbcMapping.Property> properties = mapping.getProperties();
+		final Object [] values = new Object[properties.size()];
+		for (int i = 0; i < values.length; i++)	{
+			final JdbcMapping.Property property = properties.get(i);
+			final Object value = property.get(entity);
+			values[i] = (property.targetClass != null && value != null)
+					? mappings.getMapping(value.getClass()).getSingleIdProperty().get(value)
+					: value;
+		}
+		return values;
+	}
+
+	/** @return the id column values of given entity, null when any of them is null. */
+	private Object [] keyValues(JdbcMapping mapping, Object entity)	{
+		final Object [] keyValues = idValues(mapping, columnValues(mapping, entity));
+		for (Object keyValue : keyValues)
+			if (keyValue == null)
+				return null;
+		return keyValues;
+	}
+
+	private Object [] idValues(JdbcMapping mapping, Object [] columnValues)	{
+		return Arrays.copyOf(columnValues, mapping.getIdProperties().size());
+	}
+
+	private List<Object> entityKey(JdbcMapping mapping, Object [] keyValues)	{
+		final List<Object> key = new ArrayList<Object>(keyValues.length + 1);
+		key.add(mapping);
+		for (Object keyValue : keyValues)
+			key.add(keyValue);
+		return key;
+	}
+
+	private void appendKeyCondition(JdbcMapping mapping, StringBuilder sql)	{
+		final List<JdbcMapping.Property> idProperties = mapping.getIdProperties();
+		for (int i = 0; i < idProperties.size(); i++)
+			sql.append(i > 0 ? " and " : " where ").append(idProperties.get(i).column).append(" = ?");
+	}
+
+}
@@ -0,0 +1,221 @@
+package fri.util.database.jpa.commons.jdbc;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how an entity class maps to a database table, for <code>JdbcDbSession</code>.
+ * Properties are accessed by field, like JPA does with annotated fields.
+ * References to other entities are stored as the referenced entity's id.
+ * <pre>
+ * new JdbcMapping(TreePathImpl.class)
+ *     .idReference("ancestor", "ANCESTOR", ClosureTableTreePojo.class)
+ *     .idReference("descendant", "DESCENDANT", ClosureTableTreePojo.class)
+ *     .column("depth")
+ *     .column("orderIndex");
+ * </pre>
+ * Ids declared by <code>generatedId()</code> are read from the database's generated keys on insert,
+ * other ids must be set by the application.
+ */
+public class JdbcMapping
+{
+	private final Class<?> entityClass;
+	private final String entityName;
+	private final String tableName;
+	private final List<Property> properties = new ArrayList<Property>();
+	private final List<Property> idProperties = new ArrayList<Property>();
+	private boolean generatedId;
+
+	/** Maps given class to a table named like the class's simple name, which is also the JPQL entity name. */
+	public JdbcMapping(Class<?> entityClass) {
+		this(entityClass, entityClass.getSimpleName(), entityClass.getSimpleName());
+	}
+
+	/**
+	 * @param entityClass the class of the entity, needs a no-argument constructor.
+	 * @param entityName the name of the entity in JPQL statements.
+	 * @param tableName the name of the database table.
+	 */
+	public JdbcMapping(Class<?> entityClass, String entityName, String tableName) {
+		if (entityClass == null || entityName == null || tableName == null)
+			throw new IllegalArgumentException("Need entity class, entity name and table name!");
+
+		this.entityClass = entityClass;
+		this.entityName = entityName;
+		this.tableName = tableName;
+	}
+
+	/** Adds the primary key property, stored in a column with the same name. */
+	public JdbcMapping id(String property)	{
+		return id(property, property);
+	}
+
+	/** Adds the primary key property, stored in given column. */
+	public JdbcMapping id(String property, String column)	{
+		return add(property, column, null, true);
+	}
+
+	/** Adds the primary key property, stored in given column, whose value is generated by the database on insert. */
+	public JdbcMapping generatedId(String property, String column)	{
+		generatedId = true;
+		return id(property, column);
+	}
+
+	/** Adds a reference to another entity that is part of the primary key, stored in given column. */
+	public JdbcMapping idReference(String property, String column, Class<?> targetClass)	{
+		return add(property, column, targetClass, true);
+	}
+
+	/** Adds a value property, stored in a column with the same name. */
+	public JdbcMapping column(String property)	{
+		return column(property, property);
+	}
+
+	/** Adds a value property, stored in given column. */
+	public JdbcMapping column(String property, String column)	{
+		return add(property, column, null, false);
+	}
+
+	/** Adds a reference to another entity, stored in given column. */
+	public JdbcMapping reference(String property, String column, Class<?> targetClass)	{
+		if (targetClass == null)
+			throw new IllegalArgumentException("Need the class of the referenced entity: "+property);
+		return add(property, column, targetClass, false);
+	}
+
+	public Class<?> getEntityClass() {
+		return entityClass;
+	}
+
+	public String getEntityName() {
+		return entityName;
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+
+	/** @return all mapped properties, ids first, in the order of their columns in statements. */
+	List<Property> getProperties()	{
+		return Collections.unmodifiableList(properties);
+	}
+
+	List<Property> getIdProperties()	{
+		return Collections.unmodifiableList(idProperties);
+	}
+
+	/** @return the property with given name, throws IllegalArgumentException when not mapped. */
+	Property getProperty(String name)	{
+		for (Property property : properties)
+			if (property.name.equals(name))
+				return property;
+		throw new IllegalArgumentException("Property "+name+" is not mapped in entity "+entityName);
+	}
+
+	/** @return the single id property, throws IllegalStateException when the key is composite. */
+	Property getSingleIdProperty()	{
+		if (idProperties.size() != 1)
+			throw new IllegalStateException("Entity "+entityName+" has no single id, it has "+idProperties.size()+" id properties");
+		return idProperties.get(0);
+	}
+
+	/** @return true when the id is a single value column that gets generated by the database on insert. */
+	boolean isGeneratedId()	{
+		return generatedId && idProperties.size() == 1;
+	}
+
+	Object newInstance()	{
+		try	{
+			final Constructor<?> constructor = entityClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return constructor.newInstance();
+		}
+		catch (Exception e)	{
+			throw new IllegalStateException("Can not instantiate "+entityClass.getName()+", need a no-argument constructor", e);
+		}
+	}
+
+
+	private JdbcMapping add(String property, String column, Class<?> targetClass, boolean id)	{
+		final Property mapped = new Property(property, column, findField(property), targetClass);
+		if (id)	{
+			properties.add(idProperties.size(), mapped);	// keep ids first
+			idProperties.add(mapped);
+		}
+		else	{
+			properties.add(mapped);
+		}
+		return this;
+	}
+
+	private Field findField(String property)	{
+		for (Class<?> c = entityClass; c != null; c = c.getSuperclass())	{
+			try	{
+				final Field field = c.getDeclaredField(property);
+				field.setAccessible(true);
+				return field;
+			}
+			catch (NoSuchFieldException e)	{
+				// continue with super-class
+			}
+		}
+		throw new IllegalArgumentException("No field "+property+" in "+entityClass.getName());
+	}
+
+
+	/** A mapped property, accessed by field. */
+	static final class Property
+	{
+		final String name;
+		final String column;
+		final Field field;
+		final Class<?> targetClass;	// null for value properties
+
+		Property(String name, String column, Field field, Class<?> targetClass) {
+			this.name = name;
+			this.column = column;
+			this.field = field;
+			this.targetClass = targetClass;
+		}
+
+		Object get(Object entity)	{
+			try	{
+				return field.get(entity);
+			}
+			catch (IllegalAccessException e)	{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void set(Object entity, Object value)	{
+			final Class<?> type = field.getType();
+			if (value == null && type.isPrimitive())
+				return;	// keep the default value
+
+			if (type == String.class && value != null && value instanceof String == false)	{	// e.g. a generated key
+				value = value.toString();
+			}
+			else if (value instanceof Number && type != value.getClass())	{
+				final Number number = (Number) value;
+				if (type == int.class || type == Integer.class)
+					value = Integer.valueOf(number.intValue());
+				else if (type == long.class || type == Long.class)
+					value = Long.valueOf(number.longValue());
+				else if (type == short.class || type == Short.class)
+					value = Short.valueOf(number.shortValue());
+			}
+
+			try	{
+				field.set(entity, value);
+			}
+			catch (IllegalAccessException e)	{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package fri.util.database.jpa.commons.jdbc;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The entity mappings of a database, shared by all <code>JdbcDbSession</code> instances on it.
+ * Holds the SQL translations of JPQL statements, so that every statement is translated only once.
+ * Thread-safe.
+ */
+public class JdbcMappings
+{
+	private final Map<String,JdbcMapping> byEntityName = new HashMap<String,JdbcMapping>();
+	private final Map<Class<?>,JdbcMapping> byClass = new HashMap<Class<?>,JdbcMapping>();
+	private final ConcurrentMap<String,JdbcStatement> statements = new ConcurrentHashMap<String,JdbcStatement>();
+
+	public JdbcMappings(JdbcMapping... mappings) {
+		for (JdbcMapping mapping : mappings)	{
+			if (byEntityName.put(mapping.getEntityName(), mapping) != null)
+				throw new IllegalArgumentException("Entity "+mapping.getEntityName()+" is mapped twice!");
+			byClass.put(mapping.getEntityClass(), mapping);
+		}
+	}
+
+	/** @return the mapping of given entity class or one of its super-classes, null when none. */
+	public JdbcMapping findMapping(Class<?> entityClass)	{
+		for (Class<?> c = entityClass; c != null; c = c.getSuperclass())	{
+			final JdbcMapping mapping = byClass.get(c);
+			if (mapping != null)
+				return mapping;
+		}
+		return null;
+	}
+
+
+	/** @return the mapping of given class, throws IllegalArgumentException when not mapped. */
+	JdbcMapping getMapping(Class<?> entityClass)	{
+		final JdbcMapping mapping = findMapping(entityClass);
+		if (mapping == null)
+			throw new IllegalArgumentException("Class is not mapped: "+entityClass.getName());
+		return mapping;
+	}
+
+	/** @return the mapping of given JPQL entity name, null when none. */
+	JdbcMapping findMapping(String entityName)	{
+		return byEntityName.get(entityName);
+	}
+
+	/** @return the SQL translation of given JPQL statement. */
+	JdbcStatement translate(String jpql)	{
+		JdbcStatement statement = statements.get(jpql);
+		if (statement == null)	{
+			statement = new JdbcStatement(jpql, this);
+			final JdbcStatement concurrent = statements.putIfAbsent(jpql, statement);
+			if (concurrent != null)
+				statement = concurrent;
+		}
+		return statement;
+	}
+
+}
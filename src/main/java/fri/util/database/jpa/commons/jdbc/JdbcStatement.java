@@ -0,0 +1,296 @@
+package fri.util.database.jpa.commons.jdbc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SQL translation of a JPQL statement, restricted to what the tree DAOs use:
+ * entity names, identification variables, paths to mapped properties or to the id
+ * of a referenced entity, numbered positional parameters, and sub-queries.
+ * Entity names become table names, identification variables become their id column,
+ * except in the top-level SELECT clause, where they select all mapped columns.
+ */
+final class JdbcStatement
+{
+	enum ResultType
+	{
+		ENTITY,
+		REFERENCE,
+		SCALAR,
+	}
+
+	/** One item of the top-level SELECT clause. */
+	static final class ResultItem
+	{
+		final ResultType type;
+		final JdbcMapping mapping;	// the selected entity, or the referenced entity
+		final int columnCount;
+
+		ResultItem(ResultType type, JdbcMapping mapping, int columnCount) {
+			this.type = type;
+			this.mapping = mapping;
+			this.columnCount = columnCount;
+		}
+	}
+
+	private static final Pattern TOKEN = Pattern.compile(
+			"'(?:[^']|'')*'|\\?\\d*|[A-Za-z_$][A-Za-z_0-9$]*(?:\\.[A-Za-z_$][A-Za-z_0-9$]*)*|\\s+|.");
+
+	private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(new String [] {
+			"where", "set", "order", "group", "having", "join", "inner", "left", "outer", "on", "union", "as" }));
+
+	/** The SQL text, with "?" placeholders. */
+	final String sql;
+	/** The JPQL parameter number of each JDBC parameter position. */
+	final int [] parameterNumbers;
+	/** The items of the top-level SELECT clause, empty for UPDATE and DELETE. */
+	final List<ResultItem> resultItems;
+
+	private final String jpql;
+	private final JdbcMappings mappings;
+	private final List<String> tokens;
+	private final Map<String,JdbcMapping> aliases = new HashMap<String,JdbcMapping>();
+	private final Set<Integer> declarations = new HashSet<Integer>();
+	private final List<Integer> parameters = new ArrayList<Integer>();
+	private boolean isUpdate;
+	private boolean inSetClause;
+
+	JdbcStatement(String jpql, JdbcMappings mappings) {
+		this.jpql = jpql;
+		this.mappings = mappings;
+		this.tokens = tokenize(jpql);
+		findAliases();
+
+		final StringBuilder sqlText = new StringBuilder();
+		final List<ResultItem> items = new ArrayList<ResultItem>();
+		int i = next(0);
+		if (i < 0)
+			throw new IllegalArgumentException("Empty statement");
+
+		final String verb = tokens.get(i).toLowerCase();
+		isUpdate = verb.equals("update");
+		if (verb.equals("select"))	{
+			sqlText.append(tokens.get(i)).append(' ');
+			final int from = topLevelFrom(i + 1);
+			translateSelectClause(i + 1, from, sqlText, items);
+			sqlText.append(' ');
+			i = from;
+		}
+
+		int depth = 0;
+		for (; i < tokens.size(); i++)	{
+			final String token = tokens.get(i);
+			if (token.equals("("))
+				depth++;
+			else if (token.equals(")"))
+				depth--;
+			else if (isUpdate && depth == 0 && token.equalsIgnoreCase("set"))
+				inSetClause = true;
+			else if (depth == 0 && token.equalsIgnoreCase("where"))
+				inSetClause = false;
+
+			translateToken(i, sqlText);
+		}
+
+		this.sql = sqlText.toString();
+		this.parameterNumbers = new int[parameters.size()];
+		for (int p = 0; p < parameterNumbers.length; p++)
+			parameterNumbers[p] = parameters.get(p);
+		this.resultItems = Collections.unmodifiableList(items);
+	}
+
+	/** @return the number of columns selected by the top-level SELECT clause. */
+	int getColumnCount()	{
+		int count = 0;
+		for (ResultItem item : resultItems)
+			count += item.columnCount;
+		return count;
+	}
+
+
+	private void findAliases()	{
+		for (int i = 0; i < tokens.size(); i++)	{
+			final JdbcMapping mapping = mappings.findMapping(tokens.get(i));
+			if (mapping == null)
+				continue;
+
+			int j = next(i + 1);
+			if (j >= 0 && tokens.get(j).equalsIgnoreCase("as"))
+				j = next(j + 1);
+
+			if (j >= 0 && isIdentifier(tokens.get(j)) && tokens.get(j).indexOf('.') < 0 && KEYWORDS.contains(tokens.get(j).toLowerCase()) == false)	{
+				final JdbcMapping previous = aliases.put(tokens.get(j), mapping);
+				if (previous != null && previous != mapping)
+					throw new IllegalArgumentException("Identification variable "+tokens.get(j)+" is used for different entities: "+jpql);
+				declarations.add(j);
+			}
+		}
+	}
+
+	private void translateSelectClause(int start, int end, StringBuilder sqlText, List<ResultItem> items)	{
+		int itemStart = start;
+		int depth = 0;
+		for (int i = start; i <= end; i++)	{
+			final String token = (i < end) ? tokens.get(i) : ",";
+			if (token.equals("("))
+				depth++;
+			else if (token.equals(")"))
+				depth--;
+			else if (depth == 0 && token.equals(","))	{
+				if (items.size() > 0)
+					sqlText.append(", ");
+				items.add(translateSelectItem(itemStart, i, sqlText));
+				itemStart = i + 1;
+			}
+		}
+	}
+
+	private ResultItem translateSelectItem(int start, int end, StringBuilder sqlText)	{
+		int first = next(start);
+		if (first >= 0 && first < end && tokens.get(first).equalsIgnoreCase("distinct"))	{
+			sqlText.append(tokens.get(first)).append(' ');
+			first = next(first + 1);
+		}
+		final boolean isSingleToken = (first >= 0 && first < end && (next(first + 1) < 0 || next(first + 1) >= end));
+		final String token = isSingleToken ? tokens.get(first) : null;
+
+		if (token != null && aliases.containsKey(token))	{	// select whole entity
+			final JdbcMapping mapping = aliases.get(token);
+			final List<JdbcMapping.Property> properties = mapping.getProperties();
+			for (int i = 0; i < properties.size(); i++)
+				sqlText.append(i > 0 ? ", " : "").append(token).append('.').append(properties.get(i).column);
+			return new ResultItem(ResultType.ENTITY, mapping, properties.size());
+		}
+
+		if (token != null && isPath(token))	{
+			final JdbcMapping.Property property = resolvePath(token);
+			sqlText.append(qualifiedColumn(token, property));
+			return (property.targetClass != null)
+				? new ResultItem(ResultType.REFERENCE, mappings.getMapping(property.targetClass), 1)
+				: new ResultItem(ResultType.SCALAR, null, 1);
+		}
+
+		for (int i = first; i >= 0 && i < end; i++)
+			translateToken(i, sqlText);
+		return new ResultItem(ResultType.SCALAR, null, 1);
+	}
+
+	private void translateToken(int i, StringBuilder sqlText)	{
+		final String token = tokens.get(i);
+		final JdbcMapping entity = mappings.findMapping(token);
+
+		if (token.startsWith("?"))	{
+			parameters.add(token.length() > 1 ? Integer.valueOf(token.substring(1)) : Integer.valueOf(parameters.size() + 1));
+			sqlText.append('?');
+		}
+		else if (entity != null)	{
+			sqlText.append(entity.getTableName());
+		}
+		else if (declarations.contains(i))	{
+			sqlText.append(token);
+		}
+		else if (isPath(token))	{
+			if (inSetClause && isFollowedBy(i, "="))	// assigned columns must not be qualified
+				sqlText.append(resolvePath(token).column);
+			else
+				sqlText.append(qualifiedColumn(token, resolvePath(token)));
+		}
+		else if (aliases.containsKey(token))	{
+			if (isCountArgument(i))
+				sqlText.append('*');
+			else
+				sqlText.append(token).append('.').append(aliases.get(token).getSingleIdProperty().column);
+		}
+		else	{
+			sqlText.append(token);
+		}
+	}
+
+	/** @return true when given token is a path starting with an identification variable. */
+	private boolean isPath(String token)	{
+		final int dot = token.indexOf('.');
+		return dot > 0 && aliases.containsKey(token.substring(0, dot));
+	}
+
+	private JdbcMapping.Property resolvePath(String path)	{
+		final String [] parts = path.split("\\.");
+		final JdbcMapping.Property property = aliases.get(parts[0]).getProperty(parts[1]);
+		if (parts.length == 2)
+			return property;
+
+		if (parts.length == 3 && property.targetClass != null &&
+				mappings.getMapping(property.targetClass).getSingleIdProperty().name.equals(parts[2]))
+			return property;	// the id of a referenced entity is the foreign key column
+
+		throw new IllegalArgumentException("Path navigation is not supported: "+path+" in "+jpql);
+	}
+
+	private String qualifiedColumn(String path, JdbcMapping.Property property)	{
+		return path.substring(0, path.indexOf('.'))+"."+property.column;
+	}
+
+	private boolean isCountArgument(int i)	{
+		final int previous = previous(i - 1);
+		final int beforePrevious = (previous > 0) ? previous(previous - 1) : -1;
+		return previous >= 0 && tokens.get(previous).equals("(") &&
+				beforePrevious >= 0 && tokens.get(beforePrevious).equalsIgnoreCase("count") &&
+				isFollowedBy(i, ")");
+	}
+
+	private boolean isFollowedBy(int i, String token)	{
+		final int next = next(i + 1);
+		return next >= 0 && tokens.get(next).equals(token);
+	}
+
+	private int topLevelFrom(int start)	{
+		int depth = 0;
+		for (int i = start; i < tokens.size(); i++)	{
+			final String token = tokens.get(i);
+			if (token.equals("("))
+				depth++;
+			else if (token.equals(")"))
+				depth--;
+			else if (depth == 0 && token.equalsIgnoreCase("from"))
+				return i;
+		}
+		throw new IllegalArgumentException("No FROM clause in "+jpql);
+	}
+
+	/** @return the index of the next token that is not whitespace, starting at given index, or -1. */
+	private int next(int start)	{
+		for (int i = start; i < tokens.size(); i++)
+			if (tokens.get(i).trim().length() > 0)
+				return i;
+		return -1;
+	}
+
+	/** @return the index of the previous token that is not whitespace, starting at given index, or -1. */
+	private int previous(int start)	{
+		for (int i = start; i >= 0; i--)
+			if (tokens.get(i).trim().length() > 0)
+				return i;
+		return -1;
+	}
+
+	private static boolean isIdentifier(String token)	{
+		final char first = token.charAt(0);
+		return Character.isLetter(first) || first == '_' || first == '$';
+	}
+
+	private static List<String> tokenize(String jpql)	{
+		final List<String> tokens = new ArrayList<String>();
+		final Matcher matcher = TOKEN.matcher(jpql);
+		while (matcher.find())
+			tokens.add(matcher.group());
+		return tokens;
+	}
+
+}
@@ -1,13 +1,20 @@
 package fri.util.database.jpa.tree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
 import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.LimitingDbSession;
+import fri.util.database.jpa.commons.PreparingDbSession;
+import fri.util.database.jpa.tree.uniqueconstraints.AbstractUniqueTreeConstraintImpl;
+import fri.util.database.jpa.tree.uniqueconstraints.IndexedUniqueTreeConstraint;
 import fri.util.database.jpa.tree.uniqueconstraints.UniqueConstraintViolationException;
 import fri.util.database.jpa.tree.uniqueconstraints.UniqueTreeConstraint;
+import fri.util.database.jpa.tree.uniqueconstraints.UniqueTreeConstraintListener;
 import fri.util.database.jpa.tree.util.QueryBuilderUtil;
+import fri.util.database.jpa.tree.util.StatementRegistry;
 import fri.util.database.jpa.tree.util.TreeActionLocation;
 
 /**
@@ -27,8 +34,13 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 	
 	private final String nodeEntityName;
 	
+	/** Stands for the entity name in statement shapes passed to <code>findQuery()</code>. */
+	protected static final String ENTITY = "$entity";
+	
+	private final StatementRegistry statements = new StatementRegistry();
 	private UniqueTreeConstraint<N> uniqueTreeConstraint;
 	private boolean checkUniqueConstraintOnUpdate = false;
+	private boolean deferUniqueConstraintChecks = false;
 	private CopiedNodeRenamer<N> copiedNodeRenamer;
 
 
@@ -73,6 +85,35 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 		this.checkUniqueConstraintOnUpdate = checkUniqueConstraintOnUpdate;
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public void setDeferUniqueConstraintChecks(boolean deferUniqueConstraintChecks)	{
+		this.deferUniqueConstraintChecks = deferUniqueConstraintChecks;
+	}
+
+	/** {@inheritDoc} */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void checkDeferredUniqueConstraint() throws UniqueConstraintViolationException	{
+		if (getUniqueTreeConstraint() instanceof AbstractUniqueTreeConstraintImpl<?> == false)
+			return;	// nothing was deferred
+		
+		final AbstractUniqueTreeConstraintImpl<N> constraint = (AbstractUniqueTreeConstraintImpl<N>) getUniqueTreeConstraint();
+		constraint.setContext(session, this, nodeEntityName(), pathEntityName());
+		
+		if (constraint.checkDeferredUniqueConstraint() == false)	{
+			final N violating = constraint.getViolatingCandidate();
+			throw new UniqueConstraintViolationException("Following entity is not unique: "+violating, (N) violating.clone());
+		}
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public void discardDeferredUniqueConstraintChecks()	{
+		if (getUniqueTreeConstraint() instanceof AbstractUniqueTreeConstraintImpl<?>)
+			((AbstractUniqueTreeConstraintImpl<?>) getUniqueTreeConstraint()).discardDeferredUniqueConstraint();
+	}
+
 	/**
 	 * @return true when unique constraint should be checked on UPDATE,
 	 * 		default false, as callers should check explicitly this by
@@ -104,6 +145,7 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 	 * @param modificationLocation insert/update location information, implementation-specific.
 	 * @throws UniqueConstraintViolationException when constraint would be violated.
 	 */
+	@SuppressWarnings("unchecked")
 	protected void checkUniqueness(List<N> nodes, TreeActionLocation<N> location) throws UniqueConstraintViolationException	{
 		if (getUniqueTreeConstraint() == null)
 			return;	// nothing to check
@@ -112,17 +154,49 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 		
 		getUniqueTreeConstraint().setContext(session, this, nodeEntityName(), pathEntityName());
 		
-		if (getUniqueTreeConstraint().checkUniqueConstraint(nodes, location) == false)	{
+		final boolean unique;
+		if (deferUniqueConstraintChecks &&
+				location.actionType != TreeActionLocation.ActionType.UPDATE &&
+				getUniqueTreeConstraint() instanceof AbstractUniqueTreeConstraintImpl<?>)
+			unique = ((AbstractUniqueTreeConstraintImpl<N>) getUniqueTreeConstraint()).deferUniqueConstraint(nodes, location);
+		else
+			unique = getUniqueTreeConstraint().checkUniqueConstraint(nodes, location);
+		
+		if (unique == false)	{
 			// there is no chance to recover the old state of the updated entity from database,
 			// as the check-query triggered a flush() and updates are already in transaction
 			
 			String message = "One of following entities is not unique: "+nodes;	// create error message BEFORE refresh
+			final N violating = getViolatingCandidate();
 			@SuppressWarnings("unchecked")
-			N clone = (N) nodes.get(0).clone();	// assume the first node is invalid
+			N clone = (N) (violating != null ? violating : nodes.get(0)).clone();	// else assume the first node is invalid
 			throw new UniqueConstraintViolationException(message, clone);
 		}
 	}
 	
+	/** Reports an update that was not checked by the unique constraint to a listening constraint implementation. */
+	@SuppressWarnings("unchecked")
+	protected final void fireNodeUpdated(N node)	{
+		if (getUniqueTreeConstraint() instanceof UniqueTreeConstraintListener<?>)
+			((UniqueTreeConstraintListener<N>) getUniqueTreeConstraint()).nodeUpdated(node);
+	}
+	
+	/** Reports recovered nodes in the tree of given root, or in any tree when null, to a listening constraint implementation. */
+	@SuppressWarnings("unchecked")
+	protected final void fireTreeChanged(N root)	{
+		if (getUniqueTreeConstraint() instanceof UniqueTreeConstraintListener<?>)
+			((UniqueTreeConstraintListener<N>) getUniqueTreeConstraint()).treeChanged(root);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private N getViolatingCandidate()	{
+		if (getUniqueTreeConstraint() instanceof AbstractUniqueTreeConstraintImpl<?>)
+			return ((AbstractUniqueTreeConstraintImpl<N>) getUniqueTreeConstraint()).getViolatingCandidate();
+		if (getUniqueTreeConstraint() instanceof IndexedUniqueTreeConstraint<?>)
+			return ((IndexedUniqueTreeConstraint<N>) getUniqueTreeConstraint()).getViolatingCandidate();
+		return null;
+	}
+	
 	
 	/** {@inheritDoc} */
 	@Override
@@ -148,6 +222,95 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 	}
 	
 	
+	// statement registry
+	
+	/** @return the statement texts built by this DAO instance. */
+	protected final StatementRegistry getStatementRegistry()	{
+		return statements;
+	}
+	
+	/**
+	 * Registers given statement text under given key, to build it only once per DAO instance.
+	 * The text gets prepared when the session is a <code>PreparingDbSession</code>.
+	 * @param key identifies the statement, including everything its text depends on.
+	 * @return the registered text.
+	 */
+	protected final String registerStatement(Object key, String statement)	{
+		final String registered = statements.register(key, statement);
+		if (registered == statement && session instanceof PreparingDbSession)
+			((PreparingDbSession) session).prepare(registered);
+		return registered;
+	}
+	
+	/**
+	 * Builds a query from given shape, the conditions appended by <code>beforeFindQuery()</code>, and given tail.
+	 * The complete query is registered per distinct condition text, thus temporal queries get reused and prepared, too.
+	 * Conditions must pass their values as parameters, else every call would register another query.
+	 * @param shape constant JPQL text ending with a WHERE condition, with ENTITY standing for given entity name.
+	 * @param tail constant JPQL text to append after the temporal conditions, with ENTITY standing for given entity name, can be null.
+	 * @param parameters the parameters of shape, receives the temporal parameters.
+	 */
+	protected final String findQuery(String shape, String tail, String entityName, String tableAlias, List<Object> parameters, TemporalQueryContext context)	{
+		return findQuery(shape, tail, entityName, tableAlias, parameters, context, true);
+	}
+	
+	/**
+	 * Builds a part of a query like <code>findQuery()</code>, registered but not prepared.
+	 * The complete query must be registered by <code>registerStatement()</code>.
+	 */
+	protected final String findQueryPart(String shape, String tail, String entityName, String tableAlias, List<Object> parameters, TemporalQueryContext context)	{
+		return findQuery(shape, tail, entityName, tableAlias, parameters, context, false);
+	}
+	
+	private String findQuery(String shape, String tail, String entityName, String tableAlias, List<Object> parameters, TemporalQueryContext context, boolean complete)	{
+		final StringBuilder conditions = new StringBuilder();
+		beforeFindQuery(tableAlias, conditions, parameters, true, context);
+		final List<Object> key = Arrays.asList(new Object [] { shape, tail, entityName, conditions.toString() });
+		final String registered = statements.get(key);
+		if (registered != null)
+			return registered;
+		
+		final StringBuilder queryText = new StringBuilder(shape.replace(ENTITY, entityName));
+		queryText.append(conditions);
+		if (tail != null)
+			queryText.append(tail.replace(ENTITY, entityName));
+		
+		return complete ? registerStatement(key, queryText.toString()) : statements.register(key, queryText.toString());
+	}
+	
+	/**
+	 * Does nothing.
+	 * Override to append temporal conditions. Called from all querying methods.
+	 * This method is expected to first append a WHERE when whereWasAppended is false,
+	 * or an AND when whereWasAppended is true.
+	 * @param context the immutable temporal context of the calling method.
+	 */
+	@SuppressWarnings("unused")
+	protected void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended, TemporalQueryContext context)	{
+	}
+	
+	/**
+	 * Builds a complete statement without temporal conditions once per DAO instance.
+	 * @param shape constant JPQL text with ENTITY standing for given entity name.
+	 */
+	protected final String statement(String shape, String entityName)	{
+		final List<Object> key = Arrays.asList(new Object [] { shape, entityName, Boolean.TRUE });
+		final String registered = statements.get(key);
+		return (registered != null) ? registered : registerStatement(key, shape.replace(ENTITY, entityName));
+	}
+	
+	/**
+	 * Reads at most given number of query results, by the session when it is a <code>LimitingDbSession</code>,
+	 * else by cutting all results, for work that is done in chunks.
+	 */
+	protected final List<?> queryList(String queryText, Object [] parameters, int maximumResults)	{
+		if (session instanceof LimitingDbSession)
+			return ((LimitingDbSession) session).queryList(queryText, parameters, maximumResults);
+		final List<?> result = session.queryList(queryText, parameters);
+		return (result.size() > maximumResults) ? result.subList(0, maximumResults) : result;
+	}
+	
+	
 
 	/** Throws IllegalArgumentException when node is not persistent, because then it is not an UPDATE. */
 	protected void assertUpdate(N node)	{
@@ -186,15 +349,24 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 	
 	/**
 	 * Temporal extension. Shared code. Called when querying valid nodes.
+	 * Appends validity or invalidity conditions according to given context,
+	 * evaluated at the context's validity date when it has one.
 	 */
-	protected final void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended, boolean doNotApplyTemporalConditions, boolean invertTemporalConditions) {
-		if (invertTemporalConditions == true)	{
+	protected final void applyTemporalConditions(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended, TemporalQueryContext context) {
+		final Date validityDate = context.getValidityDate();
+		if (context.isRemoved())	{
 			queryText.append(whereWasAppended ? " and " : " where ");
-			appendInvalidityCondition(tableAlias, queryText, parameters);
+			if (validityDate == null)
+				appendInvalidityCondition(tableAlias, queryText, parameters);
+			else
+				appendInvalidityCondition(tableAlias, queryText, parameters, validityDate);
 		}
-		else if (doNotApplyTemporalConditions == false)	{
+		else if (context.isAll() == false)	{
 			queryText.append(whereWasAppended ? " and " : " where ");
-			appendValidityCondition(tableAlias, queryText, parameters);
+			if (validityDate == null)
+				appendValidityCondition(tableAlias, queryText, parameters);
+			else
+				appendValidityCondition(tableAlias, queryText, parameters, validityDate);
 		}
 	}
 	
@@ -212,7 +384,24 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 		if (getValidToPropertyName() == null)
 			throw new IllegalStateException("Please override appendValidityCondition when validToPropertyName is null!");
 		
-		QueryBuilderUtil.appendValidityConditions(tableAlias, getValidFromPropertyName(), validFrom(), getValidToPropertyName(), validTo(), queryText, parameters);
+		QueryBuilderUtil.appendValidityConditions(tableAlias, getValidFromPropertyName(), validFrom(), getValidToPropertyName(), validTo(), getValidToSentinel() == null, queryText, parameters);
+	}
+	
+	/**
+	 * Temporal extension. Called when querying nodes that were valid at a given date, see <code>TemporalTreeDao.asOf()</code>.
+	 * Appends the (temporal) validity check condition for given date to passed JPQL statement.
+	 * The appended text must NOT start or end with "AND".
+	 * Override this together with <code>appendValidityCondition(alias, queryText, parameters)</code>.
+	 * @param tableAlias the alias of the table containing the <i>validTo</i> property, without trailing dot, could be null.
+	 * @param queryText the pending JPQL query text looking for valid nodes.
+	 * @param parameters the positional arguments for the pending query.
+	 * @param validityDate the date at which found nodes must have been valid.
+	 */
+	protected void appendValidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date validityDate) {
+		if (getValidToPropertyName() == null)
+			throw new IllegalStateException("Please override appendValidityCondition when validToPropertyName is null!");
+		
+		QueryBuilderUtil.appendValidityConditions(tableAlias, getValidFromPropertyName(), validityDate, getValidToPropertyName(), validityDate, getValidToSentinel() == null, queryText, parameters);
 	}
 	
 	/**
@@ -225,12 +414,28 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 	 * @param parameters the positional arguments for the pending query.
 	 */
 	protected void appendInvalidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters) {
+		appendInvalidityCondition(tableAlias, queryText, parameters, validTo());
+	}
+	
+	/**
+	 * Temporal extension. Called when purging nodes that were removed at or before given date.
+	 * Appends the (temporal) invalidity check condition for given date to passed JPQL statement.
+	 * The appended text must NOT start with "and".
+	 * Override this to use other validity checks than valid-to property.
+	 * @param tableAlias the alias of the table containing the <i>validTo</i> property, without trailing dot, could be null.
+	 * @param queryText the pending JPQL query text looking for invalid nodes.
+	 * @param parameters the positional arguments for the pending query.
+	 * @param removedBefore the date at or before which found nodes must have been historicized.
+	 */
+	protected void appendInvalidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date removedBefore) {
 		if (getValidToPropertyName() == null)
 			throw new IllegalStateException("Please override appendInvalidityCondition when validToPropertyName is null!");
 		
 		final String validToPropertyName = buildAliasedPropertyName(tableAlias, getValidToPropertyName());
-		queryText.append(validToPropertyName+" is not null and "+validToPropertyName+" <= "+buildIndexedPlaceHolder(parameters));
-		parameters.add(validTo());
+		if (getValidToSentinel() == null)
+			queryText.append(validToPropertyName+" is not null and ");
+		queryText.append(validToPropertyName+" <= "+buildIndexedPlaceHolder(parameters));
+		parameters.add(removedBefore);
 	}
 
 	/** @return "tableAlias.propertyName" when alias is not null, else "propertyName". */
@@ -245,37 +450,71 @@ public abstract class AbstractTreeDao <N extends TreeNode> implements TreeDao<N>
 	
 	/**
 	 * Temporal extension. This is called when querying. Override for specific temporal queries.
-	 * @return by default <code>new Date()</code> which represents "now".
+	 * @return by default <code>TemporalReadScope.now()</code> which represents "now", or the instant pinned by a read scope.
 	 */
 	protected Date validFrom()	{
-		return new Date();
+		return TemporalReadScope.now();
 	}
 	
 	/**
 	 * Temporal extension. This is called when querying. Override for specific temporal queries.
-	 * @return by default <code>new Date()</code> which represents "now".
+	 * @return by default <code>TemporalReadScope.now()</code> which represents "now", or the instant pinned by a read scope.
 	 */
 	protected Date validTo()	{
-		return new Date();
+		return TemporalReadScope.now();
 	}
 
 	/**
 	 * Temporal extension. This is called when historicizing a node.
-	 * @return by default <code>new Date()</code> which represents "now".
+	 * @return by default <code>new Date()</code> which represents "now", also within a read scope.
 	 */
 	protected Date validToOnRemove()	{
 		return new Date();
 	}
+
+	/**
+	 * Temporal extension. This is called when inserting a node (or path) whose valid-from is null.
+	 * @return by default <code>new Date()</code> which represents "now", also within a read scope, null to leave valid-from empty.
+	 */
+	protected Date validFromOnInsert()	{
+		return new Date();
+	}
+	
+	/**
+	 * Temporal extension. Stamps the valid-from date of a node (or path) that is about to be inserted,
+	 * unless it has one or there is no valid-from property. This lets change feeds and time travel
+	 * know when the node came into existence. When a valid-to sentinel is set, an empty valid-to
+	 * is set to the sentinel.
+	 */
+	protected final void assignValidityOnInsert(Temporal entity)	{
+		if (getValidFromPropertyName() != null && entity.getValidFrom() == null)
+			entity.setValidFrom(validFromOnInsert());
+		
+		final Date validToSentinel = getValidToSentinel();
+		if (validToSentinel != null && getValidToPropertyName() != null && entity.getValidTo() == null)
+			entity.setValidTo(validToSentinel);
+	}
+	
+	/**
+	 * Temporal extension. The valid-to value of nodes (or paths) that are not historicized.
+	 * By default this is null, so current nodes have an empty valid-to, and validity conditions
+	 * contain an "is null or" that range indexes can not serve.
+	 * @return the far-future date that marks current nodes, or null when valid-to of current nodes is null.
+	 */
+	protected Date getValidToSentinel()	{
+		return null;
+	}
 	
 	/**
 	 * Temporal extension. This is called when deciding whether a node is valid at given date.
 	 * @return true when <code>node.validFrom</code> is null or before or equal to given date,
 	 * 		and <code>node.validTo</code> is null or after given date.
+	 * 		Compares milliseconds, because <code>java.sql.Timestamp</code> never equals a <code>Date</code>.
 	 */
 	public boolean isValid(Temporal node, Date validityDate)	{
 		return
-			(node.getValidFrom() == null || node.getValidFrom().before(validityDate) || node.getValidFrom().equals(validityDate)) &&
-			(node.getValidTo() == null || node.getValidTo().after(validityDate));
+			(node.getValidFrom() == null || node.getValidFrom().getTime() <= validityDate.getTime()) &&
+			(node.getValidTo() == null || node.getValidTo().getTime() > validityDate.getTime());
 	}
 
 	/** Temporal extension. Override this in temporal DAOs. Throws RuntimeException. */
@@ -0,0 +1,337 @@
+package fri.util.database.jpa.tree;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import fri.util.database.jpa.tree.util.LockWaitStatistics;
+
+/**
+ * Background housekeeping for a temporal DAO: periodically deletes nodes physically
+ * that have been historicized longer ago than a retention period.
+ * <p/>
+ * Each pass works one root at a time, in small batches that each run in their own
+ * transaction, pausing between batches. When a <code>LatencyProbe</code> reports
+ * foreground latency above a threshold, the pause is doubled (up to a maximum),
+ * else it is halved back towards the configured pause.
+ * <p/>
+ * The DAO's session must be usable from the background thread,
+ * binding it is the job of the <code>TransactionTemplate</code>.
+ * A failing background pass is reported to the <code>ErrorHandler</code>, or logged when there is none,
+ * and the next pass runs as scheduled.
+ *
+ * @param <N> the tree node type managed by the DAO.
+ */
+public class HistoryRetentionService <N extends TreeNode>
+{
+	/** Runs a unit of work in a transaction, with the DAO's session bound to the calling thread. */
+	public interface TransactionTemplate
+	{
+		/** @return the result of given work, after commit, or throws after rollback. */
+		<T> T execute(Callable<T> work) throws Exception;
+	}
+
+	/** Measures foreground latency, called after each batch. */
+	public interface LatencyProbe
+	{
+		/** @return the foreground latency observed since the previous call, in nanoseconds. */
+		long getLatencyNanos();
+	}
+
+	/** Receives progress notifications, called from the background thread. */
+	public interface ProgressListener
+	{
+		/** Called after each batch that deleted nodes. */
+		void batchRemoved(Serializable rootId, int removedCount, long passRemovedCount);
+
+		/** Called when a pass over all roots is done. */
+		void passFinished(long passRemovedCount, long passMillis);
+	}
+
+	/** Receives exceptions of background passes, called from the background thread. */
+	public interface ErrorHandler
+	{
+		/** Called when a background pass aborted with given exception. */
+		void passFailed(Exception e);
+	}
+
+	/** Default maximum number of nodes deleted in one transaction. */
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	/** Default milliseconds to pause between batches. */
+	public static final long DEFAULT_PAUSE_MILLIS = 50;
+
+	private final TemporalTreeDao<N> dao;
+	private final TransactionTemplate transactionTemplate;
+	private final long retentionMillis;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private long pauseMillis = DEFAULT_PAUSE_MILLIS;
+	private long maximumPauseMillis = 100 * DEFAULT_PAUSE_MILLIS;
+	private LatencyProbe latencyProbe;
+	private long latencyThresholdNanos;
+	private ProgressListener progressListener;
+	private ErrorHandler errorHandler;
+
+	private volatile long currentPauseMillis = DEFAULT_PAUSE_MILLIS;
+	private volatile boolean stopped;
+	private volatile Exception lastError;
+	private ScheduledExecutorService executor;
+
+	private final AtomicLong passes = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong removedNodes = new AtomicLong();
+	private final AtomicLong backOffs = new AtomicLong();
+
+	/**
+	 * @param dao the temporal DAO to purge history from.
+	 * @param transactionTemplate runs each batch in its own transaction.
+	 * @param retentionMillis the milliseconds historicized nodes are kept before they get deleted.
+	 */
+	public HistoryRetentionService(TemporalTreeDao<N> dao, TransactionTemplate transactionTemplate, long retentionMillis) {
+		if (dao == null || transactionTemplate == null)
+			throw new IllegalArgumentException("Need a DAO and a transaction template!");
+
+		if (retentionMillis < 0)
+			throw new IllegalArgumentException("Retention period must not be negative: "+retentionMillis);
+
+		this.dao = dao;
+		this.transactionTemplate = transactionTemplate;
+		this.retentionMillis = retentionMillis;
+	}
+
+	/** @param batchSize the maximum number of nodes deleted in one transaction, default is DEFAULT_BATCH_SIZE. */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Batch size must be positive: "+batchSize);
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param pauseMillis the milliseconds to pause between batches, default is DEFAULT_PAUSE_MILLIS.
+	 * @param maximumPauseMillis the upper limit for the pause when backing off.
+	 */
+	public void setPauseMillis(long pauseMillis, long maximumPauseMillis) {
+		if (pauseMillis < 0 || maximumPauseMillis < pauseMillis)
+			throw new IllegalArgumentException("Invalid pause milliseconds: "+pauseMillis+", maximum "+maximumPauseMillis);
+		this.pauseMillis = pauseMillis;
+		this.maximumPauseMillis = maximumPauseMillis;
+		this.currentPauseMillis = pauseMillis;
+	}
+
+	/**
+	 * @param latencyProbe measures foreground latency after each batch, null for no back-off.
+	 * @param latencyThresholdNanos the latency above which the pause between batches is doubled.
+	 */
+	public void setLatencyProbe(LatencyProbe latencyProbe, long latencyThresholdNanos) {
+		this.latencyProbe = latencyProbe;
+		this.latencyThresholdNanos = latencyThresholdNanos;
+	}
+
+	/** @param progressListener receives progress notifications, can be null. */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/** @param errorHandler receives exceptions of background passes, null to log them. */
+	public void setErrorHandler(ErrorHandler errorHandler) {
+		this.errorHandler = errorHandler;
+	}
+
+
+	/**
+	 * Starts periodic passes in a background daemon thread.
+	 * @param periodMillis the milliseconds between the end of a pass and the start of the next.
+	 */
+	public synchronized void start(long periodMillis) {
+		if (executor != null)
+			throw new IllegalStateException("Retention service is already running!");
+
+		stopped = false;
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				final Thread thread = new Thread(runnable, HistoryRetentionService.class.getSimpleName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try	{
+					runPass();
+				}
+				catch (InterruptedException e)	{	// stopped
+					Thread.currentThread().interrupt();
+				}
+				catch (Exception e)	{	// keep the schedule alive, try again next period
+					lastError = e;
+					passFailed(e);
+				}
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the background thread, waiting for a running batch to finish. */
+	public synchronized void stop() throws InterruptedException {
+		stopped = true;
+		if (executor != null)	{
+			executor.shutdownNow();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			executor = null;
+		}
+	}
+
+	/**
+	 * Purges all roots once, in the calling thread.
+	 * @return the number of nodes deleted.
+	 */
+	public long runPass() throws Exception {
+		final long start = System.currentTimeMillis();
+		final Date removedBefore = new Date(start - retentionMillis);
+
+		final List<Serializable> rootIds = transactionTemplate.execute(new Callable<List<Serializable>>() {
+			@Override
+			public List<Serializable> call() {
+				final List<Serializable> rootIds = new ArrayList<Serializable>();
+				for (N root : dao.getAllRoots())
+					rootIds.add(root.getId());
+				return rootIds;
+			}
+		});
+
+		long passRemovedCount = 0;
+		for (Serializable rootId : rootIds)	{
+			int removedCount;
+			do	{
+				if (stopped)
+					return passRemovedCount;
+
+				removedCount = removeBatch(rootId, removedBefore);
+				if (removedCount > 0)	{
+					passRemovedCount += removedCount;
+					batches.incrementAndGet();
+					removedNodes.addAndGet(removedCount);
+					if (progressListener != null)
+						progressListener.batchRemoved(rootId, removedCount, passRemovedCount);
+
+					pause();
+				}
+			}
+			while (removedCount > 0);
+		}
+
+		passes.incrementAndGet();
+		if (progressListener != null)
+			progressListener.passFinished(passRemovedCount, System.currentTimeMillis() - start);
+
+		return passRemovedCount;
+	}
+
+
+	/** @return the number of finished passes. */
+	public long getPasses() {
+		return passes.get();
+	}
+
+	/** @return the number of batches that deleted nodes. */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/** @return the number of nodes deleted by all passes. */
+	public long getRemovedNodes() {
+		return removedNodes.get();
+	}
+
+	/** @return how often the pause was increased because of foreground latency. */
+	public long getBackOffs() {
+		return backOffs.get();
+	}
+
+	/** @return the exception that made the latest failing background pass abort, or null. */
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	/** @return the current pause between batches, increased when backing off. */
+	public long getCurrentPauseMillis() {
+		return currentPauseMillis;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+
+				"[passes="+getPasses()+
+				", batches="+getBatches()+
+				", removedNodes="+getRemovedNodes()+
+				", backOffs="+getBackOffs()+
+				", currentPauseMillis="+getCurrentPauseMillis()+"]";
+	}
+
+
+	/**
+	 * Creates a probe that reports the average lock wait time of write-methods since the previous call,
+	 * for <code>ClosureTableTreeDao.getLockManager()</code> or <code>NestedSetsTreeDao.getLockStripes()</code>.
+	 */
+	public static LatencyProbe lockWaitProbe(final LockWaitStatistics lockManager) {
+		return new LatencyProbe() {
+			private long acquisitions = lockManager.getAcquisitions();
+			private long waitNanos = lockManager.getTotalWaitNanos();
+
+			@Override
+			public long getLatencyNanos() {
+				final long currentAcquisitions = lockManager.getAcquisitions();
+				final long currentWaitNanos = lockManager.getTotalWaitNanos();
+				final long count = currentAcquisitions - acquisitions;
+				final long nanos = currentWaitNanos - waitNanos;
+				acquisitions = currentAcquisitions;
+				waitNanos = currentWaitNanos;
+				return count > 0 ? nanos / count : 0;
+			}
+		};
+	}
+
+
+	private int removeBatch(final Serializable rootId, final Date removedBefore) throws Exception {
+		return transactionTemplate.execute(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				final N root = dao.find(rootId);
+				return (root == null) ? 0 : dao.removeHistoricizedTreePhysically(root, removedBefore, batchSize);
+			}
+		});
+	}
+
+	private void passFailed(Exception e)	{
+		final ErrorHandler handler = errorHandler;
+		if (handler != null)
+			handler.passFailed(e);
+		else
+			Logger.getLogger(HistoryRetentionService.class.getName()).log(Level.WARNING, "History retention pass failed", e);
+	}
+
+	private void pause() throws InterruptedException {
+		if (latencyProbe != null)	{
+			if (latencyProbe.getLatencyNanos() > latencyThresholdNanos)	{
+				currentPauseMillis = Math.min(Math.max(currentPauseMillis * 2, 1), maximumPauseMillis);
+				backOffs.incrementAndGet();
+			}
+			else	{
+				currentPauseMillis = Math.max(currentPauseMillis / 2, pauseMillis);
+			}
+		}
+		if (currentPauseMillis > 0)
+			Thread.sleep(currentPauseMillis);
+	}
+
+}
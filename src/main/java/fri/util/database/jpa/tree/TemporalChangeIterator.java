@@ -0,0 +1,83 @@
+package fri.util.database.jpa.tree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily reads the changes of a date range in consecutive time slices,
+ * so that only the changes of one slice are held in memory.
+ * Slices are read when iterating, thus the DAO's session must be open until iteration is done.
+ *
+ * @param <N> the tree node type managed by the DAO.
+ */
+public abstract class TemporalChangeIterator <N extends TreeNode> implements Iterator<TemporalTreeChange<N>>
+{
+	private final Comparator<TemporalTreeChange<N>> byDate = new Comparator<TemporalTreeChange<N>>()	{
+		@Override
+		public int compare(TemporalTreeChange<N> change1, TemporalTreeChange<N> change2) {
+			return change1.getDate().compareTo(change2.getDate());
+		}
+	};
+
+	private final long to;
+	private final long sliceMillis;
+	private long sliceStart;
+	private Iterator<TemporalTreeChange<N>> slice = Collections.<TemporalTreeChange<N>>emptyList().iterator();
+
+	/**
+	 * @param from changes after this date are read.
+	 * @param to changes at or before this date are read.
+	 * @param sliceMillis the length of the time slices read at once.
+	 */
+	protected TemporalChangeIterator(Date from, Date to, long sliceMillis)	{
+		if (from == null || to == null || from.after(to))
+			throw new IllegalArgumentException("Need a date range where from is not after to: "+from+" - "+to);
+
+		if (sliceMillis <= 0)
+			throw new IllegalArgumentException("Slice milliseconds must be positive: "+sliceMillis);
+
+		this.sliceStart = from.getTime();
+		this.to = to.getTime();
+		this.sliceMillis = sliceMillis;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (slice.hasNext() == false && sliceStart < to)	{
+			final long sliceEnd = Math.min(sliceStart + sliceMillis, to);
+			final List<TemporalTreeChange<N>> changes = new ArrayList<TemporalTreeChange<N>>();
+			readSlice(new Date(sliceStart), new Date(sliceEnd), changes);
+			Collections.sort(changes, byDate);
+			slice = changes.iterator();
+			sliceStart = sliceEnd;
+		}
+		return slice.hasNext();
+	}
+
+	@Override
+	public TemporalTreeChange<N> next() {
+		if (hasNext() == false)
+			throw new NoSuchElementException();
+		return slice.next();
+	}
+
+	/** Throws UnsupportedOperationException, changes are read-only. */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("Changes can not be removed!");
+	}
+
+	/**
+	 * Reads the changes that happened within given slice.
+	 * @param after changes after this date are to be read.
+	 * @param until changes at or before this date are to be read.
+	 * @param changes the list to add the changes of the slice to, in any order.
+	 */
+	protected abstract void readSlice(Date after, Date until, List<TemporalTreeChange<N>> changes);
+
+}
@@ -0,0 +1,98 @@
+package fri.util.database.jpa.tree;
+
+import java.util.Date;
+
+/**
+ * Immutable per-call description of how a DAO applies temporal conditions.
+ * DAOs pass this through their query methods instead of holding
+ * the temporal mode in fields, so that one DAO instance can serve
+ * concurrent callers without synchronization.
+ * Non-temporal DAOs ignore it.
+ */
+public final class TemporalQueryContext
+{
+	/** How temporal conditions are applied to queries. */
+	public enum Mode
+	{
+		/** Find valid nodes only. This is the default. */
+		VALID,
+		/** Find valid and historicized nodes. Removes are physical in this mode. */
+		ALL,
+		/** Find historicized nodes only. */
+		REMOVED,
+	}
+
+	/** Finds valid nodes only. */
+	public static final TemporalQueryContext VALID = new TemporalQueryContext(Mode.VALID, null, null, null);
+
+	/** Finds valid and historicized nodes, and removes physically. */
+	public static final TemporalQueryContext ALL = new TemporalQueryContext(Mode.ALL, null, null, null);
+
+	/** Finds historicized nodes only. */
+	public static final TemporalQueryContext REMOVED = new TemporalQueryContext(Mode.REMOVED, null, null, null);
+
+
+	private final Mode mode;
+	private final Date filterDate;
+	private final Date removeDate;
+	private final Date validityDate;
+
+	private TemporalQueryContext(Mode mode, Date filterDate, Date removeDate, Date validityDate)	{
+		assert mode != null;
+		this.mode = mode;
+		this.filterDate = filterDate;
+		this.removeDate = removeDate;
+		this.validityDate = validityDate;
+	}
+
+	/** @return the mode how temporal conditions are applied to queries. */
+	public Mode getMode()	{
+		return mode;
+	}
+
+	/** @return true when no temporal conditions are applied to queries. */
+	public boolean isAll()	{
+		return mode == Mode.ALL;
+	}
+
+	/** @return true when only historicized nodes are to be found. */
+	public boolean isRemoved()	{
+		return mode == Mode.REMOVED;
+	}
+
+	/** @return the date at which nodes must be valid when filtering children in memory, or null for no filtering. */
+	public Date getFilterDate()	{
+		return filterDate;
+	}
+
+	/** @return the date to historicize removed nodes with, or null when not yet determined. */
+	public Date getRemoveDate()	{
+		return removeDate;
+	}
+
+	/** @return the date at which queries evaluate validity, or null for the DAO's <code>validFrom()</code> and <code>validTo()</code>. */
+	public Date getValidityDate()	{
+		return validityDate;
+	}
+
+	/** @return a copy of this context that filters children in memory for validity at given date. */
+	public TemporalQueryContext withFilterDate(Date filterDate)	{
+		return new TemporalQueryContext(mode, filterDate, removeDate, validityDate);
+	}
+
+	/** @return a copy of this context that historicizes removed nodes with given date. */
+	public TemporalQueryContext withRemoveDate(Date removeDate)	{
+		return new TemporalQueryContext(mode, filterDate, removeDate, validityDate);
+	}
+
+	/** @return a copy of this context that evaluates validity in queries at given date. */
+	public TemporalQueryContext withValidityDate(Date validityDate)	{
+		return new TemporalQueryContext(mode, filterDate, removeDate, validityDate);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"[mode="+mode+", filterDate="+filterDate+", removeDate="+removeDate+", validityDate="+validityDate+"]";
+	}
+
+}
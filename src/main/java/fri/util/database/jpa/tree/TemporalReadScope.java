@@ -0,0 +1,94 @@
+package fri.util.database.jpa.tree;
+
+import java.util.Date;
+
+/**
+ * Pins one validity instant for all temporal queries of the calling thread,
+ * so that a group of DAO calls, e.g. for rendering a page, sees one consistent state,
+ * and query caches can key on the pinned instant. Use it like this:
+ * <pre>
+ *  TemporalReadScope scope = TemporalReadScope.open(1000);
+ *  try	{
+ *      ... read with any temporal DAO ...
+ *  }
+ *  finally	{
+ *      scope.close();
+ *  }
+ * </pre>
+ * The instant is rounded down to the given granularity, thus nodes added or removed
+ * within the last granularity period are not yet seen. Scopes opened within a scope
+ * share the outer instant.
+ * <p/>
+ * A scope is meant for reads. Removes and inserts stamp the current time, not the pinned instant,
+ * because a rounded instant could precede the validity of a node. Their effects are not seen
+ * by the scope, neither by unique constraint checks, thus do not write within a scope.
+ * Paths that an archiving closure-table DAO removed after the pinned instant have already
+ * left the paths table, <code>TemporalTreeDao.asOf()</code> reads them from the archive.
+ */
+public final class TemporalReadScope
+{
+	private static final ThreadLocal<TemporalReadScope> current = new ThreadLocal<TemporalReadScope>();
+
+	private final Date instant;
+	private final TemporalReadScope outer;
+
+	/** @return a scope with the current time pinned to the millisecond. */
+	public static TemporalReadScope open()	{
+		return open(1);
+	}
+
+	/**
+	 * @param granularityMillis the milliseconds to round the current time down to, e.g. 1000 for seconds.
+	 * @return a scope with the rounded current time pinned, or the instant of the enclosing scope.
+	 */
+	public static TemporalReadScope open(long granularityMillis)	{
+		if (granularityMillis <= 0)
+			throw new IllegalArgumentException("Granularity milliseconds must be positive: "+granularityMillis);
+
+		final TemporalReadScope outer = current.get();
+		final long millis = System.currentTimeMillis();
+		final Date instant = (outer != null) ? outer.instant : new Date(millis - millis % granularityMillis);
+		final TemporalReadScope scope = new TemporalReadScope(instant, outer);
+		current.set(scope);
+		return scope;
+	}
+
+	/** @return the scope opened last by the calling thread, or null when none is open. */
+	public static TemporalReadScope current()	{
+		return current.get();
+	}
+
+	/** @return the instant pinned by the calling thread's scope, or <code>new Date()</code> when none is open. */
+	public static Date now()	{
+		final TemporalReadScope scope = current.get();
+		return (scope != null) ? scope.getInstant() : new Date();
+	}
+
+
+	private TemporalReadScope(Date instant, TemporalReadScope outer)	{
+		this.instant = instant;
+		this.outer = outer;
+	}
+
+	/** @return the instant at which temporal queries within this scope evaluate validity. */
+	public Date getInstant()	{
+		return new Date(instant.getTime());
+	}
+
+	/** Ends this scope. Scopes must be closed in reverse order of opening, by the thread that opened them. */
+	public void close()	{
+		if (current.get() != this)
+			throw new IllegalStateException("Scope is not the innermost one of this thread: "+this);
+
+		if (outer == null)
+			current.remove();
+		else
+			current.set(outer);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"[instant="+instant+"]";
+	}
+
+}
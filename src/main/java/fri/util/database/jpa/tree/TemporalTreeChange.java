@@ -0,0 +1,61 @@
+package fri.util.database.jpa.tree;
+
+import java.util.Date;
+
+/**
+ * Immutable structural change of a temporal tree, as delivered by <code>TemporalTreeDao.getChanges()</code>.
+ *
+ * @param <N> the tree node type managed by the DAO.
+ */
+public final class TemporalTreeChange <N extends TreeNode>
+{
+	/** The kinds of structural changes. */
+	public enum Type
+	{
+		/** The node did not exist at the start of the range and exists at its end. */
+		ADDED,
+		/** The node existed at the start of the range and was historicized within it. */
+		REMOVED,
+		/** The node existed at the start of the range and got a new parent or position within it. */
+		MOVED,
+	}
+
+	private final Type type;
+	private final N node;
+	private final Date date;
+
+	/**
+	 * @param type the kind of change.
+	 * @param node the changed node.
+	 * @param date the date when the change happened.
+	 */
+	public TemporalTreeChange(Type type, N node, Date date)	{
+		if (type == null || node == null || date == null)
+			throw new IllegalArgumentException("Need type, node and date for a change: "+type+", "+node+", "+date);
+
+		this.type = type;
+		this.node = node;
+		this.date = new Date(date.getTime());
+	}
+
+	/** @return the kind of this change. */
+	public Type getType()	{
+		return type;
+	}
+
+	/** @return the changed node. */
+	public N getNode()	{
+		return node;
+	}
+
+	/** @return the date when this change happened. */
+	public Date getDate()	{
+		return new Date(date.getTime());
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName()+"[type="+type+", date="+date+", node="+node+"]";
+	}
+
+}
@@ -1,5 +1,7 @@
 package fri.util.database.jpa.tree;
 
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -19,6 +21,15 @@ import java.util.Map;
  */
 public interface TemporalTreeDao <N extends TreeNode> extends TreeDao<N>
 {
+	/** Default maximum number of nodes deleted by one bulk purge step of <code>removeHistoricizedTreesPhysically()</code>. */
+	int DEFAULT_PURGE_BATCH_SIZE = 500;
+	
+	/** Length of the time slices in which <code>getChanges()</code> reads changes, one hour. */
+	long DEFAULT_CHANGE_SLICE_MILLIS = 60L * 60L * 1000L;
+	
+	/** Milliseconds of 9999-12-31 00:00 UTC, a common far-future valid-to sentinel, see <code>setValidToSentinel()</code>. */
+	long VALID_TO_SENTINEL_MILLIS = 253402214400000L;
+	
 	List<N>  findRemoved(N parent, Map<String,Object> criteria);
 	
 	/** @return all roots, including removed (historicized) ones. */
@@ -46,6 +57,73 @@ public interface TemporalTreeDao <N extends TreeNode> extends TreeDao<N>
 	/** Physically deletes all historicized tree nodes in all roots, including their sub-nodes. */
 	void removeHistoricizedTreesPhysically();
 	
+	/**
+	 * Physically deletes historicized tree nodes, using a few bulk statements per root.
+	 * Call this repeatedly, committing in between, until it returns zero,
+	 * to purge history in transactions of bounded size.
+	 * @param maximumNodes the maximum number of nodes to delete in this call.
+	 * @return the number of nodes deleted, zero when no historicized nodes are left.
+	 */
+	int removeHistoricizedTreesPhysically(int maximumNodes);
+	
+	/**
+	 * Physically deletes historicized nodes of one tree, like <code>removeHistoricizedTreesPhysically(int)</code>.
+	 * This is for retention jobs that purge one root at a time.
+	 * @param root the root of the tree to purge, can be historicized itself.
+	 * @param removedBefore only nodes historicized at or before this date are deleted, null for all historicized nodes.
+	 * @param maximumNodes the maximum number of nodes to delete in this call.
+	 * @return the number of nodes deleted, zero when no such historicized nodes are left in given tree.
+	 */
+	int removeHistoricizedTreePhysically(N root, Date removedBefore, int maximumNodes);
+	
+	/**
+	 * Time travel: reads the trees as they were valid at given date.
+	 * @param date the date at which nodes must have been valid, must not be null.
+	 * @return an immutable read-only view that can be used concurrently.
+	 */
+	TemporalTreeView<N> asOf(Date date);
+
+	/**
+	 * Change feed: reads the net structural changes of a tree between two dates, ordered by date,
+	 * like a comparison of the tree at both dates would deliver them.
+	 * Changes are read lazily in slices of <code>DEFAULT_CHANGE_SLICE_MILLIS</code>
+	 * while iterating, thus the session must stay open until iteration is done.
+	 * Additions and moves are found by valid-from dates, which the DAO stamps on insert.
+	 * @param root the root of the tree to read changes of, can be historicized itself, null for all trees.
+	 * @param from changes after this date are read.
+	 * @param to changes at or before this date are read.
+	 * @return an iterator over the changes within given range.
+	 */
+	Iterator<TemporalTreeChange<N>> getChanges(N root, Date from, Date to);
+
+	/**
+	 * Turns on the sentinel mode, where nodes (or paths) that are not historicized carry given far-future date
+	 * in valid-to instead of null. Validity conditions then become plain range conditions like "validTo > ?",
+	 * which a composite index on (topLevel or ancestor, validTo) can serve, while "validTo is null or ..." can not.
+	 * Existing rows must be migrated before, like "update Node set validTo = :sentinel where validTo is null".
+	 * Call this before using the DAO, it is not meant to be switched while running.
+	 * @param validToSentinel the valid-to of current nodes, e.g. <code>new Date(VALID_TO_SENTINEL_MILLIS)</code>,
+	 * 		must be later than any removal date, null for valid-to being null (default).
+	 */
+	void setValidToSentinel(Date validToSentinel);
+	
+	/** @return the valid-to of nodes that are not historicized, null when not in sentinel mode. */
+	Date getValidToSentinel();
+
+	/**
+	 * Turns on tombstone removes, where <code>remove()</code> historicizes only the removed node
+	 * (the paths leading to it in a closure table), not its whole sub-tree, so a remove costs
+	 * a constant number of writes, independent of the sub-tree size. Descendants then count as removed
+	 * while any of their ancestors is removed, which every validity condition checks by an additional
+	 * sub-query, so reads get more expensive. <code>unremove()</code> still recovers the whole sub-tree.
+	 * Call this before using the DAO, it is not meant to be switched while running.
+	 * @param tombstoning true for historicizing only the removed node, false for its whole sub-tree (default).
+	 */
+	void setTombstoning(boolean tombstoning);
+	
+	/** @return true when removes historicize only the removed node, see <code>setTombstoning()</code>. */
+	boolean isTombstoning();
+
 	/** Physically deletes everything, all roots and the trees below them. */
 	void removeAllPhysically();
 
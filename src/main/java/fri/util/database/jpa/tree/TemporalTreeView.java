@@ -0,0 +1,40 @@
+package fri.util.database.jpa.tree;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only view of a temporal tree as it was valid at a fixed date,
+ * obtained from <code>TemporalTreeDao.asOf()</code>.
+ * <p/>
+ * A view is immutable and holds no session state, it reads through its DAO,
+ * thus views of different dates can be used concurrently, as far as the DAO's session allows.
+ * The tree structure is the current one, only validity is evaluated at the view's date.
+ *
+ * @param <N> the tree node type managed by the DAO.
+ */
+public interface TemporalTreeView <N extends TreeNode>
+{
+	/** @return the date at which this view evaluates validity. */
+	Date getDate();
+
+	/** @return all roots that were valid at this view's date. */
+	List<N> getRoots();
+
+	/** @return the children of given parent that were valid at this view's date. */
+	List<N> getChildren(N parent);
+
+	/** @return the ancestors of given node that were valid at this view's date, root first, not including the node itself. */
+	List<N> getPath(N node);
+
+	/** @return the sub-tree under given parent that was valid at this view's date, including the parent when it was valid. */
+	List<N> getTree(N parent);
+
+	/** @return the nodes under given parent (null for all trees) that match given criteria and were valid at this view's date. */
+	List<N> find(N parent, Map<String,Object> criteria);
+
+	/** @return the sub-tree under given parent that was valid at this view's date, in a form that <code>findDirectChildren()</code> and <code>findSubTree()</code> can work with. */
+	List<N> getTreeCacheable(N parent);
+
+}
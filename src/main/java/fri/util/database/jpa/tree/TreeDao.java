@@ -276,6 +276,31 @@ public interface TreeDao<N extends TreeNode>
 	 */
 	void setCheckUniqueConstraintOnUpdate(boolean checkUniqueConstraintOnUpdate);
 
+	/**
+	 * Setting this to true lets inserts, moves and copies record their nodes instead of checking
+	 * the unique constraint immediately, saving one query (and flush) per operation.
+	 * The caller then MUST call <code>checkDeferredUniqueConstraint()</code> before committing the transaction,
+	 * which checks all recorded nodes at once. Updates are always checked immediately.
+	 * Default is false. Constraints not derived from <code>AbstractUniqueTreeConstraintImpl</code> are always checked immediately.
+	 * @param deferUniqueConstraintChecks the behavior to be set.
+	 */
+	void setDeferUniqueConstraintChecks(boolean deferUniqueConstraintChecks);
+
+	/**
+	 * Checks the nodes recorded since the last call while unique checks were deferred.
+	 * On violation, the transaction must be rolled back, as the offending nodes are already stored.
+	 * @throws UniqueConstraintViolationException when a recorded node is not unique, its clone is the originator.
+	 */
+	void checkDeferredUniqueConstraint() throws UniqueConstraintViolationException;
+
+	/**
+	 * Forgets the nodes recorded since the last call while unique checks were deferred,
+	 * without checking them. The caller MUST call this when rolling back a transaction
+	 * that did not reach <code>checkDeferredUniqueConstraint()</code>.
+	 * Nodes are recorded per thread, thus this affects only the calling thread's transaction.
+	 */
+	void discardDeferredUniqueConstraintChecks();
+
 	/**
 	 * Checks unique constraint(s) for passed entity before an update of unique properties.
 	 * Assuming that there is a unique property <code>name</code> in entity, this method MUST be
@@ -3,6 +3,7 @@ package fri.util.database.jpa.tree.closuretable;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
@@ -11,7 +12,9 @@ import java.util.Set;
 
 import fri.util.database.jpa.commons.DbSession;
 import fri.util.database.jpa.tree.AbstractTreeDao;
+import fri.util.database.jpa.tree.TemporalQueryContext;
 import fri.util.database.jpa.tree.uniqueconstraints.UniqueConstraintViolationException;
+import fri.util.database.jpa.tree.util.HierarchicalLockManager;
 import fri.util.database.jpa.tree.util.QueryBuilderUtil;
 import fri.util.database.jpa.tree.util.TreeActionLocation;
 
@@ -48,7 +51,10 @@ import fri.util.database.jpa.tree.util.TreeActionLocation;
  * <p/>
  * See links in TreeDao for more information.
  * <p/>
- * Note: as the temporal derivation obtains a state, all write-methods here are synchronized.
+ * Note: write-methods lock the sub-tree they modify exclusively, and its ancestors in intention mode,
+ * using a <code>HierarchicalLockManager</code>. Writes in disjoint sub-trees run in parallel,
+ * overlapping writes are serialized. With a unique constraint the whole tree is locked,
+ * as the constraint may check the whole tree.
  * 
  * @see fri.util.database.jpa.tree.closuretable.ClosureTableTreeNode
  * @see fri.util.database.jpa.tree.TreeDao
@@ -63,6 +69,16 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	private final boolean orderIndexMatters;
 
 	private boolean removeReferencedNodes = false;	// this is for driving several DAOs on same node table
+	
+	/** Lock key for the list of roots, changed by creating, moving or copying roots. */
+	private static final Object ROOTS = new Object()	{
+		@Override
+		public String toString() {
+			return "ROOTS";
+		}
+	};
+	
+	private final HierarchicalLockManager lockManager = new HierarchicalLockManager();
 
 	/**
 	 * @param treeNodeEntityClass the persistence class representing the tree, implementing ClosureTableTreeNode.
@@ -127,6 +143,12 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	}
 
 	
+	/** @return the lock manager of write-methods, exposing lock wait and hold times for tuning. */
+	public final HierarchicalLockManager getLockManager() {
+		return lockManager;
+	}
+
+	
 	/**
 	 * This is for the case when the provided TreePath implementation contains
 	 * additional properties concerning the node. Caller is expected to cast the
@@ -135,16 +157,14 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	 * @return the TreePath instance that contains the node's self-reference.
 	 */
 	public TreePath getTreePathEntity(ClosureTableTreeNode node)	{
-		StringBuilder queryText = new StringBuilder(
-				"select p from "+pathEntityName()+" p where p.ancestor = ?1 and p.descendant = ?2");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(node);
 		parameters.add(node);
-		
-		beforeFindQuery("p", queryText, parameters, true);
-		
+		final String queryText = findQuery(
+			"select p from "+ENTITY+" p where p.ancestor = ?1 and p.descendant = ?2", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
 		@SuppressWarnings("unchecked")
-		List<TreePath> result = (List<TreePath>) session.queryList(queryText.toString(), parameters.toArray());
+		List<TreePath> result = (List<TreePath>) session.queryList(queryText, parameters.toArray());
 		if (result.size() <= 0)
 			return null;	// this is legal, not any node must be in paths
 
@@ -172,6 +192,7 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		}
 		
 		save(node);
+		fireNodeUpdated(node);
 	}
 
 	/** {@inheritDoc} */
@@ -180,13 +201,12 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		if (isPersistent(node) == false)
 			return false;
 		
-		StringBuilder queryText = new StringBuilder(
-			"select count(p) from "+pathEntityName()+" p where p.descendant = ?1 and p.depth > 0");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(node);
-		beforeFindQuery("p", queryText, parameters, true);
-		
-		return 0 == session.queryCount(queryText.toString(), parameters.toArray());	// is not a descendant to any node except itself
+		final String queryText = findQuery(
+			"select count(p) from "+ENTITY+" p where p.descendant = ?1 and p.depth > 0", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return 0 == session.queryCount(queryText, parameters.toArray());	// is not a descendant to any node except itself
 	}
 
 	/** {@inheritDoc} */
@@ -197,65 +217,92 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	
 	/** {@inheritDoc} */
 	@Override
-	@SuppressWarnings("unchecked")
 	public List<ClosureTableTreeNode> getRoots() {
-		StringBuilder queryText = new StringBuilder(
-			"select p.ancestor from "+pathEntityName()+" p where p.depth = 0");	// select self-references
-		List<Object> parameters = new ArrayList<Object>();
-		beforeFindQuery("p", queryText, parameters, true);
-		
-		queryText.append(" and not exists "+	// ... any parent of it
-			"(select 'x' from "+pathEntityName()+" p2 "+
-			" where p2.descendant = p.descendant and p2.depth > 0)");
-		
-		return (List<ClosureTableTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+		return getRoots(TemporalQueryContext.VALID);
+	}
+	
+	/** @return the roots found with given temporal context. */
+	protected final List<ClosureTableTreeNode> getRoots(TemporalQueryContext context) {
+		return getRoots(pathEntityName(), context);
+	}
+	
+	/** @return the roots found in given paths entity with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<ClosureTableTreeNode> getRoots(String pathEntity, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
+		final String queryText = findQuery(
+			"select p.ancestor from "+ENTITY+" p where p.depth = 0",	// select self-references
+			" and not exists "+	// ... any parent of it
+			"(select 'x' from "+ENTITY+" p2 "+
+			" where p2.descendant = p.descendant and p2.depth > 0)",
+			pathEntity, "p", parameters, context);
+		return (List<ClosureTableTreeNode>) session.queryList(queryText, parameters.toArray());
 	}
 	
 	/** {@inheritDoc} */
 	@Override
+	public void removeAll() {
+		removeAll(TemporalQueryContext.VALID);
+	}
+	
+	/** Removes all paths and nodes, physically or not, according to given temporal context. */
 	@SuppressWarnings("unchecked")
-	public synchronized void removeAll() {
-		for (TreePath path : (List<TreePath>) session.queryList("select p from "+pathEntityName()+" p", null))
-			removePath(path);
-		
-		for (ClosureTableTreeNode node : (List<ClosureTableTreeNode>) session.queryList("select n from "+nodeEntityName()+" n", null))
-			removeNode(node);
+	protected final void removeAll(TemporalQueryContext context) {
+		final HierarchicalLockManager.Lock lock = lockAllTrees();
+		try	{
+			for (TreePath path : (List<TreePath>) session.queryList("select p from "+pathEntityName()+" p", null))
+				removePath(path, context);
+			
+			for (ClosureTableTreeNode node : (List<ClosureTableTreeNode>) session.queryList("select n from "+nodeEntityName()+" n", null))
+				removeNode(node, context);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 	
 
 	/** {@inheritDoc} */
-	@SuppressWarnings("unchecked")
 	@Override
 	public List<ClosureTableTreeNode> getTree(ClosureTableTreeNode parent) {
-		StringBuilder queryText = new StringBuilder(
-			"select p.descendant from "+pathEntityName()+" p where p.ancestor = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		return getTree(pathEntityName(), parent, TemporalQueryContext.VALID);
+	}
+	
+	/** @return the tree under given parent, found in given paths entity with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<ClosureTableTreeNode> getTree(String pathEntity, ClosureTableTreeNode parent, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		beforeFindQuery("p", queryText, parameters, true);
-		return (List<ClosureTableTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select p.descendant from "+ENTITY+" p where p.ancestor = ?1", null,
+			pathEntity, "p", parameters, context);
+		return (List<ClosureTableTreeNode>) session.queryList(queryText, parameters.toArray());
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public List<ClosureTableTreeNode> getTreeCacheable(ClosureTableTreeNode parent)	{
+		return getTreeCacheable(parent, TemporalQueryContext.VALID);
+	}
+	
+	/** @return the cacheable tree under given parent, found with given temporal context. */
+	protected final List<ClosureTableTreeNode> getTreeCacheable(ClosureTableTreeNode parent, TemporalQueryContext context)	{
+		return newCacheableTreeList(parent, getTreeCacheablePaths(pathEntityName(), parent, context));
+	}
+	
+	/** @return the breadth-first ordered child paths and parent's self-reference under given parent, found in given paths entity with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<TreePath> getTreeCacheablePaths(String pathEntity, ClosureTableTreeNode parent, TemporalQueryContext context)	{
 		// select only child references and parent's self-reference
-		StringBuilder queryText = new StringBuilder(
-			"select p from "+pathEntityName()+" p where (p.depth = 1 or (p.depth = 0 and p.ancestor = ?1))");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		
-		StringBuilder subQueryText = new StringBuilder(
-			"select p1.descendant from "+pathEntityName()+" p1 where p1.ancestor = ?2");	// all sub-tree paths
 		parameters.add(parent);
-		beforeFindQuery("p1", subQueryText, parameters, true);
-		
-		queryText.append(" and p.descendant in ("+subQueryText+")");
-		
-		@SuppressWarnings("unchecked")
-		List<TreePath> breadthFirstTree = (List<TreePath>) session.queryList(
-				queryText.append(" order by p.depth, p.ancestor, p.orderIndex").toString(), parameters.toArray());
-		
-		return newCacheableTreeList(parent, breadthFirstTree);
+		final String queryText = findQuery(
+			"select p from "+ENTITY+" p where (p.depth = 1 or (p.depth = 0 and p.ancestor = ?1))"+
+				" and p.descendant in (select p1.descendant from "+ENTITY+" p1 where p1.ancestor = ?2",	// all sub-tree paths
+			") order by p.depth, p.ancestor, p.orderIndex",
+			pathEntity, "p1", parameters, context);
+		return (List<TreePath>) session.queryList(queryText, parameters.toArray());
 	}
 	
 	/** Factory method for new CacheableTreeList. To be overridden by temporal variant. */
@@ -280,25 +327,35 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	/** {@inheritDoc} */
 	@Override
 	public int getChildCount(ClosureTableTreeNode parent) {
-		StringBuilder queryText = new StringBuilder(
-			"select count(p) from "+pathEntityName()+" p where p.ancestor = ?1 and p.depth = 1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		beforeFindQuery("p", queryText, parameters, true);
-		return session.queryCount(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select count(p) from "+ENTITY+" p where p.ancestor = ?1 and p.depth = 1", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return session.queryCount(queryText, parameters.toArray());
 	}
 		
 	/** {@inheritDoc} */
 	@Override
 	@SuppressWarnings("unchecked")
 	public List<ClosureTableTreeNode> getChildren(ClosureTableTreeNode parent) {
-		StringBuilder queryText = new StringBuilder(
-			"select p.descendant from "+pathEntityName()+" p where p.ancestor = ?1 and p.depth = 1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(parent);
+		final String queryText = findQuery(
+			"select p.descendant from "+ENTITY+" p where p.ancestor = ?1 and p.depth = 1", " order by p.orderIndex",
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return (List<ClosureTableTreeNode>) session.queryList(queryText, parameters.toArray());
+	}
+	
+	/** @return the paths to the children of given parent, ordered by orderIndex, found in given paths entity with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<TreePath> getChildPaths(String pathEntity, ClosureTableTreeNode parent, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		beforeFindQuery("p", queryText, parameters, true);
-		return (List<ClosureTableTreeNode>) session.queryList(
-				queryText.append(" order by p.orderIndex").toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select p from "+ENTITY+" p where p.ancestor = ?1 and p.depth = 1", " order by p.orderIndex",
+			pathEntity, "p", parameters, context);
+		return (List<TreePath>) session.queryList(queryText, parameters.toArray());
 	}
 
 	/** {@inheritDoc} */
@@ -314,13 +371,13 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	/** {@inheritDoc} */
 	@Override
 	public ClosureTableTreeNode getParent(ClosureTableTreeNode child) {
-		StringBuilder queryText = new StringBuilder(
-			"select p.ancestor from "+pathEntityName()+" p where p.descendant = ?1 and p.depth = 1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(child);
-		beforeFindQuery("p", queryText, parameters, true);
+		final String queryText = findQuery(
+			"select p.ancestor from "+ENTITY+" p where p.descendant = ?1 and p.depth = 1", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
 		@SuppressWarnings("unchecked")
-		List<ClosureTableTreeNode> parents = (List<ClosureTableTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+		List<ClosureTableTreeNode> parents = (List<ClosureTableTreeNode>) session.queryList(queryText, parameters.toArray());
 		
 		if (parents.size() == 1)
 			return parents.get(0);
@@ -335,39 +392,49 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	@Override
 	@SuppressWarnings("unchecked")
 	public List<ClosureTableTreeNode> getPath(ClosureTableTreeNode node) {
-		StringBuilder queryText = new StringBuilder(
-			"select p.ancestor from "+pathEntityName()+" p where p.descendant = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(node);
-		beforeFindQuery("p", queryText, parameters, true);
-		List<ClosureTableTreeNode> path = (List<ClosureTableTreeNode>) session.queryList(
-				queryText.append(" order by p.depth desc").toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select p.ancestor from "+ENTITY+" p where p.descendant = ?1", " order by p.depth desc",
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		List<ClosureTableTreeNode> path = (List<ClosureTableTreeNode>) session.queryList(queryText, parameters.toArray());
 				// desc: the deeper the path the higher the parent above
 		
 		path.remove(path.size() - 1);	// remove given child from path
 		return path;
 	}
+	
+	/** @return the paths from all ancestors of given node, root first, including the node's self-reference, found in given paths entity with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<TreePath> getAncestorPaths(String pathEntity, ClosureTableTreeNode node, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(node);
+		final String queryText = findQuery(
+			"select p from "+ENTITY+" p where p.descendant = ?1", " order by p.depth desc",
+			pathEntity, "p", parameters, context);
+		return (List<TreePath>) session.queryList(queryText, parameters.toArray());
+	}
 
 	/** {@inheritDoc} */
 	@Override
 	public int getLevel(ClosureTableTreeNode node) {
-		StringBuilder queryText = new StringBuilder(
-			"select count(p) from "+pathEntityName()+" p where p.descendant = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(node);
-		beforeFindQuery("p", queryText, parameters, true);
-		return session.queryCount(queryText.toString(), parameters.toArray()) - 1;
+		final String queryText = findQuery(
+			"select count(p) from "+ENTITY+" p where p.descendant = ?1", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return session.queryCount(queryText, parameters.toArray()) - 1;
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public int size(ClosureTableTreeNode parent) {
-		StringBuilder queryText = new StringBuilder(
-			"select count(p) from "+pathEntityName()+" p where p.ancestor = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		beforeFindQuery("p", queryText, parameters, true);
-		return session.queryCount(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select count(p) from "+ENTITY+" p where p.ancestor = ?1", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return session.queryCount(queryText, parameters.toArray());
 	}
 	
 	/** {@inheritDoc} */
@@ -390,13 +457,13 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		if (equal(parent, child))
 			return false;
 		
-		StringBuilder queryText = new StringBuilder(
-			"select count(p) from "+pathEntityName()+" p where p.ancestor = ?1 and p.descendant = ?2");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
 		parameters.add(child);
-		beforeFindQuery("p", queryText, parameters, true);
-		int count = session.queryCount(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select count(p) from "+ENTITY+" p where p.ancestor = ?1 and p.descendant = ?2", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		int count = session.queryCount(queryText, parameters.toArray());
 		
 		if (count > 1)
 			throw new IllegalStateException("Ambiguous ancestor/descendant, found "+count+" paths for parent "+parent+" and child "+child);
@@ -413,24 +480,47 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized ClosureTableTreeNode addChildAt(ClosureTableTreeNode parent, ClosureTableTreeNode child, int position) throws UniqueConstraintViolationException {
-		return addChild(parent, null, child, position);
+	public ClosureTableTreeNode addChildAt(ClosureTableTreeNode parent, ClosureTableTreeNode child, int position) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.exclusive(parent));
+		try	{
+			return addChild(parent, null, child, position);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized ClosureTableTreeNode addChildBefore(ClosureTableTreeNode sibling, ClosureTableTreeNode child) throws UniqueConstraintViolationException {
-		return addChild(null, sibling, child, UNDEFINED_POSITION);
+	public ClosureTableTreeNode addChildBefore(ClosureTableTreeNode sibling, ClosureTableTreeNode child) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.exclusiveParentOf(sibling));
+		try	{
+			return addChild(null, sibling, child, UNDEFINED_POSITION);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 	
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void remove(ClosureTableTreeNode node)	{
+	public void remove(ClosureTableTreeNode node)	{
+		remove(node, TemporalQueryContext.VALID);
+	}
+	
+	/** Removes given node and its sub-tree, physically or not, according to given temporal context. */
+	protected final void remove(ClosureTableTreeNode node, TemporalQueryContext context)	{
 		if (node == null || isPersistent(node) == false)
 			throw new IllegalArgumentException("Node to remove is null or not persistent: "+node);
 		
-		removeTree(node);
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.exclusiveParentOf(node));
+		try	{
+			removeTree(node, context);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 
@@ -442,20 +532,38 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void moveTo(ClosureTableTreeNode node, ClosureTableTreeNode parent, int position) throws UniqueConstraintViolationException {
-		move(node, parent, position, null);
+	public void moveTo(ClosureTableTreeNode node, ClosureTableTreeNode parent, int position) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.exclusiveParentOf(node), LockTarget.exclusive(parent));
+		try	{
+			move(node, parent, position, null);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void moveBefore(ClosureTableTreeNode node, ClosureTableTreeNode sibling) throws UniqueConstraintViolationException {
-		move(node, null, UNDEFINED_POSITION, sibling);
+	public void moveBefore(ClosureTableTreeNode node, ClosureTableTreeNode sibling) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.exclusiveParentOf(node), LockTarget.exclusiveParentOf(sibling));
+		try	{
+			move(node, null, UNDEFINED_POSITION, sibling);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void moveToBeRoot(ClosureTableTreeNode child) throws UniqueConstraintViolationException {
-		move(child, null, UNDEFINED_POSITION, null);
+	public void moveToBeRoot(ClosureTableTreeNode child) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.exclusiveParentOf(child), LockTarget.exclusive(null));
+		try	{
+			move(child, null, UNDEFINED_POSITION, null);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 	
@@ -468,31 +576,59 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized ClosureTableTreeNode copyTo(ClosureTableTreeNode node, ClosureTableTreeNode parent, int position, ClosureTableTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
-		return copy(node, parent, position, null, copiedNodeTemplate);
+	public ClosureTableTreeNode copyTo(ClosureTableTreeNode node, ClosureTableTreeNode parent, int position, ClosureTableTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.shared(node), LockTarget.exclusive(parent));
+		try	{
+			return copy(node, parent, position, null, copiedNodeTemplate);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized ClosureTableTreeNode copyBefore(ClosureTableTreeNode node, ClosureTableTreeNode sibling, ClosureTableTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
-		return copy(node, null, UNDEFINED_POSITION, sibling, copiedNodeTemplate);
+	public ClosureTableTreeNode copyBefore(ClosureTableTreeNode node, ClosureTableTreeNode sibling, ClosureTableTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.shared(node), LockTarget.exclusiveParentOf(sibling));
+		try	{
+			return copy(node, null, UNDEFINED_POSITION, sibling, copiedNodeTemplate);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized ClosureTableTreeNode copyToBeRoot(ClosureTableTreeNode child, ClosureTableTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
-		return copy(child, null, UNDEFINED_POSITION, null, copiedNodeTemplate);
+	public ClosureTableTreeNode copyToBeRoot(ClosureTableTreeNode child, ClosureTableTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
+		final HierarchicalLockManager.Lock lock = lockTrees(LockTarget.shared(child), LockTarget.exclusive(null));
+		try	{
+			return copy(child, null, UNDEFINED_POSITION, null, copiedNodeTemplate);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 
 	
 
 	/** {@inheritDoc} */
 	@Override
-	@SuppressWarnings("unchecked")
 	public List<ClosureTableTreeNode> find(ClosureTableTreeNode parent, Map<String,Object> criteria) {
+		return find(parent, criteria, TemporalQueryContext.VALID);
+	}
+	
+	/** @return the nodes matching given criteria, found with given temporal context. */
+	protected final List<ClosureTableTreeNode> find(ClosureTableTreeNode parent, Map<String,Object> criteria, TemporalQueryContext context) {
+		return find(pathEntityName(), parent, criteria, context);
+	}
+	
+	/** @return the nodes matching given criteria, found in given paths entity with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<ClosureTableTreeNode> find(String pathEntity, ClosureTableTreeNode parent, Map<String,Object> criteria, TemporalQueryContext context) {
 		final StringBuilder queryText = new StringBuilder(
 				"select n"+
-				" from "+nodeEntityName()+" n, "+pathEntityName()+" p "+
+				" from "+nodeEntityName()+" n, "+pathEntity+" p "+
 				" where p.descendant = n");
 		final List<Object> parameters = new ArrayList<Object>();
 		
@@ -504,24 +640,46 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		
 		QueryBuilderUtil.appendCriteria(true, queryText, "n", parameters, criteria, true);
 		
-		beforeFindQuery("p", queryText, parameters, true);
+		beforeFindQuery("p", queryText, parameters, true, context);
 		
 		return (List<ClosureTableTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
 	}
 	
 	
+
+	
+	
 	/**
-	 * Does nothing.
-	 * Override to append temporal conditions. Called from all querying methods.
-	 * This method is expected to first append a WHERE when whereWasAppended is false,
-	 * or an AND when whereWasAppended is true.
+	 * Called by write-methods. To be overridden.
+	 * @return true for locking just the affected sub-trees, false for serializing all writes.
 	 */
-	@SuppressWarnings("unused")
-	protected void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended)	{
+	protected boolean isSubTreeLocking() {
+		return true;
+	}
+
+	/**
+	 * Locks all trees exclusively, for writes that are not restricted to a sub-tree.
+	 * @return the lock to pass to <code>unlockTrees()</code> in a finally-block.
+	 */
+	protected final HierarchicalLockManager.Lock lockAllTrees() {
+		final Map<Object,HierarchicalLockManager.Mode> requests = new HashMap<Object,HierarchicalLockManager.Mode>();
+		requests.put(HierarchicalLockManager.TOP, HierarchicalLockManager.Mode.X);
+		return lockManager.lock(requests);
+	}
+
+	/**
+	 * Locks the sub-tree under given node exclusively, and its ancestors in intention mode.
+	 * @return the lock to pass to <code>unlockTrees()</code> in a finally-block.
+	 */
+	protected final HierarchicalLockManager.Lock lockSubTree(ClosureTableTreeNode node) {
+		return lockTrees(LockTarget.exclusive(node));
+	}
+
+	/** Releases a lock obtained by <code>lockAllTrees()</code>, <code>lockSubTree()</code> or a write-method. */
+	protected final void unlockTrees(HierarchicalLockManager.Lock lock) {
+		lockManager.unlock(lock);
 	}
 
-	
-	
 	/** Overridden to return the name of TreePaths entity. */
 	@Override
 	protected String pathEntityName()	{
@@ -554,7 +712,7 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	}
 
 	/** Called from remove() after locking tree. To be overridden. */
-	protected void removeTree(ClosureTableTreeNode parent) {
+	protected void removeTree(ClosureTableTreeNode parent, TemporalQueryContext context) {
 		final boolean closeGap = shouldCloseGapOnRemove();
 		
 		// read siblings for re-ordering them after removal
@@ -564,7 +722,7 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		final Set<ClosureTableTreeNode> nodesToRemove = new HashSet<ClosureTableTreeNode>();	// collect nodes to remove
 		int orderIndex = -1;	// find out the position of the removed node
 
-		for (TreePath path : getPathsToRemove(parent))	{
+		for (TreePath path : getPathsToRemove(parent, context))	{
 			nodesToRemove.add(path.getDescendant());
 			
 			if (closeGap && path.getDepth() == 1 && equal(path.getDescendant(), parent))	{
@@ -572,7 +730,7 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 				orderIndex = path.getOrderIndex();
 			}
 			
-			removePath(path);
+			removePath(path, context);
 		}
 		
 		if (closeGap)
@@ -580,7 +738,7 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		
 		// now remove the nodes
 		for (ClosureTableTreeNode nodeToRemove : nodesToRemove)	{
-			removeNode(nodeToRemove);
+			removeNode(nodeToRemove, context);
 		}
 	}
 
@@ -588,7 +746,8 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	 * Called from remove() for all sub-nodes of removed tree.
 	 * Deletes physically. To be overridden for historicizing paths.
 	 */
-	protected void removePath(TreePath path) {
+	@SuppressWarnings("unused")
+	protected void removePath(TreePath path, TemporalQueryContext context) {
 		session.delete(path);
 	}
 
@@ -600,21 +759,27 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	 * When using more than one DAOs on one node table, you MUST override this
 	 * to NOT delete physically, because the node could be in another DAO's tree!
 	 */
-	protected void removeNode(ClosureTableTreeNode nodeToRemove) {
+	@SuppressWarnings("unused")
+	protected void removeNode(ClosureTableTreeNode nodeToRemove, TemporalQueryContext context) {
 		if (isRemoveReferencedNodes())
 			session.delete(nodeToRemove);
 	}
 
+	/** @return all paths leading to given node and the nodes below it, found with given temporal context. */
+	protected final List<? extends TreePath> getPathsToRemove(ClosureTableTreeNode node, TemporalQueryContext context) {
+		return getPathsToRemove(pathEntityName(), node, context);
+	}
+	
+	/** @return all paths leading to given node and the nodes below it, found in given paths entity with given temporal context. */
 	@SuppressWarnings("unchecked")
-	protected final List<? extends TreePath> getPathsToRemove(ClosureTableTreeNode node) {
-		StringBuilder queryText = new StringBuilder(
-			"select p from "+pathEntityName()+" p where p.descendant in ("+
-				"select p1.descendant from "+pathEntityName()+" p1 where p1.ancestor = ?1");	// closing ")" see below
-		List<Object> parameters = new ArrayList<Object>();
+	protected final List<? extends TreePath> getPathsToRemove(String pathEntity, ClosureTableTreeNode node, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(node);
-		beforeFindQuery("p1", queryText, parameters, true);
-		queryText.append(")");
-		return (List<? extends TreePath>) session.queryList(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select p from "+ENTITY+" p where p.descendant in ("+
+				"select p1.descendant from "+ENTITY+" p1 where p1.ancestor = ?1", ")",
+			pathEntity, "p1", parameters, context);
+		return (List<? extends TreePath>) session.queryList(queryText, parameters.toArray());
 	}
 
 	private ClosureTableTreeNode addChild(
@@ -650,13 +815,12 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	}
 
 	private boolean exists(ClosureTableTreeNode node)	{
-		StringBuilder queryText = new StringBuilder(
-				"select count(p) from "+pathEntityName()+" p where p.descendant = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(node);
-		beforeFindQuery("p", queryText, parameters, true);
-			
-		return 0 < session.queryCount(queryText.toString(), parameters.toArray());	// no such node exists in paths
+		final String queryText = findQuery(
+			"select count(p) from "+ENTITY+" p where p.descendant = ?1", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return 0 < session.queryCount(queryText, parameters.toArray());	// no such node exists in paths
 	}
 	
 	/** Insert self reference with depth 0. */
@@ -685,12 +849,13 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	
 	private void disconnectSubTree(ClosureTableTreeNode node)	{
 		// read paths to remove: those that end in moved tree, but do not start in it
-		final String removeQueryText =
-				"select p from "+pathEntityName()+" p "+
+		final String removeQueryText = statement(
+				"select p from "+ENTITY+" p "+
 				"  where p.descendant in"+
-				"    (select p1.descendant from "+pathEntityName()+" p1 where p1.ancestor = ?1)"+	// sub-tree below node
+				"    (select p1.descendant from "+ENTITY+" p1 where p1.ancestor = ?1)"+	// sub-tree below node
 				"  and p.ancestor not in "+
-				"    (select p2.descendant from "+pathEntityName()+" p2 where p2.ancestor = ?2)";
+				"    (select p2.descendant from "+ENTITY+" p2 where p2.ancestor = ?2)",
+				pathEntityName());
 		@SuppressWarnings("unchecked")
 		final List<TreePath> pathsToRemove = (List<TreePath>) session.queryList(
 				removeQueryText, new Object [] { node, node });
@@ -713,12 +878,12 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	/** @return the paths that point from parent to any sub-node, but not the paths that go from sub-node to sub-node. */
 	@SuppressWarnings("unchecked")
 	private List<TreePath> getPathsIntoSubtree(ClosureTableTreeNode parent) {
-		StringBuilder queryText = new StringBuilder(
-				"select p from "+pathEntityName()+" p where p.ancestor = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		beforeFindQuery("p", queryText, parameters, true);
-		return (List<TreePath>) session.queryList(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select p from "+ENTITY+" p where p.ancestor = ?1", null,
+			pathEntityName(), "p", parameters, TemporalQueryContext.VALID);
+		return (List<TreePath>) session.queryList(queryText, parameters.toArray());
 	}
 		
 	
@@ -743,27 +908,22 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	/** Read paths to copy: those that start AND end in moved tree, not those that only end in it. */
 	@SuppressWarnings("unchecked")
 	private List<TreePath> getSubTreePathsToCopy(ClosureTableTreeNode parent) {
-		final StringBuilder subTreeBelowNode = new StringBuilder(	// sub-tree below node
-				"select p2.descendant from "+pathEntityName()+" p2 where p2.ancestor = ?1");
-		List<Object> parameters = new ArrayList<Object>();
+		// the sub-tree below node is queried two times, do not copy historicized nodes
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent);
-		beforeFindQuery("p2", subTreeBelowNode, parameters, true);	// do not copy historicized nodes
-		
-		final int paramCount = parameters.size();
-		parameters.addAll(new ArrayList<Object>(parameters));	// as we apply copySubQueryText two times, double parameters
-		
-		final StringBuilder copyQueryText = new StringBuilder(
-				"select p from "+pathEntityName()+" p "+
-				"  where p.descendant in ("+subTreeBelowNode+")"+
-				"  and p.ancestor in ("+shiftParams(subTreeBelowNode, paramCount)+")");
-		return (List<TreePath>) session.queryList(copyQueryText.toString(), parameters.toArray());
-	}
-	
-	private String shiftParams(StringBuilder queryBuffer, int shiftCount)	{
-		String query = queryBuffer.toString();
-		for (int i = shiftCount; i > 0; i--)
-			query = query.replace("?"+i, "?"+(i + shiftCount));
-		return query;
+		final String descendantsInSubTree = findQueryPart(
+				"select p from "+ENTITY+" p "+
+				"  where p.descendant in (select p2.descendant from "+ENTITY+" p2 where p2.ancestor = ?1", ")",
+				pathEntityName(), "p2", parameters, TemporalQueryContext.VALID);
+		final String placeHolder = QueryBuilderUtil.buildIndexedPlaceHolder(parameters);
+		parameters.add(parent);
+		final String ancestorsInSubTree = findQueryPart(
+				"  and p.ancestor in (select p3.descendant from "+ENTITY+" p3 where p3.ancestor = "+placeHolder, ")",
+				pathEntityName(), "p3", parameters, TemporalQueryContext.VALID);
+		final String queryText = registerStatement(
+				Arrays.asList(new Object [] { descendantsInSubTree, ancestorsInSubTree }),
+				descendantsInSubTree+ancestorsInSubTree);
+		return (List<TreePath>) session.queryList(queryText, parameters.toArray());
 	}
 
 	private ClosureTableTreeNode copySubTree(List<TreePath> pathsToCopy, ClosureTableTreeNode node, ClosureTableTreeNode copiedNodeTemplate, List<TreePath> childPaths, TreeActionLocation<ClosureTableTreeNode> treeActionLocation)
@@ -851,14 +1011,13 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		assert relatedNodeIsParent == false || parent != null;
 		
 		// read paths to clone, also historicized ones
-		final String queryText = "select p from "+pathEntityName()+" p where p.descendant = ?1";
 		if (relatedNodeIsParent)	{
 			pathsToClone.addAll((List<TreePath>) session.queryList(
-				queryText, new Object [] { parent }));
+				statement("select p from "+ENTITY+" p where p.descendant = ?1", pathEntityName()), new Object [] { parent }));
 		}
 		else if (sibling != null)	{
 			pathsToClone.addAll((List<TreePath>) session.queryList(
-				queryText+" and p.depth > 0 order by p.depth", new Object [] { sibling }));
+				statement("select p from "+ENTITY+" p where p.descendant = ?1 and p.depth > 0 order by p.depth", pathEntityName()), new Object [] { sibling }));
 				// depth > 0: exclude sibling's self-reference
 			
 			if (pathsToClone.size() <= 0)
@@ -925,18 +1084,18 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 
 	@SuppressWarnings("unchecked")
 	private List<TreePath> getAllDirectTreePathChildren(ClosureTableTreeNode parent) {
-		String queryText =
-				"select p from "+pathEntityName()+" p where p.ancestor = ?1 and p.depth = 1 order by p.orderIndex";
+		final String queryText = statement(
+				"select p from "+ENTITY+" p where p.ancestor = ?1 and p.depth = 1 order by p.orderIndex", pathEntityName());
 		return (List<TreePath>) session.queryList(queryText, new Object [] { parent });
 	}
 	
 	/** @return the siblings, exclusive the node itself. */
 	@SuppressWarnings("unchecked")
 	private List<TreePath> getAllTreePathSiblings(ClosureTableTreeNode node) {
-		String queryText = 
-				"select p from "+pathEntityName()+" p where p.depth = 1 and p.descendant != ?1 and p.ancestor in "+
-				"    (select p2.ancestor from "+pathEntityName()+" p2 where p2.descendant = ?2 and p2.depth = 1)"+
-				"  order by p.orderIndex";
+		final String queryText = statement(
+				"select p from "+ENTITY+" p where p.depth = 1 and p.descendant != ?1 and p.ancestor in "+
+				"    (select p2.ancestor from "+ENTITY+" p2 where p2.descendant = ?2 and p2.depth = 1)"+
+				"  order by p.orderIndex", pathEntityName());
 		return (List<TreePath>) session.queryList(queryText, new Object [] { node, node });
 	}
 		
@@ -955,6 +1114,96 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 	
 	
 
+	/**
+	 * Locks the sub-trees of given targets, and their ancestors in intention mode.
+	 * As ancestors are read before locking, they are read again after,
+	 * and locking is repeated when a concurrent move changed them.
+	 */
+	private HierarchicalLockManager.Lock lockTrees(LockTarget... targets) {
+		if (isSubTreeLocking() == false)
+			return lockAllTrees();
+		
+		final List<List<Object>> ancestorIds = new ArrayList<List<Object>>(targets.length);
+		for (LockTarget target : targets)
+			ancestorIds.add(getAncestorIds(target.node));
+		
+		for (;;)	{
+			final Map<Object,HierarchicalLockManager.Mode> requests = new HashMap<Object,HierarchicalLockManager.Mode>();
+			for (int i = 0; i < targets.length; i++)
+				addLockRequests(targets[i], ancestorIds.get(i), requests);
+			
+			final HierarchicalLockManager.Lock lock = lockManager.lock(requests);
+			
+			boolean unchanged = true;
+			for (int i = 0; i < targets.length; i++)	{
+				final List<Object> currentAncestorIds = getAncestorIds(targets[i].node);
+				if (currentAncestorIds.equals(ancestorIds.get(i)) == false)	{
+					ancestorIds.set(i, currentAncestorIds);
+					unchanged = false;
+				}
+			}
+			if (unchanged)
+				return lock;
+			
+			lockManager.unlock(lock);
+		}
+	}
+	
+	private void addLockRequests(LockTarget target, List<Object> ancestorIds, Map<Object,HierarchicalLockManager.Mode> requests) {
+		final boolean exclusive = target.exclusive;
+		final HierarchicalLockManager.Mode intention = exclusive ? HierarchicalLockManager.Mode.IX : HierarchicalLockManager.Mode.IS;
+		final HierarchicalLockManager.Mode mode = exclusive ? HierarchicalLockManager.Mode.X : HierarchicalLockManager.Mode.S;
+		addLockRequest(HierarchicalLockManager.TOP, intention, requests);
+		
+		// the node that roots the locked sub-tree, null means the list of roots
+		final List<Object> pathIds = new ArrayList<Object>(ancestorIds);	// nearest ancestor first
+		Object lockedId;
+		if (target.node == null)	{
+			lockedId = null;
+		}
+		else if (target.parentOf)	{
+			lockedId = pathIds.size() > 0 ? pathIds.remove(0) : null;
+			if (lockedId == null)	// a root, writers inside its tree do not lock the list of roots
+				addLockRequest(nodeLockKey(target.node), mode, requests);
+		}
+		else	{
+			lockedId = nodeLockKey(target.node);
+		}
+		
+		if (exclusive && lockedId != null && getUniqueTreeConstraint() != null && pathIds.size() > 0)	// constraint may check the whole tree
+			lockedId = pathIds.remove(pathIds.size() - 1);
+		
+		addLockRequest(lockedId != null ? lockedId : ROOTS, mode, requests);
+		
+		for (Object ancestorId : pathIds)
+			addLockRequest(ancestorId, intention, requests);
+	}
+	
+	private void addLockRequest(Object key, HierarchicalLockManager.Mode mode, Map<Object,HierarchicalLockManager.Mode> requests) {
+		final HierarchicalLockManager.Mode existing = requests.get(key);
+		requests.put(key, existing != null ? existing.combine(mode) : mode);
+	}
+	
+	/** @return the identities of all ancestors of given node, nearest first, without temporal conditions. */
+	private List<Object> getAncestorIds(ClosureTableTreeNode node) {
+		final List<Object> ancestorIds = new ArrayList<Object>();
+		if (node == null || isPersistent(node) == false)
+			return ancestorIds;
+		
+		@SuppressWarnings("unchecked")
+		final List<ClosureTableTreeNode> ancestors = (List<ClosureTableTreeNode>) session.queryList(
+				statement("select p.ancestor from "+ENTITY+" p where p.descendant = ?1 and p.depth > 0 order by p.depth", pathEntityName()),
+				new Object [] { node });
+		for (ClosureTableTreeNode ancestor : ancestors)
+			ancestorIds.add(nodeLockKey(ancestor));
+		return ancestorIds;
+	}
+	
+	private Object nodeLockKey(ClosureTableTreeNode node) {
+		return node.getId() != null ? node.getId() : node;
+	}
+	
+	
 	private void assertInsertParameters(ClosureTableTreeNode parent, ClosureTableTreeNode sibling, int position) {
 		assert (parent == null || sibling == null);
 		assert (sibling == null || position == UNDEFINED_POSITION);
@@ -968,5 +1217,35 @@ public class ClosureTableTreeDao extends AbstractTreeDao<ClosureTableTreeNode>
 		
 		copyOrMovePreconditions(newParent != null ? newParent : sibling, node);
 	}
+	
+	
+	/** A node whose sub-tree is to be locked by a write-method. */
+	private static class LockTarget
+	{
+		/** Locks given node, null stands for the list of roots. */
+		static LockTarget exclusive(ClosureTableTreeNode node)	{
+			return new LockTarget(node, false, true);
+		}
+		
+		/** Locks the parent of given node, or the list of roots and the node when it is a root. */
+		static LockTarget exclusiveParentOf(ClosureTableTreeNode node)	{
+			return new LockTarget(node, true, true);
+		}
+		
+		/** Locks given node for reading. */
+		static LockTarget shared(ClosureTableTreeNode node)	{
+			return new LockTarget(node, false, false);
+		}
+		
+		final ClosureTableTreeNode node;
+		final boolean parentOf;
+		final boolean exclusive;
+		
+		private LockTarget(ClosureTableTreeNode node, boolean parentOf, boolean exclusive)	{
+			this.node = node;
+			this.parentOf = parentOf;
+			this.exclusive = exclusive;
+		}
+	}
 
 }
@@ -68,8 +68,9 @@ class TemporalCacheableTreeList extends CacheableTreeList
 	protected void putToHierarchy(CacheableTreeList treeList, TreePath path, ClosureTableTreeNode node, List<ClosureTableTreeNode> children) {
 		super.putToHierarchy(treeList, path, node, children);
 		
-		if (path != null)	// called by init()
-			removedFlags.put(node.getId(), Boolean.valueOf(dao.isValid((Temporal) path, validityDate)));
+		if (path != null)	// called by init(), parent has been put before, as nodes below a removed one are removed, too
+			removedFlags.put(node.getId(), Boolean.valueOf(dao.isValid((Temporal) path, validityDate) &&
+					(path.getDepth() == 0 || removedFlags.get(path.getAncestor().getId()).booleanValue())));
 		else	// constructed internally
 			removedFlags.put(node.getId(), ((TemporalCacheableTreeList) treeList).removedFlags.get(node.getId()));
 	}
@@ -1,12 +1,24 @@
 package fri.util.database.jpa.tree.closuretable;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.EvictingDbSession;
+import fri.util.database.jpa.tree.Temporal;
+import fri.util.database.jpa.tree.TemporalChangeIterator;
+import fri.util.database.jpa.tree.TemporalQueryContext;
+import fri.util.database.jpa.tree.TemporalTreeChange;
 import fri.util.database.jpa.tree.TemporalTreeDao;
+import fri.util.database.jpa.tree.TemporalTreeView;
+import fri.util.database.jpa.tree.util.HierarchicalLockManager;
 
 /**
  * DAO extension that allows to historicize entities instead of deleting them.
@@ -17,9 +29,16 @@ import fri.util.database.jpa.tree.TemporalTreeDao;
  * 	<li>isValid</li>
  * 	<li>appendValidityCondition</li>
  * 	<li>appendInvalidityCondition</li>
- * 	<li>assignValidity</li>
- * 	<li>assignInvalidity</li>
+ * 	<li>assignValidity (both the JPQL and the TreePath variant)</li>
+ * 	<li>assignInvalidity (both the JPQL and the TreePath variant)</li>
  * </ul>
+ * Removing and unremoving historicize paths by one bulk update per call,
+ * the TreePath variants of assign* are used when moving paths to and from an archive.
+ * The temporal mode of a query is passed along as <code>TemporalQueryContext</code>,
+ * the DAO holds no query state, thus reads need no locks and can run in parallel.
+ * <p/>
+ * Optionally removed paths can be moved to an archive entity instead of being
+ * historicized in place, see <code>setArchivePathEntityClass()</code>.
  * 
  * @author Fritz Ritzberger, 02.11.2012
  */
@@ -27,10 +46,23 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 {
 	private final String validFromPropertyName;
 	private final String validToPropertyName;
+	private Date validToSentinel;
+	private boolean tombstoning;
+	
+	private String archivePathEntity;
 	
-	private Date removeDate;
-	private boolean doNotApplyTemporalConditions = false;
-	private boolean invertTemporalConditions = false;
+	/** Nodes per bulk delete of a purge, as some databases allow at most 1000 values in an IN list. */
+	private static final int MAXIMUM_NODES_PER_STATEMENT = 500;
+	
+	/** Sorts paths from different entities like the ORDER BY of getTreeCacheablePaths() does. */
+	private static final Comparator<TreePath> BREADTH_FIRST = new Comparator<TreePath>()	{
+		@Override
+		public int compare(TreePath path1, TreePath path2) {
+			if (path1.getDepth() != path2.getDepth())
+				return path1.getDepth() < path2.getDepth() ? -1 : 1;
+			return path1.getOrderIndex() < path2.getOrderIndex() ? -1 : path1.getOrderIndex() == path2.getOrderIndex() ? 0 : 1;
+		}
+	};
 	
 	/**
 	 * {@inheritDoc}
@@ -76,38 +108,135 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized List<ClosureTableTreeNode> getAllRoots()	{
-		try	{
-			doNotApplyTemporalConditions = true;
-			return super.getRoots();
-		}
-		finally	{
-			doNotApplyTemporalConditions = false;
-		}
+	public void setValidToSentinel(Date validToSentinel) {
+		this.validToSentinel = (validToSentinel != null) ? new Date(validToSentinel.getTime()) : null;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public Date getValidToSentinel() {
+		return (validToSentinel != null) ? new Date(validToSentinel.getTime()) : null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Tombstoning historicizes the paths leading to the removed node, the number of its ancestors,
+	 * and can not be combined with an archive entity.
+	 */
+	@Override
+	public void setTombstoning(boolean tombstoning) {
+		if (tombstoning && isArchiving())
+			throw new IllegalStateException("Tombstones can not be archived, turn off archiving first!");
+		
+		this.tombstoning = tombstoning;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public boolean isTombstoning() {
+		return tombstoning;
+	}
+	
+	/** @return true when removed paths are moved to an archive entity. */
+	public boolean isArchiving() {
+		return archivePathEntity != null;
+	}
+	
+	/**
+	 * Turns on moving removed paths to an archive entity, so that the paths table
+	 * holds valid paths only and queries for valid nodes do not skip historicized rows.
+	 * findRemoved(), unremove(), getFullTreeCacheable() and the physical removes read the archive, too.
+	 * The archive entity must map the same properties as the TreePath entity,
+	 * but must not be in its inheritance hierarchy, else path queries would find archived rows.
+	 * Its simpleName will be used as table name for queries.
+	 * <p/>
+	 * Paths are moved by one "insert into ... select" statement and one bulk delete per remove or unremove.
+	 * JPQL does not define insert statements, thus the session must execute HQL, e.g. a Hibernate session,
+	 * or a JPA session with Hibernate as provider.
+	 * @param archivePathEntityClass the persistence class of archived paths, or null to historicize in place (default).
+	 */
+	public void setArchivePathEntityClass(Class<? extends TreePath> archivePathEntityClass) {
+		setArchivePathEntityClass(archivePathEntityClass, archivePathEntityClass != null ? archivePathEntityClass.getSimpleName() : null);
+	}
+	
+	/**
+	 * Turns on moving removed paths to an archive entity, see above.
+	 * @param archivePathEntityClass the persistence class of archived paths, or null to historicize in place (default).
+	 * @param archivePathEntity the JPQL entity name of the database table to be used for archive queries.
+	 */
+	public void setArchivePathEntityClass(Class<? extends TreePath> archivePathEntityClass, String archivePathEntity) {
+		if ((archivePathEntityClass == null) != (archivePathEntity == null))
+			throw new IllegalArgumentException("Need both archive class and entity name, or none: "+archivePathEntityClass+", "+archivePathEntity);
+		
+		if (archivePathEntityClass != null && tombstoning)
+			throw new IllegalStateException("Tombstones can not be archived, turn off tombstoning first!");
+		
+		this.archivePathEntity = archivePathEntity;
+	}
+	
+	
+	/** {@inheritDoc} */
+	@Override
+	public List<ClosureTableTreeNode> getAllRoots()	{
+		if (isArchiving() == false)
+			return getRoots(TemporalQueryContext.ALL);
+		
+		final List<ClosureTableTreeNode> roots = new ArrayList<ClosureTableTreeNode>(getRoots(TemporalQueryContext.ALL));
+		roots.addAll(getRoots(archivePathEntityName(), TemporalQueryContext.ALL));
+		return roots;
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public List<ClosureTableTreeNode> findRemoved(ClosureTableTreeNode parent, Map<String, Object> criteria) {
-		try	{
-			invertTemporalConditions = true;
-			return super.find(parent, criteria);
-		}
-		finally	{
-			invertTemporalConditions = false;
-		}
+		if (isArchiving() == false)
+			return find(parent, criteria, TemporalQueryContext.REMOVED);
+		
+		final List<ClosureTableTreeNode> removed = new ArrayList<ClosureTableTreeNode>(find(parent, criteria, TemporalQueryContext.REMOVED));
+		for (ClosureTableTreeNode node : find(archivePathEntityName(), parent, criteria, TemporalQueryContext.REMOVED))
+			if (removed.contains(node) == false)
+				removed.add(node);
+		return removed;
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public List<ClosureTableTreeNode> getFullTreeCacheable(ClosureTableTreeNode node) {
-		try	{
-			doNotApplyTemporalConditions = true;
-			return getTreeCacheable(node);
-		}
-		finally	{
-			doNotApplyTemporalConditions = false;
-		}
+		if (isArchiving() == false)
+			return getTreeCacheable(node, TemporalQueryContext.ALL);
+		
+		final List<TreePath> breadthFirstTree = new ArrayList<TreePath>(getTreeCacheablePaths(pathEntityName(), node, TemporalQueryContext.ALL));
+		breadthFirstTree.addAll(getTreeCacheablePaths(archivePathEntityName(), node, TemporalQueryContext.ALL));
+		Collections.sort(breadthFirstTree, BREADTH_FIRST);
+		return newCacheableTreeList(node, breadthFirstTree);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public TemporalTreeView<ClosureTableTreeNode> asOf(Date date) {
+		if (date == null)
+			throw new IllegalArgumentException("Need a date to read trees at!");
+		return new AsOfView(date);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * A move is found by the new parent path of the moved node, thus moves to root position are not delivered.
+	 * When archiving, the archive is read, too.
+	 */
+	@Override
+	public Iterator<TemporalTreeChange<ClosureTableTreeNode>> getChanges(final ClosureTableTreeNode root, final Date from, final Date to) {
+		if (getValidToPropertyName() == null)
+			throw new IllegalStateException("Please override getChanges when validToPropertyName is null!");
+		
+		return new TemporalChangeIterator<ClosureTableTreeNode>(from, to, DEFAULT_CHANGE_SLICE_MILLIS)	{
+			@Override
+			protected void readSlice(Date after, Date until, List<TemporalTreeChange<ClosureTableTreeNode>> changes) {
+				readChanges(pathEntityName(), root, after, until, from, to, changes);
+				if (isArchiving())
+					readChanges(archivePathEntityName(), root, after, until, from, to, changes);
+			}
+		};
 	}
 
 	/** {@inheritDoc} */
@@ -119,96 +248,175 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void removeAll() {
-		removeDate = validToOnRemove();
-		super.removeAll();
+	public void removeAll() {
+		final HierarchicalLockManager.Lock lock = lockAllTrees();
+		try	{
+			removeOrUnremove(null, validToOnRemove(), true);
+		}
+		finally	{
+			unlockTrees(lock);
+		}
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public void unremove(ClosureTableTreeNode node) {
+		final HierarchicalLockManager.Lock lock = lockUnremove(node);
 		try	{
-			doNotApplyTemporalConditions = true;
-			for (TreePath path : getPathsToRemove(node))	{
-				assignValidity(path);
-				save(path);
-			}
+			removeOrUnremove(node, null, false);
 		}
 		finally	{
-			doNotApplyTemporalConditions = false;
+			unlockTrees(lock);
 		}
+		fireTreeChanged(null);
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void removeAllPhysically() {
-		for (ClosureTableTreeNode root : getAllRoots())
-			removePhysically(root);
-	}
-	
-	/** {@inheritDoc} */
-	@Override
-	public synchronized void removePhysically(ClosureTableTreeNode node) {
-		if (node == null || isPersistent(node) == false)
-			throw new IllegalArgumentException("Node is null or not persistent: "+node);
-		
+	public void removeAllPhysically() {
+		final HierarchicalLockManager.Lock lock = lockAllTrees();
 		try	{
-			doNotApplyTemporalConditions = true;
-			remove(node);
+			for (ClosureTableTreeNode root : getAllRoots())
+				removePhysically(root);
 		}
 		finally	{
-			doNotApplyTemporalConditions = false;
+			unlockTrees(lock);
 		}
 	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public void removePhysically(ClosureTableTreeNode node) {
+		remove(node, TemporalQueryContext.ALL);
+	}
 
 	/** {@inheritDoc} */
 	@Override
-	@SuppressWarnings("unchecked")
-	public synchronized void removeHistoricizedTreesPhysically() {
+	public void removeHistoricizedTreesPhysically() {
+		while (removeHistoricizedTreesPhysically(DEFAULT_PURGE_BATCH_SIZE) > 0)
+			;	// purge until no historicized node is left
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Per root, the historicized nodes are read by one query, deepest first, so that the limit
+	 * never cuts a path of a remaining node. Their paths and the nodes are then deleted by one statement each,
+	 * for at most MAXIMUM_NODES_PER_STATEMENT nodes. When archiving, the archive is purged before the paths table.
+	 * An <code>EvictingDbSession</code> gets cleared after, thus entities read before are detached.
+	 */
+	@Override
+	public int removeHistoricizedTreesPhysically(int maximumNodes) {
+		if (maximumNodes <= 0)
+			throw new IllegalArgumentException("Maximum number of nodes to remove must be positive: "+maximumNodes);
+		
+		int removedCount = 0;
 		for (ClosureTableTreeNode root : getAllRoots())	{
-			// select all removed paths under that root, highest level first
-			final StringBuilder queryText = new StringBuilder(
-				"select p from "+pathEntityName()+" p where p.ancestor = ?1 and ");
-			final List<Object> parameters = new ArrayList<Object>();
-			parameters.add(root);
-			appendInvalidityCondition("p", queryText, parameters);
-			queryText.append(" order by p.depth");
+			if (removedCount >= maximumNodes)
+				return removedCount;
 			
-			List<TemporalTreePath> toRemove;
-			do	{
-				toRemove = (List<TemporalTreePath>) session.queryList(queryText.toString(), parameters.toArray());
-				
-				int depth = -1;	// just do the highest level and then re-read, maybe all is done with that level
-				boolean levelDone = false;
-				for (int i = 0; levelDone == false && i < toRemove.size(); i++)	{
-					final TemporalTreePath path = toRemove.get(i);
-					
-					if (depth == -1)	// not yet determined
-						depth = path.getDepth();
-					
-					if (depth != path.getDepth())	// do not go to deeper levels
-						levelDone = true;
-					else
-						removePhysically(path.getDescendant());
-				}
+			removedCount += removeHistoricizedTreePhysically(root, null, maximumNodes - removedCount);
+		}
+		return removedCount;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public int removeHistoricizedTreePhysically(ClosureTableTreeNode root, Date removedBefore, int maximumNodes) {
+		if (root == null || isPersistent(root) == false)
+			throw new IllegalArgumentException("Root is null or not persistent: "+root);
+		
+		if (maximumNodes <= 0)
+			throw new IllegalArgumentException("Maximum number of nodes to remove must be positive: "+maximumNodes);
+		
+		final HierarchicalLockManager.Lock lock = lockSubTree(root);
+		try	{
+			int removedCount = 0;
+			if (isArchiving())	{
+				final List<ClosureTableTreeNode> removed = removeHistoricizedNodesPhysically(archivePathEntityName(), root, removedBefore, maximumNodes);
+				if (removed.contains(root))
+					return removed.size();
+				removedCount = removed.size();
 			}
-			while (toRemove.size() > 0);
+			
+			if (removedCount < maximumNodes)
+				removedCount += removeHistoricizedNodesPhysically(pathEntityName(), root, removedBefore, maximumNodes - removedCount).size();
+			
+			return removedCount;
+		}
+		finally	{
+			unlockTrees(lock);
 		}
 	}
 
 
+	/** Overridden to stamp the valid-from date, and the valid-to sentinel if any, of new paths. */
+	@Override
+	protected TreePath newTreePathInstance() {
+		final TreePath path = super.newTreePathInstance();
+		assignValidityOnInsert((Temporal) path);
+		return path;
+	}
+
 	/** Factory method for new CacheableTreeList. Overridden for temporal variant. */
 	@Override
 	protected CacheableTreeList newCacheableTreeList(ClosureTableTreeNode parent, List<TreePath> breadthFirstTree)	{
-		return new TemporalCacheableTreeList(this, validTo()).init(parent, breadthFirstTree);
+		return newCacheableTreeList(parent, breadthFirstTree, validTo());
+	}
+	
+	private CacheableTreeList newCacheableTreeList(ClosureTableTreeNode parent, List<TreePath> breadthFirstTree, Date validityDate)	{
+		return new TemporalCacheableTreeList(this, validityDate).init(parent, breadthFirstTree);
 	}
 	
 	/**
-	 * Called when removing paths. Assigns invalidity to passed domain object.
+	 * Called when removing paths by a bulk update.
+	 * Appends the (temporal) invalidity assignment to passed JPQL statement,
+	 * something like "p.validTo = ?".
+	 * Override this to use other invalidity assignments than valid-to property.
+	 * @param tableAlias the alias of the table containing the <i>validTo</i> property, without trailing dot.
+	 * @param updateText the pending JPQL update text historicizing paths.
+	 * @param parameters the positional arguments for the pending update.
+	 * @param removeDate the historicizing date of the current remove call.
+	 */
+	protected void assignInvalidity(String tableAlias, StringBuilder updateText, List<Object> parameters, Date removeDate) {
+		if (getValidToPropertyName() == null)
+			throw new IllegalStateException("Please override assignInvalidity when validToPropertyName is null!");
+
+		if (removeDate == null)
+			throw new IllegalStateException("The remove-date is null on historizicing paths!");
+		
+		updateText.append(buildAliasedPropertyName(tableAlias, getValidToPropertyName())+" = "+buildIndexedPlaceHolder(parameters));
+		parameters.add(removeDate);
+	}
+	
+	/**
+	 * Called when unremoving paths by a bulk update.
+	 * Appends the (temporal) validity assignment to passed JPQL statement,
+	 * which is "p.validTo = null", or "p.validTo = ?" with the valid-to sentinel.
+	 * Override this to use other validity assignments than valid-to property.
+	 * @param tableAlias the alias of the table containing the <i>validTo</i> property, without trailing dot.
+	 * @param updateText the pending JPQL update text unremoving paths.
+	 * @param parameters the positional arguments for the pending update.
+	 */
+	protected void assignValidity(String tableAlias, StringBuilder updateText, List<Object> parameters) {
+		if (getValidToPropertyName() == null)
+			throw new IllegalStateException("Please override assignValidity when validToPropertyName is null!");
+
+		if (validToSentinel == null)	{
+			updateText.append(buildAliasedPropertyName(tableAlias, getValidToPropertyName())+" = null");
+		}
+		else	{
+			updateText.append(buildAliasedPropertyName(tableAlias, getValidToPropertyName())+" = "+buildIndexedPlaceHolder(parameters));
+			parameters.add(validToSentinel);
+		}
+	}
+	
+	/**
+	 * Called when moving paths to the archive. Assigns invalidity to passed domain object.
 	 * Override this to use other invalidity assignments than valid-to property.
 	 * @param path the tree-path to historicize.
+	 * @param removeDate the historicizing date of the current remove call.
 	 */
-	protected void assignInvalidity(TreePath path) {
+	protected void assignInvalidity(TreePath path, Date removeDate) {
 		if (getValidToPropertyName() == null)
 			throw new IllegalStateException("Please override assignInvalidity when validToPropertyName is null!");
 
@@ -219,7 +427,27 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 	}
 	
 	/**
-	 * Called when unremoving paths. Assigns validity to passed domain object.
+	 * Called when moving paths to or from the archive entity. Removed paths are historicized
+	 * in place before they are copied, unremoved paths are made valid after they were copied back,
+	 * thus the validity is copied, too.
+	 * Override this when paths carry additional properties.
+	 * @return the names of the path properties that are copied, ancestor, descendant, depth, order index and validity.
+	 */
+	protected List<String> getArchivedPathPropertyNames() {
+		final List<String> propertyNames = new ArrayList<String>();
+		propertyNames.add("ancestor");
+		propertyNames.add("descendant");
+		propertyNames.add("depth");
+		propertyNames.add("orderIndex");
+		if (getValidFromPropertyName() != null)
+			propertyNames.add(getValidFromPropertyName());
+		if (getValidToPropertyName() != null)
+			propertyNames.add(getValidToPropertyName());
+		return propertyNames;
+	}
+	
+	/**
+	 * Assigns validity to passed domain object.
 	 * Override this to use other validity assignments than valid-to property.
 	 * @param path the tree-path to unremove.
 	 */
@@ -227,14 +455,49 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 		if (getValidToPropertyName() == null)
 			throw new IllegalStateException("Please override assignValidity when validToPropertyName is null!");
 
-		((TemporalTreePath) path).setValidTo(null);
+		((TemporalTreePath) path).setValidTo(getValidToSentinel());
+	}
+	
+
+	/** Overridden to exclude paths to nodes below a removed ancestor when tombstoning. */
+	@Override
+	public void appendValidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters) {
+		super.appendValidityCondition(tableAlias, queryText, parameters);
+		if (tombstoning)	{
+			queryText.append(" and not");
+			appendRemovedAncestorCondition(tableAlias, queryText, parameters, validTo());
+		}
 	}
 	
+	/** Overridden to exclude paths to nodes below an ancestor removed at given date when tombstoning. */
+	@Override
+	protected void appendValidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date validityDate) {
+		super.appendValidityCondition(tableAlias, queryText, parameters, validityDate);
+		if (tombstoning)	{
+			queryText.append(" and not");
+			appendRemovedAncestorCondition(tableAlias, queryText, parameters, validityDate);
+		}
+	}
+	
+	/** Overridden to include paths to nodes below a removed ancestor when tombstoning. */
+	@Override
+	protected void appendInvalidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date removedBefore) {
+		if (tombstoning == false)	{
+			super.appendInvalidityCondition(tableAlias, queryText, parameters, removedBefore);
+			return;
+		}
+		
+		queryText.append("(");
+		super.appendInvalidityCondition(tableAlias, queryText, parameters, removedBefore);
+		queryText.append(" or");
+		appendRemovedAncestorCondition(tableAlias, queryText, parameters, removedBefore);
+		queryText.append(")");
+	}
 
-	/** Overridden to append temporal conditions. */
+	/** Overridden to append temporal conditions as given context demands. */
 	@Override
-	protected final void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended) {
-		beforeFindQuery(tableAlias, queryText, parameters, whereWasAppended, doNotApplyTemporalConditions, invertTemporalConditions);
+	protected final void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended, TemporalQueryContext context) {
+		applyTemporalConditions(tableAlias, queryText, parameters, whereWasAppended, context);
 	}
 	
 	
@@ -247,34 +510,328 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 		return false;
 	}
 
-	/** Overridden to set the historicizing date by calling validToOnRemove(). */
+	/**
+	 * Overridden to historicize the sub-tree by one bulk update, using the historicizing date
+	 * of the context, or calling validToOnRemove() when context does not yet carry one.
+	 * When archiving, the historicized paths are then moved to the archive,
+	 * and when removing physically, archived paths under given parent are deleted, too.
+	 */
 	@Override
-	protected void removeTree(ClosureTableTreeNode parent) {
-		removeDate = validToOnRemove();
-		super.removeTree(parent);
+	protected void removeTree(ClosureTableTreeNode parent, TemporalQueryContext context) {
+		if (context.isAll() == false && context.getRemoveDate() == null)
+			context = context.withRemoveDate(validToOnRemove());
+		
+		if (context.isAll() == false)	{
+			removeOrUnremove(parent, context.getRemoveDate(), true);
+			return;
+		}
+		
+		if (isArchiving() == false)	{
+			super.removeTree(parent, context);
+			return;
+		}
+		
+		final Set<ClosureTableTreeNode> archivedNodes = new HashSet<ClosureTableTreeNode>();
+		for (TreePath archivedPath : getPathsToRemove(archivePathEntityName(), parent, context))	{
+			archivedNodes.add(archivedPath.getDescendant());
+			session.delete(archivedPath);
+		}
+		
+		super.removeTree(parent, context);
+		
+		for (ClosureTableTreeNode archivedNode : archivedNodes)
+			removeNode(archivedNode, context);
 	}
 	
 	/** Overridden to do nothing as related paths are historicized. */
 	@Override
-	protected final void removeNode(ClosureTableTreeNode nodeToRemove) {
-		if (doNotApplyTemporalConditions)	{
-			super.removeNode(nodeToRemove);
+	protected final void removeNode(ClosureTableTreeNode nodeToRemove, TemporalQueryContext context) {
+		if (context.isAll())	{
+			super.removeNode(nodeToRemove, context);
 		}
 		// else: do nothing, path gets historicized
 	}
 	
-	/** Overridden to historicize path, using the historicizing date. */
+	/** Overridden to historicize path, using the historicizing date of the context. Archiving removes move paths in bulk instead. */
 	@Override
-	protected final void removePath(TreePath path) {
-		if (doNotApplyTemporalConditions)	{
-			super.removePath(path);
+	protected final void removePath(TreePath path, TemporalQueryContext context) {
+		if (context.isAll())	{
+			super.removePath(path, context);
 		}
 		else	{
-			assignInvalidity(path);
+			assignInvalidity(path, context.getRemoveDate());
 			save(path);
 		}
 	}
 	
+	/** @return the name of the archive paths entity, or null when not archiving. */
+	protected final String archivePathEntityName()	{
+		return archivePathEntity;
+	}
+	
+	
+	/**
+	 * Historicizes or unremoves all paths leading to given node and the nodes below it by one update.
+	 * When removing, paths that are already historicized keep their date.
+	 * When archiving, the paths are updated in the archive on unremove, and then moved to or from it.
+	 * @param node the root of the sub-tree to update, or null for all trees.
+	 */
+	private void removeOrUnremove(ClosureTableTreeNode node, Date removeDate, boolean isRemove) {
+		final String pathEntity = (isArchiving() && isRemove == false) ? archivePathEntityName() : pathEntityName();
+		final String subTree = (node == null)
+				? null
+				: (isRemove && tombstoning)
+					? "p.descendant = ?"	// the paths leading to the node only
+					: "p.descendant in (select p1.descendant from "+pathEntity+" p1 where p1.ancestor = ?)";
+		
+		// as this update ignores the JPA layer, read affected paths BEFORE update, to refresh or evict them after
+		final StringBuilder selectText = new StringBuilder("select p from "+pathEntity+" p");
+		final List<Object> selectParams = new ArrayList<Object>();
+		appendSubTreeAndValidityConditions(node, subTree, isRemove, selectText, selectParams);
+		final List<?> pathsToUpdate = session.queryList(selectText.toString(), selectParams.toArray());
+		if (pathsToUpdate.size() <= 0)
+			return;
+		
+		// now update all paths
+		final StringBuilder updateText = new StringBuilder("update "+pathEntity+" p set ");
+		final List<Object> updateParams = new ArrayList<Object>();
+		if (isRemove)
+			assignInvalidity("p", updateText, updateParams, removeDate);
+		else	// is recover
+			assignValidity("p", updateText, updateParams);
+		appendSubTreeAndValidityConditions(node, subTree, isRemove, updateText, updateParams);
+		
+		session.executeUpdate(updateText.toString(), updateParams.toArray());
+		
+		if (isArchiving() == false)
+			refresh(pathsToUpdate);	// refresh their properties in cache
+		else if (isRemove)
+			movePaths(pathEntityName(), archivePathEntityName(), node, pathsToUpdate);
+		else
+			movePaths(archivePathEntityName(), pathEntityName(), node, pathsToUpdate);
+	}
+	
+	/** Appends the WHERE clause for removeOrUnremove(), the sub-query deliberately does not depend on validity. */
+	private void appendSubTreeAndValidityConditions(ClosureTableTreeNode node, String subTree, boolean isRemove, StringBuilder queryText, List<Object> parameters) {
+		boolean whereWasAppended = false;
+		if (subTree != null)	{
+			queryText.append(" where "+subTree.replace("?", buildIndexedPlaceHolder(parameters)));
+			parameters.add(node);
+			whereWasAppended = true;
+		}
+		if (isRemove)	{
+			queryText.append(whereWasAppended ? " and " : " where ");
+			appendValidityCondition("p", queryText, parameters);
+		}
+	}
+	
+	/** Appends " exists (...)" looking for an ancestor of the aliased path's descendant whose self-path was removed at or before given date. */
+	private void appendRemovedAncestorCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date removedBefore)	{
+		if (tableAlias == null)
+			throw new IllegalArgumentException("Need a table alias for tombstone conditions!");
+		
+		queryText.append(" exists (select 'x' from "+pathEntityName()+" a, "+pathEntityName()+" q"+
+				" where a.descendant = "+tableAlias+".descendant and q.descendant = a.ancestor and q.depth = 0 and ");
+		super.appendInvalidityCondition("q", queryText, parameters, removedBefore);
+		queryText.append(")");
+	}
+	
+	/**
+	 * Deletes historicized nodes under given root, as found in given paths entity,
+	 * together with their paths in the paths table and the archive.
+	 * @return the deleted nodes, deepest first.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<ClosureTableTreeNode> removeHistoricizedNodesPhysically(String pathEntity, ClosureTableTreeNode root, Date removedBefore, int maximumNodes) {
+		// select the first removed nodes under that root, deepest first
+		final StringBuilder queryText = new StringBuilder(
+			"select p.descendant from "+pathEntity+" p where p.ancestor = ?1 and ");
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(root);
+		if (removedBefore == null)
+			appendInvalidityCondition("p", queryText, parameters);
+		else
+			appendInvalidityCondition("p", queryText, parameters, removedBefore);
+		queryText.append(" order by p.depth desc");
+		
+		final List<ClosureTableTreeNode> removed = (List<ClosureTableTreeNode>) queryList(queryText.toString(), parameters.toArray(), maximumNodes);
+		if (removed.size() <= 0)
+			return removed;
+		
+		// bulk statements bypass the session, thus pending changes must be written before
+		session.flush();
+		
+		for (int i = 0; i < removed.size(); i += MAXIMUM_NODES_PER_STATEMENT)
+			deleteNodesPhysically(removed.subList(i, Math.min(i + MAXIMUM_NODES_PER_STATEMENT, removed.size())));
+		
+		// the session still holds instances of deleted paths and nodes, and would write or find them later
+		if (session instanceof EvictingDbSession)
+			((EvictingDbSession) session).clear();
+		
+		return removed;
+	}
+	
+	/** Deletes given nodes, deepest first, and their paths in the paths table and the archive. */
+	private void deleteNodesPhysically(List<ClosureTableTreeNode> nodes)	{
+		deletePathsOf(pathEntityName(), nodes);
+		if (isArchiving())
+			deletePathsOf(archivePathEntityName(), nodes);
+		
+		if (isRemoveReferencedNodes())	{
+			final List<Object> parameters = new ArrayList<Object>();
+			final String placeHolders = buildPlaceHolders(nodes, parameters);
+			session.executeUpdate("delete from "+nodeEntityName()+" n where n in ("+placeHolders+")", parameters.toArray());
+		}
+	}
+	
+	/** Deletes all paths of given entity that lead to or start from one of given nodes, by one statement. */
+	private void deletePathsOf(String pathEntity, List<ClosureTableTreeNode> nodes) {
+		final List<Object> parameters = new ArrayList<Object>();
+		final String descendants = buildPlaceHolders(nodes, parameters);
+		final String ancestors = buildPlaceHolders(nodes, parameters);
+		session.executeUpdate("delete from "+pathEntity+" p where p.descendant in ("+descendants+") or p.ancestor in ("+ancestors+")", parameters.toArray());
+	}
+	
+	private void evict(List<?> entities)	{
+		if (session instanceof EvictingDbSession)
+			for (Object entity : entities)
+				((EvictingDbSession) session).evict(entity);
+	}
+	
+	private void readChanges(String pathEntity, ClosureTableTreeNode root, Date after, Date until, Date from, Date to, List<TemporalTreeChange<ClosureTableTreeNode>> changes)	{
+		if (getValidFromPropertyName() != null)	{
+			for (TreePath path : findChangedPaths(pathEntity, root, 0, true, after, until, from, to))
+				changes.add(new TemporalTreeChange<ClosureTableTreeNode>(TemporalTreeChange.Type.ADDED, path.getDescendant(), ((Temporal) path).getValidFrom()));
+			
+			for (TreePath path : findChangedPaths(pathEntity, root, 1, true, after, until, from, to))
+				changes.add(new TemporalTreeChange<ClosureTableTreeNode>(TemporalTreeChange.Type.MOVED, path.getDescendant(), ((Temporal) path).getValidFrom()));
+		}
+		
+		for (TreePath path : findChangedPaths(pathEntity, root, 0, false, after, until, from, to))	{
+			final Date removeDate = ((Temporal) path).getValidTo();
+			changes.add(new TemporalTreeChange<ClosureTableTreeNode>(TemporalTreeChange.Type.REMOVED, path.getDescendant(), removeDate));
+			
+			if (tombstoning)	// descendants were removed together with the tombstone
+				for (ClosureTableTreeNode descendant : findTombstonedDescendants(path.getDescendant(), removeDate))
+					changes.add(new TemporalTreeChange<ClosureTableTreeNode>(TemporalTreeChange.Type.REMOVED, descendant, removeDate));
+		}
+	}
+	
+	/** @return the descendants of given tombstone that were valid when it was removed. */
+	@SuppressWarnings("unchecked")
+	private List<ClosureTableTreeNode> findTombstonedDescendants(ClosureTableTreeNode tombstone, Date removeDate)	{
+		final StringBuilder queryText = new StringBuilder(
+				"select p.descendant from "+pathEntityName()+" p, "+pathEntityName()+" s "+
+				"where p.ancestor = ?1 and p.depth > 0 and s.descendant = p.descendant and s.depth = 0 and ");
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(tombstone);
+		super.appendValidityCondition("s", queryText, parameters, removeDate);
+		return (List<ClosureTableTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+	}
+	
+	/**
+	 * @param depth 0 for self-references, telling added and removed nodes, 1 for parent paths, telling moved nodes.
+	 * @param added true for paths that became valid within given slice and still are at the end of the range,
+	 * 		false for paths that were historicized within given slice.
+	 * @return the paths of given tree (all trees when null) that changed within given slice,
+	 * 		except parent paths of nodes that were added within the range, and self-references
+	 * 		of removed nodes that were added within the range.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<TreePath> findChangedPaths(String pathEntity, ClosureTableTreeNode root, int depth, boolean added, Date after, Date until, Date from, Date to)	{
+		final String validTo = buildAliasedPropertyName("p", getValidToPropertyName());
+		final String changeDate = added ? buildAliasedPropertyName("p", getValidFromPropertyName()) : validTo;
+		final String selfValidFrom = (getValidFromPropertyName() != null) ? buildAliasedPropertyName("s", getValidFromPropertyName()) : null;
+		
+		final StringBuilder queryText = new StringBuilder(
+				"select p from "+pathEntity+" p, "+pathEntity+" s "+
+				"where p.depth = "+depth+" and s.depth = 0 and s.descendant = p.descendant");
+		final List<Object> parameters = new ArrayList<Object>();
+		if (root != null)	{
+			queryText.append(" and exists (select 'x' from "+pathEntity+" r where r.ancestor = "+buildIndexedPlaceHolder(parameters)+" and r.descendant = p.descendant)");
+			parameters.add(root);
+		}
+		queryText.append(" and "+changeDate+" > "+buildIndexedPlaceHolder(parameters));
+		parameters.add(after);
+		queryText.append(" and "+changeDate+" <= "+buildIndexedPlaceHolder(parameters));
+		parameters.add(until);
+		
+		if (added)	{	// still valid at end of range
+			queryText.append(" and ("+validTo+" is null or "+validTo+" > "+buildIndexedPlaceHolder(parameters)+")");
+			parameters.add(to);
+		}
+		if (selfValidFrom != null && (added == false || depth > 0))	{	// node already valid at start of range
+			queryText.append(" and ("+selfValidFrom+" is null or "+selfValidFrom+" <= "+buildIndexedPlaceHolder(parameters)+")");
+			parameters.add(from);
+		}
+		return (List<TreePath>) session.queryList(queryText.toString(), parameters.toArray());
+	}
+	
+	/**
+	 * Moves all paths leading to given node and the nodes below it from one paths entity to the other,
+	 * by one "insert into ... select" statement and one bulk delete.
+	 * @param node the root of the sub-tree to move, or null for all trees.
+	 * @param heldPaths the instances of the moved paths the session may hold, they get evicted after the delete.
+	 */
+	private void movePaths(String fromPathEntity, String toPathEntity, ClosureTableTreeNode node, List<?> heldPaths) {
+		final List<Object> parameters = new ArrayList<Object>();
+		String condition = "";
+		if (node != null)	{
+			condition = " where p.descendant in (select p1.descendant from "+fromPathEntity+" p1 where p1.ancestor = "+buildIndexedPlaceHolder(parameters)+")";
+			parameters.add(node);
+		}
+		
+		final StringBuilder insertProperties = new StringBuilder();
+		final StringBuilder selectProperties = new StringBuilder();
+		for (String propertyName : getArchivedPathPropertyNames())	{
+			insertProperties.append(insertProperties.length() > 0 ? ", " : "").append(propertyName);
+			selectProperties.append(selectProperties.length() > 0 ? ", " : "").append(buildAliasedPropertyName("p", propertyName));
+		}
+		
+		// bulk statements bypass the session, thus pending changes must be written before
+		session.flush();
+		
+		session.executeUpdate(
+				"insert into "+toPathEntity+" ("+insertProperties+") select "+selectProperties+" from "+fromPathEntity+" p"+condition,
+				parameters.toArray());
+		
+		session.executeUpdate("delete from "+fromPathEntity+" p"+condition, parameters.toArray());
+		
+		evict(heldPaths);	// the session still holds them, and would write them on next flush
+	}
+	
+	/**
+	 * Locks the sub-tree an unremove of given node writes to, which is the one of its parent.
+	 * When archiving and the parent is removed, too, its ancestors are unknown, then all trees are locked.
+	 */
+	private HierarchicalLockManager.Lock lockUnremove(ClosureTableTreeNode node)	{
+		final String pathEntity = isArchiving() ? archivePathEntityName() : pathEntityName();
+		final List<?> parents = session.queryList(
+				"select p.ancestor from "+pathEntity+" p where p.descendant = ?1 and p.depth = 1",
+				new Object [] { node });
+		if (parents.size() <= 0)
+			return lockSubTree(null);	// a root, lock the list of roots
+		
+		final ClosureTableTreeNode parent = (ClosureTableTreeNode) parents.get(0);
+		if (isArchiving() && session.queryCount(
+				"select count(p) from "+pathEntityName()+" p where p.descendant = ?1 and p.depth = 0",
+				new Object [] { parent }) <= 0)
+			return lockAllTrees();
+		
+		return lockSubTree(parent);
+	}
+	
+	
+	/** @return "?3, ?4" for two given values when parameters.size() == 2, the values get added to parameters. */
+	private String buildPlaceHolders(List<?> values, List<Object> parameters) {
+		final StringBuilder placeHolders = new StringBuilder();
+		for (Object value : values)	{
+			placeHolders.append(placeHolders.length() > 0 ? ", " : "").append(buildIndexedPlaceHolder(parameters));
+			parameters.add(value);
+		}
+		return placeHolders.toString();
+	}
+	
 	
 	@Override
 	protected final String getValidFromPropertyName()	{
@@ -287,4 +844,109 @@ public class TemporalClosureTableTreeDao extends ClosureTableTreeDao implements
 	}
 
 	
+
+
+	/**
+	 * Reads paths that were valid at a fixed date, from the paths entity and, when archiving,
+	 * from the archive entity. Holds nothing but the date, thus is immutable.
+	 */
+	private class AsOfView implements TemporalTreeView<ClosureTableTreeNode>
+	{
+		private final Date date;
+		private final TemporalQueryContext context;
+		
+		AsOfView(Date date)	{
+			this.date = new Date(date.getTime());	// Date is mutable
+			this.context = TemporalQueryContext.VALID.withValidityDate(this.date);
+		}
+		
+		@Override
+		public Date getDate() {
+			return new Date(date.getTime());
+		}
+		
+		@Override
+		public List<ClosureTableTreeNode> getRoots() {
+			if (isArchiving() == false)
+				return TemporalClosureTableTreeDao.this.getRoots(context);
+			
+			return union(
+					TemporalClosureTableTreeDao.this.getRoots(context),
+					TemporalClosureTableTreeDao.this.getRoots(archivePathEntityName(), context));
+		}
+		
+		@Override
+		public List<ClosureTableTreeNode> getChildren(ClosureTableTreeNode parent) {
+			final List<TreePath> paths = new ArrayList<TreePath>(getChildPaths(pathEntityName(), parent, context));
+			if (isArchiving())	{
+				paths.addAll(getChildPaths(archivePathEntityName(), parent, context));
+				Collections.sort(paths, BREADTH_FIRST);
+			}
+			
+			final List<ClosureTableTreeNode> children = new ArrayList<ClosureTableTreeNode>(paths.size());
+			for (TreePath path : paths)
+				children.add(path.getDescendant());
+			return children;
+		}
+		
+		@Override
+		public List<ClosureTableTreeNode> getPath(ClosureTableTreeNode node) {
+			final List<TreePath> paths = new ArrayList<TreePath>(getAncestorPaths(pathEntityName(), node, context));
+			if (isArchiving())	{
+				paths.addAll(getAncestorPaths(archivePathEntityName(), node, context));
+				Collections.sort(paths, BREADTH_FIRST);
+				Collections.reverse(paths);	// the deeper the path the higher the ancestor
+			}
+			
+			final List<ClosureTableTreeNode> path = new ArrayList<ClosureTableTreeNode>(paths.size());
+			for (TreePath ancestorPath : paths)
+				if (ancestorPath.getDepth() > 0)	// leave out the node's self-reference
+					path.add(ancestorPath.getAncestor());
+			return path;
+		}
+		
+		@Override
+		public List<ClosureTableTreeNode> getTree(ClosureTableTreeNode parent) {
+			if (isArchiving() == false)
+				return TemporalClosureTableTreeDao.this.getTree(pathEntityName(), parent, context);
+			
+			return union(
+					TemporalClosureTableTreeDao.this.getTree(pathEntityName(), parent, context),
+					TemporalClosureTableTreeDao.this.getTree(archivePathEntityName(), parent, context));
+		}
+		
+		@Override
+		public List<ClosureTableTreeNode> find(ClosureTableTreeNode parent, Map<String,Object> criteria) {
+			if (isArchiving() == false)
+				return TemporalClosureTableTreeDao.this.find(pathEntityName(), parent, criteria, context);
+			
+			return union(
+					TemporalClosureTableTreeDao.this.find(pathEntityName(), parent, criteria, context),
+					TemporalClosureTableTreeDao.this.find(archivePathEntityName(), parent, criteria, context));
+		}
+		
+		@Override
+		public List<ClosureTableTreeNode> getTreeCacheable(ClosureTableTreeNode parent) {
+			final List<TreePath> breadthFirstTree = new ArrayList<TreePath>(getTreeCacheablePaths(pathEntityName(), parent, context));
+			if (isArchiving())	{
+				breadthFirstTree.addAll(getTreeCacheablePaths(archivePathEntityName(), parent, context));
+				Collections.sort(breadthFirstTree, BREADTH_FIRST);
+			}
+			return newCacheableTreeList(parent, breadthFirstTree, date);
+		}
+		
+		@Override
+		public String toString() {
+			return getClass().getSimpleName()+"[date="+date+"]";
+		}
+		
+		private List<ClosureTableTreeNode> union(List<ClosureTableTreeNode> nodes, List<ClosureTableTreeNode> archivedNodes)	{
+			final List<ClosureTableTreeNode> result = new ArrayList<ClosureTableTreeNode>(nodes);
+			for (ClosureTableTreeNode node : archivedNodes)
+				if (result.contains(node) == false)
+					result.add(node);
+			return result;
+		}
+	}
+
 }
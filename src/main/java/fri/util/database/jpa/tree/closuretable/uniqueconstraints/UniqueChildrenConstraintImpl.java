@@ -31,4 +31,14 @@ public class UniqueChildrenConstraintImpl extends UniqueWholeTreeConstraintImpl
 		return checkUniqueChildrenConstraint(node, location);
 	}
 	
+	/** {@inheritDoc} */
+	@Override
+	public final boolean deferUniqueConstraint(List<ClosureTableTreeNode> nodes, TreeActionLocation<ClosureTableTreeNode> location)	{
+		final ClosureTableTreeNode node = nodes.get(0);	// topmost only, as in checkUniqueConstraint()
+		if (isRootsCheck(location.root, node))	{
+			return super.deferUniqueConstraint(nodes, location);
+		}
+		return deferUniqueChildrenConstraint(node, location);
+	}
+	
 }
@@ -48,4 +48,12 @@ public class UniqueWholeTreeConstraintImpl extends AbstractWholeTreeUniqueConstr
 		parameters.add(root);
 	}
 
+	/** Restricts the uniqueness query to the paths from given parent to its direct children. */
+	@Override
+	protected boolean appendChildCheckingCondition(ClosureTableTreeNode parent, StringBuilder queryText, List<Object> parameters) {
+		queryText.append(getPathTableAlias()+".ancestor = "+QueryBuilderUtil.buildIndexedPlaceHolder(parameters)+" and "+getPathTableAlias()+".depth = 1");
+		parameters.add(parent);
+		return true;
+	}
+
 }
@@ -4,18 +4,21 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import fri.util.database.jpa.commons.DbSession;
 import fri.util.database.jpa.tree.AbstractTreeDao;
+import fri.util.database.jpa.tree.TemporalQueryContext;
 import fri.util.database.jpa.tree.uniqueconstraints.UniqueConstraintViolationException;
+import fri.util.database.jpa.tree.util.LockStripes;
 import fri.util.database.jpa.tree.util.QueryBuilderUtil;
 import fri.util.database.jpa.tree.util.TreeActionLocation;
 
 /**
  * Data-access-object for a hierarchical representation of records (nodes),
- * using one database table, having no parent reference in children.
+ * using one database table, where children need no parent reference.
  * A nested-sets tree will always maintain child positions, meaning children
  * lists have a defined order which can only be changed by a move().
  * <p/>
@@ -26,7 +29,13 @@ import fri.util.database.jpa.tree.util.TreeActionLocation;
  * For a root, left index is 1, right index is (number of nodes * 2).
  * See links in TreeDao for more information.
  * <p/>
- * Note: as the temporal derivation obtains a state, all write-methods here are synchronized.
+ * When the entity class implements <code>ParentReferencingNestedSetsTreeNode</code>,
+ * this DAO additionally maintains a reference to the direct parent in every node,
+ * and reads parents and direct children by that reference instead of by sub-tree queries.
+ * <p/>
+ * Note: write-methods lock the trees they modify, by the top-level node of the passed nodes.
+ * Writes to different trees run in parallel, as far as they map to different lock stripes.
+ * Moves and copies between trees lock both trees in a deadlock-free order.
  * 
  * @see fri.util.database.jpa.tree.nestedsets.NestedSetsTreeNode
  * @see fri.util.database.jpa.tree.TreeDao
@@ -36,11 +45,20 @@ import fri.util.database.jpa.tree.util.TreeActionLocation;
 public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 {
 	/** The "left" order number of any root. */
-	private static final int ROOT_LEFT = 1;
+	protected static final int ROOT_LEFT = 1;
+	
+	/** The default number of lock stripes for write-methods. */
+	public static final int DEFAULT_LOCK_STRIPES = 64;
 	
 	/** JPA class of the database table that represents the NestedSetsTree. */
 	private final Class<? extends NestedSetsTreeNode> nestedSetsTreeEntityClass;
 	
+	/** True when nodes hold a reference to their direct parent. */
+	private final boolean parentReferenced;
+	
+	/** Per-tree locks for write-methods, selected by top-level node. */
+	private final LockStripes lockStripes;
+	
 	
 	/**
 	 * @param entityClass the persistence class representing the tree, implementing NestedSetsTreeNode.
@@ -51,7 +69,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 			Class<? extends NestedSetsTreeNode> entityClass,
 			DbSession session)
 	{
-		this(entityClass, entityClass.getSimpleName(), session);
+		this(entityClass, session, DEFAULT_LOCK_STRIPES);
 	}
 	
 	/**
@@ -63,12 +81,54 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 			Class<? extends NestedSetsTreeNode> entityClass,
 			String entityName,
 			DbSession session)
+	{
+		this(entityClass, entityName, session, DEFAULT_LOCK_STRIPES);
+	}
+	
+	/**
+	 * @param entityClass the persistence class representing the tree, implementing NestedSetsTreeNode.
+	 * @param dbSession the database layer abstraction to be used for persistence actions.
+	 * @param lockStripes the number of locks write-methods use, 1 serializes all writes.
+	 * Its simpleName will be used as table name for queries.
+	 */
+	public NestedSetsTreeDao(
+			Class<? extends NestedSetsTreeNode> entityClass,
+			DbSession session,
+			int lockStripes)
+	{
+		this(entityClass, entityClass.getSimpleName(), session, lockStripes);
+	}
+	
+	/**
+	 * @param entityClass the persistence class representing the tree table, implementing NestedSetsTreeNode.
+	 * @param entityName the JPQL entity name of the database table to be used for queries, normally entityClass.getSimpleName().
+	 * @param dbSession the database layer abstraction to be used for persistence actions.
+	 * @param lockStripes the number of locks write-methods use, 1 serializes all writes.
+	 */
+	public NestedSetsTreeDao(
+			Class<? extends NestedSetsTreeNode> entityClass,
+			String entityName,
+			DbSession session,
+			int lockStripes)
 	{
 		super(session, entityName);
 		
 		assert entityClass != null && entityName != null;
 		
 		this.nestedSetsTreeEntityClass = entityClass;
+		this.parentReferenced = ParentReferencingNestedSetsTreeNode.class.isAssignableFrom(entityClass);
+		this.lockStripes = new LockStripes(lockStripes);
+	}
+	
+	
+	/** @return true when the entity class implements ParentReferencingNestedSetsTreeNode. */
+	public final boolean isParentReferenced() {
+		return parentReferenced;
+	}
+	
+	/** @return the locks of write-methods, exposing lock wait times for tuning. */
+	public final LockStripes getLockStripes()	{
+		return lockStripes;
 	}
 	
 	
@@ -90,6 +150,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		}
 		
 		save(entity);
+		fireNodeUpdated(entity);
 	}
 
 	/** {@inheritDoc} */
@@ -107,6 +168,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		root.setLeft(ROOT_LEFT);
 		root.setRight(ROOT_LEFT + 1);
 		root.setTopLevel(root);
+		setParentReference(root, null);
 		
 		Location location = new Location(null, TreeActionLocation.RelatedNodeType.PARENT, null, TreeActionLocation.ActionType.INSERT, ROOT_LEFT);
 		checkUniqueness(Arrays.asList(new NestedSetsTreeNode [] { root }), location);
@@ -116,22 +178,33 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	
 	/** {@inheritDoc} */
 	@Override
-	@SuppressWarnings("unchecked")
 	public List<NestedSetsTreeNode> getRoots()	{
-		StringBuilder queryText = new StringBuilder(
-				"select t from "+nodeEntityName()+" t "+
-				"where t.topLevel = t");
-		List<Object> parameters = new ArrayList<Object>();
-		beforeFindQuery("t", queryText, parameters, true);
-		return (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+		return getRoots(TemporalQueryContext.VALID);
+	}
+	
+	/** @return the roots found with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<NestedSetsTreeNode> getRoots(TemporalQueryContext context)	{
+		final List<Object> parameters = new ArrayList<Object>();
+		final String queryText = findQuery(
+				"select t from "+ENTITY+" t "+
+				"where t.topLevel = t", null,
+				nodeEntityName(), "t", parameters, context);
+		return (List<NestedSetsTreeNode>) session.queryList(queryText, parameters.toArray());
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void removeAll() {
-		session.executeUpdate("update "+nodeEntityName()+" t set t.topLevel = null", null);
-		// else roots would not be removable (under MySQL) because they have a self-reference
-		session.executeUpdate("delete from "+nodeEntityName(), null);
+	public void removeAll() {
+		final int [] locks = lockAllTrees();
+		try	{
+			session.executeUpdate("update "+nodeEntityName()+" t set t.topLevel = null"+(isParentReferenced() ? ", t.parent = null" : ""), null);
+			// else roots would not be removable (under MySQL) because they have a self-reference
+			session.executeUpdate("delete from "+nodeEntityName(), null);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 	
 	/** {@inheritDoc} */
@@ -143,9 +216,14 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	/** {@inheritDoc} */
 	@Override
 	public List<NestedSetsTreeNode> getTree(NestedSetsTreeNode parent) {
+		return getTree(parent, TemporalQueryContext.VALID);
+	}
+	
+	/** @return the tree under given parent, found with given temporal context. */
+	protected final List<NestedSetsTreeNode> getTree(NestedSetsTreeNode parent, TemporalQueryContext context) {
 		if (isRoot(parent))
-			return getRootTreeDepthFirst(parent);
-		return getSubTreeDepthFirst(parent);
+			return getRootTreeDepthFirst(parent, context);
+		return getSubTreeDepthFirst(parent, context);
 	}
 
 	/** {@inheritDoc} */
@@ -160,16 +238,39 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		return node.getLeft() + 1 == node.getRight();
 	}
 	
+	/**
+	 * Batched isLeaf(), e.g. for rendering expand-icons of a children list.
+	 * @param nodes the nodes to check.
+	 * @return an array parallel to given nodes, holding true where the node is a leaf.
+	 */
+	public boolean [] isLeaf(List<NestedSetsTreeNode> nodes)	{
+		final boolean [] leafs = new boolean [nodes.size()];
+		for (int i = 0; i < leafs.length; i++)
+			leafs[i] = isLeaf(nodes.get(i));
+		return leafs;
+	}
+	
 	/** {@inheritDoc} */
 	@Override
 	public int getChildCount(NestedSetsTreeNode parent) {
+		if (isParentReferenced())	{
+			final List<Object> parameters = new ArrayList<Object>();
+			parameters.add(parent);
+			final String queryText = findQuery(
+					"select count(t) from "+ENTITY+" t where t.parent = ?1 ", null,
+					nodeEntityName(), "t", parameters, TemporalQueryContext.VALID);
+			return session.queryCount(queryText, parameters.toArray());
+		}
 		return getChildren(parent).size();
 	}
 	
 	/** {@inheritDoc} */
 	@Override
 	public List<NestedSetsTreeNode> getChildren(NestedSetsTreeNode parent) {
-		List<NestedSetsTreeNode> subTree = getSubTreeDepthFirst(parent);	// refreshes parent
+		if (isParentReferenced())
+			return getChildrenByParentReference(parent, TemporalQueryContext.VALID);
+		
+		List<NestedSetsTreeNode> subTree = getSubTreeDepthFirst(parent, TemporalQueryContext.VALID);	// refreshes parent
 		return findDirectChildren(subTree);
 	}
 
@@ -180,6 +281,14 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	 */
 	@Override
 	public List<NestedSetsTreeNode> findDirectChildren(List<NestedSetsTreeNode> subNodes) {
+		return findDirectChildren(subNodes, TemporalQueryContext.VALID);
+	}
+	
+	/**
+	 * Finds a children list like findDirectChildren(), filtering children with given temporal context.
+	 * @return a list of direct children of the the parent node that is first in list.
+	 */
+	protected final List<NestedSetsTreeNode> findDirectChildren(List<NestedSetsTreeNode> subNodes, TemporalQueryContext context) {
 		List<NestedSetsTreeNode> children = new ArrayList<NestedSetsTreeNode>();
 		
 		// check if there are sub-nodes
@@ -196,7 +305,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		int i = 0;
 		for (NestedSetsTreeNode node : subNodes)	{
 			if (isNextChild(nextChildLeft, node, currentChildRight, subNodes, i))	{
-				if (isValidFilterChild(node))	{
+				if (isValidFilterChild(node, context))	{
 					children.add(node);
 					currentChildRight = node.getRight();
 				}
@@ -225,7 +334,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		List<NestedSetsTreeNode> subTree = new ArrayList<NestedSetsTreeNode>();
 		for (NestedSetsTreeNode node : tree)	{
 			if (node.getLeft() >= parent.getLeft() && node.getRight() <= parent.getRight())	{
-				if (isValidFilterChild(node))
+				if (isValidFilterChild(node, TemporalQueryContext.VALID))
 					subTree.add(node);
 			}
 		}
@@ -239,7 +348,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	 * To be overridden.
 	 */
 	@SuppressWarnings("unused")
-	protected boolean isValidFilterChild(NestedSetsTreeNode entity) {
+	protected boolean isValidFilterChild(NestedSetsTreeNode entity, TemporalQueryContext context) {
 		return true;
 	}
 
@@ -252,6 +361,9 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	/** {@inheritDoc} */
 	@Override
 	public NestedSetsTreeNode getParent(NestedSetsTreeNode node) {
+		if (isParentReferenced())
+			return isPersistent(node) ? ((ParentReferencingNestedSetsTreeNode) node).getParent() : null;
+		
 		List<NestedSetsTreeNode> path = getPath(node);
 		int size = path.size();
 		return size <= 0 ? null : path.get(size - 1);	// last in path will be the direct parent of child
@@ -303,26 +415,49 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized NestedSetsTreeNode addChildAt(NestedSetsTreeNode parent, NestedSetsTreeNode child, int position) throws UniqueConstraintViolationException {
-		Location location = location(parent, position, null, false);
-		return addChild(location, child);
+	public NestedSetsTreeNode addChildAt(NestedSetsTreeNode parent, NestedSetsTreeNode child, int position) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(parent);
+		try	{
+			Location location = location(parent, position, null, false);
+			return addChild(location, child);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized NestedSetsTreeNode addChildBefore(NestedSetsTreeNode sibling, NestedSetsTreeNode child) throws UniqueConstraintViolationException {
-		Location location = new Location(sibling.getTopLevel(), TreeActionLocation.RelatedNodeType.SIBLING, sibling, TreeActionLocation.ActionType.INSERT, sibling.getLeft());
-		return addChild(location, child);
+	public NestedSetsTreeNode addChildBefore(NestedSetsTreeNode sibling, NestedSetsTreeNode child) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(sibling);
+		try	{
+			Location location = new Location(sibling.getTopLevel(), TreeActionLocation.RelatedNodeType.SIBLING, sibling, TreeActionLocation.ActionType.INSERT, sibling.getLeft());
+			return addChild(location, child);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 	
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void remove(NestedSetsTreeNode node) {
+	public void remove(NestedSetsTreeNode node) {
+		remove(node, TemporalQueryContext.VALID);
+	}
+	
+	/** Removes given node and its sub-tree, physically or not, according to given temporal context. */
+	protected final void remove(NestedSetsTreeNode node, TemporalQueryContext context) {
 		if (node == null || isPersistent(node) == false)
 			throw new IllegalArgumentException("Node is null or not persistent: "+node);
 
-		remove(node, numberOfNodesInSubTree(node));
+		final int [] locks = lockTrees(node);
+		try	{
+			remove(node, numberOfNodesInSubTree(node), context);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 
 	
@@ -334,25 +469,43 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void moveTo(NestedSetsTreeNode node, NestedSetsTreeNode parent, int position) throws UniqueConstraintViolationException {
-		Location location = location(parent, position, node, false);
-		move(location, node);
+	public void moveTo(NestedSetsTreeNode node, NestedSetsTreeNode parent, int position) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(node, parent);
+		try	{
+			Location location = location(parent, position, node, false);
+			move(location, node);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void moveBefore(NestedSetsTreeNode node, NestedSetsTreeNode sibling) throws UniqueConstraintViolationException {
-		Location location = new Location(sibling.getTopLevel(), TreeActionLocation.RelatedNodeType.SIBLING, sibling, TreeActionLocation.ActionType.MOVE, sibling.getLeft());
-		move(location, node);
+	public void moveBefore(NestedSetsTreeNode node, NestedSetsTreeNode sibling) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(node, sibling);
+		try	{
+			Location location = new Location(sibling.getTopLevel(), TreeActionLocation.RelatedNodeType.SIBLING, sibling, TreeActionLocation.ActionType.MOVE, sibling.getLeft());
+			move(location, node);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void moveToBeRoot(NestedSetsTreeNode child) throws UniqueConstraintViolationException {
-		if (isRoot(child))
-			return;
-			
-		copyOrMoveToBeRoot(child, false, null);
+	public void moveToBeRoot(NestedSetsTreeNode child) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(child);
+		try	{
+			if (isRoot(child))
+				return;
+				
+			copyOrMoveToBeRoot(child, false, null);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 
 
@@ -365,29 +518,52 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized NestedSetsTreeNode copyTo(NestedSetsTreeNode node, NestedSetsTreeNode parent, int position, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
-		Location location = location(parent, position, node, true);
-		return copy(location, node, copiedNodeTemplate);
+	public NestedSetsTreeNode copyTo(NestedSetsTreeNode node, NestedSetsTreeNode parent, int position, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(node, parent);
+		try	{
+			Location location = location(parent, position, node, true);
+			return copy(location, node, copiedNodeTemplate);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized NestedSetsTreeNode copyBefore(NestedSetsTreeNode node, NestedSetsTreeNode sibling, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
-		Location location = new Location(sibling.getTopLevel(), TreeActionLocation.RelatedNodeType.SIBLING, sibling, TreeActionLocation.ActionType.COPY, sibling.getLeft());
-		return copy(location, node, copiedNodeTemplate);
+	public NestedSetsTreeNode copyBefore(NestedSetsTreeNode node, NestedSetsTreeNode sibling, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(node, sibling);
+		try	{
+			Location location = new Location(sibling.getTopLevel(), TreeActionLocation.RelatedNodeType.SIBLING, sibling, TreeActionLocation.ActionType.COPY, sibling.getLeft());
+			return copy(location, node, copiedNodeTemplate);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized NestedSetsTreeNode copyToBeRoot(NestedSetsTreeNode child, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
-		return copyOrMoveToBeRoot(child, true, copiedNodeTemplate);
+	public NestedSetsTreeNode copyToBeRoot(NestedSetsTreeNode child, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
+		final int [] locks = lockTrees(child);
+		try	{
+			return copyOrMoveToBeRoot(child, true, copiedNodeTemplate);
+		}
+		finally	{
+			unlockTrees(locks);
+		}
 	}
 
 
 	/** {@inheritDoc} */
 	@Override
-	@SuppressWarnings("unchecked")
 	public List<NestedSetsTreeNode> find(final NestedSetsTreeNode parent, Map<String,Object> criteria)	{
+		return find(parent, criteria, TemporalQueryContext.VALID);
+	}
+	
+	/** @return the nodes matching given criteria, found with given temporal context. */
+	@SuppressWarnings("unchecked")
+	protected final List<NestedSetsTreeNode> find(final NestedSetsTreeNode parent, Map<String,Object> criteria, TemporalQueryContext context)	{
 		StringBuilder queryText = new StringBuilder("select t from "+nodeEntityName()+" t ");
 		List<Object> parameters = new ArrayList<Object>();
 		boolean whereAppended = false;
@@ -400,40 +576,64 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		
 		whereAppended = QueryBuilderUtil.appendCriteria(true, queryText, "t", parameters, criteria, whereAppended);
 		
-		beforeFindQuery("t", queryText, parameters, whereAppended);
+		beforeFindQuery("t", queryText, parameters, whereAppended, context);
 		
 		return (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
 	}
 
 	
 	/**
-	 * Does nothing.
-	 * Override to append temporal conditions. Called from all querying methods.
-	 * This method is expected to first append a WHERE when whereWasAppended is false,
-	 * or an AND when whereWasAppended is true.
+	 * Locks the trees of given nodes for writing, by their top-level node.
+	 * Nodes that are not yet in a tree are ignored.
+	 * @return the lock handle to pass to <code>unlockTrees()</code> in a finally-block.
 	 */
-	@SuppressWarnings("unused")
-	protected void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended) {
+	protected final int [] lockTrees(NestedSetsTreeNode... nodes)	{
+		final Object [] topLevelIds = new Object[nodes.length];
+		for (int i = 0; i < nodes.length; i++)
+			if (nodes[i] != null && nodes[i].getTopLevel() != null)
+				topLevelIds[i] = nodes[i].getTopLevel().getId();
+		
+		return lockStripes.lock(topLevelIds);
 	}
-
-
 	
-	/** Removes given children. To be overridden by subclasses. */
-	protected void remove(NestedSetsTreeNode node, final int removedNodesCount) {
+	/**
+	 * Locks all trees, for writes that are not restricted to a tree. Must not be called
+	 * while holding the lock of a single tree, unless there is only one lock stripe.
+	 * @return the lock handle to pass to <code>unlockTrees()</code> in a finally-block.
+	 */
+	protected final int [] lockAllTrees()	{
+		return lockStripes.lockAll();
+	}
+	
+	/** Releases locks obtained by <code>lockTrees()</code> or <code>lockAllTrees()</code>. */
+	protected final void unlockTrees(int [] locks)	{
+		lockStripes.unlock(locks);
+	}
+	
+	/** Removes given children. To be overridden by subclasses, the context tells whether to remove physically. */
+	@SuppressWarnings("unused")
+	protected void remove(NestedSetsTreeNode node, final int removedNodesCount, TemporalQueryContext context) {
 		final NestedSetsTreeNode topLevel = node.getTopLevel();
 		final int left = node.getLeft();
 		final int right = node.getRight();
+		if (isParentReferenced())	{	// release parent references inside the sub-tree, for the same reason as topLevel below
+			session.executeUpdate(statement(
+					"update "+ENTITY+" t "+
+					"set t.parent = null "+
+					"where t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3", nodeEntityName()),
+					new Object [] { topLevel, left, right });
+		}
 		if (isRoot(node))	{	// must set topLevel to null on all tree members, else referential integrity violation on some databases (MySQL)
-			session.executeUpdate(
-					"update "+nodeEntityName()+" t "+
+			session.executeUpdate(statement(
+					"update "+ENTITY+" t "+
 					"set t.topLevel = null "+
-					"where t.topLevel = ?1",
+					"where t.topLevel = ?1", nodeEntityName()),
 					new Object [] { topLevel });
 		}
 		
-		session.executeUpdate(
-				"delete from "+nodeEntityName()+" t "+
-				"where (t.topLevel is null or t.topLevel = ?1) and t.lft >= ?2 and t.rgt <= ?3",
+		session.executeUpdate(statement(
+				"delete from "+ENTITY+" t "+
+				"where (t.topLevel is null or t.topLevel = ?1) and t.lft >= ?2 and t.rgt <= ?3", nodeEntityName()),
 				new Object [] { topLevel, left, right });
 		
 		closeGap(left, right, topLevel, removedNodesCount);
@@ -444,6 +644,25 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		return getChildren(parent);
 	}
 	
+	/**
+	 * Reads direct children by parent reference, call this only when isParentReferenced() is true.
+	 * @param parent the node to read children for.
+	 * @param context the temporal context to read children with.
+	 * @return the direct children of given parent, ordered by left index.
+	 */
+	@SuppressWarnings("unchecked")
+	protected final List<NestedSetsTreeNode> getChildrenByParentReference(NestedSetsTreeNode parent, TemporalQueryContext context)	{
+		assert isParentReferenced();
+		
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(parent);
+		final String queryText = findQuery(
+			"select t from "+ENTITY+" t where t.parent = ?1 ", " order by t.lft",
+			nodeEntityName(), "t", parameters, context);
+		return Collections.unmodifiableList(
+				(List<NestedSetsTreeNode>) session.queryList(queryText, parameters.toArray()));
+	}
+	
 
 	
 	private NestedSetsTreeNode copyOrMoveToBeRoot(NestedSetsTreeNode child, boolean isCopy, NestedSetsTreeNode copiedNodeTemplate) throws UniqueConstraintViolationException {
@@ -465,27 +684,26 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	}
 
 	@SuppressWarnings("unchecked")
-	private List<NestedSetsTreeNode> getRootTreeDepthFirst(NestedSetsTreeNode root) {
-		StringBuilder queryText = new StringBuilder(
-				"select t from "+nodeEntityName()+" t where t.topLevel = ?1 ");
-		List<Object> parameters = new ArrayList<Object>();
+	private List<NestedSetsTreeNode> getRootTreeDepthFirst(NestedSetsTreeNode root, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(root.getTopLevel());
-		beforeFindQuery("t", queryText, parameters, true);
-		queryText.append(" order by t.lft");
-		return (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+		parameters.add(Integer.valueOf(ROOT_LEFT));
+		final String queryText = findQuery(	// left indexes below root left are sub-trees detached by temporal compaction
+				"select t from "+ENTITY+" t where t.topLevel = ?1 and t.lft >= ?2 ", " order by t.lft",
+				nodeEntityName(), "t", parameters, context);
+		return (List<NestedSetsTreeNode>) session.queryList(queryText, parameters.toArray());
 	}
 
 	@SuppressWarnings("unchecked")
-	private List<NestedSetsTreeNode> getSubTreeDepthFirst(NestedSetsTreeNode parent) {
-		StringBuilder queryText = new StringBuilder(
-				"select t from "+nodeEntityName()+" t where t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3 ");
-		List<Object> parameters = new ArrayList<Object>();
+	private List<NestedSetsTreeNode> getSubTreeDepthFirst(NestedSetsTreeNode parent, TemporalQueryContext context) {
+		final List<Object> parameters = new ArrayList<Object>();
 		parameters.add(parent.getTopLevel());
 		parameters.add(Integer.valueOf(parent.getLeft()));
 		parameters.add(Integer.valueOf(parent.getRight()));
-		beforeFindQuery("t", queryText, parameters, true);
-		queryText.append(" order by t.lft");
-		return (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+		final String queryText = findQuery(
+			"select t from "+ENTITY+" t where t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3 ", " order by t.lft",
+			nodeEntityName(), "t", parameters, context);
+		return (List<NestedSetsTreeNode>) session.queryList(queryText, parameters.toArray());
 	}
 	
 	private Location location(NestedSetsTreeNode parent, int position, NestedSetsTreeNode movingOrCopiedNode, boolean isCopy)	{
@@ -535,6 +753,8 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		child.setTopLevel(topLevel);
 		child.setLeft(location.targetLeft);
 		child.setRight(location.targetLeft + 1);
+		if (isParentReferenced())
+			setParentReference(child, parentOf(location));
 		
 		checkUniqueness(Arrays.asList(new NestedSetsTreeNode [] { child }), location);	// check this BEFORE creating gap
 		
@@ -561,6 +781,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		final NestedSetsTreeNode targetTopLevel = (location.root != null) ? location.root : nodeToMove;
 		final NestedSetsTreeNode sourceTopLevel = nodeToMove.getTopLevel();
 		final boolean isMoveInSameTree = (location.root != null && equal(sourceTopLevel, targetTopLevel));
+		final NestedSetsTreeNode targetParent = isParentReferenced() ? parentOf(location) : null;
 		
 		checkUniqueness(Arrays.asList(new NestedSetsTreeNode [] { nodeToMove }), location);	// check this BEFORE creating gap
 		
@@ -582,24 +803,23 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		}
 
 		// as this update ignores the JPA layer, we must refresh affected nodes after update
-		final String selectWhere = "t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3";
 		final Object [] selectParams = new Object [] { sourceTopLevel, sourceLeft, sourceRight };
 		
-		final String updateWhere = selectWhere.replace("?1", "?4").replace("?2", "?5").replace("?3", "?6");
 		final Object [] updateParamsFirstPart = new Object [] { distance, distance, targetTopLevel };
 		final Object [] updateParams = new Object[updateParamsFirstPart.length + selectParams.length];
 		System.arraycopy(updateParamsFirstPart, 0, updateParams, 0, updateParamsFirstPart.length);
 		System.arraycopy(selectParams, 0, updateParams, updateParamsFirstPart.length, selectParams.length);
 		
 		// read affected nodes BEFORE update
-		final List<?> nodesToRefresh = session.queryList(
-				"select t from "+nodeEntityName()+" t where "+selectWhere, selectParams);
+		final List<?> nodesToRefresh = session.queryList(statement(
+				"select t from "+ENTITY+" t where t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3", nodeEntityName()),
+				selectParams);
 		
 		// move the tree to gap
-		session.executeUpdate(
-				"update "+nodeEntityName()+" t "+
+		session.executeUpdate(statement(
+				"update "+ENTITY+" t "+
 					"set t.lft = t.lft + ?1, t.rgt = t.rgt + ?2, t.topLevel = ?3 "+
-					"where "+updateWhere,
+					"where t.topLevel = ?4 and t.lft >= ?5 and t.rgt <= ?6", nodeEntityName()),
 				updateParams);
 		
 		refresh(nodesToRefresh);
@@ -607,6 +827,11 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		// close the gap where tree has been
 		int gapLeft = sourceLeft + movedNodesCountRange;
 		closeGap(gapLeft, gapLeft, sourceTopLevel, movedNodesCount);
+		
+		if (isParentReferenced())	{	// only the moved node changes its parent, sub-nodes keep theirs
+			setParentReference(nodeToMove, targetParent);
+			save(nodeToMove);
+		}
 	}
 
 
@@ -616,6 +841,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		final List<NestedSetsTreeNode> treeToCopy = getSubTreeDepthFirstForCopy(nodeToCopy);
 		final NestedSetsTreeNode targetTopLevel = (location.root != null) ? location.root : nodeToCopy;
 		final int distance = location.targetLeft - nodeToCopy.getLeft();
+		final NestedSetsTreeNode targetParent = isParentReferenced() ? parentOf(location) : null;
 		
 		// clone tree BEFORE left/right gets updated
 		NestedSetsTreeNode copiedNode = null;
@@ -645,8 +871,18 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		
 		// copy the tree to gap
 		final NestedSetsTreeNode unmergedCopiedNode = copiedNode;
-		for (NestedSetsTreeNode clone : clonedTree)	{
+		final Map<Serializable,NestedSetsTreeNode> mergedClones = new HashMap<Serializable,NestedSetsTreeNode>();	// key = id of original
+		for (int i = 0; i < clonedTree.size(); i++)	{
+			final NestedSetsTreeNode clone = clonedTree.get(i);
+			final NestedSetsTreeNode original = treeToCopy.get(i);
+			
+			if (isParentReferenced())	// parents come before children in depth-first order, so the parent clone is already merged
+				setParentReference(clone, (clone == unmergedCopiedNode)
+						? targetParent
+						: mergedClones.get(((ParentReferencingNestedSetsTreeNode) original).getParent().getId()));
+			
 			final NestedSetsTreeNode mergedClone = (NestedSetsTreeNode) save(clone);
+			mergedClones.put(original.getId(), mergedClone);
 			
 			if (clone == copiedNode)	// merged entity is other instance
 				copiedNode = mergedClone;	// so keep return value a managed instance
@@ -660,7 +896,7 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 	
 	/** @return the tree under given node when copying, to be overridden. */
 	protected List<NestedSetsTreeNode> getSubTreeDepthFirstForCopy(NestedSetsTreeNode nodeToCopy) {
-		return getSubTreeDepthFirst(nodeToCopy);
+		return getSubTreeDepthFirst(nodeToCopy, TemporalQueryContext.VALID);
 	}
 
 	private void createGap(int gapLeft, NestedSetsTreeNode topLevel, int nodesCount) {
@@ -675,50 +911,57 @@ public class NestedSetsTreeDao extends AbstractTreeDao<NestedSetsTreeNode>
 		final int nodesCountRange = nodesCount * 2;
 		
 		final Object [] paramsLeft  = new Object [] { nodesCountRange, topLevel, gapLeft };
-		final String whereLeft  = "t.topLevel = ?2 and t.lft >= ?3";
 		final Object [] paramsRight = new Object [] { nodesCountRange, topLevel, gapRight };
-		final String whereRight = "t.topLevel = ?2 and t.rgt >= ?3";
-
-		// as this update ignores the JPA layer, we must refresh affected nodes after update
-		final String refreshWhere = 
-			whereLeft.replace("?2", "?1").replace("?3", "?2") +
-			" or "+
-			whereRight.replace("?3", "?4").replace("?2", "?3");
 		
+		// as this update ignores the JPA layer, we must refresh affected nodes after update
 		final Object [] refreshParams = new Object [] { topLevel, gapLeft, topLevel, gapRight };
 		
 		// read affected nodes BEFORE update
-		final List<?> nodesToRefresh = session.queryList(
-				"select t from "+nodeEntityName()+" t where "+refreshWhere, refreshParams);
+		final List<?> nodesToRefresh = session.queryList(statement(
+				"select t from "+ENTITY+" t where t.topLevel = ?1 and t.lft >= ?2 or t.topLevel = ?3 and t.rgt >= ?4", nodeEntityName()),
+				refreshParams);
 		
-		session.executeUpdate(
-				"update "+nodeEntityName()+" t "+
+		session.executeUpdate(statement(
+				"update "+ENTITY+" t "+
 				"set t.lft = t.lft "+operator+" ?1 "+
-				"where "+whereLeft,
+				"where t.topLevel = ?2 and t.lft >= ?3", nodeEntityName()),
 				paramsLeft);
 		
-		session.executeUpdate(
-				"update "+nodeEntityName()+" t "+
+		session.executeUpdate(statement(
+				"update "+ENTITY+" t "+
 				"set t.rgt = t.rgt "+operator+" ?1 "+
-				"where "+whereRight,
+				"where t.topLevel = ?2 and t.rgt >= ?3", nodeEntityName()),
 				paramsRight);
 		
 		refresh(nodesToRefresh);
 	}
 
 	private String pathQuery(String selectWhat, String orderBy) {
-		return 
+		return statement(
 			selectWhat+	// is "select parent" or "select count(parent)"
-			" from "+nodeEntityName()+" parent, "+nodeEntityName()+" child "+
+			" from "+ENTITY+" parent, "+ENTITY+" child "+
 			" where parent.topLevel = ?1 and child.topLevel = parent.topLevel and "+
 			"       child = ?2 and child.lft > parent.lft and child.rgt < parent.rgt "+
-			orderBy;	// is optional, needed only for ordered path list
+			orderBy,	// is optional, needed only for ordered path list
+			nodeEntityName());
 	}
 
     private int numberOfNodesInSubTree(NestedSetsTreeNode entity)     {
         return (entity.getRight() - entity.getLeft()) / 2 + 1;
     }
 
+	/** @return the node that will be the parent of a node inserted at given location, null for roots. */
+	private NestedSetsTreeNode parentOf(Location location) {
+		if (location.relatedNodeType == TreeActionLocation.RelatedNodeType.SIBLING)
+			return getParent(location.relatedNode);
+		return location.relatedNode;	// is the parent, or null when becoming a root
+	}
+	
+	private void setParentReference(NestedSetsTreeNode node, NestedSetsTreeNode parent) {
+		if (isParentReferenced())
+			((ParentReferencingNestedSetsTreeNode) node).setParent(parent);
+	}
+
 
 
 	/** Holds all information about a pending insert or update. */
@@ -0,0 +1,30 @@
+package fri.util.database.jpa.tree.nestedsets;
+
+/**
+ * Optional extension of NestedSetsTreeNode that additionally holds
+ * a reference to its direct parent. When the entity class passed to
+ * <code>NestedSetsTreeDao</code> implements this, the DAO maintains the
+ * parent reference on every insert, move and copy, and uses it to read
+ * parents and direct children without loading whole sub-trees.
+ * <p/>
+ * Do not use these interface methods outside, they are for the DAO only.
+ *
+ * @see fri.util.database.jpa.tree.nestedsets.NestedSetsTreeDao
+ */
+public interface ParentReferencingNestedSetsTreeNode extends NestedSetsTreeNode
+{
+	/**
+	 * DO NOT use this, is for the DAO exclusively.
+	 * The private Java property name for this MUST BE "parent" in any implementation,
+	 * as that name is used in DAO queries.
+	 * @return the direct parent of this tree node, null for a root.
+	 */
+	NestedSetsTreeNode getParent();
+
+	/**
+	 * DO NOT use this, is for the DAO exclusively.
+	 * Sets the direct parent of this tree node.
+	 */
+	void setParent(NestedSetsTreeNode parent);
+
+}
@@ -2,13 +2,19 @@ package fri.util.database.jpa.tree.nestedsets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import fri.util.database.jpa.commons.DbSession;
 import fri.util.database.jpa.tree.Temporal;
+import fri.util.database.jpa.tree.TemporalChangeIterator;
+import fri.util.database.jpa.tree.TemporalQueryContext;
+import fri.util.database.jpa.tree.TemporalTreeChange;
 import fri.util.database.jpa.tree.TemporalTreeDao;
+import fri.util.database.jpa.tree.TemporalTreeView;
 
 /**
  * DAO extension that allows to historicize entities instead of deleting them.
@@ -22,6 +28,8 @@ import fri.util.database.jpa.tree.TemporalTreeDao;
  * 	<li>assignValidity</li>
  * 	<li>assignInvalidity</li>
  * </ul>
+ * The temporal mode of a query is passed along as <code>TemporalQueryContext</code>,
+ * the DAO holds no query state, thus reads need no locks and can run in parallel.
  * 
  * @author Fritz Ritzberger, 12.10.2011
  */
@@ -29,10 +37,8 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 {
 	private final String validFromPropertyName;
 	private final String validToPropertyName;
-	
-	private Date now4FilterChildren;
-	private boolean doNotApplyTemporalConditions = false;
-	private boolean invertTemporalConditions = false;
+	private Date validToSentinel;
+	private boolean tombstoning;
 	
 	/**
 	 * {@inheritDoc}
@@ -71,158 +77,454 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 	}
 	
 
-	/** Overridden to always read the subtree, because historicized nodes occupy left and right indexes. */
+	/** {@inheritDoc} */
+	@Override
+	public void setValidToSentinel(Date validToSentinel) {
+		this.validToSentinel = (validToSentinel != null) ? new Date(validToSentinel.getTime()) : null;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public Date getValidToSentinel() {
+		return (validToSentinel != null) ? new Date(validToSentinel.getTime()) : null;
+	}
+	
+
+	/** {@inheritDoc} */
+	@Override
+	public void setTombstoning(boolean tombstoning) {
+		this.tombstoning = tombstoning;
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public boolean isTombstoning() {
+		return tombstoning;
+	}
+	
+
+	/** Overridden to count valid nodes in the subtree, because historicized nodes occupy left and right indexes. */
     @Override
 	public int size(NestedSetsTreeNode node)        {
-		return getTree(node).size();
+		final StringBuilder queryText = new StringBuilder(
+				"select count(t) from "+nodeEntityName()+" t where t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3");
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(node.getTopLevel());
+		parameters.add(Integer.valueOf(node.getLeft()));
+		parameters.add(Integer.valueOf(node.getRight()));
+		beforeFindQuery("t", queryText, parameters, true, TemporalQueryContext.VALID);
+		return session.queryCount(queryText.toString(), parameters.toArray());
     }
     
-	/** Overridden to read the subtree when super returns false, because historicized nodes occupy left and right indexes. */
+	/** Overridden to query for a valid descendant when super returns false, because historicized nodes occupy left and right indexes. */
 	@Override
 	public boolean isLeaf(NestedSetsTreeNode node)	{
 		if (super.isLeaf(node))	// this is very fast
 			return true;	// no need to check validTo limit
 		
-		return getTree(node).size() <= 0;
+		return isLeaf(Arrays.asList(node))[0];
+	}
+	
+	/** Overridden to query all nodes that are no leafs by index with one exists-query. */
+	@Override
+	public boolean [] isLeaf(List<NestedSetsTreeNode> nodes)	{
+		final boolean [] leafs = new boolean [nodes.size()];
+		final StringBuilder placeHolders = new StringBuilder();
+		final List<Object> parameters = new ArrayList<Object>();
+		for (int i = 0; i < leafs.length; i++)	{
+			final NestedSetsTreeNode node = nodes.get(i);
+			leafs[i] = super.isLeaf(node);
+			if (leafs[i] == false)	{
+				placeHolders.append(placeHolders.length() > 0 ? ", " : "").append(buildIndexedPlaceHolder(parameters));
+				parameters.add(node);
+			}
+		}
+		if (parameters.size() <= 0)
+			return leafs;
+		
+		// find the nodes that have at least one valid descendant
+		final StringBuilder queryText = new StringBuilder(
+				"select n from "+nodeEntityName()+" n where n in ("+placeHolders+") and exists "+
+				"(select 'x' from "+nodeEntityName()+" t where t.topLevel = n.topLevel and t.lft > n.lft and t.rgt < n.rgt");
+		beforeFindQuery("t", queryText, parameters, true, TemporalQueryContext.VALID);
+		queryText.append(")");
+		final List<?> nonLeafs = session.queryList(queryText.toString(), parameters.toArray());
+		
+		for (int i = 0; i < leafs.length; i++)
+			if (leafs[i] == false)
+				leafs[i] = (nonLeafs.contains(nodes.get(i)) == false);
+		
+		return leafs;
 	}
 	
 	/**
 	 * Overridden because super.getChildren() would not work with a sub-tree list
 	 * that contains nodes with left/right indexes that have gaps because historicized
-	 * nodes are not contained.
+	 * nodes are not contained. Parent references do not have that problem.
 	 */
 	@Override
-	public synchronized List<NestedSetsTreeNode> getChildren(NestedSetsTreeNode parent)	{
+	public List<NestedSetsTreeNode> getChildren(NestedSetsTreeNode parent)	{
+		if (isParentReferenced())
+			return super.getChildren(parent);
+		
+		if (tombstoning && isValidWithAncestors(parent, TemporalQueryContext.VALID) == false)
+			return Collections.emptyList();	// children of a removed ancestor are removed, too
+		
 		List<NestedSetsTreeNode> subTree = getFullTreeCacheable(parent);
-		now4FilterChildren = validTo();
+		if (tombstoning)
+			subTree = withoutTombstonedSubTrees(subTree, validTo());
+		return findDirectChildren(subTree, TemporalQueryContext.VALID.withFilterDate(validTo()));
+	}
+	
+	/** Overridden to historicize roots instead of removing them physically.  */
+	@Override
+	public void removeAll() {
+		final int [] locks = lockAllTrees();
 		try	{
-			return findDirectChildren(subTree);
+			StringBuilder updateText = new StringBuilder("update "+nodeEntityName()+" t set ");
+			List<Object> parameters = new ArrayList<Object>();
+		
+			assignInvalidity("t", updateText, parameters);
+			updateText.append(" where ");
+			if (tombstoning)	{	// tombstones on roots are enough
+				updateText.append("t.topLevel = t and ");
+				super.appendValidityCondition("t", updateText, parameters);
+			}
+			else	{
+				appendValidityCondition("t", updateText, parameters);
+			}
+			session.executeUpdate(updateText.toString(), parameters.toArray());
 		}
 		finally	{
-			now4FilterChildren = null;
+			unlockTrees(locks);
 		}
 	}
 	
-	/** Overridden to historicize roots instead of removing them physically.  */
+	/** {@inheritDoc} */
+	@Override
+	public List<NestedSetsTreeNode> findRemoved(NestedSetsTreeNode parent, Map<String, Object> criteria) {
+		return find(parent, criteria, TemporalQueryContext.REMOVED);
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public List<NestedSetsTreeNode> getAllRoots()	{
+		return getRoots(TemporalQueryContext.ALL);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public List<NestedSetsTreeNode> getFullTreeCacheable(NestedSetsTreeNode node) {
+		return Collections.unmodifiableList(getTree(node, TemporalQueryContext.ALL));
+	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public TemporalTreeView<NestedSetsTreeNode> asOf(Date date) {
+		if (date == null)
+			throw new IllegalArgumentException("Need a date to read trees at!");
+		return new AsOfView(date);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * Nested sets keep no history of moves, thus no MOVED changes are delivered.
+	 */
 	@Override
-	public synchronized void removeAll() {
-		StringBuilder updateText = new StringBuilder("update "+nodeEntityName()+" t set ");
-		List<Object> parameters = new ArrayList<Object>();
+	public Iterator<TemporalTreeChange<NestedSetsTreeNode>> getChanges(final NestedSetsTreeNode root, final Date from, final Date to) {
+		if (getValidToPropertyName() == null)
+			throw new IllegalStateException("Please override getChanges when validToPropertyName is null!");
 		
-		assignInvalidity("t", updateText, parameters);
-		updateText.append(" where ");
-		appendValidityCondition("t", updateText, parameters);
-		session.executeUpdate(updateText.toString(), parameters.toArray());
+		return new TemporalChangeIterator<NestedSetsTreeNode>(from, to, DEFAULT_CHANGE_SLICE_MILLIS)	{
+			@Override
+			protected void readSlice(Date after, Date until, List<TemporalTreeChange<NestedSetsTreeNode>> changes) {
+				if (getValidFromPropertyName() != null)
+					for (NestedSetsTreeNode node : findChangedNodes(root, true, after, until, from, to))
+						changes.add(new TemporalTreeChange<NestedSetsTreeNode>(TemporalTreeChange.Type.ADDED, node, ((Temporal) node).getValidFrom()));
+				
+				for (NestedSetsTreeNode node : findChangedNodes(root, false, after, until, from, to))	{
+					final Date removeDate = ((Temporal) node).getValidTo();
+					changes.add(new TemporalTreeChange<NestedSetsTreeNode>(TemporalTreeChange.Type.REMOVED, node, removeDate));
+					
+					if (tombstoning)	// descendants were removed together with the tombstone
+						for (NestedSetsTreeNode descendant : findTombstonedDescendants(node, removeDate))
+							changes.add(new TemporalTreeChange<NestedSetsTreeNode>(TemporalTreeChange.Type.REMOVED, descendant, removeDate));
+				}
+			}
+		};
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public List<NestedSetsTreeNode> findRemoved(NestedSetsTreeNode parent, Map<String, Object> criteria) {
+	public void unremove(NestedSetsTreeNode node)	{
+		if (isDetached(node))
+			throw new IllegalArgumentException("Node was detached by compaction, its position in the tree is lost: "+node);
+		
+		final int [] locks = lockTrees(node);
 		try	{
-			invertTemporalConditions = true;
-			return super.find(parent, criteria);
+			removeOrUnremove(node, false);
 		}
 		finally	{
-			invertTemporalConditions = false;
+			unlockTrees(locks);
 		}
+		fireTreeChanged(null);
 	}
 	
 	/** {@inheritDoc} */
 	@Override
-	public synchronized List<NestedSetsTreeNode> getAllRoots()	{
-		try	{
-			doNotApplyTemporalConditions = true;
-			return super.getRoots();
-		}
-		finally	{
-			doNotApplyTemporalConditions = false;
+	public void removeHistoricizedTreesPhysically()	{
+		while (removeHistoricizedTreesPhysically(DEFAULT_PURGE_BATCH_SIZE) > 0)
+			;	// purge until no historicized node is left
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Per root, the outermost historicized sub-trees that fit are deleted by one statement,
+	 * and left/right indexes are compacted once at the end. A historicized root is deleted with the last chunk.
+	 */
+	@Override
+	public int removeHistoricizedTreesPhysically(int maximumNodes)	{
+		if (maximumNodes <= 0)
+			throw new IllegalArgumentException("Maximum number of nodes to remove must be positive: "+maximumNodes);
+		
+		int removedCount = 0;
+		for (NestedSetsTreeNode root : getAllRoots())	{
+			if (removedCount >= maximumNodes)
+				return removedCount;
+			
+			removedCount += removeHistoricizedTreePhysically(root, null, maximumNodes - removedCount);
 		}
+		return removedCount;
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized List<NestedSetsTreeNode> getFullTreeCacheable(NestedSetsTreeNode node) {
+	@SuppressWarnings("unchecked")
+	public int removeHistoricizedTreePhysically(NestedSetsTreeNode root, Date removedBefore, int maximumNodes)	{
+		if (root == null || isPersistent(root) == false)
+			throw new IllegalArgumentException("Root is null or not persistent: "+root);
+		
+		if (maximumNodes <= 0)
+			throw new IllegalArgumentException("Maximum number of nodes to remove must be positive: "+maximumNodes);
+		
+		final int [] locks = lockTrees(root);
 		try	{
-			doNotApplyTemporalConditions = true;
-			return super.getTreeCacheable(node);
+			// only sub-trees that fit into the chunk, right ones and thus ancestors first, so that gaps close with few updates
+			final int maximumIndexDistance = (maximumNodes > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE : 2 * maximumNodes;
+			final StringBuilder queryText = new StringBuilder(
+					"select t.lft, t.rgt from "+nodeEntityName()+" t "+
+					"where t.topLevel = ?1 and t.rgt - t.lft < ?2 and ");
+			final List<Object> parameters = new ArrayList<Object>();
+			parameters.add(root);
+			parameters.add(maximumIndexDistance);
+			if (removedBefore == null)
+				appendInvalidityCondition("t", queryText, parameters);
+			else
+				appendInvalidityCondition("t", queryText, parameters, removedBefore);
+			queryText.append(" order by t.rgt desc");
+			final List<Object[]> removed = (List<Object[]>) queryList(queryText.toString(), parameters.toArray(), maximumIndexDistance);
+		
+			// collect the outermost of these sub-trees, the deepest ones when their ancestors are too big
+			final List<int[]> intervals = new ArrayList<int[]>();
+			boolean rootRemoved = false;
+			int count = 0;
+			int left = Integer.MAX_VALUE;
+			for (Object [] indexes : removed)	{
+				final int nodeLeft = ((Number) indexes[0]).intValue();
+				final int nodeRight = ((Number) indexes[1]).intValue();
+				if (nodeLeft == root.getLeft())	{	// the root goes with the last chunk
+					rootRemoved = true;
+					continue;
+				}
+				final int nodesCount = (nodeRight - nodeLeft + 1) / 2;
+				if (nodeRight > left || count + nodesCount > maximumNodes)
+					continue;	// inside the previous sub-tree, or too big for the rest of this chunk
+			
+				intervals.add(0, new int [] { nodeLeft, nodeRight });	// ordered by left index
+				left = nodeLeft;
+				count += nodesCount;
+				if (count >= maximumNodes)
+					break;
+			}
+			if (intervals.size() <= 0)	{
+				if (rootRemoved == false)
+					return 0;
+				
+				remove(root, TemporalQueryContext.ALL);	// the last node of a historicized tree
+				return 1;
+			}
+			removeIntervals(root, intervals);
+			return count;
 		}
 		finally	{
-			doNotApplyTemporalConditions = false;
+			unlockTrees(locks);
 		}
 	}
-	
-	/** {@inheritDoc} */
-	@Override
-	public void unremove(NestedSetsTreeNode node)	{
-		removeOrUnremove(node, false);
+
+	/**
+	 * Compacts the left/right indexes of all trees, see <code>compactHistoricizedTree()</code>.
+	 * Call this repeatedly, committing in between, until it returns zero.
+	 * @param maximumNodes the maximum number of historicized nodes to detach in this call.
+	 * @return the number of nodes detached, zero when all trees are compact.
+	 */
+	public int compactHistoricizedTrees(int maximumNodes)	{
+		if (maximumNodes <= 0)
+			throw new IllegalArgumentException("Maximum number of nodes to detach must be positive: "+maximumNodes);
+		
+		int detachedCount = 0;
+		for (NestedSetsTreeNode root : getRoots())	{
+			if (detachedCount >= maximumNodes)
+				return detachedCount;
+			
+			detachedCount += compactHistoricizedTree(root, maximumNodes - detachedCount);
+		}
+		return detachedCount;
 	}
 	
-	/** {@inheritDoc} */
-	@Override
+	/**
+	 * Historicized nodes keep occupying left/right indexes, so trees with many removes get big index gaps,
+	 * making every insert shift more rows. This moves the outermost historicized sub-trees of given tree
+	 * to a detached numbering space below the root's left index, and closes the gaps they leave,
+	 * so that the valid nodes get dense indexes again.
+	 * <p/>
+	 * Detached nodes stay in the tree's table with their sub-tree structure, and are still found by
+	 * <code>findRemoved(root)</code>, <code>getChanges()</code>, <code>getTree(detachedNode)</code>
+	 * and the physical purge methods. But they lose their parent, thus they are neither found
+	 * below their former parent by <code>getFullTreeCacheable()</code> or <code>asOf()</code> views,
+	 * nor can they be unremoved. So compact only history that does not need to be restored.
+	 * <p/>
+	 * This works in chunks, holding the tree's write lock for one chunk only, thus it can run online.
+	 * Call it repeatedly, committing in between, until it returns zero.
+	 * @param root the root of the tree to compact, nothing is done when it is historicized itself.
+	 * @param maximumNodes the maximum number of historicized nodes to detach in this call,
+	 * 		can be exceeded by a historicized sub-tree that is bigger than this.
+	 * @return the number of nodes detached, zero when the tree is compact.
+	 */
 	@SuppressWarnings("unchecked")
-	public synchronized void removeHistoricizedTreesPhysically()	{
-		for (NestedSetsTreeNode root : getAllRoots())	{
+	public int compactHistoricizedTree(NestedSetsTreeNode root, int maximumNodes)	{
+		if (root == null || isRoot(root) == false)
+			throw new IllegalArgumentException("Node is null or not a persistent root: "+root);
+		
+		if (maximumNodes <= 0)
+			throw new IllegalArgumentException("Maximum number of nodes to detach must be positive: "+maximumNodes);
+		
+		final int [] locks = lockTrees(root);
+		try	{
 			final StringBuilder queryText = new StringBuilder(
 					"select t from "+nodeEntityName()+" t "+
-					"where t.topLevel = ?1 and ");
+					"where t.topLevel = ?1 and t.lft >= ?2 and ");
 			final List<Object> parameters = new ArrayList<Object>();
 			parameters.add(root);
+			parameters.add(Integer.valueOf(ROOT_LEFT));
 			appendInvalidityCondition("t", queryText, parameters);
 			queryText.append(" order by t.lft");
+			final List<NestedSetsTreeNode> removed = (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
 			
-			List<NestedSetsTreeNode> removed;
-			do	{
-				removed = (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
-				
-				if (removed.size() > 0)	{
-					NestedSetsTreeNode highest = removed.get(0);
-					removePhysically(highest);
+			if (removed.size() <= 0 || equal(removed.get(0), root))
+				return 0;	// nothing historicized, or the whole tree
+			
+			// collect the outermost historicized sub-trees, ordered by left index
+			final List<int[]> intervals = new ArrayList<int[]>();
+			int count = 0;
+			int right = 0;
+			for (NestedSetsTreeNode node : removed)	{
+				if (node.getLeft() > right)	{	// not inside the previous sub-tree
+					final int nodesCount = (node.getRight() - node.getLeft() + 1) / 2;
+					if (count > 0 && count + nodesCount > maximumNodes)
+						break;
+					
+					right = node.getRight();
+					intervals.add(new int [] { node.getLeft(), right });
+					count += nodesCount;
 				}
 			}
-			while (removed.size() > 0);
+			detachIntervals(root, intervals);
+			return count;
+		}
+		finally	{
+			unlockTrees(locks);
 		}
 	}
 
 	/** {@inheritDoc} */
 	@Override
-	public synchronized void removeAllPhysically() {
-		for (NestedSetsTreeNode root : getAllRoots())
-			removePhysically(root);
-	}
-	
-	/** {@inheritDoc} */
-	@Override
-	public synchronized void removePhysically(NestedSetsTreeNode node) {
-		if (node == null || isPersistent(node) == false)
-			throw new IllegalArgumentException("Node is null or not persistent: "+node);
-		
-		doNotApplyTemporalConditions = true;
+	public void removeAllPhysically() {
+		final int [] locks = lockAllTrees();
 		try	{
-			remove(node);
+			for (NestedSetsTreeNode root : getAllRoots())
+				removePhysically(root);
 		}
 		finally	{
-			doNotApplyTemporalConditions = false;
+			unlockTrees(locks);
 		}
 	}
+	
+	/** {@inheritDoc} */
+	@Override
+	public void removePhysically(NestedSetsTreeNode node) {
+		remove(node, TemporalQueryContext.ALL);
+	}
 
 	/** {@inheritDoc} */
 	@Override
 	public List<NestedSetsTreeNode> findValidDirectChildren(List<NestedSetsTreeNode> subNodes) {
-		now4FilterChildren = validTo();
-		try	{
-			return super.findDirectChildren(subNodes);
-		}
-		finally	{
-			now4FilterChildren = null;
-		}
+		if (tombstoning && subNodes.size() > 0 && isValid((Temporal) subNodes.get(0), validTo()) == false)
+			return Collections.emptyList();	// children of a removed node are removed, too
+		
+		if (tombstoning)
+			subNodes = withoutTombstonedSubTrees(subNodes, validTo());
+		return findDirectChildren(subNodes, TemporalQueryContext.VALID.withFilterDate(validTo()));
 	}
 
 
 
-	/** Overridden to search only nodes that were not historicized. */
+	/** Overridden to stamp the valid-from date, and the valid-to sentinel if any, of inserted nodes. */
+	@Override
+	protected Object save(NestedSetsTreeNode node) {
+		if (isPersistent(node) == false)
+			assignValidityOnInsert((Temporal) node);
+		return super.save(node);
+	}
+
+	/** Overridden to exclude nodes below a removed ancestor when tombstoning. */
+	@Override
+	public void appendValidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters) {
+		super.appendValidityCondition(tableAlias, queryText, parameters);
+		if (tombstoning)	{
+			queryText.append(" and not");
+			appendRemovedAncestorCondition(tableAlias, queryText, parameters, validTo());
+		}
+	}
+	
+	/** Overridden to exclude nodes below an ancestor removed at given date when tombstoning. */
+	@Override
+	protected void appendValidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date validityDate) {
+		super.appendValidityCondition(tableAlias, queryText, parameters, validityDate);
+		if (tombstoning)	{
+			queryText.append(" and not");
+			appendRemovedAncestorCondition(tableAlias, queryText, parameters, validityDate);
+		}
+	}
+	
+	/** Overridden to include nodes below a removed ancestor when tombstoning. */
+	@Override
+	protected void appendInvalidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date removedBefore) {
+		if (tombstoning == false)	{
+			super.appendInvalidityCondition(tableAlias, queryText, parameters, removedBefore);
+			return;
+		}
+		
+		queryText.append("(");
+		super.appendInvalidityCondition(tableAlias, queryText, parameters, removedBefore);
+		queryText.append(" or");
+		appendRemovedAncestorCondition(tableAlias, queryText, parameters, removedBefore);
+		queryText.append(")");
+	}
+
+	/** Overridden to search only nodes that were not historicized, or as given context demands. */
 	@Override
-	protected final void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended) {
-		beforeFindQuery(tableAlias, queryText, parameters, whereWasAppended, doNotApplyTemporalConditions, invertTemporalConditions);
+	protected final void beforeFindQuery(String tableAlias, StringBuilder queryText, List<Object> parameters, boolean whereWasAppended, TemporalQueryContext context) {
+		applyTemporalConditions(tableAlias, queryText, parameters, whereWasAppended, context);
 	}
 
 	
@@ -234,26 +536,34 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 	
 	/** Overridden to filter out historicized children on findDirectChildren(). */
 	@Override
-	protected final boolean isValidFilterChild(NestedSetsTreeNode node) {
-		if (now4FilterChildren == null)
-			return super.isValidFilterChild(node);
+	protected final boolean isValidFilterChild(NestedSetsTreeNode node, TemporalQueryContext context) {
+		if (context.getFilterDate() == null)
+			return super.isValidFilterChild(node, context);
 		
-		return isValid((Temporal) node, now4FilterChildren);
+		return isValid((Temporal) node, context.getFilterDate());
 	}
 
 	/** Overridden to return children including invalid ones. */
 	@Override
 	protected final List<NestedSetsTreeNode> getChildListForInsertion(NestedSetsTreeNode parent)	{
+		if (isParentReferenced())
+			return getChildrenByParentReference(parent, TemporalQueryContext.ALL);
+		
 		// can't call super as this would call overridden getSubTreeDepthFirst()
 		List<NestedSetsTreeNode> subTree = getFullTreeCacheable(parent);
 		return findDirectChildren(subTree);
 	}
 	
-	/** Overridden to historicize children. */
+	/** Overridden to historicize children, or remove them physically when context says so. */
 	@Override
-	protected final void remove(NestedSetsTreeNode node, int removedNodesCount) {
-		if (doNotApplyTemporalConditions)	{
-			super.remove(node, removedNodesCount);
+	protected final void remove(NestedSetsTreeNode node, int removedNodesCount, TemporalQueryContext context) {
+		if (context.isAll() && isDetached(node))	{	// detached indexes must not shift the tree
+			removeDetached(node.getTopLevel(), "t.lft >= ?2 and t.rgt <= ?3", node.getLeft(), node.getRight());
+		}
+		else if (context.isAll())	{
+			if (isRoot(node))	// detached sub-trees are outside the root's indexes
+				removeDetached(node, "t.rgt < ?2", ROOT_LEFT);
+			super.remove(node, removedNodesCount, context);
 		}
 		else	{
 			removeOrUnremove(node, true);
@@ -306,7 +616,7 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 	/**
 	 * Called when unremoving nodes.
 	 * Appends the (temporal) validity assignment to passed JPQL statement,
-	 * which is "t.validTo = null". Override for using another unremove-date.
+	 * which is "t.validTo = null", or "t.validTo = ?" with the valid-to sentinel.
 	 * Override this to use other validity assignments.
 	 * @param tableAlias the alias of the table containing the <i>validTo</i> property, without trailing dot.
 	 * @param updateText the pending JPQL query text unremoving nodes.
@@ -317,15 +627,162 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 			throw new IllegalStateException("Please override assignValidity when validToPropertyName is null!");
 		
 		final String validToPropertyName = buildAliasedPropertyName(tableAlias, getValidToPropertyName());
-		updateText.append(validToPropertyName+" = null");
+		if (validToSentinel == null)	{
+			updateText.append(validToPropertyName+" = null");
+		}
+		else	{
+			updateText.append(validToPropertyName+" = "+buildIndexedPlaceHolder(parameters));
+			parameters.add(validToSentinel);
+		}
 	}
 
 	
+	/** Deletes given left/right intervals of a tree by one statement, then compacts indexes of remaining nodes. */
+	private void removeIntervals(NestedSetsTreeNode root, List<int[]> intervals)	{
+		final StringBuilder intervalsCondition = new StringBuilder();
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(root);
+		for (int [] interval : intervals)	{
+			intervalsCondition.append(intervalsCondition.length() > 0 ? " or " : "");
+			intervalsCondition.append("(t.lft >= "+buildIndexedPlaceHolder(parameters));
+			parameters.add(interval[0]);
+			intervalsCondition.append(" and t.rgt <= "+buildIndexedPlaceHolder(parameters)+")");
+			parameters.add(interval[1]);
+		}
+		final String where = "where t.topLevel = ?1 and ("+intervalsCondition+")";
+		
+		if (isParentReferenced())	// release parent references inside sub-trees, else referential integrity violation on some databases
+			session.executeUpdate("update "+nodeEntityName()+" t set t.parent = null "+where, parameters.toArray());
+		
+		session.executeUpdate("delete from "+nodeEntityName()+" t "+where, parameters.toArray());
+		
+		// detached intervals leave gaps that need no compaction, as no insert shifts them
+		final List<int[]> attachedIntervals = new ArrayList<int[]>();
+		for (int [] interval : intervals)
+			if (interval[1] >= ROOT_LEFT)
+				attachedIntervals.add(interval);
+		
+		if (attachedIntervals.size() <= 0)
+			return;
+		
+		// as compaction ignores the JPA layer, we must refresh affected nodes after update, read them BEFORE
+		final List<?> nodesToRefresh = session.queryList(
+				"select t from "+nodeEntityName()+" t where t.topLevel = ?1 and t.rgt > ?2",
+				new Object [] { root, attachedIntervals.get(0)[1] });
+		
+		closeIntervalGaps(root, attachedIntervals);
+		refresh(nodesToRefresh);
+	}
+	
+	/** Moves given left/right intervals of a tree below the root's left index, then compacts indexes of remaining nodes. */
+	private void detachIntervals(NestedSetsTreeNode root, List<int[]> intervals)	{
+		// as this update ignores the JPA layer, we must refresh affected nodes after update, read them BEFORE
+		final List<?> nodesToRefresh = session.queryList(
+				"select t from "+nodeEntityName()+" t where t.topLevel = ?1 and t.rgt >= ?2",
+				new Object [] { root, intervals.get(0)[0] });
+		
+		// the detached space grows downwards from the root's left index
+		final List<?> lowestLeft = session.queryList(
+				"select min(t.lft) from "+nodeEntityName()+" t where t.topLevel = ?1 and t.rgt < ?2",
+				new Object [] { root, ROOT_LEFT });
+		int bottom = (lowestLeft.size() > 0 && lowestLeft.get(0) != null) ? ((Number) lowestLeft.get(0)).intValue() : ROOT_LEFT;
+		
+		for (int [] interval : intervals)	{
+			final Object [] intervalParameters = new Object [] { root, interval[0], interval[1] };
+			if (isParentReferenced())	// the former parent stays in the tree
+				session.executeUpdate(
+						"update "+nodeEntityName()+" t set t.parent = null where t.topLevel = ?1 and t.lft = ?2 and t.rgt = ?3",
+						intervalParameters);
+			
+			final int detachedLeft = bottom - (interval[1] - interval[0] + 1);
+			final int distance = interval[0] - detachedLeft;
+			session.executeUpdate(
+					"update "+nodeEntityName()+" t set t.lft = t.lft - ?1, t.rgt = t.rgt - ?2 "+
+					"where t.topLevel = ?3 and t.lft >= ?4 and t.rgt <= ?5",
+					new Object [] { distance, distance, root, interval[0], interval[1] });
+			bottom = detachedLeft;
+		}
+		
+		closeIntervalGaps(root, intervals);
+		refresh(nodesToRefresh);
+	}
+	
+	/** Closes the index gaps left by given intervals, which must be ordered by left index. */
+	private void closeIntervalGaps(NestedSetsTreeNode root, List<int[]> intervals)	{
+		// compact from highest interval downwards, so that lower thresholds stay valid
+		for (int i = intervals.size() - 1; i >= 0; i--)	{
+			final int [] interval = intervals.get(i);
+			final Object [] shiftParameters = new Object [] { interval[1] - interval[0] + 1, root, interval[1] };
+			session.executeUpdate(
+					"update "+nodeEntityName()+" t set t.lft = t.lft - ?1 where t.topLevel = ?2 and t.lft > ?3",
+					shiftParameters);
+			session.executeUpdate(
+					"update "+nodeEntityName()+" t set t.rgt = t.rgt - ?1 where t.topLevel = ?2 and t.rgt > ?3",
+					shiftParameters);
+		}
+	}
+	
+	/** Deletes detached nodes of given tree that match given condition, whose placeholders start at ?2. */
+	private void removeDetached(NestedSetsTreeNode topLevel, String condition, Object... conditionParameters)	{
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(topLevel);
+		parameters.addAll(Arrays.asList(conditionParameters));
+		final String where = "where t.topLevel = ?1 and "+condition;
+		
+		if (isParentReferenced())	// release parent references inside sub-trees, else referential integrity violation on some databases
+			session.executeUpdate("update "+nodeEntityName()+" t set t.parent = null "+where, parameters.toArray());
+		
+		session.executeUpdate("delete from "+nodeEntityName()+" t "+where, parameters.toArray());
+	}
+	
+	/** Appends " exists (...)" looking for an ancestor of the aliased node that was removed at or before given date. */
+	private void appendRemovedAncestorCondition(String tableAlias, StringBuilder queryText, List<Object> parameters, Date removedBefore)	{
+		if (tableAlias == null)
+			throw new IllegalArgumentException("Need a table alias for tombstone conditions!");
+		
+		queryText.append(" exists (select 'x' from "+nodeEntityName()+" a where a.topLevel = "+tableAlias+".topLevel"+
+				" and a.lft < "+tableAlias+".lft and a.rgt > "+tableAlias+".rgt and ");
+		super.appendInvalidityCondition("a", queryText, parameters, removedBefore);
+		queryText.append(")");
+	}
+	
+	/** @return true when given node and all its ancestors are valid in given context. */
+	private boolean isValidWithAncestors(NestedSetsTreeNode node, TemporalQueryContext context)	{
+		final StringBuilder queryText = new StringBuilder("select count(t) from "+nodeEntityName()+" t where t = ?1");
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(node);
+		beforeFindQuery("t", queryText, parameters, true, context);
+		return session.queryCount(queryText.toString(), parameters.toArray()) > 0;
+	}
+	
+	/** @return given depth-first sub-tree without the nodes below its first node that were invalid at given date, and their descendants. */
+	private List<NestedSetsTreeNode> withoutTombstonedSubTrees(List<NestedSetsTreeNode> subTree, Date date)	{
+		final List<NestedSetsTreeNode> result = new ArrayList<NestedSetsTreeNode>(subTree.size());
+		int tombstoneRight = Integer.MIN_VALUE;
+		for (NestedSetsTreeNode node : subTree)	{
+			if (node.getRight() < tombstoneRight)
+				continue;	// below a tombstone
+			
+			if (result.size() > 0 && isValid((Temporal) node, date) == false)
+				tombstoneRight = node.getRight();
+			else
+				result.add(node);
+		}
+		return result;
+	}
+	
+	/** @return true when given node was moved to the detached numbering space by <code>compactHistoricizedTree()</code>. */
+	private boolean isDetached(NestedSetsTreeNode node)	{
+		return node.getRight() < ROOT_LEFT;
+	}
+	
 	private void removeOrUnremove(NestedSetsTreeNode node, boolean isRemove) {
 		final NestedSetsTreeNode topLevel = node.getTopLevel();
 		
 		// as this update ignores the JPA layer, we must refresh affected nodes after update
-		final String selectWhere = "t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3";
+		final String selectWhere = (isRemove && tombstoning)
+				? "t.topLevel = ?1 and t.lft = ?2 and t.rgt = ?3"	// the node only
+				: "t.topLevel = ?1 and t.lft >= ?2 and t.rgt <= ?3";
 		final Object [] selectParams = new Object [] { topLevel, node.getLeft(), node.getRight() };
 		// read affected nodes BEFORE update
 		final List<?> nodesToRefresh = session.queryList(
@@ -355,6 +812,52 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 		refresh(nodesToRefresh);
 	}
 
+	/**
+	 * @param added true for nodes that became valid within given slice and still are at the end of the range,
+	 * 		false for nodes that were historicized within given slice and were valid at the start of the range.
+	 * @return the nodes of given tree (all trees when null) that changed within given slice.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<NestedSetsTreeNode> findChangedNodes(NestedSetsTreeNode root, boolean added, Date after, Date until, Date from, Date to)	{
+		final String validTo = buildAliasedPropertyName("t", getValidToPropertyName());
+		final String validFrom = (getValidFromPropertyName() != null) ? buildAliasedPropertyName("t", getValidFromPropertyName()) : null;
+		final String changeDate = added ? validFrom : validTo;
+		
+		final StringBuilder queryText = new StringBuilder("select t from "+nodeEntityName()+" t where ");
+		final List<Object> parameters = new ArrayList<Object>();
+		if (root != null)	{
+			queryText.append("t.topLevel = "+buildIndexedPlaceHolder(parameters)+" and ");
+			parameters.add(root);
+		}
+		queryText.append(changeDate+" > "+buildIndexedPlaceHolder(parameters));
+		parameters.add(after);
+		queryText.append(" and "+changeDate+" <= "+buildIndexedPlaceHolder(parameters));
+		parameters.add(until);
+		
+		if (added)	{	// still valid at end of range
+			queryText.append(" and ("+validTo+" is null or "+validTo+" > "+buildIndexedPlaceHolder(parameters)+")");
+			parameters.add(to);
+		}
+		else if (validFrom != null)	{	// already valid at start of range
+			queryText.append(" and ("+validFrom+" is null or "+validFrom+" <= "+buildIndexedPlaceHolder(parameters)+")");
+			parameters.add(from);
+		}
+		return (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+	}
+
+	/** @return the descendants of given tombstone that were valid when it was removed. */
+	@SuppressWarnings("unchecked")
+	private List<NestedSetsTreeNode> findTombstonedDescendants(NestedSetsTreeNode tombstone, Date removeDate)	{
+		final StringBuilder queryText = new StringBuilder(
+				"select t from "+nodeEntityName()+" t where t.topLevel = ?1 and t.lft > ?2 and t.rgt < ?3 and ");
+		final List<Object> parameters = new ArrayList<Object>();
+		parameters.add(tombstone.getTopLevel());
+		parameters.add(Integer.valueOf(tombstone.getLeft()));
+		parameters.add(Integer.valueOf(tombstone.getRight()));
+		super.appendValidityCondition("t", queryText, parameters, removeDate);
+		return (List<NestedSetsTreeNode>) session.queryList(queryText.toString(), parameters.toArray());
+	}
+
 	@Override
 	protected final String getValidFromPropertyName()	{
 		return validFromPropertyName;
@@ -365,4 +868,74 @@ public class TemporalNestedSetsTreeDao extends NestedSetsTreeDao implements Temp
 		return validToPropertyName;
 	}
 
+
+	/**
+	 * Reads nodes that were valid at a fixed date. Left and right indexes are the current ones,
+	 * thus children are filtered from the full sub-tree like getChildren() does.
+	 * Holds nothing but the date, thus is immutable.
+	 */
+	private class AsOfView implements TemporalTreeView<NestedSetsTreeNode>
+	{
+		private final Date date;
+		private final TemporalQueryContext context;
+		
+		AsOfView(Date date)	{
+			this.date = new Date(date.getTime());	// Date is mutable
+			this.context = TemporalQueryContext.VALID.withValidityDate(this.date);
+		}
+		
+		@Override
+		public Date getDate() {
+			return new Date(date.getTime());
+		}
+		
+		@Override
+		public List<NestedSetsTreeNode> getRoots() {
+			return TemporalNestedSetsTreeDao.this.getRoots(context);
+		}
+		
+		@Override
+		public List<NestedSetsTreeNode> getChildren(NestedSetsTreeNode parent) {
+			if (isParentReferenced())
+				return getChildrenByParentReference(parent, context);
+			
+			if (tombstoning && isValidWithAncestors(parent, context) == false)
+				return Collections.emptyList();
+			
+			List<NestedSetsTreeNode> subTree = TemporalNestedSetsTreeDao.this.getTree(parent, TemporalQueryContext.ALL);
+			if (tombstoning)
+				subTree = withoutTombstonedSubTrees(subTree, date);
+			return findDirectChildren(subTree, TemporalQueryContext.VALID.withFilterDate(date));
+		}
+		
+		@Override
+		public List<NestedSetsTreeNode> getPath(NestedSetsTreeNode node) {
+			final List<NestedSetsTreeNode> path = new ArrayList<NestedSetsTreeNode>();
+			for (NestedSetsTreeNode ancestor : TemporalNestedSetsTreeDao.this.getPath(node))
+				if (isValid((Temporal) ancestor, date))
+					path.add(ancestor);
+			return path;
+		}
+		
+		@Override
+		public List<NestedSetsTreeNode> getTree(NestedSetsTreeNode parent) {
+			return TemporalNestedSetsTreeDao.this.getTree(parent, context);
+		}
+		
+		@Override
+		public List<NestedSetsTreeNode> find(NestedSetsTreeNode parent, Map<String,Object> criteria) {
+			return TemporalNestedSetsTreeDao.this.find(parent, criteria, context);
+		}
+		
+		@Override
+		public List<NestedSetsTreeNode> getTreeCacheable(NestedSetsTreeNode parent) {
+			return Collections.unmodifiableList(getTree(parent));
+		}
+		
+		@Override
+		public String toString() {
+			return getClass().getSimpleName()+"[date="+date+"]";
+		}
+	}
+
 }
@@ -27,4 +27,14 @@ public class UniqueChildrenTemporalConstraintImpl extends UniqueWholeTreeTempora
 		return checkUniqueChildrenConstraint(node, location);
 	}
 	
+	/** {@inheritDoc} */
+	@Override
+	public final boolean deferUniqueConstraint(List<NestedSetsTreeNode> nodes, TreeActionLocation<NestedSetsTreeNode> location)	{
+		final NestedSetsTreeNode node = nodes.get(0);	// topmost only, as in checkUniqueConstraint()
+		if (isRootsCheck(location.root, node))	{
+			return super.deferUniqueConstraint(nodes, location);
+		}
+		return deferUniqueChildrenConstraint(node, location);
+	}
+	
 }
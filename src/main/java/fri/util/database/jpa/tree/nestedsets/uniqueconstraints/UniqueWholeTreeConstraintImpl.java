@@ -2,6 +2,7 @@ package fri.util.database.jpa.tree.nestedsets.uniqueconstraints;
 
 import java.util.List;
 
+import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeDao;
 import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeNode;
 import fri.util.database.jpa.tree.uniqueconstraints.AbstractWholeTreeUniqueConstraintImpl;
 import fri.util.database.jpa.tree.util.QueryBuilderUtil;
@@ -40,4 +41,24 @@ public class UniqueWholeTreeConstraintImpl extends AbstractWholeTreeUniqueConstr
 		parameters.add(root);
 	}
 
+	/**
+	 * Restricts the uniqueness query to the direct children of given parent, by parent reference when present,
+	 * else to the nodes within the parent's interval that have no other node in between.
+	 */
+	@Override
+	protected boolean appendChildCheckingCondition(NestedSetsTreeNode parent, StringBuilder queryText, List<Object> parameters) {
+		final String n = getNodeTableAlias();
+		if (((NestedSetsTreeDao) getDao()).isParentReferenced())	{
+			queryText.append(n+".parent = "+QueryBuilderUtil.buildIndexedPlaceHolder(parameters));
+		}
+		else	{
+			queryText.append("exists (select 'x' from "+nodeEntityName()+" pa where pa = "+QueryBuilderUtil.buildIndexedPlaceHolder(parameters)+
+					" and "+n+".topLevel = pa.topLevel and "+n+".lft > pa.lft and "+n+".rgt < pa.rgt"+
+					" and not exists (select 'x' from "+nodeEntityName()+" m"+
+					" where m.topLevel = pa.topLevel and m.lft > pa.lft and m.lft < "+n+".lft and m.rgt > "+n+".rgt))");
+		}
+		parameters.add(parent);
+		return true;
+	}
+
 }
@@ -1,11 +1,14 @@
 package fri.util.database.jpa.tree.uniqueconstraints;
 
-import java.lang.reflect.Field;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import fri.util.database.jpa.commons.DbSession;
 import fri.util.database.jpa.tree.AbstractTreeDao;
@@ -32,10 +35,15 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 	/** True when constraint should also check that no root has the same unique property set as another root. */
 	protected final boolean shouldCheckRootsForUniqueness;
 	
+	/** The maximum number of candidates checked by one whole-tree uniqueness query. */
+	protected static final int CANDIDATES_PER_QUERY = 50;
+	
 	private DbSession session;
 	private TreeDao<N> dao;
 	private String nodeEntityName;	// JPQL "table" name
 	private String pathEntityName;
+	private N violatingCandidate;
+	private final ThreadLocal<List<DeferredCandidate<N>>> deferredCandidates = new ThreadLocal<List<DeferredCandidate<N>>>();	// per transaction
 	
 	/**
 	 * @param uniquePropertyNames JPQL property names that should be checked for uniqueness.
@@ -62,6 +70,12 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 		this.dao = dao;
 		this.nodeEntityName = nodeEntityName;
 		this.pathEntityName = pathEntityName;
+		this.violatingCandidate = null;
+	}
+	
+	/** @return the candidate that violated the constraint in the last check since <code>setContext()</code>, null when not known. */
+	public final N getViolatingCandidate()	{
+		return violatingCandidate;
 	}
 	
 	/** @return the nodeEntity name passed in as context. */
@@ -84,52 +98,85 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 		return session;
 	}
 
-	/** Retrieves a named value from given Object by reflection. The uniqueName is case-sensitive. */
+	/** Retrieves a named value from given Object by reflection, see PropertyAccessorRegistry. The uniqueName is case-sensitive. */
 	protected final Object getNodeValueForProperty(String uniqueName, Object node) {
 		assert uniqueName != null && uniqueName.length() > 0;
-		
-		Class<?> clazz = node.getClass();
-		do	{
-			try {
-				Field property = clazz.getDeclaredField(uniqueName);
-				property.setAccessible(true);
-				return property.get(node);
-			}
-			catch (NoSuchFieldException e) {
-				// skip to superclass when field not here
-			}
-			catch (Exception e) {
-				throw new RuntimeException(e);
-			}
-			clazz = clazz.getSuperclass();
-		}
-		while (clazz != null);
-		throw new RuntimeException("Field not found when checking unique constraint: "+uniqueName+", node: "+node);
+		return PropertyAccessorRegistry.getValue(uniqueName, node);
 	}
 
 	
 	
 	// unique children implementation
 	
-	/** Checks if passed node would be unique in the children of given location, but can not check roots. */
+	/**
+	 * Checks if passed node would be unique in the children of given location, but can not check roots.
+	 * This is done by one count query when <code>appendChildCheckingCondition()</code> is implemented,
+	 * else by loading all children and comparing them in memory.
+	 */
 	protected boolean checkUniqueChildrenConstraint(N node, TreeActionLocation<N> location)	{
-		final Map<String,Object> propertyValuesCache = new HashMap<String,Object>();
-		
-		final List<N> children;
-		
+		final N parent;
 		if (location.relatedNodeType == TreeActionLocation.RelatedNodeType.PARENT)	{
-			children = getDao().getChildren(location.relatedNode);
+			parent = location.relatedNode;
 		}
 		else	{	// relatedNode is sibling, or this is an update and the existing node was stored in relatedNode
-			N parent = getDao().getParent(location.relatedNode);
+			parent = getDao().getParent(location.relatedNode);
 			if (parent == null)	{	// this happens on root rename
 				List<N> nodes = new ArrayList<N>();
 				nodes.add(node);
 				return checkUniqueWholeTreeConstraint(nodes, location);
 			}
-			children = getDao().getChildren(parent);
 		}
 		
+		final StringBuilder queryText = new StringBuilder("select count("+getNodeTableAlias()+") from ");
+		queryText.append(fromClause());
+		final List<Object> parameters = new ArrayList<Object>();
+		if (appendChildCheckingCondition(parent, queryText, parameters) == false)
+			return checkUniqueChildrenInMemory(node, location, getDao().getChildren(parent));
+		
+		queryText.append(" and ");
+		appendUpdateCondition(node, queryText, parameters, getNodeTableAlias(), location);
+		if (appendNotNullUniquenessConditions(node, queryText, parameters, getNodeTableAlias()) == false)
+			return true;	// null values are never equal
+		
+		beforeCheckUniqueness(queryText, parameters);
+		
+		if (getSession().queryCount(queryText.toString(), parameters.toArray()) > 0)
+			return violation(node);
+		return true;
+	}
+	
+	/**
+	 * Appends the condition that restricts the uniqueness query to the direct children of given parent,
+	 * not starting with AND, not ending with AND. Does nothing and returns false, to be overridden.
+	 * Mind that the query compares property values by database equality,
+	 * thus return false when overriding <code>isDifferent()</code>.
+	 * @return true when the condition was appended, false when children must be checked in memory.
+	 */
+	@SuppressWarnings("unused")
+	protected boolean appendChildCheckingCondition(N parent, StringBuilder queryText, List<Object> parameters)	{
+		return false;
+	}
+	
+	/** Delegates to dao.equal(). */
+	protected final boolean equal(N n1, N n2)	{
+		return ((AbstractTreeDao<N>) getDao()).equal(n1, n2);
+	}
+	
+	/**
+	 * Equality of node property values. To be overridden.
+	 * @return true if the given property values are equal, or one or both are null, else false.
+	 */
+	protected boolean isDifferent(Object newValue, Object existingValue) {
+		if (newValue == null || existingValue == null)
+			return true;	// regard both null or one null to be different
+		
+		return existingValue.equals(newValue) == false;
+	}
+
+	
+	private boolean checkUniqueChildrenInMemory(N node, TreeActionLocation<N> location, List<N> children)	{
+		final Map<String,Object> propertyValuesCache = new HashMap<String,Object>();
+		
 		for (N child : children)	{
 			for (String [] uniqueNameSet : uniquePropertyNames)	{
 				if (location.actionType != TreeActionLocation.ActionType.MOVE || equal(child, node) == false)	{
@@ -145,7 +192,7 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 					}
 					
 					if (different == false)	// not one property of this child differed from candidate
-						return false;	// all unique properties are equal to those of given node
+						return violation(node);	// all unique properties are equal to those of given node
 				}
 			}
 		}
@@ -153,22 +200,34 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 		return true;
 	}
 	
-	/** Delegates to dao.equal(). */
-	protected final boolean equal(N n1, N n2)	{
-		return ((AbstractTreeDao<N>) getDao()).equal(n1, n2);
-	}
-	
 	/**
-	 * Equality of node property values. To be overridden.
-	 * @return true if the given property values are equal, or one or both are null, else false.
+	 * Appends unique property conditions like <code>appendUniquenessConditions()</code>,
+	 * but leaves out property sets where given node has a null value, as <code>isDifferent()</code> does.
+	 * @return false when no condition was appended because every set contains a null value.
 	 */
-	protected boolean isDifferent(Object newValue, Object existingValue) {
-		if (newValue == null || existingValue == null)
-			return true;	// regard both null or one null to be different
+	private boolean appendNotNullUniquenessConditions(N node, StringBuilder queryText, List<Object> parameters, String tableAlias) {
+		final List<Map<String,Object>> criteriaSets = new ArrayList<Map<String,Object>>();
+		for (final String [] uniqueNames : uniquePropertyNames)	{
+			final Map<String,Object> criteria = new HashMap<String,Object>();
+			for (String uniqueName : uniqueNames)
+				criteria.put(uniqueName, getNodeValueForProperty(uniqueName, node));
+			
+			if (criteria.containsValue(null) == false)
+				criteriaSets.add(criteria);
+		}
 		
-		return existingValue.equals(newValue) == false;
+		if (criteriaSets.size() <= 0)
+			return false;
+		
+		queryText.append(" (");	// needed to encapsulate "OR"
+		for (int i = 0; i < criteriaSets.size(); i++)	{
+			if (i > 0)
+				queryText.append(" or ");
+			QueryBuilderUtil.appendCriteria(true, queryText, tableAlias, parameters, criteriaSets.get(i), true, false);
+		}
+		queryText.append(") ");
+		return true;
 	}
-
 	
 	private Object getCachedNodeValueForProperty(String uniqueName, N node, Map<String,Object> cache) {
 		Object value = cache.get(uniqueName);
@@ -184,43 +243,26 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 	
 	// unique whole tree implementation
 	
-	/** Checks if passed node would be unique within its tree. */
+	/**
+	 * Checks if passed nodes would be unique within their tree. Candidates are first checked
+	 * against each other in memory, then against the database in batches of <code>CANDIDATES_PER_QUERY</code>.
+	 */
 	protected final boolean checkUniqueWholeTreeConstraint(List<N> nodes, TreeActionLocation<N> location)	{
+		final List<N> candidates = new ArrayList<N>();
 		for (N node : getNodesToCheck(nodes, location))	{
-			final StringBuilder queryText = new StringBuilder("select count("+getNodeTableAlias()+") from ");
-			queryText.append(fromClause());
-			
-			final List<Object> parameters = new ArrayList<Object>();
-			appendUpdateCondition(node, queryText, parameters, getNodeTableAlias(), location);
-			appendUniquenessConditions(node, queryText, parameters, getNodeTableAlias());
-			
-			final boolean isRootsOnlyCheck = isRootsCheck(location.root, node);
-			
-			if (isRootsOnlyCheck == false || shouldCheckRootsForUniqueness)	{
-				queryText.append(" and ");
-				
-				if (isRootsOnlyCheck)	{	// check unique roots
-					appendRootCheckingCondition(queryText, parameters);
-				}
-				else	{	// check unique nodes
-					if (location.root == null)
-						throw new IllegalArgumentException("Root is null, can not perform node uniqueness check without the root of a tree!");
-					
-					appendNodeCheckingCondition(location.root, queryText, parameters);
-				}
-				
-				beforeCheckUniqueness(queryText, parameters);
-				
-				if (getSession().queryCount(queryText.toString(), parameters.toArray()) > 0)
+			if (isRootsCheck(location.root, node) == false)	{
+				candidates.add(node);
+			}
+			else if (shouldCheckRootsForUniqueness)	{	// check unique roots, no need to check further copied nodes
+				if (checkUniqueNodes(candidates, location) == false)
 					return false;
 				
-				if (isRootsOnlyCheck)
-					return true;	// no need to check all copied nodes
+				return checkUniqueNodes(Arrays.asList(node), location);
 			}
 		}
-		return true;
+		return checkUniqueNodes(candidates, location);
 	}
-
+	
 	/** @return the node table alias (not the path table alias!) to be used for appending unique constraint conditions. */
 	protected abstract String getNodeTableAlias();
 
@@ -298,7 +340,306 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 	protected void beforeCheckUniqueness(StringBuilder queryText, List<Object> parameters) {
 	}
 
+	
+	
+	// deferred checks
+	
+	/**
+	 * Called by the DAO instead of <code>checkUniqueConstraint()</code> when checks are deferred.
+	 * Records the scope of given nodes for <code>checkDeferredUniqueConstraint()</code>,
+	 * but checks them against each other immediately, as this needs no database access.
+	 * Nodes are recorded per thread, as the transaction of a thread is not visible to others.
+	 * @return false when given nodes are not unique among themselves.
+	 */
+	public boolean deferUniqueConstraint(List<N> nodes, TreeActionLocation<N> location)	{
+		if (location.actionType == TreeActionLocation.ActionType.MOVE)	{	// the moved sub-tree is resolved when checking
+			deferredCandidates().add(new DeferredCandidate<N>(nodes.get(0), Scope.MOVED_TREE, null));
+			return true;
+		}
+		
+		final List<N> candidates = new ArrayList<N>();
+		for (N node : nodes)	{	// same as checkUniqueWholeTreeConstraint()
+			if (isRootsCheck(location.root, node) == false)	{
+				candidates.add(node);
+			}
+			else	{
+				if (shouldCheckRootsForUniqueness)
+					deferredCandidates().add(new DeferredCandidate<N>(node, Scope.ROOTS, null));
+				break;
+			}
+		}
+		
+		if (mapCandidatesByValues(candidates, new ArrayList<Map<List<Object>,N>>()) == false)
+			return false;
+		
+		for (N candidate : candidates)
+			deferredCandidates().add(new DeferredCandidate<N>(candidate, Scope.TREE, location.root));
+		return true;
+	}
+	
+	/**
+	 * Checks the nodes the calling thread recorded by <code>deferUniqueConstraint()</code>, which are stored meanwhile,
+	 * and forgets them. A node violates the constraint when its scope (tree, children or roots)
+	 * contains more than one node with its unique values. Nodes are grouped by scope,
+	 * each group is checked by one query per <code>CANDIDATES_PER_QUERY</code> nodes.
+	 * Null values are compared like the immediate checks do: equal in trees and roots, never equal in children.
+	 * @return false when a recorded node is not unique, see <code>getViolatingCandidate()</code>.
+	 */
+	public final boolean checkDeferredUniqueConstraint()	{
+		final List<DeferredCandidate<N>> deferred = deferredCandidates.get();
+		deferredCandidates.remove();
+		if (deferred == null)
+			return true;
+		
+		final Map<List<Object>,List<N>> groups = new LinkedHashMap<List<Object>,List<N>>();	// key = scope type and id
+		final Map<List<Object>,N> scopeNodes = new HashMap<List<Object>,N>();
+		for (DeferredCandidate<N> candidate : deferred)
+			resolveScope(candidate, groups, scopeNodes);
+		
+		for (Map.Entry<List<Object>,List<N>> group : groups.entrySet())	{
+			final Scope scope = (Scope) group.getKey().get(0);
+			final N scopeNode = scopeNodes.get(group.getKey());
+			final List<N> candidates = group.getValue();
+			final boolean nullIsEqual = (scope != Scope.CHILDREN);
+			
+			final List<N> children = (scope == Scope.CHILDREN && appendChildCheckingCondition(scopeNode, new StringBuilder(), new ArrayList<Object>()) == false)
+					? getDao().getChildren(scopeNode)	// no query condition for children, compare in memory
+					: null;
+			
+			for (int start = 0; start < candidates.size(); start += CANDIDATES_PER_QUERY)	{
+				final List<N> batch = candidates.subList(start, Math.min(start + CANDIDATES_PER_QUERY, candidates.size()));
+				final List<N> existingNodes = (children != null) ? children : findExistingNodes(batch, scope, scopeNode, nullIsEqual);
+				final N violating = findDuplicatedCandidate(batch, existingNodes, nullIsEqual);
+				if (violating != null)
+					return violation(violating);
+			}
+		}
+		return true;
+	}
+	
+	/** Forgets the nodes the calling thread recorded by <code>deferUniqueConstraint()</code>, to be called on rollback. */
+	public final void discardDeferredUniqueConstraint()	{
+		deferredCandidates.remove();
+	}
+	
+	/**
+	 * Records given node for a later check among the children of the location's parent.
+	 * To be called by unique-children implementations from <code>deferUniqueConstraint()</code>.
+	 */
+	protected final boolean deferUniqueChildrenConstraint(N node, TreeActionLocation<N> location)	{
+		if (location.relatedNodeType == TreeActionLocation.RelatedNodeType.PARENT)
+			deferredCandidates().add(new DeferredCandidate<N>(node, Scope.CHILDREN, location.relatedNode));
+		else	// parent of sibling is resolved when checking
+			deferredCandidates().add(new DeferredCandidate<N>(node, Scope.SIBLINGS, location.relatedNode));
+		return true;
+	}
+
+	
+	private List<DeferredCandidate<N>> deferredCandidates()	{
+		List<DeferredCandidate<N>> deferred = deferredCandidates.get();
+		if (deferred == null)	{
+			deferred = new ArrayList<DeferredCandidate<N>>();
+			deferredCandidates.set(deferred);
+		}
+		return deferred;
+	}
 
+	
+	private void resolveScope(DeferredCandidate<N> deferred, Map<List<Object>,List<N>> groups, Map<List<Object>,N> scopeNodes)	{
+		switch (deferred.scope)	{
+		case SIBLINGS:
+			final N parent = getDao().getParent(deferred.scopeNode);
+			if (parent != null)
+				addToGroup(deferred.node, Scope.CHILDREN, parent, groups, scopeNodes);
+			else if (shouldCheckRootsForUniqueness)	// sibling is a root
+				addToGroup(deferred.node, Scope.ROOTS, null, groups, scopeNodes);
+			break;
+			
+		case MOVED_TREE:
+			final N root = getDao().getRoot(deferred.node);
+			if (root == null)
+				break;	// removed meanwhile
+			
+			for (N node : getDao().getTree(deferred.node))	{
+				if (equal(node, root) == false)
+					addToGroup(node, Scope.TREE, root, groups, scopeNodes);
+				else if (shouldCheckRootsForUniqueness)	// moved to be root
+					addToGroup(node, Scope.ROOTS, null, groups, scopeNodes);
+			}
+			break;
+			
+		default:
+			addToGroup(deferred.node, deferred.scope, deferred.scopeNode, groups, scopeNodes);
+		}
+	}
+	
+	private void addToGroup(N node, Scope scope, N scopeNode, Map<List<Object>,List<N>> groups, Map<List<Object>,N> scopeNodes)	{
+		final List<Object> key = Arrays.asList(new Object [] { scope, (scopeNode != null) ? scopeNode.getId() : null });
+		List<N> group = groups.get(key);
+		if (group == null)	{
+			group = new ArrayList<N>();
+			groups.put(key, group);
+			scopeNodes.put(key, scopeNode);
+		}
+		group.add(node);
+	}
+	
+	/** @return the stored nodes in given scope that have the unique values of one of given candidates. */
+	@SuppressWarnings("unchecked")
+	private List<N> findExistingNodes(List<N> batch, Scope scope, N scopeNode, boolean nullIsEqual)	{
+		final StringBuilder queryText = new StringBuilder("select "+getNodeTableAlias()+" from ");
+		queryText.append(fromClause());
+		queryText.append(" (");
+		
+		final List<Object> parameters = new ArrayList<Object>();
+		boolean conditionAppended = false;
+		for (N candidate : batch)	{
+			final StringBuilder condition = new StringBuilder();
+			final boolean appended;
+			if (nullIsEqual)	{
+				appendUniquenessConditions(candidate, condition, parameters, getNodeTableAlias());
+				appended = true;
+			}
+			else	{
+				appended = appendNotNullUniquenessConditions(candidate, condition, parameters, getNodeTableAlias());
+			}
+			
+			if (appended)	{
+				if (conditionAppended)
+					queryText.append(" or ");
+				queryText.append(condition);
+				conditionAppended = true;
+			}
+		}
+		if (conditionAppended == false)
+			return new ArrayList<N>();	// null values are never equal
+		
+		queryText.append(") and ");
+		if (scope == Scope.ROOTS)
+			appendRootCheckingCondition(queryText, parameters);
+		else if (scope == Scope.CHILDREN)
+			appendChildCheckingCondition(scopeNode, queryText, parameters);
+		else
+			appendNodeCheckingCondition(scopeNode, queryText, parameters);
+		
+		beforeCheckUniqueness(queryText, parameters);
+		
+		return (List<N>) getSession().queryList(queryText.toString(), parameters.toArray());
+	}
+	
+	/** @return the last of given candidates whose unique values are held by more than one of given stored nodes, or null. */
+	private N findDuplicatedCandidate(List<N> batch, List<N> existingNodes, boolean nullIsEqual)	{
+		final Set<Serializable> counted = new HashSet<Serializable>();
+		final Set<List<Object>> seenValues = new HashSet<List<Object>>();
+		final Set<List<Object>> duplicatedValues = new HashSet<List<Object>>();
+		for (N existingNode : existingNodes)	{
+			if (counted.add(existingNode.getId()) == false)
+				continue;	// joined several times
+			
+			for (int i = 0; i < uniquePropertyNames.length; i++)	{
+				final List<Object> values = getNodeValues(uniquePropertyNames[i], existingNode);
+				values.add(0, i);
+				if ((nullIsEqual || values.contains(null) == false) && seenValues.add(values) == false)
+					duplicatedValues.add(values);
+			}
+		}
+		
+		for (int j = batch.size() - 1; j >= 0; j--)	{	// report the most recent candidate
+			final N candidate = batch.get(j);
+			for (int i = 0; i < uniquePropertyNames.length; i++)	{
+				final List<Object> values = getNodeValues(uniquePropertyNames[i], candidate);
+				values.add(0, i);
+				if (duplicatedValues.contains(values))
+					return candidate;
+			}
+		}
+		return null;
+	}
+
+
+	private boolean checkUniqueNodes(List<N> candidates, TreeActionLocation<N> location)	{
+		if (candidates.size() <= 0)
+			return true;
+		
+		final List<Map<List<Object>,N>> candidatesByValues = new ArrayList<Map<List<Object>,N>>();
+		if (mapCandidatesByValues(candidates, candidatesByValues) == false)
+			return false;
+		
+		for (int start = 0; start < candidates.size(); start += CANDIDATES_PER_QUERY)	{
+			final List<N> batch = candidates.subList(start, Math.min(start + CANDIDATES_PER_QUERY, candidates.size()));
+			final N violating = findViolatingCandidate(batch, location, candidatesByValues);
+			if (violating != null)
+				return violation(violating);
+		}
+		return true;
+	}
+	
+	/** @return the candidate of given batch for which the database contains a node with equal unique values, or null when none. */
+	@SuppressWarnings("unchecked")
+	private N findViolatingCandidate(List<N> batch, TreeActionLocation<N> location, List<Map<List<Object>,N>> candidatesByValues)	{
+		final StringBuilder queryText = new StringBuilder("select "+getNodeTableAlias()+" from ");
+		queryText.append(fromClause());
+		
+		final List<Object> parameters = new ArrayList<Object>();
+		for (N candidate : batch)
+			appendUpdateCondition(candidate, queryText, parameters, getNodeTableAlias(), location);
+		
+		queryText.append(" (");
+		for (int i = 0; i < batch.size(); i++)	{
+			if (i > 0)
+				queryText.append(" or ");
+			appendUniquenessConditions(batch.get(i), queryText, parameters, getNodeTableAlias());
+		}
+		queryText.append(") and ");
+		
+		final boolean isRootsOnlyCheck = isRootsCheck(location.root, batch.get(0));
+		if (isRootsOnlyCheck)
+			appendRootCheckingCondition(queryText, parameters);
+		else
+			appendNodeCheckingCondition(location.root, queryText, parameters);
+		
+		beforeCheckUniqueness(queryText, parameters);
+		
+		final List<N> existingNodes = (List<N>) getSession().queryList(queryText.toString(), parameters.toArray());
+		if (existingNodes.size() <= 0)
+			return null;
+		
+		for (N existingNode : existingNodes)	{	// find out which candidate has the values of the existing node
+			for (int i = 0; i < uniquePropertyNames.length; i++)	{
+				final N candidate = candidatesByValues.get(i).get(getNodeValues(uniquePropertyNames[i], existingNode));
+				if (candidate != null)
+					return candidate;
+			}
+		}
+		return batch.get(0);	// database equality differs from Java equality
+	}
+	
+	/** Fills given list with one map per unique property set. @return false when candidates are not unique among themselves. */
+	private boolean mapCandidatesByValues(List<N> candidates, List<Map<List<Object>,N>> candidatesByValues)	{
+		for (int i = 0; i < uniquePropertyNames.length; i++)
+			candidatesByValues.add(new HashMap<List<Object>,N>());
+		
+		for (N candidate : candidates)	{	// find duplicates among candidates
+			for (int i = 0; i < uniquePropertyNames.length; i++)	{
+				if (candidatesByValues.get(i).put(getNodeValues(uniquePropertyNames[i], candidate), candidate) != null)
+					return violation(candidate);
+			}
+		}
+		return true;
+	}
+	
+	private List<Object> getNodeValues(String [] uniqueNames, N node)	{
+		final List<Object> values = new ArrayList<Object>(uniqueNames.length);
+		for (String uniqueName : uniqueNames)
+			values.add(getNodeValueForProperty(uniqueName, node));
+		return values;
+	}
+	
+	private boolean violation(N candidate)	{
+		violatingCandidate = candidate;
+		return false;
+	}
+	
 	private List<N> getNodesToCheck(List<N> nodes, TreeActionLocation<N> location) {
 		if (location.actionType == TreeActionLocation.ActionType.MOVE)	{
 			final N movingNode = nodes.get(0);
@@ -315,4 +656,29 @@ public abstract class AbstractUniqueTreeConstraintImpl <N extends TreeNode> impl
 		return nodes;
 	}
 
+	
+	/** Where a deferred candidate must be unique. */
+	private enum Scope
+	{
+		ROOTS,
+		TREE,	// scope node is the root
+		CHILDREN,	// scope node is the parent
+		SIBLINGS,	// scope node is a sibling
+		MOVED_TREE,	// candidate is the top of a moved sub-tree
+	}
+	
+	/** A node recorded by a deferred check, together with the scope where it must be unique. */
+	private static class DeferredCandidate <N extends TreeNode>
+	{
+		final N node;
+		final Scope scope;
+		final N scopeNode;
+		
+		DeferredCandidate(N node, Scope scope, N scopeNode)	{
+			this.node = node;
+			this.scope = scope;
+			this.scopeNode = scopeNode;
+		}
+	}
+
 }
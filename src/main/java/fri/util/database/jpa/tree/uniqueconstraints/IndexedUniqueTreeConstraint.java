@@ -0,0 +1,251 @@
+package fri.util.database.jpa.tree.uniqueconstraints;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.TreeDao;
+import fri.util.database.jpa.tree.TreeNode;
+import fri.util.database.jpa.tree.util.TreeActionLocation;
+
+/**
+ * Unique constraint that keeps the unique property values of hot trees in memory,
+ * per root for whole-tree uniqueness, or per parent for unique children.
+ * A candidate whose values are not in the index of a warm root or parent is unique
+ * without a database round trip. Hits, roots checks and moves of whole-tree constraints
+ * are delegated to the wrapped database constraint, which stays the authority.
+ * <p/>
+ * A root or parent is warmed on its first check by reading its tree or children,
+ * or by <code>warm()</code> from a tree the application already holds.
+ * Values of checked candidates are added to the index, the DAO reports updates
+ * and recovered nodes as <code>UniqueTreeConstraintListener</code>. Values of removed
+ * nodes stay in the index and cost one database check when used again.
+ * <p/>
+ * Mind that the index sees only the writes of the DAOs it is set into.
+ * Unique properties must be changed through <code>dao.update()</code>, and writes
+ * of other processes require <code>clear()</code>.
+ * <p/>
+ * Trees are read and the database is queried outside of any lock, only the map
+ * of indexes and each single index are synchronized, so checks in other trees do not wait.
+ */
+public class IndexedUniqueTreeConstraint <N extends TreeNode> implements UniqueTreeConstraint<N>, UniqueTreeConstraintListener<N>
+{
+	/** The default maximum number of roots or parents held in memory. */
+	public static final int DEFAULT_MAXIMUM_INDEXES = 1000;
+
+	private final AbstractUniqueTreeConstraintImpl<N> databaseConstraint;
+	private final boolean perParent;
+	private final Map<Serializable,Set<List<Object>>> indexes;	// key = id of root or parent, synchronized on itself
+	private long generation;	// counts dropped indexes, guarded by indexes
+	private N violatingCandidate;
+
+	/**
+	 * @param databaseConstraint the constraint that checks against database, must be unique-children
+	 * 		when perParent is true, else whole-tree.
+	 * @param perParent true for indexing children per parent, false for indexing whole trees per root.
+	 */
+	public IndexedUniqueTreeConstraint(AbstractUniqueTreeConstraintImpl<N> databaseConstraint, boolean perParent) {
+		this(databaseConstraint, perParent, DEFAULT_MAXIMUM_INDEXES);
+	}
+
+	/**
+	 * @param maximumIndexes the maximum number of roots or parents held in memory,
+	 * 		the least recently used is dropped when exceeded.
+	 */
+	public IndexedUniqueTreeConstraint(AbstractUniqueTreeConstraintImpl<N> databaseConstraint, boolean perParent, final int maximumIndexes) {
+		if (databaseConstraint == null)
+			throw new IllegalArgumentException("Need a database constraint to delegate to!");
+
+		if (maximumIndexes <= 0)
+			throw new IllegalArgumentException("Maximum number of indexes must be positive: "+maximumIndexes);
+
+		this.databaseConstraint = databaseConstraint;
+		this.perParent = perParent;
+		this.indexes = new LinkedHashMap<Serializable,Set<List<Object>>>(16, 0.75f, true)	{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Serializable,Set<List<Object>>> eldest) {
+				return size() > maximumIndexes;
+			}
+		};
+	}
+
+	@Override
+	public void setContext(DbSession session, TreeDao<N> dao, String nodeEntityName, String pathEntityName) {
+		databaseConstraint.setContext(session, dao, nodeEntityName, pathEntityName);
+		violatingCandidate = null;
+	}
+
+	/** @return the candidate that violated the constraint in the last check since <code>setContext()</code>, null when not known. */
+	public final N getViolatingCandidate()	{
+		return (violatingCandidate != null) ? violatingCandidate : databaseConstraint.getViolatingCandidate();
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public boolean checkUniqueConstraint(List<N> candidates, TreeActionLocation<N> location) {
+		final N first = candidates.get(0);
+		final boolean isWholeTreeMove = (perParent == false && location.actionType == TreeActionLocation.ActionType.MOVE);
+		if (isWholeTreeMove || databaseConstraint.isRootsCheck(location.root, first))	{
+			final boolean unique = databaseConstraint.checkUniqueConstraint(candidates, location);
+			if (unique && isWholeTreeMove)	// a sub-tree may have been moved in from another tree
+				drop(location.root.getId());
+			return unique;
+		}
+
+		final N key = perParent ? parentOf(location) : location.root;
+		if (key == null)	// root rename, checked among roots
+			return databaseConstraint.checkUniqueConstraint(candidates, location);
+
+		final Set<List<Object>> index = getIndex(key);
+		final List<N> checkedCandidates = perParent ? Arrays.asList(first) : candidates;	// children constraints check the topmost only
+		final Set<List<Object>> candidateValues = new HashSet<List<Object>>();
+		for (N candidate : checkedCandidates)	{
+			for (List<Object> values : getValues(candidate))	{
+				if (candidateValues.add(values) == false)	{	// duplicate among candidates
+					violatingCandidate = candidate;
+					return false;
+				}
+			}
+		}
+
+		synchronized(index)	{
+			if (Collections.disjoint(index, candidateValues))	{	// miss, add atomically with the check
+				index.addAll(candidateValues);
+				return true;
+			}
+		}
+
+		if (databaseConstraint.checkUniqueConstraint(candidates, location) == false)
+			return false;
+
+		synchronized(index)	{
+			index.addAll(candidateValues);
+		}
+		return true;
+	}
+
+	/** Adds the new values of given node to the index of its root or parent when that is held in memory. */
+	@Override
+	public void nodeUpdated(N node) {
+		synchronized(indexes)	{
+			if (indexes.size() <= 0)
+				return;	// avoid reading parent or root
+		}
+
+		final N key = perParent ? getDao().getParent(node) : getDao().getRoot(node);
+		if (key == null)
+			return;
+
+		final Set<List<Object>> index;
+		synchronized(indexes)	{
+			index = indexes.get(key.getId());
+		}
+		if (index != null)	{
+			final List<List<Object>> values = getValues(node);
+			synchronized(index)	{
+				index.addAll(values);
+			}
+		}
+	}
+
+	/** Drops the index of given root, or all indexes when root is null or indexes are held per parent. */
+	@Override
+	public void treeChanged(N root) {
+		if (root == null || perParent)
+			clear();
+		else
+			drop(root.getId());
+	}
+
+	/**
+	 * Replaces the index of given root or parent by the values of given nodes.
+	 * @param rootOrParent the root of the tree when indexing per root, else the parent of given nodes.
+	 * @param nodes all valid nodes of the tree when indexing per root, e.g. from <code>dao.getTreeCacheable()</code>,
+	 * 		else all valid children of the parent.
+	 */
+	public void warm(N rootOrParent, List<N> nodes)	{
+		final Set<List<Object>> index = newIndex(nodes);
+		synchronized(indexes)	{
+			indexes.put(rootOrParent.getId(), index);
+		}
+	}
+
+	/** Drops all indexes, to be called when other processes wrote to the trees. */
+	public void clear()	{
+		synchronized(indexes)	{
+			indexes.clear();
+			generation++;
+		}
+	}
+
+
+	private void drop(Serializable id)	{
+		synchronized(indexes)	{
+			indexes.remove(id);
+			generation++;
+		}
+	}
+
+	/** Reads the tree or children of a cold root or parent without holding a lock, then puts the index if absent. */
+	private Set<List<Object>> getIndex(N key)	{
+		final Serializable id = key.getId();
+		final long generationBeforeRead;
+		synchronized(indexes)	{
+			final Set<List<Object>> index = indexes.get(id);
+			if (index != null)
+				return index;
+			generationBeforeRead = generation;
+		}
+
+		final List<N> nodes = perParent ? getDao().getChildren(key) : getDao().getTreeCacheable(key);
+		final Set<List<Object>> index = newIndex(nodes);
+
+		synchronized(indexes)	{
+			final Set<List<Object>> existing = indexes.get(id);
+			if (existing != null)	// another thread warmed it meanwhile
+				return existing;
+			if (generation == generationBeforeRead)	// else an index was dropped while reading, this one may be stale
+				indexes.put(id, index);
+			return index;
+		}
+	}
+
+	private Set<List<Object>> newIndex(List<N> nodes)	{
+		final Set<List<Object>> index = new HashSet<List<Object>>();
+		for (N node : nodes)
+			index.addAll(getValues(node));
+		return index;
+	}
+
+	/** @return one list per unique property set, starting with the set's index, followed by the node's values. */
+	private List<List<Object>> getValues(N node)	{
+		final String [][] uniquePropertyNames = databaseConstraint.uniquePropertyNames;
+		final List<List<Object>> valueSets = new ArrayList<List<Object>>(uniquePropertyNames.length);
+		for (int i = 0; i < uniquePropertyNames.length; i++)	{
+			final List<Object> values = new ArrayList<Object>(uniquePropertyNames[i].length + 1);
+			values.add(Integer.valueOf(i));
+			for (String uniqueName : uniquePropertyNames[i])
+				values.add(PropertyAccessorRegistry.getValue(uniqueName, node));
+			valueSets.add(values);
+		}
+		return valueSets;
+	}
+
+	private N parentOf(TreeActionLocation<N> location)	{
+		if (location.relatedNodeType == TreeActionLocation.RelatedNodeType.PARENT)
+			return location.relatedNode;
+		return getDao().getParent(location.relatedNode);	// sibling, or the existing node on update
+	}
+
+	private TreeDao<N> getDao()	{
+		return databaseConstraint.getDao();
+	}
+
+}
@@ -0,0 +1,73 @@
+package fri.util.database.jpa.tree.uniqueconstraints;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Reads node properties by reflection for unique constraint checks.
+ * Fields are looked up once per class and property name, made accessible,
+ * and then reused by all constraint implementations. Thread-safe.
+ */
+public final class PropertyAccessorRegistry
+{
+	private static final ConcurrentMap<Class<?>,ConcurrentMap<String,Field>> fields = new ConcurrentHashMap<Class<?>,ConcurrentMap<String,Field>>();
+
+	/**
+	 * Retrieves a named value from given Object by reflection.
+	 * @param propertyName the case-sensitive name of the field to read, declared in the node's class or a super-class.
+	 * @param node the object to read the field from.
+	 * @return the value of the named field in given node.
+	 */
+	public static Object getValue(String propertyName, Object node)	{
+		final Field field = getField(node.getClass(), propertyName);
+		try {
+			return field.get(node);
+		}
+		catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the accessible field of given name, declared in given class or a super-class.
+	 * @throws RuntimeException when no such field exists.
+	 */
+	public static Field getField(Class<?> clazz, String propertyName)	{
+		ConcurrentMap<String,Field> classFields = fields.get(clazz);
+		if (classFields == null)	{
+			final ConcurrentMap<String,Field> newClassFields = new ConcurrentHashMap<String,Field>();
+			classFields = fields.putIfAbsent(clazz, newClassFields);
+			if (classFields == null)
+				classFields = newClassFields;
+		}
+
+		Field field = classFields.get(propertyName);
+		if (field == null)	{
+			field = findField(clazz, propertyName);
+			classFields.put(propertyName, field);	// concurrent lookups find the same field
+		}
+		return field;
+	}
+
+
+	private static Field findField(Class<?> nodeClass, String propertyName)	{
+		Class<?> clazz = nodeClass;
+		do	{
+			try {
+				final Field field = clazz.getDeclaredField(propertyName);
+				field.setAccessible(true);
+				return field;
+			}
+			catch (NoSuchFieldException e) {
+				// skip to superclass when field not here
+			}
+			clazz = clazz.getSuperclass();
+		}
+		while (clazz != null);
+		throw new RuntimeException("Field not found when checking unique constraint: "+propertyName+", class: "+nodeClass.getName());
+	}
+
+
+	private PropertyAccessorRegistry()	{}	// do not instantiate
+}
@@ -0,0 +1,18 @@
+package fri.util.database.jpa.tree.uniqueconstraints;
+
+import fri.util.database.jpa.tree.TreeNode;
+
+/**
+ * Optionally implemented by unique constraints that keep state about tree contents.
+ * The DAO reports writes that bring unique values into a tree without a preceding
+ * call to <code>UniqueTreeConstraint.checkUniqueConstraint()</code>.
+ */
+public interface UniqueTreeConstraintListener<N extends TreeNode>
+{
+	/** Called after given persistent node was updated, its unique property values may have changed. */
+	void nodeUpdated(N node);
+
+	/** Called after removed nodes were recovered in the tree of given root, null when the root is not known. */
+	void treeChanged(N root);
+
+}
@@ -0,0 +1,301 @@
+package fri.util.database.jpa.tree.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multiple-granularity lock manager for tree nodes.
+ * A node is locked in shared (S) or exclusive (X) mode, which covers its whole sub-tree,
+ * and all its ancestors are locked in intention mode (IS or IX), so that
+ * writes in disjoint sub-trees can run in parallel while overlapping ones are serialized.
+ * All trees hang below a virtual top node, locking it exclusively locks everything.
+ * <p/>
+ * All locks of an action must be requested at once, they are acquired in a fixed
+ * key order, which avoids deadlocks. A thread can lock again what it already holds,
+ * in the same or a weaker mode, and holding the top node exclusively covers any further
+ * request of that thread. Upgrading a held lock to a stronger mode, e.g. IX to X in a nested
+ * <code>lock()</code> call, throws IllegalStateException, because two threads upgrading
+ * the same key would wait for each other forever.
+ * <p/>
+ * Lock wait and hold times are recorded for tuning.
+ */
+public class HierarchicalLockManager implements LockWaitStatistics
+{
+	/** Lock modes, with intention modes for ancestors. */
+	public enum Mode
+	{
+		IS,
+		IX,
+		S,
+		X;
+
+		/** @return true when this mode can be granted while another thread holds given mode. */
+		public boolean isCompatibleWith(Mode other)	{
+			switch (this)	{
+				case IS: return other != X;
+				case IX: return other == IS || other == IX;
+				case S: return other == IS || other == S;
+				default: return false;
+			}
+		}
+
+		/**
+		 * @return the weakest mode that includes this and given mode.
+		 * There is no SIX mode (shared with intention exclusive), thus S combined
+		 * with IX results in X, which also blocks readers of other threads.
+		 */
+		public Mode combine(Mode other)	{
+			if (this == other)
+				return this;
+			if (this == X || other == X)
+				return X;
+			if ((this == S && other == IX) || (this == IX && other == S))
+				return X;	// S+IX would be SIX, approximated by X
+			if (this == IS)
+				return other;
+			if (other == IS)
+				return this;
+			return X;
+		}
+	}
+
+	/** Key of the virtual node above all roots. */
+	public static final Object TOP = new Object()	{
+		@Override
+		public String toString() {
+			return "TOP";
+		}
+	};
+
+	/** Handle of locks acquired together, to be passed to <code>unlock()</code>. */
+	public static final class Lock
+	{
+		private final List<Object> keys;
+		private final long acquiredNanos;
+
+		private Lock(List<Object> keys, long acquiredNanos)	{
+			this.keys = keys;
+			this.acquiredNanos = acquiredNanos;
+		}
+	}
+
+	/** Orders keys for acquisition: TOP first, then by string representation and hash code. */
+	private static final Comparator<Object> KEY_ORDER = new Comparator<Object>()	{
+		@Override
+		public int compare(Object key1, Object key2) {
+			if (key1 == key2)
+				return 0;
+			if (key1 == TOP)
+				return -1;
+			if (key2 == TOP)
+				return 1;
+
+			final int result = String.valueOf(key1).compareTo(String.valueOf(key2));
+			if (result != 0)
+				return result;
+			return key1.hashCode() < key2.hashCode() ? -1 : key1.hashCode() > key2.hashCode() ? 1 : 0;
+		}
+	};
+
+	/** Granted modes per key and thread, guarded by this. */
+	private final Map<Object,Map<Thread,Grant>> grants = new HashMap<Object,Map<Thread,Grant>>();
+
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong totalHoldNanos = new AtomicLong();
+	private final AtomicLong maxHoldNanos = new AtomicLong();
+
+
+	/**
+	 * Acquires given locks, in a fixed key order, waiting until all are granted.
+	 * @param requests the keys (node identities) to lock, with their modes.
+	 * @return the handle to pass to <code>unlock()</code> in a finally-block.
+	 */
+	public Lock lock(Map<Object,Mode> requests)	{
+		final List<Object> keys = new ArrayList<Object>(requests.keySet());
+		Collections.sort(keys, KEY_ORDER);
+
+		final Thread thread = Thread.currentThread();
+		final long start = System.nanoTime();
+		final List<Object> locked = new ArrayList<Object>(keys.size());
+		try	{
+			for (Object key : keys)	{
+				acquire(key, requests.get(key), thread);
+				locked.add(key);
+			}
+		}
+		catch (InterruptedException e)	{
+			release(locked, thread);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for tree lock", e);
+		}
+		catch (RuntimeException e)	{	// rejected upgrade
+			release(locked, thread);
+			throw e;
+		}
+		final long acquired = System.nanoTime();
+
+		acquisitions.incrementAndGet();
+		record(acquired - start, totalWaitNanos, maxWaitNanos);
+
+		return new Lock(locked, acquired);
+	}
+
+	/** Releases locks acquired by <code>lock()</code>. */
+	public void unlock(Lock lock)	{
+		release(lock.keys, Thread.currentThread());
+		record(System.nanoTime() - lock.acquiredNanos, totalHoldNanos, maxHoldNanos);
+	}
+
+
+	/** @return the number of lock acquisitions since start or last reset. */
+	@Override
+	public long getAcquisitions()	{
+		return acquisitions.get();
+	}
+
+	/** @return the summed up nanoseconds threads waited for locks. */
+	@Override
+	public long getTotalWaitNanos()	{
+		return totalWaitNanos.get();
+	}
+
+	/** @return the longest nanoseconds a thread waited for locks. */
+	public long getMaxWaitNanos()	{
+		return maxWaitNanos.get();
+	}
+
+	/** @return the summed up nanoseconds locks were held. */
+	public long getTotalHoldNanos()	{
+		return totalHoldNanos.get();
+	}
+
+	/** @return the longest nanoseconds locks were held. */
+	public long getMaxHoldNanos()	{
+		return maxHoldNanos.get();
+	}
+
+	/** Sets all lock statistics to zero. */
+	public void resetStatistics()	{
+		acquisitions.set(0);
+		totalWaitNanos.set(0);
+		maxWaitNanos.set(0);
+		totalHoldNanos.set(0);
+		maxHoldNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		final long count = Math.max(getAcquisitions(), 1);
+		return getClass().getSimpleName()+
+				"[acquisitions="+getAcquisitions()+
+				", averageWaitMicros="+(getTotalWaitNanos() / count / 1000)+
+				", maxWaitMicros="+(getMaxWaitNanos() / 1000)+
+				", averageHoldMicros="+(getTotalHoldNanos() / count / 1000)+
+				", maxHoldMicros="+(getMaxHoldNanos() / 1000)+"]";
+	}
+
+
+	private synchronized void acquire(Object key, Mode mode, Thread thread) throws InterruptedException	{
+		Map<Thread,Grant> holders = grants.get(key);
+		final Grant grant = (holders != null) ? holders.get(thread) : null;
+		if (grant != null && grant.mode.combine(mode) != grant.mode && isCoveredByTop(key, thread) == false)
+			throw new IllegalStateException("Can not upgrade lock on "+key+" from "+grant.mode+" to "+mode+", request all locks of an action at once");
+
+		while (isGrantable(key, mode, thread) == false)
+			wait();
+
+		holders = grants.get(key);
+		if (holders == null)
+			grants.put(key, holders = new HashMap<Thread,Grant>());
+
+		if (grant == null)
+			holders.put(thread, new Grant(mode));
+		else
+			grant.add(mode);
+	}
+
+	/** @return true when given thread holds the top node exclusively, which covers everything below. */
+	private boolean isCoveredByTop(Object key, Thread thread)	{
+		final Map<Thread,Grant> topHolders = grants.get(TOP);
+		if (key == TOP || topHolders == null)
+			return false;
+
+		final Grant topGrant = topHolders.get(thread);
+		return topGrant != null && topGrant.mode == Mode.X;
+	}
+
+	private boolean isGrantable(Object key, Mode mode, Thread thread)	{
+		if (isCoveredByTop(key, thread))
+			return true;
+
+		final Map<Thread,Grant> holders = grants.get(key);
+		if (holders == null)
+			return true;
+
+		// when this thread already holds the key, the combined mode must be compatible with the others
+		final Grant own = holders.get(thread);
+		final Mode effective = (own != null) ? own.mode.combine(mode) : mode;
+		for (Map.Entry<Thread,Grant> entry : holders.entrySet())
+			if (entry.getKey() != thread && effective.isCompatibleWith(entry.getValue().mode) == false)
+				return false;
+
+		return true;
+	}
+
+	private synchronized void release(List<Object> keys, Thread thread)	{
+		for (Object key : keys)	{
+			final Map<Thread,Grant> holders = grants.get(key);
+			final Grant grant = (holders != null) ? holders.get(thread) : null;
+			if (grant == null)
+				throw new IllegalStateException("Lock on "+key+" is not held by "+thread.getName());
+
+			if (grant.remove() == false)	{
+				holders.remove(thread);
+				if (holders.isEmpty())
+					grants.remove(key);
+			}
+		}
+		notifyAll();
+	}
+
+	private void record(long nanos, AtomicLong total, AtomicLong max)	{
+		total.addAndGet(nanos);
+		long currentMax;
+		while (nanos > (currentMax = max.get()) && max.compareAndSet(currentMax, nanos) == false)
+			;	// retry until set or another thread recorded a bigger value
+	}
+
+
+	/** Mode and reentrance history of one thread on one key. */
+	private static class Grant
+	{
+		private final List<Mode> modes = new ArrayList<Mode>();
+		private Mode mode;
+
+		Grant(Mode mode)	{
+			add(mode);
+		}
+
+		void add(Mode mode)	{
+			modes.add(mode);
+			this.mode = (this.mode == null) ? mode : this.mode.combine(mode);
+		}
+
+		/** @return false when no more grant is left. */
+		boolean remove()	{
+			modes.remove(modes.size() - 1);
+			mode = null;
+			for (Mode m : modes)
+				mode = (mode == null) ? m : mode.combine(m);
+			return modes.size() > 0;
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+package fri.util.database.jpa.tree.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import fri.util.database.jpa.commons.DbOperation;
+import fri.util.database.jpa.commons.DbStatistics;
+import fri.util.database.jpa.tree.TemporalTreeView;
+import fri.util.database.jpa.tree.TreeDao;
+import fri.util.database.jpa.tree.TreeNode;
+
+/**
+ * Wraps a DAO so that each call of its interface methods runs as <code>DbOperation</code>
+ * named like the method, and is counted with latency, session calls and rows in <code>DbStatistics</code>.
+ * Session calls are attributed to the operation only when the DAO's session is an <code>InstrumentedDbSession</code>.
+ * <pre>
+ *  DbStatistics statistics = new DbStatistics();
+ *  TreeDao&lt;NestedSetsTreeNode&gt; dao = InstrumentedTreeDao.instrument(
+ *      new NestedSetsTreeDao(NestedSetsTreePojo.class, new InstrumentedDbSession(session, statistics)),
+ *      statistics);
+ * </pre>
+ * The returned proxy implements all interfaces of the wrapped DAO, thus it can be cast
+ * to <code>TemporalTreeDao</code> when the wrapped DAO is temporal. Calls the DAO makes to itself
+ * are part of the calling operation, overloaded methods are counted as one operation.
+ * Calls that throw an exception are counted as failures.
+ * Views returned by <code>asOf()</code> and iterators returned by <code>getChanges()</code> read later,
+ * thus their calls run as operations named like the DAO method that returned them.
+ * <p/>
+ * Without statistics, calls just run as operations. The DAOs do not begin operations themselves,
+ * thus a <code>RoutingDbSession</code> needs this proxy to tell read-only calls.
+ */
+public final class InstrumentedTreeDao implements InvocationHandler
+{
+	private final Object target;	// the DAO, or a view or iterator it returned
+	private final DbStatistics statistics;
+	private final String operationName;
+
+	/**
+	 * @param dao the DAO to instrument.
+	 * @param statistics receives the operation measurements, can be null when not measuring.
+	 * @return a proxy of given DAO that measures its calls.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <N extends TreeNode> TreeDao<N> instrument(TreeDao<N> dao, DbStatistics statistics)	{
+		if (dao == null)
+			throw new IllegalArgumentException("Need a DAO to instrument!");
+
+		final Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		for (Class<?> c = dao.getClass(); c != null; c = c.getSuperclass())
+			for (Class<?> i : c.getInterfaces())
+				interfaces.add(i);
+
+		return (TreeDao<N>) Proxy.newProxyInstance(
+				dao.getClass().getClassLoader(),
+				interfaces.toArray(new Class<?>[interfaces.size()]),
+				new InstrumentedTreeDao(dao, statistics, null));
+	}
+
+
+	/** @param operationName the name of all operations on given target, null for the name of the called method. */
+	private InstrumentedTreeDao(Object target, DbStatistics statistics, String operationName)	{
+		this.target = target;
+		this.statistics = statistics;
+		this.operationName = operationName;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class)
+			return invoke(method, args);
+
+		final String name = (operationName != null) ? operationName : method.getName();
+		final DbOperation operation = DbOperation.begin(name);
+		boolean failed = true;
+		try	{
+			final Object result = invoke(method, args);
+			failed = false;
+			return instrumentResult(result, name);
+		}
+		finally	{
+			if (operation.end() && statistics != null)	{
+				if (failed)
+					statistics.recordFailedOperation(operation.getName(), operation.getElapsedNanos(), operation.getStatementCount());
+				else
+					statistics.recordOperation(operation.getName(), operation.getElapsedNanos(), operation.getStatementCount(), operation.getRowCount());
+			}
+		}
+	}
+
+	/** Wraps views and iterators, which read after the call returned, so that their calls run as operation with given name. */
+	private Object instrumentResult(Object result, String name)	{
+		final Class<?> type = (result instanceof TemporalTreeView<?>)
+				? TemporalTreeView.class
+				: (result instanceof Iterator<?>) ? Iterator.class : null;
+		if (type == null)
+			return result;
+
+		return Proxy.newProxyInstance(
+				type.getClassLoader(),
+				new Class<?> [] { type },
+				new InstrumentedTreeDao(result, statistics, name));
+	}
+
+	private Object invoke(Method method, Object[] args) throws Throwable {
+		try	{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)	{
+			throw e.getCause();
+		}
+	}
+
+}
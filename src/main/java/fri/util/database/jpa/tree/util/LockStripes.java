@@ -0,0 +1,124 @@
+package fri.util.database.jpa.tree.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of reentrant locks ("stripes"), selected by the hash code of a key.
+ * Different keys mostly map to different stripes, so that work on them can run in parallel.
+ * Several keys are always locked in ascending stripe order, which avoids deadlocks
+ * between threads that lock the same keys in different order.
+ * <p/>
+ * Do not call <code>lockAll()</code> while holding some stripes, unless there is just one stripe.
+ * <p/>
+ * The locks are local to the JVM. DAOs release them when a write method returns, which is
+ * before the caller commits the transaction, thus they serialize the index updates of threads
+ * in one process, but do not protect a tree that several processes write. Use database locks,
+ * or a serializable isolation level, for that.
+ * <p/>
+ * Lock wait times are recorded for tuning.
+ */
+public class LockStripes implements LockWaitStatistics
+{
+	private final ReentrantLock [] locks;
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+
+	/** @param count the number of stripes, 1 serializes all work. */
+	public LockStripes(int count)	{
+		if (count <= 0)
+			throw new IllegalArgumentException("Need at least one lock stripe: "+count);
+
+		locks = new ReentrantLock[count];
+		for (int i = 0; i < count; i++)
+			locks[i] = new ReentrantLock();
+	}
+
+	/** @return the number of stripes. */
+	public int size()	{
+		return locks.length;
+	}
+
+	/**
+	 * Locks the stripes of given keys in ascending order, null keys are ignored.
+	 * @return the locked stripe indexes, to be passed to <code>unlock()</code> in a finally-block.
+	 */
+	public int [] lock(Object... keys)	{
+		final int [] stripes = stripesOf(keys);
+		final long start = System.nanoTime();
+		for (int stripe : stripes)
+			locks[stripe].lock();
+		acquired(start);
+		return stripes;
+	}
+
+	/**
+	 * Locks all stripes in ascending order.
+	 * @return the locked stripe indexes, to be passed to <code>unlock()</code> in a finally-block.
+	 */
+	public int [] lockAll()	{
+		final int [] stripes = new int[locks.length];
+		final long start = System.nanoTime();
+		for (int i = 0; i < stripes.length; i++)	{
+			stripes[i] = i;
+			locks[i].lock();
+		}
+		acquired(start);
+		return stripes;
+	}
+
+	/** Unlocks given stripes, as returned by one of the lock methods. */
+	public void unlock(int [] stripes)	{
+		for (int i = stripes.length - 1; i >= 0; i--)
+			locks[stripes[i]].unlock();
+	}
+
+	@Override
+	public long getAcquisitions()	{
+		return acquisitions.get();
+	}
+
+	@Override
+	public long getTotalWaitNanos()	{
+		return totalWaitNanos.get();
+	}
+
+	/** Sets the lock statistics to zero. */
+	public void resetStatistics()	{
+		acquisitions.set(0);
+		totalWaitNanos.set(0);
+	}
+
+
+	private void acquired(long start)	{
+		totalWaitNanos.addAndGet(System.nanoTime() - start);
+		acquisitions.incrementAndGet();
+	}
+
+	private int [] stripesOf(Object [] keys)	{
+		final int [] stripes = new int[keys.length];
+		int count = 0;
+		for (Object key : keys)	{
+			if (key != null)	{
+				final int stripe = stripeOf(key);
+				boolean contained = false;
+				for (int i = 0; contained == false && i < count; i++)
+					contained = (stripes[i] == stripe);
+
+				if (contained == false)
+					stripes[count++] = stripe;
+			}
+		}
+		final int [] result = Arrays.copyOf(stripes, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	private int stripeOf(Object key)	{
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);	// spread high bits, ids often differ only there
+		return (hash & Integer.MAX_VALUE) % locks.length;
+	}
+
+}
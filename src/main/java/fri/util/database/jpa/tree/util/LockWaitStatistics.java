@@ -0,0 +1,14 @@
+package fri.util.database.jpa.tree.util;
+
+/**
+ * Lock wait counters of the locks DAO write-methods use, e.g. for a latency probe.
+ */
+public interface LockWaitStatistics
+{
+	/** @return the number of lock acquisitions since start or last reset. */
+	long getAcquisitions();
+
+	/** @return the summed up nanoseconds threads waited for locks. */
+	long getTotalWaitNanos();
+
+}
@@ -4,6 +4,8 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import fri.util.database.jpa.tree.TemporalReadScope;
+
 /**
  * Utilities for editing JPQL queries.
  * 
@@ -81,9 +83,9 @@ public final class QueryBuilderUtil
 	 * Appends "(validFrom is null or validFrom <= ?) and (validTo is null or validTo > ?)".
 	 * @param tableAlias the alias to use for query text, can be null.
 	 * @param validFromPropertyName the name of the property that represents the temporal valid-from date, can be null.
-	 * @param validFrom the value for valid-from property, can be null, then "now" is used.
+	 * @param validFrom the value for valid-from property, can be null, then "now" or the instant of the current read scope is used.
 	 * @param validToPropertyName the name of the property that represents the temporal valid-to date, can NOT be null.
-	 * @param validTo the value for valid-to property, can be null, then "now" is used.
+	 * @param validTo the value for valid-to property, can be null, then "now" or the instant of the current read scope is used.
 	 * @param queryText the query to append property conditions to.
 	 * @param parameters the query parameters to append property values to.
 	 */
@@ -96,14 +98,37 @@ public final class QueryBuilderUtil
 			StringBuilder queryText,
 			List<Object> parameters)
 	{
-		final Date now = new Date();
+		appendValidityConditions(tableAlias, validFromPropertyName, validFrom, validToPropertyName, validTo, true, queryText, parameters);
+	}
+	
+	/**
+	 * Appends "(validFrom is null or validFrom <= ?) and (validTo is null or validTo > ?)",
+	 * or "(validFrom is null or validFrom <= ?) and validTo > ?" when valid-to is never null,
+	 * which is a plain range condition that an index on valid-to can serve.
+	 * @param validToIsNullable false when current nodes carry a far-future sentinel in valid-to instead of null.
+	 * @see #appendValidityConditions(String, String, Date, String, Date, StringBuilder, List)
+	 */
+	public static void appendValidityConditions(
+			String tableAlias,
+			String validFromPropertyName,
+			Date validFrom,
+			String validToPropertyName,
+			Date validTo,
+			boolean validToIsNullable,
+			StringBuilder queryText,
+			List<Object> parameters)
+	{
+		final Date now = TemporalReadScope.now();
 		if (validFromPropertyName != null)	{
 			validFromPropertyName = buildAliasedPropertyName(tableAlias, validFromPropertyName);
 			queryText.append(" ("+validFromPropertyName+" is null or "+validFromPropertyName+" <= "+buildIndexedPlaceHolder(parameters)+") and ");
 			parameters.add(validFrom != null ? validFrom : now);
 		}
 		validToPropertyName = buildAliasedPropertyName(tableAlias, validToPropertyName);
-		queryText.append(" ("+validToPropertyName+" is null or "+validToPropertyName+" > "+buildIndexedPlaceHolder(parameters)+") ");
+		if (validToIsNullable)
+			queryText.append(" ("+validToPropertyName+" is null or "+validToPropertyName+" > "+buildIndexedPlaceHolder(parameters)+") ");
+		else
+			queryText.append(" "+validToPropertyName+" > "+buildIndexedPlaceHolder(parameters)+" ");
 		parameters.add(validTo != null ? validTo : now);
 	}
 
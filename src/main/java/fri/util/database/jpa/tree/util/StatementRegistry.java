@@ -0,0 +1,39 @@
+package fri.util.database.jpa.tree.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * JPQL statement texts built once and reused, held per DAO instance.
+ * Keys must identify everything a text depends on, like shape, entity name and temporal mode.
+ * Thread-safe.
+ */
+public class StatementRegistry
+{
+	private final ConcurrentMap<Object,String> statements = new ConcurrentHashMap<Object,String>();
+
+	/** @return the text registered under given key, or null when none. */
+	public String get(Object key)	{
+		return statements.get(key);
+	}
+
+	/**
+	 * Registers given text under given key when no text is registered for it yet.
+	 * @return the registered text, which is the one of a concurrent registration when there was one.
+	 */
+	public String register(Object key, String statement)	{
+		final String registered = statements.putIfAbsent(key, statement);
+		return (registered != null) ? registered : statement;
+	}
+
+	/** @return the number of registered texts. */
+	public int size()	{
+		return statements.size();
+	}
+
+	/** Forgets all registered texts. */
+	public void clear()	{
+		statements.clear();
+	}
+
+}
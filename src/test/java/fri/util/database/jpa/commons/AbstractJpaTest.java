@@ -1,5 +1,9 @@
 package fri.util.database.jpa.commons;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
@@ -44,6 +48,11 @@ public abstract class AbstractJpaTest extends TestCase
 	
 	// convenience methods
 	
+	/** @return a new EntityManager from the factory of this test, e.g. for another thread. Caller must close it. */
+	protected final EntityManager newEntityManager() {
+		return factory.createEntityManager();
+	}
+	
 	protected final EntityManager beginTransaction(String message) {
 		logStart(message);
 		final EntityTransaction transaction = entityManager.getTransaction();
@@ -59,6 +68,45 @@ public abstract class AbstractJpaTest extends TestCase
 		commitOrRollbackTransaction(message, false);
 	}
 
+	/**
+	 * Runs given workers in parallel threads and waits for all of them.
+	 * Fails when a thread does not terminate within given time, rethrows the first error of a worker.
+	 * @return the elapsed milliseconds.
+	 */
+	protected final long runConcurrently(Runnable[] workers, long timeoutMillis) throws Exception	{
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		final Thread[] threads = new Thread[workers.length];
+		for (int i = 0; i < workers.length; i++)	{
+			final Runnable worker = workers[i];
+			threads[i] = new Thread(new Runnable()	{
+				@Override
+				public void run() {
+					try	{
+						worker.run();
+					}
+					catch (Throwable e)	{
+						errors.add(e);
+					}
+				}
+			});
+		}
+
+		final long start = System.currentTimeMillis();
+		for (Thread thread : threads)
+			thread.start();
+
+		for (Thread thread : threads)	{
+			thread.join(timeoutMillis);
+			assertFalse("Thread did not terminate, possible deadlock!", thread.isAlive());
+		}
+		final long millis = System.currentTimeMillis() - start;
+
+		if (errors.size() > 0)
+			throw new RuntimeException(errors.get(0));
+
+		return millis;
+	}
+
 	protected void log(String message)	{
 		System.out.println(message);
 	}
@@ -1,7 +1,9 @@
 package fri.util.database.jpa.commons;
 
 import java.io.Serializable;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
@@ -11,9 +13,10 @@ import javax.persistence.Query;
  * 
  * @author Fritz Ritzberger, 2013-08-19
  */
-public class DbSessionJpaImpl implements DbSession
+public class DbSessionJpaImpl implements PreparingDbSession, EvictingDbSession, LimitingDbSession
 {
 	private final EntityManager entityManager;
+	private final Map<String,Query> preparedQueries = new HashMap<String,Query>();
 	
 	public DbSessionJpaImpl(EntityManager entityManager) {
 		this.entityManager = entityManager;
@@ -50,6 +53,18 @@ public class DbSessionJpaImpl implements DbSession
 		return query.getResultList();
 	}
 
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters, int maximumResults) {
+		Query query = query(queryText, parameters);
+		query.setMaxResults(maximumResults);
+		try	{
+			return query.getResultList();
+		}
+		finally	{
+			query.setMaxResults(Integer.MAX_VALUE);	// prepared queries are reused
+		}
+	}
+
 	@Override
 	public int queryCount(String queryText, Object[] parameters) {
 		@SuppressWarnings("rawtypes")
@@ -63,6 +78,28 @@ public class DbSessionJpaImpl implements DbSession
 		query.executeUpdate();
 	}
 	
+	/** Creates the query for given text once, further calls with this text reuse it. */
+	@Override
+	public void prepare(String queryText) {
+		if (preparedQueries.containsKey(queryText) == false)
+			preparedQueries.put(queryText, entityManager.createQuery(queryText));
+	}
+	
+	@Override
+	public void evict(Object node) {
+		entityManager.detach(node);
+	}
+	
+	@Override
+	public void clear() {
+		entityManager.clear();
+	}
+	
+	@Override
+	public boolean contains(Object node) {
+		return entityManager.contains(node);
+	}
+	
 	
 	/** Do not use. Convenience method for unit tests. */
 	public EntityManager getEntityManager() {
@@ -71,7 +108,8 @@ public class DbSessionJpaImpl implements DbSession
 
 	
 	private Query query(String queryText, Object[] parameters) {
-		Query query = entityManager.createQuery(queryText);
+		final Query preparedQuery = preparedQueries.get(queryText);
+		Query query = (preparedQuery != null) ? preparedQuery : entityManager.createQuery(queryText);
 		if (parameters != null)	{
 			int i = 1;
 			for (Object parameter : parameters)	{
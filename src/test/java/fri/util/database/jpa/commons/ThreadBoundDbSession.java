@@ -0,0 +1,72 @@
+package fri.util.database.jpa.commons;
+
+import java.io.Serializable;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+/**
+ * <code>DbSession</code> that delegates to a <i>JPA</i> session bound to the calling thread,
+ * to make one DAO usable by several threads in concurrency tests.
+ */
+public class ThreadBoundDbSession implements DbSession
+{
+	private final ThreadLocal<DbSession> current = new ThreadLocal<DbSession>();
+
+	/** Binds given EntityManager to the calling thread, null unbinds. */
+	public void bind(EntityManager entityManager)	{
+		if (entityManager == null)
+			current.remove();
+		else
+			current.set(new DbSessionJpaImpl(entityManager));
+	}
+
+	@Override
+	public Object get(Class<?> entityClass, Serializable id) {
+		return session().get(entityClass, id);
+	}
+
+	@Override
+	public Object save(Object node) {
+		return session().save(node);
+	}
+
+	@Override
+	public void flush() {
+		session().flush();
+	}
+
+	@Override
+	public void refresh(Object node) {
+		session().refresh(node);
+	}
+
+	@Override
+	public void delete(Object node) {
+		session().delete(node);
+	}
+
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters) {
+		return session().queryList(queryText, parameters);
+	}
+
+	@Override
+	public int queryCount(String queryText, Object[] parameters) {
+		return session().queryCount(queryText, parameters);
+	}
+
+	@Override
+	public void executeUpdate(String sqlCommand, Object[] parameters) {
+		session().executeUpdate(sqlCommand, parameters);
+	}
+
+
+	private DbSession session()	{
+		final DbSession session = current.get();
+		if (session == null)
+			throw new IllegalStateException("No session bound to thread "+Thread.currentThread().getName());
+		return session;
+	}
+
+}
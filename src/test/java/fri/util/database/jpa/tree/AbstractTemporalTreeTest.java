@@ -1,11 +1,14 @@
 package fri.util.database.jpa.tree;
 
 import java.io.Serializable;
+import java.util.Date;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.util.StatementRegistry;
 
 /**
  * Tests additional public methods of TemporalTreeDao.
@@ -129,6 +132,35 @@ public abstract class AbstractTemporalTreeTest <D extends TemporalTreeDao<N>, N
 		commitDbTransaction("remove tree nodes physically");
 	}
 
+	/** Tests housekeeping in bounded steps. */
+	public void testRemoveHistoricizedTreesPhysicallyInBatches() throws Exception	{
+		DbSession session = beginDbTransaction("remove tree nodes physically in batches");
+		Serializable rootId = createTree();
+		
+		N root = getDao().find(rootId);
+		getDao().remove(findByName(root, "B"));
+		getDao().remove(findByName(root, "C"));
+		assertEquals(3, getDao().size(root));
+		
+		int removedCount = 0;
+		int count;
+		while ((count = getTemporalDao().removeHistoricizedTreesPhysically(2)) > 0)	{
+			assertTrue("Batch exceeds maximum: "+count, count <= 2);
+			removedCount += count;
+		}
+		assertEquals(6, removedCount);
+		
+		assertEquals(3, getTemporalDao().getFullTreeCacheable(root).size());
+		assertEquals(3, getDao().size(root));
+		checkTreeIntegrity(session, root);
+		
+		getDao().addChild(root, newTreePojo("D"));	// indexes must be consistent
+		assertEquals(4, getDao().size(root));
+		checkTreeIntegrity(session, root);
+		
+		commitDbTransaction("remove tree nodes physically in batches");
+	}
+
 	/** Tests housekeeping on removed roots. */
 	public void testRemoveRootPhysically() throws Exception	{
 		DbSession session = beginDbTransaction("remove root physically");
@@ -278,7 +310,136 @@ public abstract class AbstractTemporalTreeTest <D extends TemporalTreeDao<N>, N
 		commitDbTransaction("find children in full tree");
 	}
 
-	
+	/** Tests reading the tree as it was valid before a remove. */
+	public void testAsOf() throws Exception	{
+		beginDbTransaction("read tree as of date");
+
+		Serializable rootId = createTree();
+		N root = getDao().find(rootId);
+
+		Thread.sleep(20);
+		final Date beforeRemove = new Date();
+		Thread.sleep(20);
+
+		N b = findByName(root, "B");
+		N b1 = findByName(root, "B1");
+		getDao().remove(b);
+
+		final Map<String,Object> criteria = new Hashtable<String,Object>();
+		criteria.put("name", "B1");
+
+		TemporalTreeView<N> past = getTemporalDao().asOf(beforeRemove);
+		assertEquals(beforeRemove, past.getDate());
+		assertEquals(1, past.getRoots().size());
+		List<N> children = past.getChildren(root);
+		assertEquals(3, children.size());
+		assertEquals("A", getName(children.get(0)));
+		assertEquals("B", getName(children.get(1)));
+		assertEquals("C", getName(children.get(2)));
+		assertEquals(9, past.getTree(root).size());
+		assertEquals(3, getDao().findDirectChildren(past.getTreeCacheable(root)).size());
+		assertEquals(1, past.find(root, criteria).size());
+		List<N> path = past.getPath(b1);
+		assertEquals(2, path.size());
+		assertEquals(root, path.get(0));
+		assertEquals(b, path.get(1));
+
+		@SuppressWarnings("unchecked")
+		final StatementRegistry statements = ((AbstractTreeDao<N>) getDao()).getStatementRegistry();
+		final int statementCount = statements.size();
+		TemporalTreeView<N> present = getTemporalDao().asOf(new Date());
+		children = present.getChildren(root);
+		assertEquals(2, children.size());
+		assertEquals("A", getName(children.get(0)));
+		assertEquals("C", getName(children.get(1)));
+		assertEquals(6, present.getTree(root).size());
+		assertEquals(2, getDao().findDirectChildren(present.getTreeCacheable(root)).size());
+		assertEquals(0, present.find(root, criteria).size());
+		assertEquals(statementCount, statements.size());	// queries of another date are reused
+
+		commitDbTransaction("read tree as of date");
+	}
+
+	/** Tests the change feed between two dates. */
+	public void testGetChanges() throws Exception	{
+		beginDbTransaction("read changes between dates");
+
+		Serializable rootId = createTree();
+		N root = getDao().find(rootId);
+
+		Thread.sleep(20);
+		final Date from = new Date();
+		Thread.sleep(20);
+
+		getDao().remove(findByName(root, "B"));
+		getDao().addChild(root, newTreePojo("D"));
+		getDao().remove(getDao().addChild(root, newTreePojo("E")));	// added and removed within range, no net change
+
+		Thread.sleep(20);
+		final Date to = new Date();
+		Thread.sleep(20);
+		getDao().remove(findByName(root, "C"));	// after range
+
+		final Map<String,String> changes = new Hashtable<String,String>();
+		Date previousDate = from;
+		for (Iterator<TemporalTreeChange<N>> iterator = getTemporalDao().getChanges(root, from, to); iterator.hasNext(); )	{
+			TemporalTreeChange<N> change = iterator.next();
+			assertFalse(change.getDate().before(previousDate));
+			previousDate = change.getDate();
+			changes.put(getName(change.getNode()), change.getType().name());
+		}
+		assertEquals(4, changes.size());
+		assertEquals("REMOVED", changes.get("B"));
+		assertEquals("REMOVED", changes.get("B1"));
+		assertEquals("REMOVED", changes.get("B2"));
+		assertEquals("ADDED", changes.get("D"));
+
+		commitDbTransaction("read changes between dates");
+	}
+
+	/** Tests that reads within a read scope see the tree at the pinned instant. */
+	public void testReadScope() throws Exception	{
+		beginDbTransaction("read within scope");
+
+		Serializable rootId = createTree();
+		N root = getDao().find(rootId);
+		Thread.sleep(20);
+
+		TemporalReadScope scope = TemporalReadScope.open();
+		try	{
+			TemporalReadScope innerScope = TemporalReadScope.open(60000);
+			assertEquals(scope.getInstant(), innerScope.getInstant());	// inner scope shares the outer instant
+			try	{
+				scope.close();
+				fail("Closing an outer scope before the inner one must fail!");
+			}
+			catch (IllegalStateException e)	{
+				// expected
+			}
+			innerScope.close();
+
+			Thread.sleep(20);
+			getDao().addChild(root, newTreePojo("D"));	// stands for a concurrent write after the pinned instant
+			assertEquals(scope.getInstant(), TemporalReadScope.now());
+			assertNull(findByName(root, "D"));
+			assertEquals(9, getDao().size(root));
+			assertEquals(3, getDao().getChildren(root).size());
+		}
+		finally	{
+			scope.close();
+		}
+		assertNull(TemporalReadScope.current());
+		assertNotNull(findByName(root, "D"));
+		assertEquals(10, getDao().size(root));
+
+		scope = TemporalReadScope.open(60000);
+		assertEquals(0, scope.getInstant().getTime() % 60000);
+		scope.close();
+
+		commitDbTransaction("read within scope");
+	}
+
+
 	
 	/** @return true when a null validFromPropertyName should be tested. */
 	protected final boolean testValidFromIsNull()	{
@@ -11,10 +11,15 @@ import java.util.Map;
 import fri.util.database.jpa.commons.AbstractJpaTest;
 import fri.util.database.jpa.commons.DbSessionJpaImpl;
 import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.DbStatistics;
+import fri.util.database.jpa.commons.InstrumentedDbSession;
 import fri.util.database.jpa.tree.TreeDao;
 import fri.util.database.jpa.tree.TreeNode;
+import fri.util.database.jpa.tree.uniqueconstraints.AbstractUniqueTreeConstraintImpl;
+import fri.util.database.jpa.tree.uniqueconstraints.IndexedUniqueTreeConstraint;
 import fri.util.database.jpa.tree.uniqueconstraints.UniqueConstraintViolationException;
 import fri.util.database.jpa.tree.uniqueconstraints.UniqueTreeConstraint;
+import fri.util.database.jpa.tree.util.StatementRegistry;
 
 /**
  * Tests all public methods of TreeDao with following sample tree:
@@ -1656,7 +1661,7 @@ public abstract class AbstractTreeTest <D extends TreeDao<N>, N extends TreeNode
 			fail("Unique whole tree constraint doesn't work on move to other tree!");
 		}
 		catch (UniqueConstraintViolationException e)	{	// is thrown from Java uniqueness check
-			// is expected here
+			assertEquals("b", getName(originator(e)));
 		}
 		
 		assertEquals(10, getDao().size(root));
@@ -1667,6 +1672,226 @@ public abstract class AbstractTreeTest <D extends TreeDao<N>, N extends TreeNode
 		commitDbTransaction("unique whole tree constraint on move");
 	}
 	
+	/** Test unique constraint for the whole tree with copies that are not unique among themselves. */
+	public void testUniqueWholeTreeConstraintOnCopy() throws Exception	{
+		testCopy = true;	// need another POJO class that has no unique table constraint on name
+		
+		DbSession session = beginDbTransaction("unique whole tree constraint on copy");
+		getDao().setUniqueTreeConstraint(newUniqueWholeTreeConstraintImpl());
+		Serializable rootId = createTree("ROOT");
+		
+		N root = getDao().find(rootId);
+		N b = findByName(root, "B");
+		N c = findByName(root, "C");
+		
+		// rename all copies to the same name
+		getDao().setCopiedNodeRenamer(new TreeDao.CopiedNodeRenamer<N>() {
+			@Override
+			public void renameCopiedNode(N node) {
+				setNameNotConstraintChecking(node, "X");
+			}
+		});
+		try	{
+			getDao().copy(b, c, null);
+			fail("Unique whole tree constraint doesn't work on copies with equal names!");
+		}
+		catch (UniqueConstraintViolationException e)	{	// is thrown from Java uniqueness check
+			assertEquals("X", getName(originator(e)));
+		}
+		assertEquals(9, getDao().size(root));
+		
+		// rename copies so that only the last one is not unique
+		getDao().setCopiedNodeRenamer(new TreeDao.CopiedNodeRenamer<N>() {
+			@Override
+			public void renameCopiedNode(N node) {
+				if (getName(node).equals("B2") == false)
+					renameBeforeCopy(node);
+			}
+		});
+		try	{
+			getDao().copy(b, c, null);
+			fail("Unique whole tree constraint doesn't work on copies!");
+		}
+		catch (UniqueConstraintViolationException e)	{	// is thrown from Java uniqueness check
+			assertEquals("B2", getName(originator(e)));
+		}
+		assertEquals(9, getDao().size(root));
+		checkTreeIntegrity(session, root);
+		
+		commitDbTransaction("unique whole tree constraint on copy");
+	}
+	
+	/** Test the in-memory index in front of whole-tree and children constraints. */
+	@SuppressWarnings("unchecked")
+	public void testIndexedUniqueConstraint() throws Exception	{
+		testCopy = true;	// need another POJO class that has no unique table constraint on name
+		
+		DbSession session = beginDbTransaction("indexed unique constraint");
+		getDao().setUniqueTreeConstraint(new IndexedUniqueTreeConstraint<N>((AbstractUniqueTreeConstraintImpl<N>) newUniqueWholeTreeConstraintImpl(), false));
+		Serializable rootId = createTree("ROOT");
+		
+		N root = getDao().find(rootId);
+		N b = findByName(root, "B");
+		N c = findByName(root, "C");
+		getDao().addChild(b, newTreePojo("D"));
+		assertIndexedViolation(c, "D");	// recorded on insert
+		assertIndexedViolation(c, "A1");	// read when warming
+		
+		getDao().remove(findByName(root, "D"));
+		getDao().addChild(c, newTreePojo("D"));	// index hit is confirmed by database
+		
+		N a1 = findByName(root, "A1");
+		setNameNotConstraintChecking(a1, "Y");
+		getDao().update(a1);
+		assertIndexedViolation(b, "Y");	// reported by update
+		assertEquals(10, getDao().size(root));
+		
+		getDao().setUniqueTreeConstraint(new IndexedUniqueTreeConstraint<N>((AbstractUniqueTreeConstraintImpl<N>) newUniqueChildrenTreeConstraintImpl(), true));
+		assertIndexedViolation(b, "B1");
+		getDao().addChild(c, newTreePojo("B1"));
+		assertIndexedViolation(c, "B1");	// recorded on insert
+		assertEquals(11, getDao().size(root));
+		checkTreeIntegrity(session, root);
+		
+		commitDbTransaction("indexed unique constraint");
+	}
+	
+	private void assertIndexedViolation(N parent, String name)	{
+		try	{
+			getDao().addChild(parent, newTreePojo(name));
+			fail("Indexed unique constraint doesn't work for "+name);
+		}
+		catch (UniqueConstraintViolationException e)	{
+			assertEquals(name, getName(originator(e)));
+		}
+	}
+	
+	/** Test deferred unique checks for whole tree, roots and children. */
+	public void testDeferredUniqueConstraint() throws Exception	{
+		testCopy = true;	// need another POJO class that has no unique table constraint on name
+		
+		DbSession session = beginDbTransaction("deferred unique constraint");
+		getDao().setUniqueTreeConstraint(newUniqueWholeTreeConstraintImpl());
+		Serializable rootId = createTree("ROOT");
+		
+		N root = getDao().find(rootId);
+		N b = findByName(root, "B");
+		N c = findByName(root, "C");
+		getDao().setDeferUniqueConstraintChecks(true);
+		getDao().addChild(b, newTreePojo("D"));
+		getDao().addChild(c, newTreePojo("E"));
+		getDao().moveTo(findByName(root, "C1"), b, 0);
+		getDao().checkDeferredUniqueConstraint();	// all unique
+		
+		getDao().addChild(b, newTreePojo("F"));
+		getDao().addChild(c, newTreePojo("D"));	// not checked now
+		assertDeferredViolation("D");
+		getDao().checkDeferredUniqueConstraint();	// nothing left to check
+		
+		getDao().addChild(c, newTreePojo("G"));
+		getDao().remove(findByName(root, "G"));
+		getDao().addChild(b, newTreePojo("G"));	// removed one does not count
+		getDao().createRoot(newTreePojo("ROOT"));
+		assertDeferredViolation("ROOT");
+		
+		getDao().setUniqueTreeConstraint(newUniqueChildrenTreeConstraintImpl());
+		getDao().addChild(c, newTreePojo("B1"));	// unique in children of C
+		getDao().addChild(b, newTreePojo("H"));
+		getDao().addChild(b, newTreePojo("H"));
+		assertDeferredViolation("H");
+		
+		getDao().setDeferUniqueConstraintChecks(false);
+		try	{
+			getDao().addChild(c, newTreePojo("B1"));
+			fail("Unique children constraint doesn't work when no more deferred!");
+		}
+		catch (UniqueConstraintViolationException e)	{
+			assertEquals("B1", getName(originator(e)));
+		}
+		checkTreeIntegrity(session, root);
+		
+		commitDbTransaction("deferred unique constraint");
+	}
+	
+	/** Test that deferred unique checks pending on rollback are discarded, and are not seen by other threads. */
+	public void testDeferredUniqueConstraintDiscardedOnRollback() throws Exception	{
+		testCopy = true;	// need another POJO class that has no unique table constraint on name
+		final UniqueTreeConstraint<N> constraint = newUniqueWholeTreeConstraintImpl();	// shared by the DAOs of all transactions
+		
+		beginDbTransaction("deferred unique constraint rollback");
+		Serializable rootId = createTree("ROOT");
+		commitDbTransaction("deferred unique constraint rollback");
+		
+		beginDbTransaction("deferred unique constraint rollback");
+		getDao().setUniqueTreeConstraint(constraint);
+		getDao().setDeferUniqueConstraintChecks(true);
+		N root = getDao().find(rootId);
+		getDao().addChild(findByName(root, "C"), newTreePojo("B1"));	// not checked now
+		rollbackDbTransaction("deferred unique constraint rollback");
+		getDao().discardDeferredUniqueConstraintChecks();
+		
+		final DbStatistics statistics = new DbStatistics();
+		final D measuredDao = newDao(new InstrumentedDbSession(beginDbTransaction("deferred unique constraint rollback"), statistics));
+		measuredDao.setUniqueTreeConstraint(constraint);
+		measuredDao.checkDeferredUniqueConstraint();
+		assertEquals("Rolled back node was checked", 0L, statistics.getTotalStatementCount());
+		
+		getDao().setUniqueTreeConstraint(constraint);
+		getDao().setDeferUniqueConstraintChecks(true);
+		root = getDao().find(rootId);
+		assertNotNull(findByName(root, "B1"));	// only the stored one
+		
+		getDao().addChild(findByName(root, "C"), newTreePojo("B1"));
+		final UniqueConstraintViolationException [] otherThreadViolation = new UniqueConstraintViolationException[1];
+		final Thread otherThread = new Thread()	{
+			@Override
+			public void run()	{
+				try	{
+					getDao().checkDeferredUniqueConstraint();	// does not see this thread's node
+				}
+				catch (UniqueConstraintViolationException e)	{
+					otherThreadViolation[0] = e;
+				}
+			}
+		};
+		otherThread.start();
+		otherThread.join();
+		assertNull(otherThreadViolation[0]);
+		assertDeferredViolation("B1");
+		rollbackDbTransaction("deferred unique constraint rollback");
+	}
+	
+	private void assertDeferredViolation(String name)	{
+		try	{
+			getDao().checkDeferredUniqueConstraint();
+			fail("Deferred unique constraint doesn't work for "+name);
+		}
+		catch (UniqueConstraintViolationException e)	{
+			assertEquals(name, getName(originator(e)));
+		}
+	}
+	
+	/** Test that statements are built once per DAO instance. */
+	public void testStatementRegistry() throws Exception	{
+		beginDbTransaction("statement registry");
+		Serializable rootId = createTree("ROOT");
+		
+		N root = getDao().find(rootId);
+		N c1 = findByName(root, "C1");
+		@SuppressWarnings("unchecked")
+		StatementRegistry statements = ((AbstractTreeDao<N>) getDao()).getStatementRegistry();
+		assertEquals(3, getDao().getChildren(root).size());
+		assertEquals(2, getDao().getPath(c1).size());
+		final int size = statements.size();
+		assertTrue(size > 0);
+		
+		assertEquals(3, getDao().getChildren(root).size());
+		assertEquals(2, getDao().getPath(c1).size());
+		assertEquals(size, statements.size());	// reused, not built again
+		
+		commitDbTransaction("statement registry");
+	}
+	
 	/** Test unique constraint for children. */
 	public void testUniqueChildrenConstraint() throws Exception	{
 		testCopy = true;	// need another POJO class that has no unique constraint on name
@@ -1727,6 +1952,11 @@ public abstract class AbstractTreeTest <D extends TreeDao<N>, N extends TreeNode
 			// is expected here
 		}
 		
+		// add a node that is unique among children, but not among grandchildren
+		getDao().addChild(root, newTreePojo("B1"));
+		assertEquals(14, getDao().size(root));
+		checkTreeIntegrity(session, root);
+		
 		// add a unique root
 		N root2 = getDao().createRoot(newTreePojo("root"));
 		assertEquals(2, getDao().getRoots().size());
@@ -1841,6 +2071,11 @@ public abstract class AbstractTreeTest <D extends TreeDao<N>, N extends TreeNode
 
 	
 	protected abstract void renameBeforeCopy(N node);
+	
+	@SuppressWarnings("unchecked")
+	private N originator(UniqueConstraintViolationException e)	{
+		return (N) e.getOriginator();
+	}
 
 	
 	protected final DbSession beginDbTransaction(String message) {
@@ -14,6 +14,15 @@ import fri.util.database.jpa.tree.hibernatesession.tests.ClosureTableTreeHiberna
 import fri.util.database.jpa.tree.hibernatesession.tests.NestedSetsTreeHibernateSessionTest;
 import fri.util.database.jpa.tree.hibernatesession.tests.TemporalClosureTableTreeHibernateSessionTest;
 import fri.util.database.jpa.tree.hibernatesession.tests.TemporalNestedSetsTreeHibernateSessionTest;
+import fri.util.database.jpa.tree.batchingsession.tests.ClosureTableTreeBatchingHibernateSessionTest;
+import fri.util.database.jpa.tree.batchingsession.tests.ClosureTableTreeBatchingSessionTest;
+import fri.util.database.jpa.tree.batchingsession.tests.NestedSetsTreeBatchingSessionTest;
+import fri.util.database.jpa.tree.jdbcsession.tests.ClosureTableTreeJdbcSessionTest;
+import fri.util.database.jpa.tree.jdbcsession.tests.NestedSetsTreeJdbcSessionTest;
+import fri.util.database.jpa.tree.jdbcsession.tests.TemporalNestedSetsTreeJdbcSessionTest;
+import fri.util.database.jpa.tree.instrumentedsession.tests.ClosureTableTreeInstrumentedSessionTest;
+import fri.util.database.jpa.tree.instrumentedsession.tests.NestedSetsTreeInstrumentedSessionTest;
+import fri.util.database.jpa.tree.routingsession.tests.ClosureTableTreeRoutingSessionTest;
 
 /**
  * Contains all unit tests of JpaTree.
@@ -40,6 +49,18 @@ public class AllTests
 		suite.addTestSuite(ClosureTableTreeHibernateSessionTest.class);
 		suite.addTestSuite(TemporalClosureTableTreeHibernateSessionTest.class);
 		
+		suite.addTestSuite(NestedSetsTreeBatchingSessionTest.class);
+		suite.addTestSuite(ClosureTableTreeBatchingSessionTest.class);
+		suite.addTestSuite(ClosureTableTreeBatchingHibernateSessionTest.class);
+		
+		suite.addTestSuite(NestedSetsTreeJdbcSessionTest.class);
+		suite.addTestSuite(TemporalNestedSetsTreeJdbcSessionTest.class);
+		suite.addTestSuite(ClosureTableTreeJdbcSessionTest.class);
+		
+		suite.addTestSuite(NestedSetsTreeInstrumentedSessionTest.class);
+		suite.addTestSuite(ClosureTableTreeInstrumentedSessionTest.class);
+		suite.addTestSuite(ClosureTableTreeRoutingSessionTest.class);
+		
 		return suite;
 	}
 	
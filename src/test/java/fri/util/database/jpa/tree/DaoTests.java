@@ -2,10 +2,19 @@ package fri.util.database.jpa.tree;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
+import fri.util.database.jpa.tree.closuretable.ArchivingTemporalClosureTableTreeTest;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeConcurrencyTest;
 import fri.util.database.jpa.tree.closuretable.ClosureTableTreeTest;
+import fri.util.database.jpa.tree.closuretable.SentinelTemporalClosureTableTreeTest;
 import fri.util.database.jpa.tree.closuretable.TemporalClosureTableTreeTest;
+import fri.util.database.jpa.tree.closuretable.TombstoneTemporalClosureTableTreeTest;
+import fri.util.database.jpa.tree.nestedsets.HistoryRetentionServiceTest;
+import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeConcurrencyTest;
 import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeTest;
+import fri.util.database.jpa.tree.nestedsets.ParentReferencingNestedSetsTreeTest;
+import fri.util.database.jpa.tree.nestedsets.SentinelTemporalNestedSetsTreeTest;
 import fri.util.database.jpa.tree.nestedsets.TemporalNestedSetsTreeTest;
+import fri.util.database.jpa.tree.nestedsets.TombstoneTemporalNestedSetsTreeTest;
 
 /**
  * Contains DAO tests without alternating JPA providers.
@@ -19,9 +28,18 @@ public class DaoTests
 
 		suite.addTestSuite(NestedSetsTreeTest.class);
 		suite.addTestSuite(TemporalNestedSetsTreeTest.class);
+		suite.addTestSuite(SentinelTemporalNestedSetsTreeTest.class);
+		suite.addTestSuite(TombstoneTemporalNestedSetsTreeTest.class);
+		suite.addTestSuite(ParentReferencingNestedSetsTreeTest.class);
+		suite.addTestSuite(NestedSetsTreeConcurrencyTest.class);
+		suite.addTestSuite(HistoryRetentionServiceTest.class);
 		
 		suite.addTestSuite(ClosureTableTreeTest.class);
 		suite.addTestSuite(TemporalClosureTableTreeTest.class);
+		suite.addTestSuite(ArchivingTemporalClosureTableTreeTest.class);
+		suite.addTestSuite(SentinelTemporalClosureTableTreeTest.class);
+		suite.addTestSuite(TombstoneTemporalClosureTableTreeTest.class);
+		suite.addTestSuite(ClosureTableTreeConcurrencyTest.class);
 		
 		return suite;
 	}
@@ -0,0 +1,22 @@
+package fri.util.database.jpa.tree.batchingsession.tests;
+
+import fri.util.database.jpa.commons.BatchingDbSession;
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.hibernatesession.tests.ClosureTableTreeHibernateSessionTest;
+
+public class ClosureTableTreeBatchingHibernateSessionTest extends ClosureTableTreeHibernateSessionTest
+{
+	private BatchingDbSession session;
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		return session = new BatchingDbSession(super.newDbSession(message), 10);
+	}
+	
+	@Override
+	protected void commitDbTransaction(String message) {
+		session.flush();
+		super.commitDbTransaction(message);
+	}
+
+}
@@ -0,0 +1,102 @@
+package fri.util.database.jpa.tree.batchingsession.tests;
+
+import java.io.Serializable;
+
+import fri.util.database.jpa.commons.BatchingDbSession;
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.DbSessionJpaImpl;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeNode;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeTest;
+
+public class ClosureTableTreeBatchingSessionTest extends ClosureTableTreeTest
+{
+	private BatchingDbSession session;
+	
+	public void testCoalescedWrites() throws Exception	{
+		beginDbTransaction("coalesce writes");
+		Serializable rootId = createTree();
+		
+		ClosureTableTreeNode root = getDao().find(rootId);
+		ClosureTableTreeNode a = findByName(root, "A");
+		final int coalescedWriteCount = session.getCoalescedWriteCount();
+		setNameNotConstraintChecking(a, "X");
+		getDao().update(a);
+		getDao().update(a);	// redundant
+		assertEquals(coalescedWriteCount + 1, session.getCoalescedWriteCount());
+		
+		commitDbTransaction("coalesce writes");
+		
+		beginDbTransaction("read coalesced writes");
+		root = getDao().find(rootId);
+		assertEquals("X", getName(getDao().getChildren(root).get(0)));
+		commitDbTransaction("read coalesced writes");
+	}
+	
+	public void testSaveAfterFlush() throws Exception	{
+		beginDbTransaction("save after flush");
+		Serializable rootId = createTree();
+		
+		ClosureTableTreeNode root = getDao().find(rootId);
+		ClosureTableTreeNode a = findByName(root, "A");
+		getDao().update(a);
+		session.flush();
+		final int coalescedWriteCount = session.getCoalescedWriteCount();
+		setNameNotConstraintChecking(a, "X");
+		getDao().update(a);	// not skipped, flush forgot saved entities
+		assertEquals(coalescedWriteCount, session.getCoalescedWriteCount());
+		
+		commitDbTransaction("save after flush");
+		
+		beginDbTransaction("read save after flush");
+		root = getDao().find(rootId);
+		assertEquals("X", getName(getDao().getChildren(root).get(0)));
+		commitDbTransaction("read save after flush");
+	}
+	
+	public void testSaveAfterDelegateCleared() throws Exception	{
+		beginDbTransaction("save after clear");
+		Serializable rootId = createTree();
+		session.flush();
+		
+		ClosureTableTreeNode root = getDao().find(rootId);
+		ClosureTableTreeNode a = findByName(root, "A");
+		getDao().update(a);
+		((DbSessionJpaImpl) session.getDelegate()).getEntityManager().clear();	// without telling the batching session
+		setNameNotConstraintChecking(a, "X");
+		getDao().update(a);	// must be merged, as the delegate does not hold it anymore
+		
+		commitDbTransaction("save after clear");
+		
+		beginDbTransaction("read save after clear");
+		root = getDao().find(rootId);
+		assertEquals("X", getName(getDao().getChildren(root).get(0)));
+		commitDbTransaction("read save after clear");
+	}
+	
+	public void testDeleteAfterClear() throws Exception	{
+		beginDbTransaction("delete after clear");
+		Serializable rootId = createTree();
+		session.flush();
+		
+		ClosureTableTreeNode root = getDao().find(rootId);
+		session.delete(findByName(root, "A1"));
+		((DbSessionJpaImpl) session.getDelegate()).getEntityManager().clear();
+		session.clear();	// pending delete was discarded with the persistence context
+		
+		root = getDao().find(rootId);
+		assertEquals(9, getDao().size(root));
+		commitDbTransaction("delete after clear");
+	}
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		return session = new BatchingDbSession(super.newDbSession(message), 10);
+	}
+	
+	@Override
+	protected void commitDbTransaction(String message) {
+		session.flush();
+		super.commitDbTransaction(message);
+	}
+
+}
@@ -0,0 +1,130 @@
+package fri.util.database.jpa.tree.closuretable;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.EvictingDbSession;
+import fri.util.database.jpa.tree.closuretable.pojos.ArchivedTreePathImpl;
+import fri.util.database.jpa.tree.closuretable.pojos.ClosureTableTreePojo;
+import fri.util.database.jpa.tree.closuretable.pojos.TemporalTreePathImpl;
+import fri.util.database.jpa.tree.util.HierarchicalLockManager;
+
+/**
+ * Runs all temporal closure-table tests with removed paths being moved to an archive entity.
+ */
+public class ArchivingTemporalClosureTableTreeTest extends TemporalClosureTableTreeTest
+{
+	private static final String PATHS = TemporalTreePathImpl.class.getSimpleName();
+	private static final String ARCHIVE = ArchivedTreePathImpl.class.getSimpleName();
+
+	/** Removed paths must leave the paths table, unremoved paths must leave the archive. */
+	public void testRemovedPathsAreArchived() throws Exception	{
+		DbSession session = beginDbTransaction("archive removed paths");
+
+		Serializable rootId = createTree();
+		ClosureTableTreeNode root = getDao().find(rootId);
+		int pathCount = count(session, PATHS);
+		assertEquals(0, count(session, ARCHIVE));
+
+		ClosureTableTreeNode b = findByName(root, "B");
+		TreePath b1Path = getDao().getTreePathEntity(findByName(root, "B1"));
+		getDao().remove(b);
+		int archivedCount = count(session, ARCHIVE);
+		assertTrue(archivedCount > 0);
+		assertEquals(pathCount, count(session, PATHS) + archivedCount);
+		assertEquals(0, session.queryCount("select count(p) from "+PATHS+" p where p.validTo is not null", null));
+		assertFalse("Moved path is still held by session", ((EvictingDbSession) session).contains(b1Path));
+
+		getDao().unremove(b);
+		assertEquals(0, count(session, ARCHIVE));
+		assertEquals(pathCount, count(session, PATHS));
+		assertNotNull(findByName(root, "B"));
+		checkTreeIntegrity(session, root);
+
+		getDao().remove(b);	// archives the same keys again
+		assertEquals(archivedCount, count(session, ARCHIVE));
+		getDao().unremove(b);
+		assertEquals(pathCount, count(session, PATHS));
+		checkTreeIntegrity(session, root);
+
+		commitDbTransaction("archive removed paths");
+	}
+
+	/** Unremove must lock the sub-tree of the parent only, writes to other trees must not block it. */
+	public void testUnremoveLocksParentSubTreeOnly() throws Exception	{
+		beginDbTransaction("unremove locks parent sub-tree");
+
+		Serializable rootId = createTree();
+		ClosureTableTreeNode root = getDao().find(rootId);
+		ClosureTableTreeNode otherRoot = getDao().createRoot(newTreePojo("OTHER"));
+		ClosureTableTreeNode b = findByName(root, "B");
+		getDao().remove(b);
+
+		final HierarchicalLockManager lockManager = getDao().getLockManager();
+		final Map<Object,HierarchicalLockManager.Mode> requests = new HashMap<Object,HierarchicalLockManager.Mode>();
+		requests.put(HierarchicalLockManager.TOP, HierarchicalLockManager.Mode.IX);
+		requests.put(otherRoot.getId(), HierarchicalLockManager.Mode.X);
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch unremoved = new CountDownLatch(1);
+		final boolean [] timedOut = new boolean[1];
+		final Thread writer = new Thread()	{
+			@Override
+			public void run() {
+				final HierarchicalLockManager.Lock lock = lockManager.lock(requests);
+				locked.countDown();
+				try	{
+					timedOut[0] = (unremoved.await(10, TimeUnit.SECONDS) == false);
+				}
+				catch (InterruptedException e)	{
+					Thread.currentThread().interrupt();
+				}
+				finally	{
+					lockManager.unlock(lock);
+				}
+			}
+		};
+		writer.start();
+		locked.await();
+
+		getDao().unremove(b);
+		unremoved.countDown();
+		writer.join();
+
+		assertFalse("Unremove waited for the lock of another tree", timedOut[0]);
+		assertNotNull(findByName(root, "B"));
+
+		commitDbTransaction("unremove locks parent sub-tree");
+	}
+
+
+	/** Overridden to turn on the archive. */
+	@Override
+	protected TemporalClosureTableTreeDao newDao(DbSession session) {
+		TemporalClosureTableTreeDao dao = super.newDao(session);
+		dao.setArchivePathEntityClass(ArchivedTreePathImpl.class);
+		return dao;
+	}
+
+	/** Overridden to accept nodes that have their paths in the archive. */
+	@Override
+	protected void checkTreeIntegrity(DbSession session, ClosureTableTreeNode root) {
+		String queryText =
+			"select n from "+ClosureTableTreePojo.class.getSimpleName()+" n "+
+			"where not exists (select 'x' from "+PATHS+" p where p.descendant = n)"+
+			" and not exists (select 'x' from "+ARCHIVE+" a where a.descendant = n)";
+		@SuppressWarnings("unchecked")
+		List<ClosureTableTreeNode> result = (List<ClosureTableTreeNode>) session.queryList(queryText, null);
+		assertEquals("Count nodes that have no paths:", 0, result.size());
+	}
+
+
+	private int count(DbSession session, String pathEntity)	{
+		return session.queryCount("select count(p) from "+pathEntity+" p", null);
+	}
+
+}
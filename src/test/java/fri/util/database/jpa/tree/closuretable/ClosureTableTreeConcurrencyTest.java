@@ -0,0 +1,231 @@
+package fri.util.database.jpa.tree.closuretable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import fri.util.database.jpa.commons.AbstractJpaTest;
+import fri.util.database.jpa.commons.ThreadBoundDbSession;
+import fri.util.database.jpa.tree.closuretable.pojos.ClosureTableTreePojo;
+import fri.util.database.jpa.tree.closuretable.pojos.TreePathImpl;
+import fri.util.database.jpa.tree.util.HierarchicalLockManager;
+
+/**
+ * Multi-threaded test for ClosureTableTreeDao sub-tree locks.
+ * Several threads share one DAO and insert into disjoint branches of the same tree.
+ * Throughput and lock statistics are logged, correctness of every branch is asserted.
+ */
+public class ClosureTableTreeConcurrencyTest extends AbstractJpaTest
+{
+	private static final int THREADS = 4;
+	private static final int INSERTS_PER_THREAD = 25;
+	private static final long TIMEOUT_MILLIS = 60000;
+
+	/** Writes into disjoint branches of one tree. */
+	public void testParallelWritesToDisjointSubTrees() throws Exception	{
+		final ThreadBoundDbSession session = new ThreadBoundDbSession();
+		final ClosureTableTreeDao dao = new ClosureTableTreeDao(ClosureTableTreePojo.class, TreePathImpl.class, true, session);
+		dao.setRemoveReferencedNodes(true);
+
+		final List<Serializable> branchIds = new ArrayList<Serializable>();
+		EntityManager entityManager = beginTransaction("create branches");
+		session.bind(entityManager);
+		final ClosureTableTreeNode root = dao.createRoot(new ClosureTableTreePojo("Root"));
+		for (int i = 0; i < THREADS; i++)
+			branchIds.add(dao.addChild(root, new ClosureTableTreePojo("Branch"+i)).getId());
+		final Serializable rootId = root.getId();
+		commitTransaction("create branches");
+
+		final Runnable[] workers = new Runnable[THREADS];
+		for (int i = 0; i < THREADS; i++)	{
+			final Serializable branchId = branchIds.get(i);
+			workers[i] = new Runnable()	{
+				@Override
+				public void run() {
+					final EntityManager entityManager = newEntityManager();
+					session.bind(entityManager);
+					try	{
+						for (int j = 0; j < INSERTS_PER_THREAD; j++)	{
+							entityManager.getTransaction().begin();
+							final ClosureTableTreeNode branch = dao.find(branchId);
+							dao.addChild(branch, new ClosureTableTreePojo("Child"+j));
+							entityManager.getTransaction().commit();
+							entityManager.clear();
+						}
+					}
+					catch (Exception e)	{
+						throw new RuntimeException(e);
+					}
+					finally	{
+						session.bind(null);
+						entityManager.close();
+					}
+				}
+			};
+		}
+		dao.getLockManager().resetStatistics();
+		final long millis = runConcurrently(workers, TIMEOUT_MILLIS);
+		log("ClosureTableTreeDao inserts per second with "+THREADS+" threads in disjoint sub-trees: "+
+				Math.round((double) (THREADS * INSERTS_PER_THREAD) * 1000 / Math.max(millis, 1))+", "+dao.getLockManager());
+
+		entityManager = beginTransaction("check branches");
+		session.bind(entityManager);
+		entityManager.clear();
+		for (Serializable branchId : branchIds)	{
+			final ClosureTableTreeNode branch = dao.find(branchId);
+			assertEquals(INSERTS_PER_THREAD, dao.getChildCount(branch));
+			final List<ClosureTableTreeNode> children = dao.getChildren(branch);
+			for (int j = 0; j < INSERTS_PER_THREAD; j++)
+				assertEquals("Child"+j, ((ClosureTableTreePojo) children.get(j)).getName());
+		}
+		assertEquals(1 + THREADS + THREADS * INSERTS_PER_THREAD, dao.size(dao.find(rootId)));
+		assertEquals(THREADS * INSERTS_PER_THREAD, dao.getLockManager().getAcquisitions());
+		dao.removeAll();
+		commitTransaction("check branches");
+		session.bind(null);
+	}
+
+	/** Removing a root must wait for a thread that inserts under it, although it does not lock the list of roots. */
+	public void testRemoveRootWaitsForInsertUnderIt() throws Exception	{
+		final ThreadBoundDbSession session = new ThreadBoundDbSession();
+		final ClosureTableTreeDao dao = new ClosureTableTreeDao(ClosureTableTreePojo.class, TreePathImpl.class, true, session);
+		dao.setRemoveReferencedNodes(true);
+
+		EntityManager entityManager = beginTransaction("create tree");
+		session.bind(entityManager);
+		final ClosureTableTreeNode root = dao.createRoot(new ClosureTableTreePojo("Root"));
+		final ClosureTableTreeNode branch = dao.addChild(root, new ClosureTableTreePojo("Branch"));
+		final Serializable rootId = root.getId();
+		commitTransaction("create tree");
+
+		entityManager = beginTransaction("insert under root");
+		session.bind(entityManager);
+		final HierarchicalLockManager.Lock insertLock = dao.lockSubTree(branch);	// what addChild(branch, ...) locks
+		final Thread remover = new Thread(new Runnable()	{
+			@Override
+			public void run() {
+				final EntityManager removerEntityManager = newEntityManager();
+				session.bind(removerEntityManager);
+				try	{
+					removerEntityManager.getTransaction().begin();
+					dao.remove(dao.find(rootId));
+					removerEntityManager.getTransaction().commit();
+				}
+				finally	{
+					session.bind(null);
+					removerEntityManager.close();
+				}
+			}
+		});
+		try	{
+			dao.addChild(branch, new ClosureTableTreePojo("Child"));
+			remover.start();
+			remover.join(200);
+			assertTrue("Removing the root did not wait for the insert under it!", remover.isAlive());
+			commitTransaction("insert under root");
+		}
+		finally	{
+			dao.unlockTrees(insertLock);
+		}
+		remover.join(TIMEOUT_MILLIS);
+		assertFalse("Removing the root was not released!", remover.isAlive());
+
+		entityManager = beginTransaction("check removal");
+		session.bind(entityManager);
+		entityManager.clear();
+		assertEquals(0, dao.getRoots().size());
+		assertEquals(0L, entityManager.createQuery("select count(n) from ClosureTableTreePojo n").getSingleResult());
+		commitTransaction("check removal");
+		session.bind(null);
+	}
+
+	/** A sub-tree lock must block writes below it, but not writes in other sub-trees. */
+	public void testOverlappingSubTreeLocksAreSerialized() throws Exception	{
+		final HierarchicalLockManager lockManager = new HierarchicalLockManager();
+		final HierarchicalLockManager.Lock lockA = lockManager.lock(requests("A", HierarchicalLockManager.Mode.X));
+
+		final Thread disjoint = new Thread(new Runnable()	{
+			@Override
+			public void run() {
+				lockManager.unlock(lockManager.lock(requests("B", HierarchicalLockManager.Mode.X)));
+			}
+		});
+		disjoint.start();
+		disjoint.join(TIMEOUT_MILLIS);
+		assertFalse("Disjoint sub-tree lock was blocked!", disjoint.isAlive());
+
+		final Thread overlapping = new Thread(new Runnable()	{
+			@Override
+			public void run() {
+				lockManager.unlock(lockManager.lock(requests("A", HierarchicalLockManager.Mode.IX)));
+			}
+		});
+		overlapping.start();
+		overlapping.join(200);
+		assertTrue("Overlapping sub-tree lock was not blocked!", overlapping.isAlive());
+
+		lockManager.unlock(lockA);
+		overlapping.join(TIMEOUT_MILLIS);
+		assertFalse("Overlapping sub-tree lock was not released!", overlapping.isAlive());
+		assertEquals(3, lockManager.getAcquisitions());
+		assertTrue(lockManager.getMaxWaitNanos() > 0);
+	}
+
+	/** Nested lock requests must not upgrade held locks, two threads doing so would deadlock. */
+	public void testLockUpgradeIsRejected() throws Exception	{
+		final HierarchicalLockManager lockManager = new HierarchicalLockManager();
+		final HierarchicalLockManager.Lock lockB = lockManager.lock(requests("B", HierarchicalLockManager.Mode.IX));
+		try	{
+			final Map<Object,HierarchicalLockManager.Mode> upgrade = requests("A", HierarchicalLockManager.Mode.X);
+			upgrade.put("B", HierarchicalLockManager.Mode.X);	// A gets acquired, then B is rejected
+			try	{
+				lockManager.lock(upgrade);
+				fail("Upgrade from IX to X must be rejected!");
+			}
+			catch (IllegalStateException e)	{
+				// expected
+			}
+
+			// the rejected request released A, so another thread can lock it
+			final Thread other = new Thread(new Runnable()	{
+				@Override
+				public void run() {
+					lockManager.unlock(lockManager.lock(requests("A", HierarchicalLockManager.Mode.X)));
+				}
+			});
+			other.start();
+			other.join(TIMEOUT_MILLIS);
+			assertFalse("Locks of rejected upgrade were not released!", other.isAlive());
+		}
+		finally	{
+			lockManager.unlock(lockB);
+		}
+	}
+
+	/** Nesting weaker or equal requests, or any request below an exclusive top lock, is allowed. */
+	public void testNestedLocksWithoutUpgrade() throws Exception	{
+		final HierarchicalLockManager lockManager = new HierarchicalLockManager();
+		final HierarchicalLockManager.Lock lockA = lockManager.lock(requests("A", HierarchicalLockManager.Mode.X));
+		lockManager.unlock(lockManager.lock(requests("A", HierarchicalLockManager.Mode.IX)));
+		lockManager.unlock(lockA);
+
+		final Map<Object,HierarchicalLockManager.Mode> all = new HashMap<Object,HierarchicalLockManager.Mode>();
+		all.put(HierarchicalLockManager.TOP, HierarchicalLockManager.Mode.X);
+		final HierarchicalLockManager.Lock lockAll = lockManager.lock(all);
+		lockManager.unlock(lockManager.lock(requests("A", HierarchicalLockManager.Mode.X)));
+		lockManager.unlock(lockAll);
+	}
+
+
+	private Map<Object,HierarchicalLockManager.Mode> requests(Object key, HierarchicalLockManager.Mode mode)	{
+		final Map<Object,HierarchicalLockManager.Mode> requests = new HashMap<Object,HierarchicalLockManager.Mode>();
+		requests.put(HierarchicalLockManager.TOP, HierarchicalLockManager.Mode.IX);
+		requests.put(key, mode);
+		return requests;
+	}
+
+}
@@ -0,0 +1,57 @@
+package fri.util.database.jpa.tree.closuretable;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.TemporalTreeDao;
+import fri.util.database.jpa.tree.closuretable.pojos.TemporalTreePathImpl;
+
+/**
+ * Runs all temporal closure-table tests with a far-future valid-to sentinel instead of null.
+ */
+public class SentinelTemporalClosureTableTreeTest extends TemporalClosureTableTreeTest
+{
+	private static final Date SENTINEL = new Date(TemporalTreeDao.VALID_TO_SENTINEL_MILLIS);
+	private static final String PATHS = TemporalTreePathImpl.class.getSimpleName();
+
+	/** Current paths must carry the sentinel, also after unremove. */
+	public void testCurrentPathsCarrySentinel() throws Exception	{
+		DbSession session = beginDbTransaction("sentinel on insert and unremove");
+
+		Serializable rootId = createTree();
+		ClosureTableTreeNode root = getDao().find(rootId);
+		int pathCount = count(session, PATHS);
+		assertEquals(0, session.queryCount("select count(p) from "+PATHS+" p where p.validTo is null", null));
+		assertEquals(pathCount, countCurrent(session));
+
+		ClosureTableTreeNode b = findByName(root, "B");
+		getDao().remove(b);
+		assertTrue(countCurrent(session) < pathCount);
+		assertEquals(3, getDao().findRemoved(root, null).size());
+
+		getDao().unremove(b);
+		assertEquals(pathCount, countCurrent(session));
+
+		commitDbTransaction("sentinel on insert and unremove");
+	}
+
+
+	/** Overridden to turn on the sentinel mode. */
+	@Override
+	protected TemporalClosureTableTreeDao newDao(DbSession session) {
+		TemporalClosureTableTreeDao dao = super.newDao(session);
+		dao.setValidToSentinel(SENTINEL);
+		return dao;
+	}
+
+
+	private int count(DbSession session, String pathEntity)	{
+		return session.queryCount("select count(p) from "+pathEntity+" p", null);
+	}
+
+	private int countCurrent(DbSession session)	{
+		return session.queryCount("select count(p) from "+PATHS+" p where p.validTo = ?1", new Object [] { SENTINEL });
+	}
+
+}
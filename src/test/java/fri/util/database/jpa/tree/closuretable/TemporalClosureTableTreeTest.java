@@ -1,8 +1,11 @@
 package fri.util.database.jpa.tree.closuretable;
 
 import java.io.Serializable;
+import java.util.Date;
+import java.util.Iterator;
 
 import fri.util.database.jpa.tree.AbstractTemporalTreeTest;
+import fri.util.database.jpa.tree.TemporalTreeChange;
 import fri.util.database.jpa.tree.closuretable.pojos.ClosureTableTreePojo;
 import fri.util.database.jpa.tree.closuretable.pojos.TemporalTreePathImpl;
 import fri.util.database.jpa.commons.DbSession;
@@ -31,6 +34,65 @@ public class TemporalClosureTableTreeTest extends AbstractTemporalTreeTest<Tempo
 		commitDbTransaction("read TreePath entity for removed node");
 	}
 
+	public void testRemoveAndUnremoveRefreshCachedPaths() throws Exception	{
+		beginDbTransaction("refresh cached paths on remove and unremove");
+		
+		Serializable rootId = createTree();
+		ClosureTableTreeNode root = getDao().find(rootId);
+		ClosureTableTreeNode b = findByName(root, "B");
+		TemporalTreePath b1Path = (TemporalTreePath) getDao().getTreePathEntity(findByName(root, "B1"));
+		TemporalTreePath cPath = (TemporalTreePath) getDao().getTreePathEntity(findByName(root, "C"));
+		
+		getDao().remove(b);
+		if (getDao().isArchiving() == false && getDao().isTombstoning() == false)	// tombstones stamp B only
+			assertNotNull(b1Path.getValidTo());
+		assertEquals(getDao().getValidToSentinel(), cPath.getValidTo());
+		
+		getDao().unremove(b);
+		TemporalTreePath unremovedB1Path = (TemporalTreePath) getDao().getTreePathEntity(findByName(root, "B1"));
+		assertEquals(getDao().getValidToSentinel(), unremovedB1Path.getValidTo());
+		assertEquals(9, getDao().size(root));
+		
+		commitDbTransaction("refresh cached paths on remove and unremove");
+	}
+
+	public void testRemoveHistoricizedTreePhysicallyInSeveralStatements() throws Exception	{
+		DbSession session = beginDbTransaction("remove more nodes physically than one statement takes");
+		
+		ClosureTableTreeNode root = getDao().createRoot(newTreePojo("Root"));
+		for (int i = 0; i < 600; i++)
+			getDao().addChild(root, newTreePojo("Child"+i));
+		getDao().remove(root);
+		
+		assertEquals(601, getDao().removeHistoricizedTreePhysically(root, null, 1000));
+		assertEquals(0, getDao().getAllRoots().size());
+		assertEquals(0, session.queryCount("select count(n) from "+ClosureTableTreePojo.class.getSimpleName()+" n", null));
+		
+		commitDbTransaction("remove more nodes physically than one statement takes");
+	}
+
+	public void testMovesInChanges() throws Exception	{
+		beginDbTransaction("read moves between dates");
+		
+		Serializable rootId = createTree();
+		ClosureTableTreeNode root = getDao().find(rootId);
+		Thread.sleep(20);
+		Date from = new Date();
+		Thread.sleep(20);
+		
+		ClosureTableTreeNode c1 = findByName(root, "C1");
+		getDao().move(c1, findByName(root, "A"));
+		
+		Iterator<TemporalTreeChange<ClosureTableTreeNode>> changes = getDao().getChanges(root, from, new Date());
+		assertTrue(changes.hasNext());
+		TemporalTreeChange<ClosureTableTreeNode> change = changes.next();
+		assertEquals(TemporalTreeChange.Type.MOVED, change.getType());
+		assertEquals(c1, change.getNode());
+		assertFalse(changes.hasNext());	// C11 moved along, but kept its parent
+		
+		commitDbTransaction("read moves between dates");
+	}
+
 	/** Overridden to allocate a new TemporalClosureTableTreeDao for this test case. */
 	@Override
 	protected TemporalClosureTableTreeDao newDao(DbSession session) {
@@ -0,0 +1,72 @@
+package fri.util.database.jpa.tree.closuretable;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.closuretable.pojos.TemporalTreePathImpl;
+
+/**
+ * Runs all temporal closure-table tests with tombstones, where removing a node historicizes just the paths leading to it.
+ */
+public class TombstoneTemporalClosureTableTreeTest extends TemporalClosureTableTreeTest
+{
+	private static final String PATHS = TemporalTreePathImpl.class.getSimpleName();
+
+	/** Removing a sub-tree must stamp the paths to its root only, but hide all of its nodes. */
+	public void testRemoveStampsSubTreeRootOnly() throws Exception	{
+		DbSession session = beginDbTransaction("tombstone remove");
+
+		Serializable rootId = createTree();
+		ClosureTableTreeNode root = getDao().find(rootId);
+		ClosureTableTreeNode b = findByName(root, "B");
+		ClosureTableTreeNode b1 = findByName(root, "B1");
+		getDao().remove(b);
+
+		assertEquals(2, countRemoved(session));	// root -> B, B -> B
+		assertEquals(6, getDao().size(root));
+		assertEquals(6, getDao().getTree(root).size());
+		assertEquals(2, getDao().getChildren(root).size());
+		assertEquals(0, getDao().getChildren(b).size());
+		assertEquals(0, getDao().getChildren(b1).size());
+		assertEquals(3, getDao().findRemoved(root, null).size());
+		assertEquals(6, getDao().getTreeCacheable(root).size());
+		assertEquals(6, getDao().asOf(new Date()).getTree(root).size());
+
+		getDao().unremove(b);
+		assertEquals(0, countRemoved(session));
+		assertEquals(9, getDao().size(root));
+		assertEquals(2, getDao().getChildren(b).size());
+		checkTreeIntegrity(session, root);
+
+		commitDbTransaction("tombstone remove");
+	}
+
+	/** Tombstones and archived paths exclude each other. */
+	public void testTombstoningExcludesArchiving() throws Exception	{
+		beginDbTransaction("tombstones exclude archiving");
+		try	{
+			getDao().setArchivePathEntityClass(TemporalTreePathImpl.class, PATHS);
+			fail("Tombstoning DAO must not archive!");
+		}
+		catch (IllegalStateException e)	{
+			// expected
+		}
+		commitDbTransaction("tombstones exclude archiving");
+	}
+
+
+	/** Overridden to turn on tombstones. */
+	@Override
+	protected TemporalClosureTableTreeDao newDao(DbSession session) {
+		TemporalClosureTableTreeDao dao = super.newDao(session);
+		dao.setTombstoning(true);
+		return dao;
+	}
+
+
+	private int countRemoved(DbSession session)	{
+		return session.queryCount("select count(p) from "+PATHS+" p where p.validTo is not null", null);
+	}
+
+}
@@ -48,7 +48,7 @@ public class JpaExample
 			}
 			
 			@Override
-			protected void assignInvalidity(TreePath path) {
+			protected void assignInvalidity(TreePath path, Date removeDate) {
 				((PersonDeletedFlagTreePath) path).setDeleted(true);
 			}
 			@Override
@@ -56,6 +56,17 @@ public class JpaExample
 				((PersonDeletedFlagTreePath) path).setDeleted(false);
 			}
 			
+			@Override
+			protected void assignInvalidity(String tableAlias, StringBuilder updateText, List<Object> parameters, Date removeDate) {
+				updateText.append(buildAliasedPropertyName(tableAlias, "deleted")+" = "+buildIndexedPlaceHolder(parameters));
+				parameters.add(Boolean.TRUE);
+			}
+			@Override
+			protected void assignValidity(String tableAlias, StringBuilder updateText, List<Object> parameters) {
+				updateText.append(buildAliasedPropertyName(tableAlias, "deleted")+" = "+buildIndexedPlaceHolder(parameters));
+				parameters.add(Boolean.FALSE);
+			}
+			
 			@Override
 			public void appendValidityCondition(String tableAlias, StringBuilder queryText, List<Object> parameters) {
 				appendCondition(true, tableAlias, queryText, parameters);
@@ -4,20 +4,25 @@ import java.io.Serializable;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
 
-import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.EvictingDbSession;
+import fri.util.database.jpa.commons.LimitingDbSession;
+import fri.util.database.jpa.commons.PreparingDbSession;
 
 /**
  * <i>Hibernate Session</i> (not JPA-compatible!) implementation of <code>DbSession</code>.
  * 
  * @author Fritz Ritzberger, 2013-08-24
  */
-public class DbSessionHibernateImpl implements DbSession
+public class DbSessionHibernateImpl implements PreparingDbSession, EvictingDbSession, LimitingDbSession
 {
 	private final Session session;
+	private final ConcurrentMap<String,String> preparedQueries = new ConcurrentHashMap<String,String>();
 	
 	public DbSessionHibernateImpl(Session session) {
 		this.session = session;
@@ -55,6 +60,13 @@ public class DbSessionHibernateImpl implements DbSession
 		return query.list();
 	}
 
+	@Override
+	public List<?> queryList(String queryText, Object[] parameters, int maximumResults) {
+		Query query = query(queryText, parameters);
+		query.setMaxResults(maximumResults);
+		return query.list();
+	}
+
 	@Override
 	public int queryCount(String queryText, Object[] parameters) {
 		@SuppressWarnings("rawtypes")
@@ -68,6 +80,27 @@ public class DbSessionHibernateImpl implements DbSession
 		query.executeUpdate();
 	}
 	
+	@Override
+	public void evict(Object node) {
+		session.evict(node);
+	}
+	
+	@Override
+	public void clear() {
+		session.clear();
+	}
+	
+	@Override
+	public boolean contains(Object node) {
+		return session.contains(node);
+	}
+	
+	/** Translates the numbered parameter placeholders of given query just once. */
+	@Override
+	public void prepare(String queryText) {
+		preparedQueries.putIfAbsent(queryText, replaceNumberedParameterPlaceholders(queryText));
+	}
+	
 	
 	/** Do not use. Convenience method for unit tests. */
 	public Session getHibernateSession() {
@@ -76,7 +109,8 @@ public class DbSessionHibernateImpl implements DbSession
 
 	
 	private Query query(String queryText, Object[] parameters) {
-		Query query = session.createQuery(replaceNumberedParameterPlaceholders(queryText));
+		final String preparedQuery = preparedQueries.get(queryText);
+		Query query = session.createQuery(preparedQuery != null ? preparedQuery : replaceNumberedParameterPlaceholders(queryText));
 		if (parameters != null)	{
 			int i = 0;
 			for (Object parameter : parameters)	{
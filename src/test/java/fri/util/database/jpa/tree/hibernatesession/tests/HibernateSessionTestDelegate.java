@@ -63,6 +63,7 @@ class HibernateSessionTestDelegate
 
 	void rollbackDbTransaction() {
 		session.getTransaction().rollback();
+		session.clear();	// like JPA, forget the entities of the rolled back transaction
 	}
 
 }
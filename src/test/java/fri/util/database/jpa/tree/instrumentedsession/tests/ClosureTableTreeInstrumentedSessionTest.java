@@ -0,0 +1,119 @@
+package fri.util.database.jpa.tree.instrumentedsession.tests;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import fri.util.database.jpa.commons.CallStatistics;
+import fri.util.database.jpa.commons.DbOperation;
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.DbStatistics;
+import fri.util.database.jpa.commons.InstrumentedDbSession;
+import fri.util.database.jpa.tree.TreeDao;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeNode;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeTest;
+import fri.util.database.jpa.tree.util.InstrumentedTreeDao;
+
+public class ClosureTableTreeInstrumentedSessionTest extends ClosureTableTreeTest
+{
+	private final DbStatistics statistics = new DbStatistics();
+	
+	public void testOperationStatistics() throws Exception	{
+		beginDbTransaction("instrumented operations");
+		Serializable rootId = createTree();
+		assertTrue(statistics.getTotalStatementCount() > 0);
+		assertTrue(statistics.getOperations().isEmpty());	// DAO was not instrumented
+		
+		TreeDao<ClosureTableTreeNode> dao = InstrumentedTreeDao.instrument(getDao(), statistics);
+		ClosureTableTreeNode root = dao.find(rootId);
+		List<ClosureTableTreeNode> children = dao.getChildren(root);
+		dao.getChildren(root);
+		assertNull(DbOperation.current());
+		
+		CallStatistics getChildren = statistics.getOperation("getChildren");
+		assertEquals(2, getChildren.getCallCount());
+		assertTrue(getChildren.getStatementCount() >= 2);
+		assertTrue(getChildren.getRowCount() >= 2 * children.size());
+		long histogramCount = 0;
+		for (long bucketCount : getChildren.getLatencyHistogram())
+			histogramCount += bucketCount;
+		assertEquals(2, histogramCount);
+		assertTrue(getChildren.getPercentileMicros(99) > 0);
+		assertEquals(1, statistics.getOperationCallCount("find"));
+		
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("fri.util.database.jpa:type=DbStatistics,name="+getClass().getSimpleName());
+		server.registerMBean(statistics, name);
+		try	{
+			String [] summaries = (String []) server.getAttribute(name, "OperationSummaries");
+			assertEquals(Arrays.asList(summaries).toString(), 2, summaries.length);	// find, getChildren
+			assertTrue(summaries[1].startsWith("getChildren: calls=2"));
+		}
+		finally	{
+			server.unregisterMBean(name);
+		}
+		
+		commitDbTransaction("instrumented operations");
+	}
+	
+	public void testStatementShapes()	{
+		String statement = "select n from Node n where n.id in (?1, ?2,?3) and n.name = ?4";
+		assertEquals("select n from Node n where n.id in (?...) and n.name = ?", DbStatistics.shape(statement));
+		assertEquals("save Node", DbStatistics.shape("save Node"));
+		
+		DbStatistics shapes = new DbStatistics(2);
+		shapes.recordStatement(statement, 1000, 3);
+		shapes.recordStatement("select n from Node n where n.id in (?1) and n.name = ?2", 1000, 1);
+		assertEquals(2, shapes.getStatement(statement).getCallCount());
+		
+		shapes.recordStatement("save Node", 1000, 0);
+		shapes.recordStatement("delete Node", 1000, 0);
+		shapes.recordStatement("flush", 1000, 0);
+		assertEquals(3, shapes.getStatements().size());	// select, save, other
+		assertNull(shapes.getStatement("delete Node"));
+		assertEquals(2, shapes.getStatement(DbStatistics.OTHER_STATEMENTS).getCallCount());
+		shapes.recordStatement("save Node", 1000, 0);
+		assertEquals(2, shapes.getStatement("save Node").getCallCount());
+	}
+	
+	public void testFailureStatistics() throws Exception	{
+		DbSession session = beginDbTransaction("instrumented failures");
+		String statement = "select n from NoSuchEntity n where n.id = ?1";
+		TreeDao<ClosureTableTreeNode> dao = InstrumentedTreeDao.instrument(getDao(), statistics);
+		try	{
+			dao.find(null);
+			fail("Finding a null id must fail!");
+		}
+		catch (RuntimeException e)	{
+			// expected
+		}
+		assertNull(DbOperation.current());
+		CallStatistics find = statistics.getOperation("find");
+		assertEquals(1, find.getCallCount());
+		assertEquals(1, find.getFailureCount());
+		
+		try	{
+			session.queryList(statement, new Object [] { 1L });
+			fail("Querying an unknown entity must fail!");
+		}
+		catch (RuntimeException e)	{
+			// expected
+		}
+		CallStatistics query = statistics.getStatement(statement);
+		assertEquals(1, query.getCallCount());
+		assertEquals(1, query.getFailureCount());
+		assertTrue(query.toString().contains("failures=1"));
+		
+		rollbackDbTransaction("instrumented failures");
+	}
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		return new InstrumentedDbSession(super.newDbSession(message), statistics);
+	}
+
+}
@@ -0,0 +1,17 @@
+package fri.util.database.jpa.tree.instrumentedsession.tests;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.DbStatistics;
+import fri.util.database.jpa.commons.InstrumentedDbSession;
+import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeTest;
+
+public class NestedSetsTreeInstrumentedSessionTest extends NestedSetsTreeTest
+{
+	private final DbStatistics statistics = new DbStatistics();
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		return new InstrumentedDbSession(super.newDbSession(message), statistics);
+	}
+
+}
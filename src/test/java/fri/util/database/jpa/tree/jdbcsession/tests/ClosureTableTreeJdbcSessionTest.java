@@ -0,0 +1,36 @@
+package fri.util.database.jpa.tree.jdbcsession.tests;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeTest;
+
+public class ClosureTableTreeJdbcSessionTest extends ClosureTableTreeTest
+{
+	private JdbcSessionTestDelegate delegate = new JdbcSessionTestDelegate();
+
+	@Override
+	protected void tearDown() throws Exception {
+		delegate.tearDown();
+		super.tearDown();
+	}
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		logStart(message);
+		return delegate.newDbSession();
+	}
+	
+	@Override
+	protected void commitDbTransaction(String message) {
+		logBeforeEnd(message, "commit");
+		delegate.commitDbTransaction();
+		logAfterEnd(message, "commit");
+	}
+
+	@Override
+	protected void rollbackDbTransaction(String message) {
+		logBeforeEnd(message, "rollback");
+		delegate.rollbackDbTransaction();
+		logAfterEnd(message, "rollback");
+	}
+
+}
@@ -0,0 +1,89 @@
+package fri.util.database.jpa.tree.jdbcsession.tests;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.jdbc.JdbcDbSession;
+import fri.util.database.jpa.commons.jdbc.JdbcMapping;
+import fri.util.database.jpa.commons.jdbc.JdbcMappings;
+import fri.util.database.jpa.tree.closuretable.pojos.ClosureTableTreePojo;
+import fri.util.database.jpa.tree.closuretable.pojos.TreePathImpl;
+import fri.util.database.jpa.tree.nestedsets.pojos.NestedSetsTreePojo;
+import fri.util.database.jpa.tree.nestedsets.pojos.NonUniqueNestedSetsTreePojo;
+import fri.util.database.jpa.tree.nestedsets.pojos.TemporalNestedSetsTreePojo;
+
+/**
+ * Implements JDBC session management for all JDBC session tests.
+ * The schema is created by the JPA provider of the test, on the same in-memory database.
+ */
+class JdbcSessionTestDelegate
+{
+	// any new test POJO class must be mapped here when used in AbstractTreeTest!
+	private static final JdbcMappings MAPPINGS = new JdbcMappings(
+		new JdbcMapping(NestedSetsTreePojo.class)
+			.generatedId("id", "id")
+			.reference("topLevel", "TOPLEVEL_ID", NestedSetsTreePojo.class)
+			.column("name", "NAME")
+			.column("address")
+			.column("lft")
+			.column("rgt"),
+		new JdbcMapping(NonUniqueNestedSetsTreePojo.class)
+			.generatedId("id", "id")
+			.reference("topLevel", "TOPLEVEL_ID", NonUniqueNestedSetsTreePojo.class)
+			.column("name")
+			.column("address")
+			.column("lft")
+			.column("rgt"),
+		new JdbcMapping(TemporalNestedSetsTreePojo.class)
+			.generatedId("id", "id")
+			.reference("topLevel", "TOPLEVEL_ID", TemporalNestedSetsTreePojo.class)
+			.column("name")
+			.column("address")
+			.column("lft")
+			.column("rgt")
+			.column("validFrom")
+			.column("validTo"),
+		new JdbcMapping(ClosureTableTreePojo.class)
+			.generatedId("id", "id")
+			.column("name")
+			.column("address"),
+		new JdbcMapping(TreePathImpl.class)
+			.idReference("ancestor", "ancestor", ClosureTableTreePojo.class)
+			.idReference("descendant", "descendant", ClosureTableTreePojo.class)
+			.column("depth")
+			.column("orderIndex")
+	);
+	
+	private JdbcDbSession session;
+	
+	void tearDown() {
+		if (session != null)	{	// test failed before end of transaction
+			session.rollback();
+			session.close();
+		}
+	}
+	
+	DbSession newDbSession() {
+		final JdbcDataSource dataSource = new JdbcDataSource();
+		dataSource.setURL("jdbc:h2:mem:db1;DB_CLOSE_DELAY=-1;MVCC=TRUE");
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+		return session = new JdbcDbSession(dataSource, MAPPINGS, 10);
+	}
+	
+	void commitDbTransaction() {
+		session.commit();
+		close();
+	}
+
+	void rollbackDbTransaction() {
+		session.rollback();
+		close();
+	}
+	
+	private void close()	{
+		session.close();
+		session = null;
+	}
+
+}
@@ -0,0 +1,64 @@
+package fri.util.database.jpa.tree.jdbcsession.tests;
+
+import java.io.Serializable;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeNode;
+import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeTest;
+
+public class NestedSetsTreeJdbcSessionTest extends NestedSetsTreeTest
+{
+	private JdbcSessionTestDelegate delegate = new JdbcSessionTestDelegate();
+
+	/** A held node whose indexes were shifted by a bulk update must not write back its stale indexes on save. */
+	public void testSaveAfterBulkShift() throws Exception	{
+		DbSession session = beginDbTransaction("save after bulk shift");
+		Serializable rootId = createTree();
+		NestedSetsTreeNode root = getDao().find(rootId);
+		NestedSetsTreeNode c = findByName(root, "C");
+		final int left = c.getLeft();
+		final int right = c.getRight();
+		
+		session.executeUpdate(
+				"update NestedSetsTreePojo t set t.lft = t.lft + ?1, t.rgt = t.rgt + ?2 where t.topLevel = ?3",
+				new Object [] { 100, 100, root });
+		assertEquals(left, c.getLeft());	// held instance is not updated, like in JPA
+		setNameNotConstraintChecking(c, "X");
+		session.save(c);
+		commitDbTransaction("save after bulk shift");
+		
+		beginDbTransaction("read save after bulk shift");
+		root = getDao().find(rootId);
+		c = findByName(root, "X");
+		assertEquals(left + 100, c.getLeft());
+		assertEquals(right + 100, c.getRight());
+		commitDbTransaction("read save after bulk shift");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		delegate.tearDown();
+		super.tearDown();
+	}
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		logStart(message);
+		return delegate.newDbSession();
+	}
+	
+	@Override
+	protected void commitDbTransaction(String message) {
+		logBeforeEnd(message, "commit");
+		delegate.commitDbTransaction();
+		logAfterEnd(message, "commit");
+	}
+
+	@Override
+	protected void rollbackDbTransaction(String message) {
+		logBeforeEnd(message, "rollback");
+		delegate.rollbackDbTransaction();
+		logAfterEnd(message, "rollback");
+	}
+
+}
@@ -0,0 +1,53 @@
+package fri.util.database.jpa.tree.jdbcsession.tests;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.nestedsets.TemporalNestedSetsTreeTest;
+import fri.util.database.jpa.tree.nestedsets.pojos.TemporalNestedSetsTreePojo;
+
+public class TemporalNestedSetsTreeJdbcSessionTest extends TemporalNestedSetsTreeTest
+{
+	private JdbcSessionTestDelegate delegate = new JdbcSessionTestDelegate();
+
+	/** JDBC reads dates as Timestamp, a node read in the millisecond it was inserted must be valid. */
+	public void testValidInInsertMillisecond()	{
+		beginDbTransaction("valid in insert millisecond");
+		long millis = System.currentTimeMillis();
+		TemporalNestedSetsTreePojo node = new TemporalNestedSetsTreePojo("A");
+		node.setValidFrom(new Timestamp(millis));
+		assertTrue(getDao().isValid(node, new Date(millis)));
+		
+		node.setValidTo(new Timestamp(millis));
+		assertFalse(getDao().isValid(node, new Date(millis)));
+		commitDbTransaction("valid in insert millisecond");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		delegate.tearDown();
+		super.tearDown();
+	}
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		logStart(message);
+		return delegate.newDbSession();
+	}
+	
+	@Override
+	protected void commitDbTransaction(String message) {
+		logBeforeEnd(message, "commit");
+		delegate.commitDbTransaction();
+		logAfterEnd(message, "commit");
+	}
+
+	@Override
+	protected void rollbackDbTransaction(String message) {
+		logBeforeEnd(message, "rollback");
+		delegate.rollbackDbTransaction();
+		logAfterEnd(message, "rollback");
+	}
+
+}
@@ -0,0 +1,208 @@
+package fri.util.database.jpa.tree.nestedsets;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.persistence.EntityManager;
+
+import fri.util.database.jpa.commons.AbstractJpaTest;
+import fri.util.database.jpa.commons.ThreadBoundDbSession;
+import fri.util.database.jpa.tree.HistoryRetentionService;
+import fri.util.database.jpa.tree.nestedsets.pojos.TemporalNestedSetsTreePojo;
+
+/**
+ * Tests the history retention service on a temporal nested-sets tree.
+ * Each batch runs in its own EntityManager, like it would in production.
+ */
+public class HistoryRetentionServiceTest extends AbstractJpaTest
+{
+	private static final long HOUR_MILLIS = 60L * 60L * 1000L;
+
+	private ThreadBoundDbSession session;
+	private TemporalNestedSetsTreeDao dao;
+	private Serializable rootId;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		session = new ThreadBoundDbSession();
+		dao = new TemporalNestedSetsTreeDao(TemporalNestedSetsTreePojo.class, "validFrom", "validTo", session);
+
+		final EntityManager entityManager = beginTransaction("create temporal tree");
+		session.bind(entityManager);
+		final NestedSetsTreeNode root = dao.createRoot(new TemporalNestedSetsTreePojo("Root"));
+		final NestedSetsTreeNode a = dao.addChild(root, new TemporalNestedSetsTreePojo("A"));
+		dao.addChild(a, new TemporalNestedSetsTreePojo("A1"));
+		final NestedSetsTreeNode b = dao.addChild(root, new TemporalNestedSetsTreePojo("B"));
+		dao.addChild(b, new TemporalNestedSetsTreePojo("B1"));
+		final NestedSetsTreeNode c = dao.addChild(root, new TemporalNestedSetsTreePojo("C"));
+		dao.addChild(root, new TemporalNestedSetsTreePojo("D"));
+		dao.remove(a);
+		dao.remove(b);
+		dao.remove(c);
+		rootId = root.getId();
+		commitTransaction("create temporal tree");
+		session.bind(null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		final EntityManager entityManager = beginTransaction("remove temporal tree");
+		session.bind(entityManager);
+		dao.removeAllPhysically();
+		commitTransaction("remove temporal tree");
+		session.bind(null);
+
+		super.tearDown();
+	}
+
+
+	/** Nodes historicized within the retention period must survive, older ones must be deleted. */
+	public void testRetentionPeriod() throws Exception	{
+		final HistoryRetentionService<NestedSetsTreeNode> keeping = new HistoryRetentionService<NestedSetsTreeNode>(dao, transactionTemplate(), HOUR_MILLIS);
+		assertEquals(0, keeping.runPass());
+		assertEquals(7, fullTreeSize());
+
+		final List<Integer> batchSizes = new ArrayList<Integer>();
+		final long [] passRemovedCount = new long[1];
+		final HistoryRetentionService<NestedSetsTreeNode> purging = new HistoryRetentionService<NestedSetsTreeNode>(dao, transactionTemplate(), 0);
+		purging.setBatchSize(2);
+		purging.setPauseMillis(0, 0);
+		purging.setProgressListener(new HistoryRetentionService.ProgressListener()	{
+			@Override
+			public void batchRemoved(Serializable rootId, int removedCount, long passRemovedCount) {
+				batchSizes.add(removedCount);
+			}
+			@Override
+			public void passFinished(long removedCount, long passMillis) {
+				passRemovedCount[0] = removedCount;
+			}
+		});
+		assertEquals(5, purging.runPass());
+		assertEquals(5, passRemovedCount[0]);
+		assertEquals(3, batchSizes.size());	// sub-trees A and B do not fit into one batch of 2
+		assertEquals(1, purging.getPasses());
+		assertEquals(3, purging.getBatches());
+		assertEquals(5, purging.getRemovedNodes());
+		assertEquals(2, fullTreeSize());
+	}
+
+	/** High foreground latency must increase the pause between batches, up to the maximum. */
+	public void testBackOff() throws Exception	{
+		final HistoryRetentionService<NestedSetsTreeNode> service = new HistoryRetentionService<NestedSetsTreeNode>(dao, transactionTemplate(), 0);
+		service.setBatchSize(1);
+		service.setPauseMillis(1, 4);
+		service.setLatencyProbe(new HistoryRetentionService.LatencyProbe()	{
+			@Override
+			public long getLatencyNanos() {
+				return 1000000;
+			}
+		}, 1000);
+
+		assertEquals(5, service.runPass());
+		assertEquals(5, service.getBackOffs());	// one per batch of one node
+		assertEquals(4, service.getCurrentPauseMillis());
+	}
+
+	/** The background thread must run passes until stopped. */
+	public void testStartStop() throws Exception	{
+		final HistoryRetentionService<NestedSetsTreeNode> service = new HistoryRetentionService<NestedSetsTreeNode>(dao, transactionTemplate(), 0);
+		service.setPauseMillis(0, 0);
+		service.start(10);
+		try	{
+			final long timeout = System.currentTimeMillis() + 60000;
+			while (service.getPasses() < 2 && System.currentTimeMillis() < timeout)
+				Thread.sleep(10);
+		}
+		finally	{
+			service.stop();
+		}
+		assertNull(service.getLastError());
+		assertTrue(service.getPasses() >= 2);
+		assertEquals(5, service.getRemovedNodes());
+		assertEquals(2, fullTreeSize());
+	}
+
+	/** The lock wait probe must work with the lock stripes of a nested-sets DAO. */
+	public void testLockWaitProbe() throws Exception	{
+		final long acquisitions = dao.getLockStripes().getAcquisitions();
+		final HistoryRetentionService<NestedSetsTreeNode> service = new HistoryRetentionService<NestedSetsTreeNode>(dao, transactionTemplate(), 0);
+		service.setBatchSize(1);
+		service.setPauseMillis(0, 0);
+		service.setLatencyProbe(HistoryRetentionService.lockWaitProbe(dao.getLockStripes()), Long.MAX_VALUE);
+
+		assertEquals(5, service.runPass());
+		assertEquals(0, service.getBackOffs());
+		assertTrue(dao.getLockStripes().getAcquisitions() > acquisitions);
+	}
+
+	/** Exceptions of background passes must reach the error handler, and must not stop the schedule. */
+	public void testErrorHandler() throws Exception	{
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		final HistoryRetentionService<NestedSetsTreeNode> service = new HistoryRetentionService<NestedSetsTreeNode>(
+				dao,
+				new HistoryRetentionService.TransactionTemplate()	{
+					@Override
+					public <T> T execute(Callable<T> work) throws Exception {
+						throw new IllegalStateException("Database is down");
+					}
+				},
+				0);
+		service.setErrorHandler(new HistoryRetentionService.ErrorHandler()	{
+			@Override
+			public void passFailed(Exception e) {
+				errors.add(e);
+			}
+		});
+		service.start(1);
+		try	{
+			final long timeout = System.currentTimeMillis() + 60000;
+			while (errors.size() < 2 && System.currentTimeMillis() < timeout)
+				Thread.sleep(10);
+		}
+		finally	{
+			service.stop();
+		}
+		assertTrue(errors.size() >= 2);
+		assertEquals("Database is down", errors.get(0).getMessage());
+		assertSame(IllegalStateException.class, service.getLastError().getClass());
+		assertEquals(0, service.getPasses());
+	}
+
+
+	private int fullTreeSize() throws Exception	{
+		return transactionTemplate().execute(new Callable<Integer>()	{
+			@Override
+			public Integer call() {
+				return dao.getFullTreeCacheable(dao.find(rootId)).size();
+			}
+		});
+	}
+
+	private HistoryRetentionService.TransactionTemplate transactionTemplate()	{
+		return new HistoryRetentionService.TransactionTemplate()	{
+			@Override
+			public <T> T execute(Callable<T> work) throws Exception {
+				final EntityManager entityManager = newEntityManager();
+				session.bind(entityManager);
+				try	{
+					entityManager.getTransaction().begin();
+					final T result = work.call();
+					entityManager.getTransaction().commit();
+					return result;
+				}
+				finally	{
+					if (entityManager.getTransaction().isActive())
+						entityManager.getTransaction().rollback();
+					session.bind(null);
+					entityManager.close();
+				}
+			}
+		};
+	}
+
+}
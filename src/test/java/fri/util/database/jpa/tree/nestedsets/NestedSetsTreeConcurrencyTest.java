@@ -0,0 +1,190 @@
+package fri.util.database.jpa.tree.nestedsets;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import fri.util.database.jpa.commons.AbstractJpaTest;
+import fri.util.database.jpa.commons.ThreadBoundDbSession;
+import fri.util.database.jpa.tree.nestedsets.pojos.NonUniqueNestedSetsTreePojo;
+import fri.util.database.jpa.tree.nestedsets.pojos.TemporalNestedSetsTreePojo;
+import fri.util.database.jpa.tree.util.LockStripes;
+
+/**
+ * Multi-threaded throughput benchmark for NestedSetsTreeDao write locks.
+ * Several threads share one DAO and insert into their own tree,
+ * once with per-tree lock striping and once with all writes serialized.
+ * Throughput is logged, correctness of every tree is asserted.
+ */
+public class NestedSetsTreeConcurrencyTest extends AbstractJpaTest
+{
+	private static final int THREADS = 4;
+	private static final int INSERTS_PER_THREAD = 40;
+	private static final long TIMEOUT_MILLIS = 60000;
+
+	/** Writes into different trees, with lock striping. */
+	public void testParallelWritesToDifferentTrees() throws Exception	{
+		insertConcurrently(NestedSetsTreeDao.DEFAULT_LOCK_STRIPES);	// warm up JPA provider and JIT
+		final double striped = insertConcurrently(NestedSetsTreeDao.DEFAULT_LOCK_STRIPES);
+		final double serialized = insertConcurrently(1);
+		log("NestedSetsTreeDao inserts per second with "+THREADS+" threads: striped = "+Math.round(striped)+", serialized = "+Math.round(serialized));
+	}
+
+	/** Temporal reads of different modes on one shared DAO must not see each other's conditions. */
+	public void testParallelTemporalReads() throws Exception	{
+		final ThreadBoundDbSession session = new ThreadBoundDbSession();
+		final TemporalNestedSetsTreeDao dao = new TemporalNestedSetsTreeDao(TemporalNestedSetsTreePojo.class, "validFrom", "validTo", session);
+
+		EntityManager entityManager = beginTransaction("create temporal tree");
+		session.bind(entityManager);
+		final NestedSetsTreeNode root = dao.createRoot(new TemporalNestedSetsTreePojo("Root"));
+		dao.addChild(root, new TemporalNestedSetsTreePojo("A"));
+		dao.remove(dao.addChild(root, new TemporalNestedSetsTreePojo("B")));
+		dao.addChild(root, new TemporalNestedSetsTreePojo("C"));
+		final Serializable rootId = root.getId();
+		commitTransaction("create temporal tree");
+
+		final Runnable[] workers = new Runnable[THREADS];
+		for (int i = 0; i < THREADS; i++)	{
+			final int mode = i % 2;
+			workers[i] = new Runnable()	{
+				@Override
+				public void run() {
+					final EntityManager entityManager = newEntityManager();
+					session.bind(entityManager);
+					try	{
+						final Map<String,Object> criteria = new Hashtable<String,Object>();
+						criteria.put("name", "B");
+						for (int j = 0; j < 50; j++)	{
+							final NestedSetsTreeNode root = dao.find(rootId);
+							if (mode == 0)	{
+								assertEquals(2, dao.getChildren(root).size());
+								assertEquals(3, dao.size(root));
+							}
+							else	{
+								assertEquals(1, dao.findRemoved(root, criteria).size());
+								assertEquals(4, dao.getFullTreeCacheable(root).size());
+							}
+						}
+					}
+					finally	{
+						session.bind(null);
+						entityManager.close();
+					}
+				}
+			};
+		}
+		runConcurrently(workers, TIMEOUT_MILLIS);
+
+		entityManager = beginTransaction("remove temporal tree");
+		session.bind(entityManager);
+		dao.removeAllPhysically();
+		commitTransaction("remove temporal tree");
+		session.bind(null);
+	}
+
+	/** Threads locking the same keys in opposite order must not deadlock. */
+	public void testCrossTreeLockOrderIsDeadlockFree() throws Exception	{
+		final LockStripes lockStripes = new LockStripes(NestedSetsTreeDao.DEFAULT_LOCK_STRIPES);
+		final String treeA = "A", treeB = "B";
+		final Runnable[] workers = new Runnable[THREADS];
+		for (int i = 0; i < THREADS; i++)	{
+			final boolean reverse = (i % 2 == 1);
+			workers[i] = new Runnable()	{
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++)	{
+						final int [] locks = reverse ? lockStripes.lock(treeB, treeA) : lockStripes.lock(treeA, treeB);
+						lockStripes.unlock(locks);
+					}
+				}
+			};
+		}
+		runConcurrently(workers, TIMEOUT_MILLIS);
+	}
+
+
+	private double insertConcurrently(int lockStripes) throws Exception	{
+		final ThreadBoundDbSession session = new ThreadBoundDbSession();
+		final NestedSetsTreeDao dao = new NestedSetsTreeDao(NonUniqueNestedSetsTreePojo.class, session, lockStripes);
+
+		final List<Serializable> rootIds = new ArrayList<Serializable>();
+		EntityManager entityManager = beginTransaction("create roots");
+		session.bind(entityManager);
+		dao.removeAll();
+		for (int i = 0; i < THREADS; i++)
+			rootIds.add(dao.createRoot(new NonUniqueNestedSetsTreePojo("Root"+i)).getId());
+		commitTransaction("create roots");
+
+		final Runnable[] workers = new Runnable[THREADS];
+		for (int i = 0; i < THREADS; i++)	{
+			final Serializable rootId = rootIds.get(i);
+			workers[i] = new Runnable()	{
+				@Override
+				public void run() {
+					final EntityManager entityManager = newEntityManager();
+					session.bind(entityManager);
+					try	{
+						for (int j = 0; j < INSERTS_PER_THREAD; j++)	{
+							entityManager.getTransaction().begin();
+							final NestedSetsTreeNode root = dao.find(rootId);
+							dao.addChild(root, new NonUniqueNestedSetsTreePojo("Child"+j));
+							entityManager.getTransaction().commit();
+							entityManager.clear();
+						}
+					}
+					catch (Exception e)	{
+						throw new RuntimeException(e);
+					}
+					finally	{
+						session.bind(null);
+						entityManager.close();
+					}
+				}
+			};
+		}
+		final long millis = runConcurrently(workers, TIMEOUT_MILLIS);
+
+		entityManager = beginTransaction("check trees");
+		session.bind(entityManager);
+		entityManager.clear();
+		for (Serializable rootId : rootIds)	{
+			final NestedSetsTreeNode root = dao.find(rootId);
+			assertEquals(INSERTS_PER_THREAD + 1, dao.size(root));
+			assertEquals(INSERTS_PER_THREAD, dao.getChildCount(root));
+			assertEquals(2 * (INSERTS_PER_THREAD + 1), root.getRight());
+			assertNestedSets(root, dao.getTree(root));
+		}
+		dao.removeAll();
+		commitTransaction("check trees");
+		session.bind(null);
+
+		return (double) (THREADS * INSERTS_PER_THREAD) * 1000 / Math.max(millis, 1);
+	}
+
+	/** Asserts that left and right indexes are 1 to 2 * nodes without gaps or duplicates, and intervals do not overlap. */
+	private void assertNestedSets(NestedSetsTreeNode root, List<NestedSetsTreeNode> tree)	{
+		assertEquals(INSERTS_PER_THREAD + 1, tree.size());
+		final boolean [] used = new boolean[2 * tree.size() + 1];
+		for (NestedSetsTreeNode node : tree)	{
+			assertTrue(node.getLeft() < node.getRight());
+			for (int index : new int [] { node.getLeft(), node.getRight() })	{
+				assertTrue("Index out of range: "+index, index >= 1 && index < used.length);
+				assertFalse("Duplicate index: "+index, used[index]);
+				used[index] = true;
+			}
+			for (NestedSetsTreeNode other : tree)	{
+				final boolean disjoint = node.getRight() < other.getLeft() || other.getRight() < node.getLeft();
+				final boolean nested = node.getLeft() <= other.getLeft() && other.getRight() <= node.getRight() ||
+						other.getLeft() <= node.getLeft() && node.getRight() <= other.getRight();
+				assertTrue("Overlapping nodes "+node+" and "+other, disjoint || nested);
+			}
+		}
+		NestedSetsTreeTest.checkTreeIntegrity(root, tree);
+	}
+
+}
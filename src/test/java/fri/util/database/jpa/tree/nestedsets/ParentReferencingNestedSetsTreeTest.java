@@ -0,0 +1,57 @@
+package fri.util.database.jpa.tree.nestedsets;
+
+import java.util.List;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.nestedsets.pojos.ParentReferencingNestedSetsTreePojo;
+
+/**
+ * Runs all NestedSetsTreeDao tests with nodes that hold a parent reference,
+ * and checks that reference on every tree integrity check.
+ */
+public class ParentReferencingNestedSetsTreeTest extends NestedSetsTreeTest
+{
+	/** Overridden to allocate a NestedSetsTreeDao for parent-referencing nodes. */
+	@Override
+	protected NestedSetsTreeDao newDao(DbSession session)	{
+		NestedSetsTreeDao dao = new NestedSetsTreeDao(ParentReferencingNestedSetsTreePojo.class, session);
+		assertTrue(dao.isParentReferenced());
+
+		if (isTestCopy() == false)
+			dao.setUniqueTreeConstraint(newUniqueWholeTreeConstraintImpl());
+
+		return dao;
+	}
+
+	@Override
+	protected NestedSetsTreeNode newTreePojo(String name) {
+		return new ParentReferencingNestedSetsTreePojo(name);
+	}
+
+	@Override
+	protected String getName(NestedSetsTreeNode node)	{
+		return ((ParentReferencingNestedSetsTreePojo) node).getName();
+	}
+
+	@Override
+	protected void setNameNotConstraintChecking(NestedSetsTreeNode entity, String name) {
+		((ParentReferencingNestedSetsTreePojo) entity).setName(name);
+	}
+
+	/** Overridden to check that every parent reference matches the parent given by left and right indexes. */
+	@Override
+	protected List<NestedSetsTreeNode> getFullTreeForIntegrityCheck(NestedSetsTreeNode root)	{
+		List<NestedSetsTreeNode> tree = super.getFullTreeForIntegrityCheck(root);
+		for (NestedSetsTreeNode node : tree)	{
+			NestedSetsTreeNode parent = null;
+			for (NestedSetsTreeNode candidate : tree)	// the innermost enclosing node is the parent
+				if (candidate.getLeft() < node.getLeft() && candidate.getRight() > node.getRight() &&
+						(parent == null || candidate.getLeft() > parent.getLeft()))
+					parent = candidate;
+
+			assertEquals("Wrong parent reference in "+node, parent, ((ParentReferencingNestedSetsTreeNode) node).getParent());
+		}
+		return tree;
+	}
+
+}
@@ -0,0 +1,89 @@
+package fri.util.database.jpa.tree.nestedsets;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.TemporalTreeDao;
+import fri.util.database.jpa.tree.nestedsets.pojos.TemporalNestedSetsTreePojo;
+
+/**
+ * Runs all temporal nested-sets tests with a far-future valid-to sentinel instead of null,
+ * and compares query timings of both modes.
+ */
+public class SentinelTemporalNestedSetsTreeTest extends TemporalNestedSetsTreeTest
+{
+	private static final Date SENTINEL = new Date(TemporalTreeDao.VALID_TO_SENTINEL_MILLIS);
+	private static final String NODES = TemporalNestedSetsTreePojo.class.getSimpleName();
+	private static final int ROOTS = 30;
+	private static final int CHILDREN = 20;
+	private static final int QUERIES = 200;
+
+	/** Current nodes must carry the sentinel, also after unremove. */
+	public void testCurrentNodesCarrySentinel() throws Exception	{
+		DbSession session = beginDbTransaction("sentinel on insert and unremove");
+
+		Serializable rootId = createTree();
+		NestedSetsTreeNode root = getDao().find(rootId);
+		assertEquals(0, session.queryCount("select count(t) from "+NODES+" t where t.validTo is null", null));
+		assertEquals(9, session.queryCount("select count(t) from "+NODES+" t where t.validTo = ?1", new Object [] { SENTINEL }));
+
+		NestedSetsTreeNode b = findByName(root, "B");
+		getDao().remove(b);
+		assertEquals(6, session.queryCount("select count(t) from "+NODES+" t where t.validTo = ?1", new Object [] { SENTINEL }));
+		assertEquals(3, getDao().findRemoved(root, null).size());
+
+		getDao().unremove(b);
+		assertEquals(9, session.queryCount("select count(t) from "+NODES+" t where t.validTo = ?1", new Object [] { SENTINEL }));
+		assertEquals(SENTINEL, ((TemporalNestedSetsTreePojo) b).getValidTo());
+
+		commitDbTransaction("sentinel on insert and unremove");
+	}
+
+	/** Logs the timings of current-state queries with "validTo is null or" versus the sentinel range condition. */
+	public void testCurrentStateQueryTimings() throws Exception	{
+		DbSession session = beginDbTransaction("compare null and sentinel queries");
+
+		for (int i = 0; i < ROOTS; i++)	{
+			NestedSetsTreeNode root = getDao().createRoot(newTreePojo("Root"+i));
+			for (int j = 0; j < CHILDREN; j++)	{
+				NestedSetsTreeNode child = getDao().addChild(root, newTreePojo("Child"+i+"_"+j));
+				if (j % 2 == 0)
+					getDao().remove(child);
+			}
+		}
+		TemporalNestedSetsTreeDao nullDao = new TemporalNestedSetsTreeDao(TemporalNestedSetsTreePojo.class, "validFrom", "validTo", session);
+		List<NestedSetsTreeNode> roots = getDao().getRoots();
+		assertEquals(ROOTS, roots.size());
+		assertEquals(roots, nullDao.getRoots());
+		assertEquals(getDao().getChildren(roots.get(0)), nullDao.getChildren(roots.get(0)));
+		assertEquals(CHILDREN / 2, getDao().getChildren(roots.get(0)).size());
+
+		queryChildren(nullDao, roots);	// warm up JPA provider and JIT
+		queryChildren(getDao(), roots);
+		long nullMillis = queryChildren(nullDao, roots);
+		long sentinelMillis = queryChildren(getDao(), roots);
+		log("Temporal nested-sets getChildren() milliseconds for "+QUERIES+" queries: null = "+nullMillis+", sentinel = "+sentinelMillis);
+
+		commitDbTransaction("compare null and sentinel queries");
+	}
+
+
+	/** Overridden to turn on the sentinel mode. */
+	@Override
+	protected TemporalNestedSetsTreeDao newDao(DbSession session) {
+		TemporalNestedSetsTreeDao dao = super.newDao(session);
+		dao.setValidToSentinel(SENTINEL);
+		return dao;
+	}
+
+
+	private long queryChildren(TemporalNestedSetsTreeDao dao, List<NestedSetsTreeNode> roots)	{
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < QUERIES; i++)
+			dao.getChildren(roots.get(i % roots.size()));
+		return System.currentTimeMillis() - start;
+	}
+
+}
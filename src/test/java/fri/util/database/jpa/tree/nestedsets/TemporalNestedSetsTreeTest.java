@@ -1,5 +1,6 @@
 package fri.util.database.jpa.tree.nestedsets;
 
+import java.io.Serializable;
 import java.util.List;
 
 import fri.util.database.jpa.tree.AbstractTemporalTreeTest;
@@ -16,6 +17,104 @@ import fri.util.database.jpa.tree.uniqueconstraints.UniqueTreeConstraint;
  */
 public class TemporalNestedSetsTreeTest extends AbstractTemporalTreeTest<TemporalNestedSetsTreeDao, NestedSetsTreeNode>
 {
+	public void testSizeAndLeafsIgnoreHistoricizedNodes() throws Exception	{
+		beginDbTransaction("size and leafs with historicized nodes");
+		
+		Serializable rootId = createTree();
+		NestedSetsTreeNode root = getDao().find(rootId);
+		NestedSetsTreeNode b = findByName(root, "B");
+		getDao().remove(findByName(root, "B1"));
+		getDao().remove(findByName(root, "B2"));
+		
+		assertEquals(7, getDao().size(root));
+		assertEquals(1, getDao().size(b));
+		assertTrue(getDao().isLeaf(b));
+		
+		List<NestedSetsTreeNode> children = getDao().getChildren(root);
+		boolean [] leafs = getDao().isLeaf(children);
+		assertEquals(3, leafs.length);
+		assertFalse(leafs[0]);	// A
+		assertTrue(leafs[1]);	// B
+		assertFalse(leafs[2]);	// C
+		assertTrue(getDao().isLeaf(getDao().getChildren(children.get(0)))[0]);	// A1
+		
+		commitDbTransaction("size and leafs with historicized nodes");
+	}
+
+	public void testCompactHistoricizedTree() throws Exception	{
+		DbSession session = beginDbTransaction("compact historicized nodes");
+
+		Serializable rootId = createTree();
+		NestedSetsTreeNode root = getDao().find(rootId);
+		NestedSetsTreeNode b = findByName(root, "B");
+		getDao().remove(b);
+		getDao().remove(findByName(root, "C11"));
+		assertEquals(18, root.getRight());
+
+		assertEquals(3, getDao().compactHistoricizedTree(root, 1));	// B with children, bigger than chunk
+		assertEquals(1, getDao().compactHistoricizedTree(root, 1));	// C11
+		assertEquals(0, getDao().compactHistoricizedTree(root, 1));
+
+		assertEquals(10, root.getRight());
+		assertEquals(5, getDao().getFullTreeCacheable(root).size());
+		assertEquals(2, getDao().getChildren(root).size());
+		assertEquals(4, getDao().findRemoved(root, null).size());
+		assertEquals(3, getDao().getFullTreeCacheable(b).size());
+		checkTreeIntegrity(session, root);
+
+		try	{
+			getDao().unremove(b);
+			fail("Detached node must not be unremovable!");
+		}
+		catch (IllegalArgumentException e)	{
+			// expected
+		}
+
+		NestedSetsTreeNode c1 = findByName(root, "C1");
+		getDao().addChild(c1, newTreePojo("C12"));
+		assertEquals(6, getDao().size(root));
+		checkTreeIntegrity(session, root);
+
+		assertEquals(4, getDao().removeHistoricizedTreePhysically(root, null, 100));
+		assertEquals(6, getDao().getFullTreeCacheable(root).size());
+		assertEquals(0, getDao().findRemoved(root, null).size());
+		checkTreeIntegrity(session, root);
+
+		getDao().remove(findByName(root, "A"));
+		assertEquals(2, getDao().compactHistoricizedTree(root, 100));
+		getDao().removePhysically(root);
+		assertEquals(0, getDao().getAllRoots().size());
+		assertEquals(0, session.queryCount("select count(t) from "+TemporalNestedSetsTreePojo.class.getSimpleName()+" t", null));
+
+		commitDbTransaction("compact historicized nodes");
+	}
+
+	public void testRemoveHistoricizedRootPhysicallyInChunks() throws Exception	{
+		DbSession session = beginDbTransaction("remove historicized root physically in chunks");
+
+		Serializable rootId = createTree();
+		NestedSetsTreeNode root = getDao().find(rootId);
+		getDao().remove(root);
+
+		int removedCount = 0;
+		int count;
+		while ((count = getDao().removeHistoricizedTreePhysically(root, null, 2)) > 0)	{
+			assertTrue("Chunk exceeds maximum: "+count, count <= 2);
+			removedCount += count;
+			if (removedCount < 9)	{	// the root goes with the last chunk
+				assertEquals(1, getDao().getAllRoots().size());
+				List<NestedSetsTreeNode> fullTree = getDao().getFullTreeCacheable(root);
+				assertEquals(9 - removedCount, fullTree.size());
+				NestedSetsTreeTest.checkTreeIntegrity(root, fullTree);
+			}
+		}
+		assertEquals(9, removedCount);
+		assertEquals(0, getDao().getAllRoots().size());
+		assertEquals(0, session.queryCount("select count(t) from "+TemporalNestedSetsTreePojo.class.getSimpleName()+" t", null));
+
+		commitDbTransaction("remove historicized root physically in chunks");
+	}
+
 	/** Overridden to allocate a new TemporalNestedSetsTreeDao for this test case. */
 	@Override
 	protected TemporalNestedSetsTreeDao newDao(DbSession session) {
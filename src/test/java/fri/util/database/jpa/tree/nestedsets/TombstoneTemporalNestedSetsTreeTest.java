@@ -0,0 +1,54 @@
+package fri.util.database.jpa.tree.nestedsets;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.tree.nestedsets.pojos.TemporalNestedSetsTreePojo;
+
+/**
+ * Runs all temporal nested-sets tests with tombstones, where removing a node historicizes just that node.
+ */
+public class TombstoneTemporalNestedSetsTreeTest extends TemporalNestedSetsTreeTest
+{
+	private static final String NODES = TemporalNestedSetsTreePojo.class.getSimpleName();
+
+	/** Removing a sub-tree must stamp its root only, but hide all of its nodes. */
+	public void testRemoveStampsSubTreeRootOnly() throws Exception	{
+		DbSession session = beginDbTransaction("tombstone remove");
+
+		Serializable rootId = createTree();
+		NestedSetsTreeNode root = getDao().find(rootId);
+		NestedSetsTreeNode b = findByName(root, "B");
+		NestedSetsTreeNode b1 = findByName(root, "B1");
+		getDao().remove(b);
+
+		assertEquals(1, session.queryCount("select count(t) from "+NODES+" t where t.validTo is not null", null));
+		assertEquals(6, getDao().size(root));
+		assertEquals(6, getDao().getTree(root).size());
+		assertEquals(2, getDao().getChildren(root).size());
+		assertEquals(0, getDao().getChildren(b).size());
+		assertEquals(0, getDao().getChildren(b1).size());
+		assertEquals(3, getDao().findRemoved(root, null).size());
+		assertEquals(6, getDao().getTreeCacheable(root).size());
+		assertEquals(6, getDao().asOf(new Date()).getTree(root).size());
+
+		getDao().unremove(b);
+		assertEquals(0, session.queryCount("select count(t) from "+NODES+" t where t.validTo is not null", null));
+		assertEquals(9, getDao().size(root));
+		assertEquals(2, getDao().getChildren(b).size());
+		checkTreeIntegrity(session, root);
+
+		commitDbTransaction("tombstone remove");
+	}
+
+
+	/** Overridden to turn on tombstones. */
+	@Override
+	protected TemporalNestedSetsTreeDao newDao(DbSession session) {
+		TemporalNestedSetsTreeDao dao = super.newDao(session);
+		dao.setTombstoning(true);
+		return dao;
+	}
+
+}
@@ -0,0 +1,106 @@
+package fri.util.database.jpa.tree.nestedsets.pojos;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+
+import fri.util.database.jpa.tree.nestedsets.NestedSetsTreeNode;
+import fri.util.database.jpa.tree.nestedsets.ParentReferencingNestedSetsTreeNode;
+
+/**
+ * Example POJO for the unit test, implementing <code>ParentReferencingNestedSetsTreeNode</code> via JPA.
+ * This is the same as NonUniqueNestedSetsTreePojo but additionally holds a reference to its direct parent.
+ */
+@Entity
+public class ParentReferencingNestedSetsTreePojo extends AbstractNestedSetsTreePojo implements ParentReferencingNestedSetsTreeNode
+{
+	@Id
+    @GeneratedValue
+    private String id;
+
+    @ManyToOne(targetEntity=ParentReferencingNestedSetsTreePojo.class)	// targetEntity tells JPA the concrete class for interface
+    @JoinColumn(name="TOPLEVEL_ID")	// can not be nullable=false because MySQL refuses to delete roots that have a self-reference
+    private NestedSetsTreeNode topLevel;
+
+    @ManyToOne(targetEntity=ParentReferencingNestedSetsTreePojo.class)
+    @JoinColumn(name="PARENT_ID")	// is null for roots
+    private NestedSetsTreeNode parent;
+
+    @Column(nullable=false)
+	private String name;
+
+	private String address;
+
+	/** No-argument constructor needed by JPA. Must be present when other constructors exist. */
+	public ParentReferencingNestedSetsTreePojo() {
+	}
+
+	/** Convenience constructor for programming. */
+	public ParentReferencingNestedSetsTreePojo(String name) {
+		assert name != null : "Need a non-null name for unit testing!";
+		this.name = name;
+		this.address = "address of "+name;
+	}
+
+	@Override
+	public String getId() {
+		return id;
+	}
+
+	/** @return the top-level (root) node of this tree node. This is NOT its parent! */
+	@Override
+	public NestedSetsTreeNode getTopLevel() {
+		return topLevel;
+	}
+
+	/** Do not call. Public due to implementation constraints. */
+	@Override
+	public void setTopLevel(NestedSetsTreeNode topLevel) {
+		this.topLevel = topLevel;
+	}
+
+	/** @return the direct parent of this tree node, null for roots. */
+	@Override
+	public NestedSetsTreeNode getParent() {
+		return parent;
+	}
+
+	/** Do not call. Public due to implementation constraints. */
+	@Override
+	public void setParent(NestedSetsTreeNode parent) {
+		this.parent = parent;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public void setAddress(String address) {
+		this.address = address;
+	}
+
+	/** @return a clone of this node, excluding Id property and parent. */
+	@Override
+	public NestedSetsTreeNode clone()	{
+		ParentReferencingNestedSetsTreePojo clone = new ParentReferencingNestedSetsTreePojo(getName());
+		clone.setTopLevel(getTopLevel());
+		return clone;
+	}
+
+	@Override
+	public String toString() {
+		return "["+name+", left="+getLeft()+", right="+getRight()+", root="+(getTopLevel() != null ? ((ParentReferencingNestedSetsTreePojo) getTopLevel()).getName() : "null")+"]";
+	}
+
+}
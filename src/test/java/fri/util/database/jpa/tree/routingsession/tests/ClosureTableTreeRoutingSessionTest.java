@@ -0,0 +1,186 @@
+package fri.util.database.jpa.tree.routingsession.tests;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import fri.util.database.jpa.commons.DbSession;
+import fri.util.database.jpa.commons.DbSessionJpaImpl;
+import fri.util.database.jpa.commons.RoutingDbSession;
+import fri.util.database.jpa.tree.TemporalTreeChange;
+import fri.util.database.jpa.tree.TemporalTreeDao;
+import fri.util.database.jpa.tree.TreeDao;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeNode;
+import fri.util.database.jpa.tree.closuretable.ClosureTableTreeTest;
+import fri.util.database.jpa.tree.closuretable.TemporalClosureTableTreeDao;
+import fri.util.database.jpa.tree.closuretable.pojos.ClosureTableTreePojo;
+import fri.util.database.jpa.tree.closuretable.pojos.TemporalTreePathImpl;
+import fri.util.database.jpa.tree.util.InstrumentedTreeDao;
+
+/**
+ * Runs all closure-table tests with a routing session whose replica is the primary,
+ * and tests routing with a replica on a second in-memory database, "replicated" by copying rows.
+ */
+public class ClosureTableTreeRoutingSessionTest extends ClosureTableTreeTest
+{
+	private static final String PRIMARY_URL = "jdbc:h2:mem:db1;DB_CLOSE_DELAY=-1;MVCC=TRUE";
+	private static final String REPLICA_URL = "jdbc:h2:mem:replica;DB_CLOSE_DELAY=-1;MVCC=TRUE";
+	private static final String REPLICA_ROOT_NAME = "REPLICA";
+	
+	private RoutingDbSession session;
+	private EntityManagerFactory replicaFactory;
+	private EntityManager replicaEntityManager;
+	private boolean pinAfterWrite = true;
+	
+	public void testReadOnlyOperationsReadFromReplica() throws Exception	{
+		pinAfterWrite = false;
+		Serializable rootId = createReplicatedTree();
+		beginDbTransaction("read from replica");
+		
+		TreeDao<ClosureTableTreeNode> dao = InstrumentedTreeDao.instrument(getDao(), null);
+		ClosureTableTreeNode root = dao.find(rootId);
+		assertEquals(REPLICA_ROOT_NAME, getName(root));
+		assertEquals(3, dao.getChildren(root).size());
+		assertEquals("ROOT", getName(getDao().find(rootId)));	// not a DAO operation, goes to primary
+		
+		dao.addChild(root, newTreePojo("X"));
+		assertFalse(session.isPinned());
+		assertEquals(3, dao.getChildren(root).size());	// replica did not yet receive the write
+		assertEquals(4, getDao().getChildren(root).size());
+		
+		commitDbTransaction("read from replica");
+	}
+	
+	public void testPinReadsAfterWrite() throws Exception	{
+		Serializable rootId = createReplicatedTree();
+		beginDbTransaction("pin reads after write");
+		
+		TreeDao<ClosureTableTreeNode> dao = InstrumentedTreeDao.instrument(getDao(), null);
+		ClosureTableTreeNode root = dao.find(rootId);
+		assertEquals(REPLICA_ROOT_NAME, getName(root));
+		
+		dao.addChild(root, newTreePojo("X"));
+		assertTrue(session.isPinned());
+		root = dao.find(rootId);
+		assertEquals("ROOT", getName(root));
+		assertEquals(4, dao.getChildren(root).size());
+		
+		session.unpin();
+		assertEquals(3, dao.getChildren(root).size());
+		
+		commitDbTransaction("pin reads after write");
+	}
+	
+	public void testViewsAndChangesReadFromReplica() throws Exception	{
+		pinAfterWrite = false;
+		final Date from = new Date(System.currentTimeMillis() - 1000);
+		beginDbTransaction("create temporal tree on primary");
+		ClosureTableTreeNode root = newTemporalDao().createRoot(newTreePojo("ROOT"));
+		newTemporalDao().addChild(root, newTreePojo("A"));
+		final Serializable rootId = root.getId();
+		commitDbTransaction("create temporal tree on primary");
+		replicate(rootId, "ClosureTableTreePojo", "TemporalTreePathImpl");
+		
+		beginDbTransaction("read views and changes from replica");
+		@SuppressWarnings("unchecked")
+		final TemporalTreeDao<ClosureTableTreeNode> dao = (TemporalTreeDao<ClosureTableTreeNode>) InstrumentedTreeDao.instrument(newTemporalDao(), null);
+		root = dao.asOf(new Date()).getRoots().get(0);
+		assertEquals(REPLICA_ROOT_NAME, getName(root));
+		assertEquals("ROOT", getName(newTemporalDao().asOf(new Date()).getRoots().get(0)));	// not wrapped, goes to primary
+		assertEquals(1, dao.asOf(new Date()).getChildren(root).size());
+		
+		final Iterator<TemporalTreeChange<ClosureTableTreeNode>> changes = dao.getChanges(root, from, new Date());
+		int count = 0;
+		while (changes.hasNext())	{
+			final ClosureTableTreeNode node = changes.next().getNode();
+			if (rootId.equals(node.getId()))
+				assertEquals(REPLICA_ROOT_NAME, getName(node));
+			count++;
+		}
+		assertTrue(count > 0);
+		
+		commitDbTransaction("read views and changes from replica");
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		
+		if (replicaFactory != null)	{
+			replicaEntityManager.close();
+			replicaFactory.close();
+		}
+	}
+	
+	@Override
+	protected DbSession newDbSession(String message) {
+		final DbSession primary = super.newDbSession(message);
+		final DbSession replica = (replicaEntityManager != null) ? new DbSessionJpaImpl(replicaEntityManager) : primary;
+		return session = new RoutingDbSession(primary, replica, pinAfterWrite);
+	}
+	
+	
+	private TemporalClosureTableTreeDao newTemporalDao()	{
+		return new TemporalClosureTableTreeDao(ClosureTableTreePojo.class, TemporalTreePathImpl.class, true, "validFrom", "validTo", session);
+	}
+	
+	/** Creates a tree on primary, copies it to replica and renames the root there. */
+	private Serializable createReplicatedTree() throws Exception	{
+		beginDbTransaction("create tree on primary");
+		Serializable rootId = createTree();
+		commitDbTransaction("create tree on primary");
+		
+		replicate(rootId, "ClosureTableTreePojo", "TreePathImpl");
+		return rootId;
+	}
+	
+	/** Copies given tables to replica and renames the root there. */
+	private void replicate(Serializable rootId, String nodeTable, String pathTable) throws Exception	{
+		replicaFactory = Persistence.createEntityManagerFactory(
+				getPersistenceUnitName(),
+				Collections.singletonMap("javax.persistence.jdbc.url", REPLICA_URL));
+		replicaEntityManager = replicaFactory.createEntityManager();	// creates schema
+		
+		final Connection primaryConnection = DriverManager.getConnection(PRIMARY_URL, "sa", "");
+		final Connection replicaConnection = DriverManager.getConnection(REPLICA_URL, "sa", "");
+		try	{
+			copyRows(nodeTable, primaryConnection, replicaConnection);
+			copyRows(pathTable, primaryConnection, replicaConnection);
+			
+			final PreparedStatement rename = replicaConnection.prepareStatement("update ClosureTableTreePojo set name = ? where id = ?");
+			rename.setString(1, REPLICA_ROOT_NAME);
+			rename.setObject(2, rootId);
+			assertEquals(1, rename.executeUpdate());
+		}
+		finally	{
+			primaryConnection.close();
+			replicaConnection.close();
+		}
+	}
+	
+	private void copyRows(String table, Connection from, Connection to) throws SQLException	{
+		final ResultSet rows = from.createStatement().executeQuery("select * from "+table);
+		final int columnCount = rows.getMetaData().getColumnCount();
+		final StringBuilder placeHolders = new StringBuilder();
+		for (int i = 0; i < columnCount; i++)
+			placeHolders.append(i > 0 ? ", ?" : "?");
+		
+		final PreparedStatement insert = to.prepareStatement("insert into "+table+" values ("+placeHolders+")");
+		while (rows.next())	{
+			for (int i = 1; i <= columnCount; i++)
+				insert.setObject(i, rows.getObject(i));
+			insert.executeUpdate();
+		}
+	}
+
+}